@@ -0,0 +1,2 @@
+H0{H1{ROOTH2{@}ROOTF3}F1}F0
+---X---
\ No newline at end of file
@@ -0,0 +1,2 @@
+H0{H1{SUBH3{@}SUBF2}F1}F0
+---Y---
\ No newline at end of file
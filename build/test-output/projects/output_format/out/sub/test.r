@@ -0,0 +1 @@
+HTML (It's in a subdir!)
\ No newline at end of file
@@ -0,0 +1 @@
+XML
\ No newline at end of file
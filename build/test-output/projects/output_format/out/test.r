@@ -0,0 +1 @@
+RTF
\ No newline at end of file
@@ -0,0 +1 @@
+&amp;
\ No newline at end of file
@@ -0,0 +1 @@
+undefined
\ No newline at end of file
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Output stream that writes into a temporary file next to the destination
+ * file, and replaces the destination file with it when the stream is closed.
+ * Used when the {@code atomicOutput} engine parameter is {@code true}.
+ */
+class AtomicFileOutputStream extends CommitOnCloseOutputStream {
+
+    private final File tmpFile;
+    private final FileOutputStream tmpOut;
+    private boolean closed;
+    private boolean discarded;
+
+    /**
+     * @param engine The engine whose output synchronization policy is applied.
+     * @param dst The output file.
+     */
+    AtomicFileOutputStream(Engine engine, File dst) throws IOException {
+        super(engine, dst);
+        tmpFile = createTemporaryFile();
+        boolean done = false;
+        try {
+            tmpOut = new FileOutputStream(tmpFile);
+            done = true;
+        } finally {
+            if (!done) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    public void write(int b) throws IOException {
+        if (!discarded) {
+            tmpOut.write(b);
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!discarded) {
+            tmpOut.write(b, off, len);
+        }
+    }
+
+    public void flush() throws IOException {
+        // Nothing is written to the destination file before close()
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        commit(tmpFile, tmpOut);
+    }
+
+    void discard() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        discarded = true;
+        try {
+            tmpOut.close();
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import fmpp.util.FileUtil;
+
+/**
+ * Writes a text file through a temporary file in the same directory, which
+ * replaces the file with {@link FileUtil#replaceFile(File, File)} when
+ * {@link #commit()} is called. So the file is never seen partially written,
+ * and it remains untouched if writing fails. Used for the files where FMPP
+ * stores its own state, like {@link OutputManifest}.
+ *
+ * <p>Always {@link #close()} the writer, even after {@link #commit()}; if it
+ * wasn't committed, that deletes the temporary file.
+ */
+final class AtomicTextFileWriter extends Writer {
+
+    private final File file;
+    private final File tmpFile;
+    private final Writer out;
+    private boolean closed;
+
+    /**
+     * Creates the directory of the file too, if it doesn't exist.
+     */
+    AtomicTextFileWriter(File file, String encoding) throws IOException {
+        this.file = file;
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        tmpFile = File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+        boolean done = false;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), encoding));
+            done = true;
+        } finally {
+            if (!done) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        out.write(cbuf, off, len);
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        out.write(str, off, len);
+    }
+
+    public void write(int c) throws IOException {
+        out.write(c);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Closes the writer, and replaces the file with the written content.
+     */
+    void commit() throws IOException {
+        if (closed) {
+            throw new IOException("The writer was already closed.");
+        }
+        closed = true;
+        boolean done = false;
+        try {
+            out.close();
+            FileUtil.replaceFile(tmpFile, file);
+            done = true;
+        } finally {
+            if (!done) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Closes the writer; if {@link #commit()} wasn't called, the written
+     * content is discarded, and the file remains untouched.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import fmpp.util.FileUtil;
+
+/**
+ * Output stream whose content only gets into the destination file when the
+ * stream is closed, usually by renaming a temporary file to the destination
+ * file. So the destination file is never seen partially written, and if the
+ * output is discarded, the destination file remains untouched.
+ */
+abstract class CommitOnCloseOutputStream extends OutputStream {
+
+    protected final Engine engine;
+    protected File dst;
+
+    /**
+     * @param engine The engine whose output synchronization policy is applied.
+     * @param dst The output file.
+     */
+    CommitOnCloseOutputStream(Engine engine, File dst) {
+        this.engine = engine;
+        this.dst = dst;
+    }
+
+    /**
+     * Drops the written content, and closes the stream; the destination file
+     * is left untouched. Writing into the stream after this is silently
+     * ignored, so that writers wrapping this stream can still be closed.
+     */
+    abstract void discard() throws IOException;
+
+    /**
+     * Creates an empty temporary file in the directory of the destination
+     * file, so that it can be renamed to the destination file.
+     */
+    protected File createTemporaryFile() throws IOException {
+        File dir = dst.getAbsoluteFile().getParentFile();
+        return File.createTempFile("." + dst.getName() + ".", ".tmp", dir);
+    }
+
+    /**
+     * Closes the stream of the temporary file, and replaces the destination
+     * file with it, applying the output synchronization policy of the engine.
+     * The temporary file is deleted if this fails.
+     */
+    protected void commit(File tmpFile, FileOutputStream tmpOut) throws IOException {
+        boolean done = false;
+        try {
+            try {
+                if (engine.getOutputSync() == Engine.OUTPUT_SYNC_PER_FILE) {
+                    tmpOut.getFD().sync();
+                }
+            } finally {
+                tmpOut.close();
+            }
+            FileUtil.replaceFile(tmpFile, dst);
+            done = true;
+        } finally {
+            if (!done) {
+                tmpFile.delete();
+            }
+        }
+        engine.outputFileCommitted(dst);
+    }
+
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fmpp.util.BugException;
+
+/**
+ * The persistent dependency graph used by the {@code dependencyTracking}
+ * engine parameter. For each source file that was successfully processed, it
+ * stores the output file, the output files that were actually written (which
+ * includes the ones created with {@code pp.changeOutputFile} and such), the
+ * fingerprint of the engine parameters and data, and the files that were read
+ * to produce it (the source file itself, the included and imported templates,
+ * the data files, etc.), each with the size and the last modification time it
+ * had then. An output is up to date if all its written output files still
+ * exist, the fingerprint is the same as in the current session, and none of
+ * its inputs has changed since.
+ *
+ * <p>The graph is stored in the output root directory, in the
+ * {@value #FILE_NAME} file. The input files are stored in a table, and the
+ * outputs refer to them by index, so a template included by many files is
+ * stored only once. A missing or unreadable file is treated as an empty
+ * graph, which only means that all files will be processed again.
+ *
+ * <p>The status of the input files is queried only once per session (as
+ * one instance is used for one session only), so inputs modified during the
+ * session will not be noticed.
+ *
+ * <p>The methods that query or modify the graph can be called from multiple
+ * threads concurrently.
+ */
+final class DependencyGraph {
+
+    /** The name of the dependency graph file in the output root directory. */
+    static final String FILE_NAME = ".fmpp-dependencies";
+
+    private static final String HEADER = "# FMPP dependencies 2";
+    private static final String ENCODING = "UTF-8";
+    private static final String DIGEST_ALGORITHM = "MD5";
+
+    private final File outRoot;
+    private final File file;
+    private final String fingerprint;
+    private final Map<String, Output> outputs = new ConcurrentHashMap<String, Output>();
+    private final Map<String, Input> currentInputs = new ConcurrentHashMap<String, Input>();
+    private volatile boolean modified;
+
+    private DependencyGraph(File outRoot, String fingerprint) {
+        this.outRoot = outRoot;
+        this.file = new File(outRoot, FILE_NAME);
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Loads the dependency graph of the output root directory; if there's no
+     * usable graph there, returns an empty one.
+     *
+     * @param settingsDescription Describes everything besides the input files
+     *     that affects the outputs (the engine parameters, the data, the FMPP
+     *     and FreeMarker versions). The outputs that were generated with a
+     *     different description are not up to date. Only its digest is stored.
+     */
+    static DependencyGraph load(File outRoot, String settingsDescription) {
+        DependencyGraph graph = new DependencyGraph(outRoot, digest(settingsDescription));
+        if (graph.file.isFile()) {
+            try {
+                graph.read();
+            } catch (IOException e) {
+                // Starting from scratch only means that files will be processed again.
+                graph.outputs.clear();
+            }
+        }
+        return graph;
+    }
+
+    private void read() throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line = r.readLine();
+            if (line == null || !line.equals(HEADER)) {
+                return;
+            }
+            try {
+                line = r.readLine();
+                int inputCnt = Integer.parseInt(line);
+                Input[] inputs = new Input[inputCnt];
+                for (int i = 0; i < inputCnt; i++) {
+                    line = r.readLine();
+                    String[] fields = splitLine(line, 3);
+                    inputs[i] = new Input(fields[2], Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+                }
+                while ((line = r.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length < 4) {
+                        throw new IOException("Malformed line in " + file + ": " + line);
+                    }
+                    String[] ids = fields[3].length() != 0 ? fields[3].split(",") : new String[0];
+                    Input[] outInputs = new Input[ids.length];
+                    for (int i = 0; i < ids.length; i++) {
+                        outInputs[i] = inputs[Integer.parseInt(ids[i])];
+                    }
+                    String[] writtenPaths = new String[fields.length - 4];
+                    System.arraycopy(fields, 4, writtenPaths, 0, writtenPaths.length);
+                    outputs.put(fields[0], new Output(fields[1], writtenPaths, fields[2], outInputs));
+                }
+            } catch (RuntimeException e) {
+                // NumberFormatException, ArrayIndexOutOfBoundsException, NullPointerException at premature EOF
+                throw new IOException("Malformed dependency graph file " + file + ": " + e);
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    private String[] splitLine(String line, int fieldCnt) throws IOException {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != fieldCnt) {
+            throw new IOException("Malformed line in " + file + ": " + line);
+        }
+        return fields;
+    }
+
+    /**
+     * Writes the graph back into the output root directory, if it was
+     * modified since it was loaded. Only the inputs that are referred by
+     * some outputs are written.
+     */
+    void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+
+        Map<Input, Integer> inputIds = new LinkedHashMap<Input, Integer>();
+        for (Output output : outputs.values()) {
+            for (int i = 0; i < output.inputs.length; i++) {
+                Input input = output.inputs[i];
+                if (!inputIds.containsKey(input)) {
+                    inputIds.put(input, Integer.valueOf(inputIds.size()));
+                }
+            }
+        }
+
+        AtomicTextFileWriter w = new AtomicTextFileWriter(file, ENCODING);
+        try {
+            w.write(HEADER);
+            w.write('\n');
+            w.write(String.valueOf(inputIds.size()));
+            w.write('\n');
+            for (Input input : inputIds.keySet()) {
+                w.write(String.valueOf(input.size));
+                w.write('\t');
+                w.write(String.valueOf(input.lastModified));
+                w.write('\t');
+                w.write(input.path);
+                w.write('\n');
+            }
+            for (Map.Entry<String, Output> ent : outputs.entrySet()) {
+                Output output = ent.getValue();
+                w.write(ent.getKey());
+                w.write('\t');
+                w.write(output.path);
+                w.write('\t');
+                w.write(output.fingerprint);
+                w.write('\t');
+                for (int i = 0; i < output.inputs.length; i++) {
+                    if (i != 0) {
+                        w.write(',');
+                    }
+                    w.write(inputIds.get(output.inputs[i]).toString());
+                }
+                for (int i = 0; i < output.writtenPaths.length; i++) {
+                    w.write('\t');
+                    w.write(output.writtenPaths[i]);
+                }
+                w.write('\n');
+            }
+            w.commit();
+        } finally {
+            w.close();
+        }
+        modified = false;
+    }
+
+    /**
+     * Tells if the output of the source file is up to date, that is, the
+     * output files written by it still exist, it was generated with the same
+     * settings, and none of the files it was generated from was changed
+     * since.
+     *
+     * @param srcPath The source root relative path of the source file.
+     * @param outPath The output root relative path of the output file.
+     */
+    boolean isUpToDate(String srcPath, String outPath) {
+        Output output = outputs.get(srcPath);
+        if (output == null || !output.path.equals(outPath) || !output.fingerprint.equals(fingerprint)) {
+            return false;
+        }
+        for (int i = 0; i < output.writtenPaths.length; i++) {
+            if (!new File(outRoot, output.writtenPaths[i]).isFile()) {
+                return false;
+            }
+        }
+        for (int i = 0; i < output.inputs.length; i++) {
+            Input input = output.inputs[i];
+            if (!input.equals(getCurrentInput(input.path))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the output files that were written by the source file, and the
+     * files that were read to produce them.
+     *
+     * @param outPath The output root relative path of the output file.
+     * @param writtenPaths The output root relative paths of the output files
+     *     that were actually written.
+     */
+    void put(String srcPath, String outPath, Collection<String> writtenPaths, Collection<File> inputFiles) {
+        if (!isStorable(srcPath) || !isStorable(outPath)) {
+            remove(srcPath);
+            return;
+        }
+        for (String writtenPath : writtenPaths) {
+            if (!isStorable(writtenPath)) {
+                remove(srcPath);
+                return;
+            }
+        }
+        List<Input> inputs = new ArrayList<Input>(inputFiles.size());
+        for (File f : inputFiles) {
+            String path = f.getAbsolutePath();
+            if (!isStorable(path)) {
+                // We couldn't tell later if this has changed.
+                remove(srcPath);
+                return;
+            }
+            inputs.add(getCurrentInput(path));
+        }
+        outputs.put(srcPath, new Output(
+                outPath, writtenPaths.toArray(new String[writtenPaths.size()]), fingerprint,
+                inputs.toArray(new Input[inputs.size()])));
+        modified = true;
+    }
+
+    /**
+     * Forgets the source file, like after its processing has failed.
+     */
+    void remove(String srcPath) {
+        if (outputs.remove(srcPath) != null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Returns the output root relative paths of the written output files whose
+     * source file doesn't exist anymore, mapped to the source root relative
+     * path of the source file. Sources none of whose output files exist
+     * either are removed from the graph.
+     */
+    Map<String, String> findStaleOutputs(File srcRoot) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (Iterator<Map.Entry<String, Output>> it = outputs.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Output> ent = it.next();
+            String srcPath = ent.getKey();
+            if (!new File(srcRoot, srcPath).exists()) {
+                String[] writtenPaths = ent.getValue().writtenPaths;
+                boolean anyExists = false;
+                for (int i = 0; i < writtenPaths.length; i++) {
+                    if (new File(outRoot, writtenPaths[i]).exists()) {
+                        result.put(writtenPaths[i], srcPath);
+                        anyExists = true;
+                    }
+                }
+                if (!anyExists) {
+                    it.remove();
+                    modified = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    private Input getCurrentInput(String path) {
+        Input input = currentInputs.get(path);
+        if (input == null) {
+            File f = new File(path);
+            input = new Input(path, f.length(), f.lastModified());
+            currentInputs.put(path, input);
+        }
+        return input;
+    }
+
+    private static boolean isStorable(String path) {
+        return path.indexOf('\t') == -1 && path.indexOf('\n') == -1 && path.indexOf('\r') == -1;
+    }
+
+    /**
+     * Calculates the digest of the text, as hexadecimal string.
+     */
+    private static String digest(String s) {
+        byte[] d;
+        try {
+            d = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(s.getBytes(ENCODING));
+        } catch (NoSuchAlgorithmException e) {
+            throw new BugException(DIGEST_ALGORITHM + " is always supported by Java");
+        } catch (UnsupportedEncodingException e) {
+            throw new BugException(ENCODING + " is always supported by Java");
+        }
+        StringBuffer sb = new StringBuffer(d.length * 2);
+        for (int i = 0; i < d.length; i++) {
+            int b = d[i] & 0xFF;
+            sb.append(Character.forDigit(b >> 4, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static class Output {
+        private final String path;
+        private final String[] writtenPaths;
+        private final String fingerprint;
+        private final Input[] inputs;
+
+        Output(String path, String[] writtenPaths, String fingerprint, Input[] inputs) {
+            this.path = path;
+            this.writtenPaths = writtenPaths;
+            this.fingerprint = fingerprint;
+            this.inputs = inputs;
+        }
+    }
+
+    /**
+     * A file with its size and last modification time at a given moment.
+     */
+    private static class Input {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+
+        Input(String path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Input)) {
+                return false;
+            }
+            Input other = (Input) o;
+            return size == other.size && lastModified == other.lastModified && path.equals(other.path);
+        }
+
+        public int hashCode() {
+            return path.hashCode() ^ (int) (lastModified ^ (lastModified >>> 32));
+        }
+    }
+
+}
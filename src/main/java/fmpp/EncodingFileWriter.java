@@ -0,0 +1,429 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writer that encodes the characters into a byte buffer, and writes that
+ * to the {@link FileChannel} of the output file (or, if the output isn't a
+ * {@link FileOutputStream}, to the output stream). This replaces the
+ * {@code BufferedWriter} + {@code OutputStreamWriter} pair, which copies the
+ * characters one more time, and synchronizes on each call. For UTF-8,
+ * ISO-8859-1 and US-ASCII, which are the typical output encodings, the
+ * characters are encoded by simple loops; for other charsets a
+ * {@link CharsetEncoder} is used. Like with {@code OutputStreamWriter},
+ * characters that can't be encoded are replaced with the replacement of the
+ * charset (which is {@code ?} for these charsets).
+ *
+ * <p>The buffers and the {@link CharsetEncoder}-s are pooled per thread, so
+ * they aren't allocated again for each output file. They are given back to
+ * the pool when the writer is closed.
+ *
+ * <p>Not thread-safe.
+ */
+final class EncodingFileWriter extends Writer {
+
+    static final int BYTE_BUFFER_SIZE = 1024 * 16;
+    static final int CHAR_BUFFER_SIZE = 1024 * 8;
+    private static final int MAX_POOLED = 4;
+
+    private static final int KIND_GENERIC = 0;
+    private static final int KIND_UTF_8 = 1;
+    private static final int KIND_8_BIT = 2;
+
+    private static final Map<String, Charset> CHARSETS = new ConcurrentHashMap<String, Charset>();
+    private static final ThreadLocal<Pool> POOLS = new ThreadLocal<Pool>() {
+        protected Pool initialValue() {
+            return new Pool();
+        }
+    };
+
+    private final OutputStream out;
+    private final FileChannel channel;
+    private final Charset charset;
+    private final int kind;
+    private final char maxChar;
+
+    private byte[] bytes;
+    private ByteBuffer byteBuf;
+    private int byteCnt;
+    private char[] chars;
+    private int charCnt;
+    private CharBuffer charBuf;
+    private CharsetEncoder encoder;
+    private boolean closed;
+
+    /**
+     * @param out The stream to write into; it will be closed when this
+     *     writer is closed.
+     * @param charset The charset, as returned by {@link #getCharset(String)}.
+     */
+    EncodingFileWriter(OutputStream out, Charset charset) {
+        this.out = out;
+        this.channel = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : null;
+        this.charset = charset;
+
+        String name = charset.name();
+        if (name.equals("UTF-8")) {
+            kind = KIND_UTF_8;
+            maxChar = 0;
+        } else if (name.equals("ISO-8859-1")) {
+            kind = KIND_8_BIT;
+            maxChar = 0xFF;
+        } else if (name.equals("US-ASCII")) {
+            kind = KIND_8_BIT;
+            maxChar = 0x7F;
+        } else {
+            kind = KIND_GENERIC;
+            maxChar = 0;
+        }
+
+        Pool pool = POOLS.get();
+        bytes = pool.getByteArray();
+        byteBuf = ByteBuffer.wrap(bytes);
+        chars = pool.getCharArray();
+        if (kind == KIND_GENERIC) {
+            charBuf = CharBuffer.wrap(chars);
+            encoder = pool.getEncoder(charset);
+        }
+    }
+
+    /**
+     * Returns the charset for the name, similarly to
+     * {@link Charset#forName(String)}, but caches the result, and throws
+     * the same exception as {@code OutputStreamWriter} for unknown charsets.
+     */
+    static Charset getCharset(String enc) throws UnsupportedEncodingException {
+        Charset charset = CHARSETS.get(enc);
+        if (charset == null) {
+            try {
+                charset = Charset.forName(enc);
+            } catch (IllegalArgumentException e) {
+                // IllegalCharsetNameException or UnsupportedCharsetException
+                throw new UnsupportedEncodingException(enc);
+            }
+            CHARSETS.put(enc, charset);
+        }
+        return charset;
+    }
+
+    public void write(int c) throws IOException {
+        ensureOpen();
+        chars[charCnt++] = (char) c;
+        if (charCnt == chars.length) {
+            encodeChars(false);
+        }
+    }
+
+    public void write(String str) throws IOException {
+        write(str, 0, str.length());
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, chars.length - charCnt);
+            str.getChars(off, off + n, chars, charCnt);
+            charCnt += n;
+            off += n;
+            len -= n;
+            if (charCnt == chars.length) {
+                encodeChars(false);
+            }
+        }
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, chars.length - charCnt);
+            System.arraycopy(cbuf, off, chars, charCnt, n);
+            charCnt += n;
+            off += n;
+            len -= n;
+            if (charCnt == chars.length) {
+                encodeChars(false);
+            }
+        }
+    }
+
+    public void flush() throws IOException {
+        ensureOpen();
+        encodeChars(false);
+        writeBytes();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            encodeChars(true);
+            if (encoder != null) {
+                byteBuf.position(byteCnt);
+                while (encoder.flush(byteBuf).isOverflow()) {
+                    byteCnt = byteBuf.position();
+                    writeBytes();
+                }
+                byteCnt = byteBuf.position();
+            }
+            writeBytes();
+        } finally {
+            closed = true;
+            releaseBuffers();
+            out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Encodes the characters in the character buffer into the byte buffer
+     * (writing the byte buffer out whenever it gets full). Unless this is the
+     * end of the input, a high surrogate at the end of the character buffer
+     * is kept there, as it will be encoded together with the low surrogate
+     * that comes with the next write.
+     */
+    private void encodeChars(boolean endOfInput) throws IOException {
+        int end = charCnt;
+        if (!endOfInput && end != 0 && Character.isHighSurrogate(chars[end - 1])) {
+            end--;
+        }
+        int consumed;
+        switch (kind) {
+        case KIND_UTF_8:
+            encodeUtf8(end);
+            consumed = end;
+            break;
+        case KIND_8_BIT:
+            encode8Bit(end);
+            consumed = end;
+            break;
+        default:
+            consumed = encodeWithEncoder(end, endOfInput);
+        }
+        int remaining = charCnt - consumed;
+        if (remaining != 0) {
+            System.arraycopy(chars, consumed, chars, 0, remaining);
+        }
+        charCnt = remaining;
+    }
+
+    private void encodeUtf8(int end) throws IOException {
+        final char[] chars = this.chars;
+        final byte[] bytes = this.bytes;
+        // Leave room for the longest sequence
+        final int maxPos = bytes.length - 4;
+        int pos = byteCnt;
+        int i = 0;
+        while (i < end) {
+            if (pos > maxPos) {
+                byteCnt = pos;
+                writeBytes();
+                pos = 0;
+            }
+            char c = chars[i++];
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+                // Fast loop for ASCII runs
+                int runEnd = Math.min(end, i + (bytes.length - pos));
+                while (i < runEnd && (c = chars[i]) < 0x80) {
+                    bytes[pos++] = (byte) c;
+                    i++;
+                }
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c <= Character.MAX_HIGH_SURROGATE && i < end && Character.isLowSurrogate(chars[i])) {
+                int cp = Character.toCodePoint(c, chars[i++]);
+                bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                // Malformed surrogate
+                bytes[pos++] = '?';
+            }
+        }
+        byteCnt = pos;
+    }
+
+    private void encode8Bit(int end) throws IOException {
+        final char[] chars = this.chars;
+        final byte[] bytes = this.bytes;
+        final char maxChar = this.maxChar;
+        int pos = byteCnt;
+        int i = 0;
+        while (i < end) {
+            if (pos == bytes.length) {
+                byteCnt = pos;
+                writeBytes();
+                pos = 0;
+            }
+            int runEnd = Math.min(end, i + (bytes.length - pos));
+            while (i < runEnd) {
+                char c = chars[i++];
+                if (c <= maxChar) {
+                    bytes[pos++] = (byte) c;
+                } else {
+                    bytes[pos++] = '?';
+                    if (Character.isHighSurrogate(c) && i < end && Character.isLowSurrogate(chars[i])) {
+                        // A surrogate pair is one unmappable character
+                        i++;
+                        runEnd = Math.min(runEnd + 1, end);
+                    }
+                }
+            }
+        }
+        byteCnt = pos;
+    }
+
+    /**
+     * Encodes with the {@link CharsetEncoder}.
+     * 
+     * @return The number of characters consumed; the encoder may leaves
+     *     some at the end if this isn't the end of the input.
+     */
+    private int encodeWithEncoder(int end, boolean endOfInput) throws IOException {
+        charBuf.clear();
+        charBuf.limit(end);
+        byteBuf.position(byteCnt);
+        while (true) {
+            CoderResult cr = encoder.encode(charBuf, byteBuf, endOfInput);
+            if (cr.isOverflow()) {
+                byteCnt = byteBuf.position();
+                writeBytes();
+            } else if (cr.isUnderflow()) {
+                break;
+            } else {
+                // Shouldn't happen with CodingErrorAction.REPLACE
+                cr.throwException();
+            }
+        }
+        byteCnt = byteBuf.position();
+        return charBuf.position();
+    }
+
+    private void writeBytes() throws IOException {
+        if (byteCnt == 0) {
+            return;
+        }
+        if (channel != null) {
+            byteBuf.clear();
+            byteBuf.limit(byteCnt);
+            while (byteBuf.hasRemaining()) {
+                channel.write(byteBuf);
+            }
+        } else {
+            out.write(bytes, 0, byteCnt);
+        }
+        byteBuf.clear();
+        byteCnt = 0;
+    }
+
+    private void releaseBuffers() {
+        Pool pool = POOLS.get();
+        pool.release(bytes, chars);
+        bytes = null;
+        byteBuf = null;
+        chars = null;
+        charBuf = null;
+        if (encoder != null) {
+            pool.release(charset, encoder);
+            encoder = null;
+        }
+    }
+
+    /**
+     * The buffers and encoders that aren't used by any writer of the thread.
+     * As outputs can be nested (see {@code pp.nestOutputFile}), a thread can
+     * have multiple writers open at once, so this is more than one buffer.
+     */
+    private static class Pool {
+        private final ArrayList<byte[]> byteArrays = new ArrayList<byte[]>();
+        private final ArrayList<char[]> charArrays = new ArrayList<char[]>();
+        private final Map<Charset, ArrayList<CharsetEncoder>> encoders
+                = new HashMap<Charset, ArrayList<CharsetEncoder>>();
+
+        byte[] getByteArray() {
+            int size = byteArrays.size();
+            return size != 0 ? byteArrays.remove(size - 1) : new byte[BYTE_BUFFER_SIZE];
+        }
+
+        char[] getCharArray() {
+            int size = charArrays.size();
+            return size != 0 ? charArrays.remove(size - 1) : new char[CHAR_BUFFER_SIZE];
+        }
+
+        CharsetEncoder getEncoder(Charset charset) {
+            ArrayList<CharsetEncoder> list = encoders.get(charset);
+            if (list != null && list.size() != 0) {
+                return list.remove(list.size() - 1);
+            }
+            return charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        void release(byte[] byteArray, char[] charArray) {
+            if (byteArrays.size() < MAX_POOLED) {
+                byteArrays.add(byteArray);
+            }
+            if (charArrays.size() < MAX_POOLED) {
+                charArrays.add(charArray);
+            }
+        }
+
+        void release(Charset charset, CharsetEncoder encoder) {
+            ArrayList<CharsetEncoder> list = encoders.get(charset);
+            if (list == null) {
+                list = new ArrayList<CharsetEncoder>();
+                encoders.put(charset, list);
+            }
+            if (list.size() < MAX_POOLED) {
+                encoder.reset();
+                list.add(encoder);
+            }
+        }
+    }
+
+}
@@ -20,17 +20,38 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -38,6 +59,11 @@ import org.w3c.dom.Document;
 
 import fmpp.dataloaders.XmlDataLoader;
 import fmpp.setting.Settings;
+import fmpp.tdd.CacheableDataLoader;
+import fmpp.tdd.DataLoader;
+import fmpp.tdd.DataLoaderCallKey;
+import fmpp.tdd.DataLoaderResult;
+import fmpp.tdd.DataLoaderResultCache;
 import fmpp.util.BorderedReader;
 import fmpp.util.BugException;
 import fmpp.util.ExceptionCC;
@@ -45,6 +71,7 @@ import fmpp.util.FileUtil;
 import fmpp.util.InstallationException;
 import fmpp.util.MiscUtil;
 import fmpp.util.StringUtil;
+import freemarker.cache.MruCacheStorage;
 import freemarker.cache.TemplateConfigurationFactory;
 import freemarker.cache.TemplateConfigurationFactoryException;
 import freemarker.core.HTMLOutputFormat;
@@ -57,16 +84,21 @@ import freemarker.core.XHTMLOutputFormat;
 import freemarker.core.XMLOutputFormat;
 import freemarker.ext.beans.BeansWrapper;
 import freemarker.ext.beans.BeansWrapperBuilder;
+import freemarker.ext.util.WrapperTemplateModel;
 import freemarker.template.Configuration;
 import freemarker.template.DefaultObjectWrapper;
 import freemarker.template.DefaultObjectWrapperBuilder;
 import freemarker.template.ObjectWrapper;
 import freemarker.template.Template;
+import freemarker.template.TemplateBooleanModel;
+import freemarker.template.TemplateDateModel;
 import freemarker.template.TemplateException;
 import freemarker.template.TemplateExceptionHandler;
 import freemarker.template.TemplateModel;
 import freemarker.template.TemplateModelException;
 import freemarker.template.TemplateNodeModel;
+import freemarker.template.TemplateNumberModel;
+import freemarker.template.TemplateScalarModel;
 import freemarker.template.Version;
 import freemarker.template.utility.NullArgumentException;
 
@@ -125,6 +157,47 @@ public class Engine {
     /** Processing mode: Render XML with an FTL template. */
     public static final int PMODE_RENDER_XML = 4;
     
+    /**
+     * Used with the "copyStrategy" engine parameter: copy static files byte-by-byte.
+     * @since 0.9.17
+     */
+    public static final int COPY_STRATEGY_COPY = 0;
+    
+    /**
+     * Used with the "copyStrategy" engine parameter: create hard links to the static files instead of copying
+     * them, if possible.
+     * @since 0.9.17
+     */
+    public static final int COPY_STRATEGY_HARD_LINK = 1;
+    
+    /**
+     * Used with the "copyStrategy" engine parameter: create symbolic links to the static files instead of copying
+     * them, if possible.
+     * @since 0.9.17
+     */
+    public static final int COPY_STRATEGY_SYMBOLIC_LINK = 2;
+    
+    /**
+     * Used with the "outputSync" engine parameter: never force the output files to the storage device; leave it to
+     * the operating system.
+     * @since 0.9.17
+     */
+    public static final int OUTPUT_SYNC_NONE = 0;
+    
+    /**
+     * Used with the "outputSync" engine parameter: force each atomically committed output file to the storage
+     * device before it's renamed to its final name, and its directory after that.
+     * @since 0.9.17
+     */
+    public static final int OUTPUT_SYNC_PER_FILE = 1;
+    
+    /**
+     * Used with the "outputSync" engine parameter: force all atomically committed output files, and then their
+     * directories, to the storage device once, at the end of the processing session.
+     * @since 0.9.17
+     */
+    public static final int OUTPUT_SYNC_SESSION_END = 2;
+    
     /** Used with the "skipUnchnaged" engine parameter: never skip files */
     public static final int SKIP_NONE = 0;
 
@@ -140,6 +213,15 @@ public class Engine {
      */
     public static final int SKIP_ALL = 2;
     
+    /**
+     * Used with the "skipUnchanged" engine parameter: skip unchanged static
+     * files, where being unchanged is decided based on the content of the
+     * source file (as recorded in a manifest file in the output root
+     * directory), rather than on its last modification time.
+     * @since 0.9.17
+     */
+    public static final int SKIP_HASH = 3;
+    
     /**
      * A commonly used reserved parameter value: {@code "source"}.
      */ 
@@ -196,6 +278,15 @@ public class Engine {
     
     private static final String CREATEDIR_FILE = "createdir.fmpp";
     
+    /** The number of copying tasks that can wait in the queue per copier thread. */
+    private static final int COPY_QUEUE_LENGTH_PER_THREAD = 16;
+    
+    /**
+     * Files modified this recently aren't trusted to have a last modification time that will change on the next
+     * modification, as file systems store it with limited precision.
+     */
+    private static final long LAST_MODIFIED_PRECISION = 2000;
+    
     private static final Set<String> STATIC_FILE_EXTS_V1;
     private static final Set<String> STATIC_FILE_EXTS_V2;
     static {
@@ -234,6 +325,7 @@ public class Engine {
     private File srcRoot, outRoot, dataRoot;
     private boolean dontTraverseDirs;
     private Map<String, List<File>> freemarkerLinks = new HashMap<String, List<File>>();
+    private boolean indexFreemarkerLinks;
     private boolean stopOnError = true;
     private Map<String, Object> data = new HashMap<String, Object>();
     private LayeredChooser localDataBuilders = new LayeredChooser();
@@ -246,6 +338,7 @@ public class Engine {
     private LayeredChooser headerChoosers = new LayeredChooser();
     private LayeredChooser footerChoosers = new LayeredChooser();
     private List<TurnChooser> turnChoosers = new ArrayList<TurnChooser>();
+    private volatile ChoosersIndex choosersIndex;
     private boolean csPathCmp = false;
     private boolean expertMode = false;
     private List<String> removeExtensions = new ArrayList<String>();
@@ -253,6 +346,7 @@ public class Engine {
     private List<String[]> replaceExtensions = new ArrayList<String[]>();
     private boolean removeFreemarkerExtensions;
     private int skipUnchanged;
+    private SourceDigestManifest sourceDigestManifest;
     private boolean alwaysCrateDirs = false;
     private boolean ignoreCvsFiles = true;
     private boolean ignoreSvnFiles = true;
@@ -261,19 +355,90 @@ public class Engine {
     private Object xmlEntityResolver;
     private boolean validateXml = false;
     private List<XmlRenderingCfgContainer> xmlRendCfgCntrs = new ArrayList<XmlRenderingCfgContainer>();
+    private int parallelism = 1;
+    private int copyThreads;
+    private int copyStrategy = COPY_STRATEGY_COPY;
+    private boolean dependencyTracking;
+    private boolean writeOnlyIfChanged;
+    private boolean atomicOutput;
+    private int outputSync = OUTPUT_SYNC_NONE;
+    private OutputSink outputSink;
+    private List<String> gzipOutputPatterns = new ArrayList<String>();
+    private long gzipMinSize = 256;
+    private List<String> outputFilterPatterns = new ArrayList<String>();
+    private List<OutputFilter> outputFilters = new ArrayList<OutputFilter>();
+    private boolean outputManifest;
+    private boolean pruneStaleOutputs;
+    private boolean retainTemplateCache;
+    private int templateCacheStrongSize = -1;
+    private int templateCacheSoftSize = -1;
+    private DataLoaderResultCache dataLoaderResultCache;
+    private boolean memoizeDataLoaderCalls;
     
     // Misc
     private Configuration fmCfg;
+    private FmppTemplateLoader templateLoader;
     private MultiProgressListener progListeners = new MultiProgressListener();
     private TemplateEnvironment templateEnv;
     private int maxTurn, currentTurn;
     private Map<String, Object> attributes = new HashMap<String, Object>();
     private Boolean chachedXmlSupportAvailable;
     private boolean parametersLocked;
+    private final Set<File> globalDependencies = Collections.synchronizedSet(new LinkedHashSet<File>());
+    
+    // Retained template cache state (only used if retainTemplateCache is true)
+    /** Tells if an engine parameter that affects template parsing was changed since the cache was last cleared. */
+    private boolean templateCacheOutdated = true;
+    private final ConcurrentHashMap<String, TemplateSourceStamp> templateSourceStamps
+            = new ConcurrentHashMap<String, TemplateSourceStamp>();
+    private final ConcurrentHashMap<String, Object> templateCacheValidationLocks
+            = new ConcurrentHashMap<String, Object>();
     
     // Session state
     private Map<File, Boolean> ignoredDirCache = new HashMap<File, Boolean>();
+    private final ConcurrentHashMap<File, String> canonicalDirPaths = new ConcurrentHashMap<File, String>();
     private Set<File> processedFiles = new HashSet<File>();
+    private List<List<PlannedFile>> plannedFilesByTurn = new ArrayList<List<PlannedFile>>();
+    
+    // Parallel processing state (only used if parallelism > 1 or copyThreads > 0)
+    private ExecutorService fileWorkers;
+    private final List<Future<Object>> pendingFileTasks = new ArrayList<Future<Object>>();
+    private volatile boolean fileTasksAborted;
+    private final ThreadLocal<TemplateEnvironment> workerTemplateEnv = new ThreadLocal<TemplateEnvironment>();
+    private final ConcurrentHashMap<String, Object> templateLoadingLocks = new ConcurrentHashMap<String, Object>();
+    /** The innermost loadData call of the thread whose result may be cached. */
+    private final ThreadLocal<DataLoaderCall> currentDataLoaderCall = new ThreadLocal<DataLoaderCall>();
+    private final ConcurrentHashMap<DataLoaderCallKey, MemoizedDataLoaderCall> memoizedDataLoaderCalls
+            = new ConcurrentHashMap<DataLoaderCallKey, MemoizedDataLoaderCall>();
+    
+    // Asynchronous copying state (only used if copyThreads > 0)
+    private ExecutorService copyWorkers;
+    
+    // Dependency tracking state (only used if dependencyTracking is true)
+    private DependencyGraph dependencyGraph;
+    private final ThreadLocal<Set<File>> currentFileDependencies = new ThreadLocal<Set<File>>();
+    /** The output root relative paths of the output files written by the source file of the thread. */
+    private final ThreadLocal<Set<String>> currentFileOutputs = new ThreadLocal<Set<String>>();
+    private final ConcurrentHashMap<String, File> templateSourceFiles = new ConcurrentHashMap<String, File>();
+    
+    // Output synchronization state (only used if outputSync is OUTPUT_SYNC_SESSION_END)
+    private final Set<File> unsyncedOutputFiles = Collections.synchronizedSet(new LinkedHashSet<File>());
+    
+    // Open session state (only used if openSession() was called)
+    private boolean sessionOpen;
+    
+    // Output sink state (only used if outputSink isn't null)
+    private boolean outputSinkSessionOpen;
+    
+    // Gzip sibling state (only used if there are gzipOutputPatterns)
+    private GzipSiblingWriter gzipSiblingWriter;
+    private Pattern[] compiledGzipOutputPatterns;
+    
+    // Output filter state (only used if there are outputFilters)
+    private Pattern[] compiledOutputFilterPatterns;
+    
+    // Output manifest state (only used if outputManifest or pruneStaleOutputs is true)
+    private OutputManifest outputManifestState;
 
     /**
      * Same as {@link #Engine(Version) Engine((Version) null)}.
@@ -379,7 +544,7 @@ public class Engine {
             freemarkerIncompatibleImprovements = getDefaultFreemarkerIncompatibleImprovements(recommendedDefaults);
         }
         
-        fmCfg = new Configuration(freemarkerIncompatibleImprovements);
+        fmCfg = new FMPPConfiguration(freemarkerIncompatibleImprovements);
 
         if (objectWrapper == null) {
             objectWrapper = createDefaultObjectWrapper(recommendedDefaults, freemarkerIncompatibleImprovements);
@@ -477,13 +642,21 @@ public class Engine {
      * <p>The source root and output root directory must be set (non-null) prior
      * to calling this method.
      * 
+     * <p>If a processing session was opened with {@link #openSession()}, the
+     * files are processed in that session, otherwise this method runs its own
+     * processing session.
+     * 
      * @see #process(File, File)
+     * @see #process(File[], File[])
      *
      * @param sources The list of files to process. All file must be inside
      *      the source root. The files will be processed in the order as they
      *      appear in the list, except that if you use multiple turns, they
      *      are re-sorted based on the associated turns (the original order
-     *      of files is kept inside turns).
+     *      of files is kept inside turns). The source directories are
+     *      traversed only once, at the beginning of the session, so files
+     *      created inside the source root by an earlier turn will not be
+     *      processed.
      *    
      * @throws ProcessingException if {@code Engine.process} has
      *     thrown any exception. The message of this exception holds nothing
@@ -492,20 +665,10 @@ public class Engine {
      *     all (so even non-checked exceptions) thrown be the engine are
      *     catched and wrapped by this exeption.
      */
-    public void process(File[] sources)
+    public void process(final File[] sources)
             throws ProcessingException {
-        progListeners.notifyProgressEvent(
-                this,
-                ProgressListener.EVENT_BEGIN_PROCESSING_SESSION,
-                null, PMODE_NONE,
-                null, null);
-        try {
-            try {
-                setupSession();
-            } catch (IllegalConfigurationException e) {
-                throw new ProcessingException(this, null, e);
-            }
-            try {
+        processInSession(new FilePlanner() {
+            public void planFiles() throws IOException, ProcessingException {
                 File src;
                 File[] srcs = new File[sources.length];
                 for (int i = 0; i < sources.length; i++) {
@@ -522,28 +685,97 @@ public class Engine {
                     srcs[i] = src;
                 }
                 
-                for (; currentTurn <= maxTurn; currentTurn++) {
-                    for (int i = 0; i < srcs.length; i++) {
-                        if (srcs[i] != null) {
-                            boolean done;
-
-                            File out = new File(
-                                    outRoot,
-                                    FileUtil.getRelativePath(srcRoot, srcs[i]));
-
-                            if (srcs[i].isDirectory()) {
-                                done = processDir(srcs[i], out);
-                            } else {
-                                done = processFile(srcs[i], out, true);
-                            }
-                            if (done) {
-                                srcs[i] = null;
-                            }
-                        }
+                for (int i = 0; i < srcs.length; i++) {
+                    File out = new File(
+                            outRoot,
+                            FileUtil.getRelativePath(srcRoot, srcs[i]));
+                    if (srcs[i].isDirectory()) {
+                        planDir(srcs[i], out, false);
+                    } else {
+                        planFile(srcs[i], out, true, true);
                     }
                 }
-            } finally {
-                cleanupSession();
+            }
+        });
+    }
+
+    /**
+     * Processes a list of source files, each into the output file specified
+     * for it, in a single processing session. This is like calling
+     * {@link #process(File, File)} for each source file, but the processing
+     * session is set up only once, which matters if there are many files,
+     * like when a build tool processes the changed files. Unlike with
+     * {@link #process(File, File)}, the source root and output root directory
+     * must be set prior to calling this method.
+     *
+     * <p>If a processing session was opened with {@link #openSession()}, the
+     * files are processed in that session, otherwise this method runs its own
+     * processing session.
+     *
+     * @param sources The source files (not directories). All must be inside
+     *     the source root.
+     * @param outputs The output files (not directories), in the same order as
+     *     the source files. All must be inside the output root.
+     *
+     * @throws ProcessingException Same as for {@link #process(File[])}.
+     *
+     * @since 0.9.17
+     */
+    public void process(final File[] sources, final File[] outputs)
+            throws ProcessingException {
+        if (sources.length != outputs.length) {
+            throw new IllegalArgumentException(
+                    "The number of sources (" + sources.length
+                    + ") and the number of outputs (" + outputs.length + ") differ.");
+        }
+        processInSession(new FilePlanner() {
+            public void planFiles() throws IOException, ProcessingException {
+                for (int i = 0; i < sources.length; i++) {
+                    planFileWithOutput(sources[i], outputs[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a processing session that's kept open until
+     * {@link #closeSession()} is called. Until then, the {@code process}
+     * methods process the files in this session, so the session isn't set up
+     * and finished for each call. This is useful when the files to process
+     * are given one by one (like by a build tool that processes the changed
+     * files). The {@link ProgressListener#EVENT_BEGIN_PROCESSING_SESSION}
+     * event is sent by this method, and
+     * {@link ProgressListener#EVENT_END_PROCESSING_SESSION} by
+     * {@link #closeSession()}.
+     *
+     * <p>The session state is kept between the {@code process} calls; for
+     * example, templates aren't loaded again even if their file was changed,
+     * and the source directories marked to be ignored are remembered. The
+     * engine parameters can't be changed while the session is open. If a
+     * {@code process} call throws an exception, the session remains open, so
+     * it still has to be closed. An {@link Engine} object can have only one
+     * session open at a time, and it must not be used by multiple threads
+     * concurrently.
+     *
+     * @throws ProcessingException If the setup of the session has failed; in
+     *     that case the session isn't open.
+     *
+     * @since 0.9.17
+     */
+    public void openSession() throws ProcessingException {
+        if (sessionOpen) {
+            throw new IllegalStateException("A processing session is already open.");
+        }
+        progListeners.notifyProgressEvent(
+                this,
+                ProgressListener.EVENT_BEGIN_PROCESSING_SESSION,
+                null, PMODE_NONE,
+                null, null);
+        try {
+            try {
+                setupSession();
+            } catch (IllegalConfigurationException e) {
+                throw new ProcessingException(this, null, e);
             }
         } catch (ProcessingException e) {
             progListeners.notifyProgressEvent(
@@ -560,6 +792,38 @@ public class Engine {
                     e, null);
             throw new ProcessingException(this, null, e);
         }
+        startFileWorkers();
+        sessionOpen = true;
+    }
+
+    /**
+     * Finishes the processing session started with {@link #openSession()};
+     * this is when the things that are done at the end of the session
+     * happen, like saving the dependency graph, or writing the gzip siblings.
+     * The session is closed even if this method throws an exception.
+     *
+     * @since 0.9.17
+     */
+    public void closeSession() throws ProcessingException {
+        if (!sessionOpen) {
+            throw new IllegalStateException("There's no open processing session.");
+        }
+        try {
+            try {
+                finishSession();
+            } finally {
+                stopFileWorkers();
+                cleanupSession();
+                sessionOpen = false;
+            }
+        } catch (IOException e) {
+            progListeners.notifyProgressEvent(
+                    this,
+                    ProgressListener.EVENT_END_PROCESSING_SESSION,
+                    null, PMODE_NONE,
+                    e, null);
+            throw new ProcessingException(this, null, e);
+        }
         progListeners.notifyProgressEvent(
                 this,
                 ProgressListener.EVENT_END_PROCESSING_SESSION,
@@ -567,6 +831,154 @@ public class Engine {
                 null, null);
     }
 
+    /**
+     * Tells if a processing session was opened with {@link #openSession()},
+     * and wasn't closed yet.
+     *
+     * @since 0.9.17
+     */
+    public boolean isSessionOpen() {
+        return sessionOpen;
+    }
+
+    /**
+     * Plans and processes files in the open session, or if no session is
+     * open, in a session of its own.
+     */
+    private void processInSession(FilePlanner planner) throws ProcessingException {
+        if (sessionOpen) {
+            processFiles(planner);
+            return;
+        }
+        
+        openSession();
+        try {
+            processFiles(planner);
+        } catch (ProcessingException e) {
+            abortSession();
+            progListeners.notifyProgressEvent(
+                    this,
+                    ProgressListener.EVENT_END_PROCESSING_SESSION,
+                    null, PMODE_NONE,
+                    e, null);
+            throw e;
+        } catch (RuntimeException e) {
+            abortSession();
+            throw e;
+        } catch (Error e) {
+            abortSession();
+            throw e;
+        }
+        closeSession();
+    }
+
+    private void processFiles(FilePlanner planner) throws ProcessingException {
+        try {
+            try {
+                planner.planFiles();
+            } catch (IOException e) {
+                throw new ProcessingException(this, null, e);
+            }
+            for (; currentTurn <= maxTurn; currentTurn++) {
+                processTurn();
+            }
+        } finally {
+            // Prepare for the next process call of the open session.
+            if (!pendingFileTasks.isEmpty()) {
+                fileTasksAborted = true;
+                try {
+                    awaitFileTasks();
+                } catch (ProcessingException e) {
+                    // Ignore, as there's an exception already
+                }
+            }
+            fileTasksAborted = false;
+            currentTurn = 1;
+            for (List<PlannedFile> plannedFiles : plannedFilesByTurn) {
+                plannedFiles.clear();
+            }
+            processedFiles.clear();
+        }
+    }
+
+    /**
+     * Does what has to be done at the end of a successful session.
+     */
+    private void finishSession() throws IOException {
+        if (sourceDigestManifest != null) {
+            sourceDigestManifest.save();
+        }
+        if (dependencyGraph != null) {
+            if (!pruneStaleOutputs) {
+                reportStaleOutputs();
+            }
+            dependencyGraph.save();
+        }
+        writeGzipSiblings();
+        saveOutputManifest();
+        syncOutputFiles();
+        endOutputSinkSession();
+    }
+
+    private void abortSession() {
+        try {
+            stopFileWorkers();
+        } finally {
+            cleanupSession();
+            sessionOpen = false;
+        }
+    }
+
+    /**
+     * Validates a source file and its explicitly specified output file, and then plans its processing.
+     */
+    private void planFileWithOutput(File src, File out) throws IOException, ProcessingException {
+        if (src == null) {
+            throw new IllegalArgumentException(
+                    "The source argument can't be null.");
+        }
+        if (out == null) {
+            throw new IllegalArgumentException(
+                    "The output argument can't be null.");
+        }
+
+        src = src.getCanonicalFile();
+        if (!src.exists()) {
+            throw new IOException(
+                    "Source file not found: "
+                    + src.getPath());
+        }
+        if (src.isDirectory()) {
+            throw new IOException(
+                    "Source file can't be a directory: "
+                    + src.getPath());
+        }
+
+        out = out.getCanonicalFile();
+        if (out.exists() && out.isDirectory()) {
+            throw new IOException(
+                    "The output file can't be a directory.");
+        }
+
+        if (!FileUtil.isInsideOrEquals(src, srcRoot)) {
+            throw new IOException(
+                    "The source file ("
+                    + src.getPath()
+                    + ") is not inside the source root ("
+                    + srcRoot.getPath() + ")");
+        }
+
+        if (!FileUtil.isInsideOrEquals(out, outRoot)) {
+            throw new IOException(
+                    "The output file ("
+                    + out.getPath()
+                    + ") is not inside the output root ("
+                    + outRoot.getPath() + ")");
+        }
+
+        planFile(src, out, false, true);
+    }
+
     private boolean isDirMarkedWithIgnoreFile(File dir)
             throws IOException {
         boolean ign;
@@ -593,6 +1005,11 @@ public class Engine {
      * will be set for the time of this method call to the parent directories of
      * the source and output files respectively.
      * 
+     * <p>If a processing session was opened with {@link #openSession()}, the
+     * file is processed in that session, otherwise this method runs its own
+     * processing session. To process many files, {@link #process(File[],
+     * File[])} is more efficient than calling this method for each.
+     * 
      * @see #process(File[])
      *
      * @param src the source file (not directory). Can't be null.
@@ -607,98 +1024,22 @@ public class Engine {
      */
     public void process(File src, File out)
             throws ProcessingException {
-        progListeners.notifyProgressEvent(
-                this,
-                ProgressListener.EVENT_BEGIN_PROCESSING_SESSION,
-                null, PMODE_NONE,
-                null, null);
         File oldSrcRoot = srcRoot;
         File oldOutRoot = outRoot;
         try {
-            try {
-                if (src == null) {
-                    throw new IllegalArgumentException(
-                            "The source argument can't be null.");
-                }
-                if (out == null) {
-                    throw new IllegalArgumentException(
-                            "The output argument can't be null.");
-                }
-    
-                src = src.getCanonicalFile();
-                if (!src.exists()) {
-                    throw new IOException(
-                            "Source file not found: "
-                            + src.getPath());
-                }
-                if (src.isDirectory()) {
-                    throw new IOException(
-                            "Source file can't be a directory: "
-                            + src.getPath());
-                }
-    
-                out = out.getCanonicalFile();
-                if (out.exists() && out.isDirectory()) {
-                    throw new IOException(
-                            "The output file can't be a directory.");
-                }
-                
-                if (srcRoot == null) {
-                    setSourceRoot(src.getParentFile());
-                }
-    
-                if (outRoot == null) {
-                    setOutputRoot(out.getParentFile());
-                }
-                
+            if (!sessionOpen && src != null && out != null) {
                 try {
-                    setupSession();
-                } catch (IllegalConfigurationException e) {
-                    throw new ProcessingException(this, null, e);
-                }
-                try {
-                    if (!FileUtil.isInsideOrEquals(src, srcRoot)) {
-                        throw new IOException(
-                                "The source file ("
-                                + src.getPath()
-                                + ") is not inside the source root ("
-                                + srcRoot.getPath() + ")");
-                    }
-    
-                    if (!FileUtil.isInsideOrEquals(out, outRoot)) {
-                        throw new IOException(
-                                "The output file ("
-                                + out.getPath()
-                                + ") is not inside the output root ("
-                                + outRoot.getPath() + ")");
+                    if (srcRoot == null) {
+                        setSourceRoot(src.getCanonicalFile().getParentFile());
                     }
-        
-                    for (; currentTurn <= maxTurn; currentTurn++) {
-                        processFile(src, out, false);
+                    if (outRoot == null) {
+                        setOutputRoot(out.getCanonicalFile().getParentFile());
                     }
-                } finally {
-                    cleanupSession();
+                } catch (IOException e) {
+                    throw new ProcessingException(this, null, e);
                 }
-            } catch (ProcessingException e) {
-                progListeners.notifyProgressEvent(
-                        this,
-                        ProgressListener.EVENT_END_PROCESSING_SESSION,
-                        null, PMODE_NONE,
-                        e, null);
-                throw e;
-            } catch (IOException e) {
-                progListeners.notifyProgressEvent(
-                        this,
-                        ProgressListener.EVENT_END_PROCESSING_SESSION,
-                        null, PMODE_NONE,
-                        e, null);
-                throw new ProcessingException(this, null, e);
             }
-            progListeners.notifyProgressEvent(
-                    this,
-                    ProgressListener.EVENT_END_PROCESSING_SESSION,
-                    null, PMODE_NONE,
-                    null, null);
+            process(new File[] { src }, new File[] { out });
         } finally {
             // clear auto-deduced root dirs.
             if (oldSrcRoot == null) {
@@ -726,7 +1067,7 @@ public class Engine {
         if (!srcRoot.isDirectory()) {
             throw new IOException("Source root is not a directory.");
         }
-        if (outRoot.exists() && !outRoot.isDirectory()) {
+        if (outputSink == null && outRoot.exists() && !outRoot.isDirectory()) {
             throw new IOException("Output root is not a directory.");
         }
 
@@ -746,11 +1087,24 @@ public class Engine {
             
             currentTurn = 1;
             
-            fmCfg.setTemplateLoader(new FmppTemplateLoader(this));
-            fmCfg.clearTemplateCache();
+            boolean resetTemplateCache = !retainTemplateCache || templateCacheOutdated;
+            if (resetTemplateCache) {
+                templateLoader = new FmppTemplateLoader(this);
+                fmCfg.setTemplateLoader(templateLoader);
+                fmCfg.clearTemplateCache();
+                templateSourceStamps.clear();
+                templateCacheOutdated = false;
+            }
+            templateCacheValidationLocks.clear();
+            templateLoader.clearLookupCache();
             
             fmCfg.clearSharedVariables();
             for (Map.Entry<String, Object> ent : data.entrySet()) {
+                if (ent.getValue() instanceof LazyDataValue) {
+                    // Resolved on first access by FMPPConfiguration.getSharedVariable
+                    ((LazyDataValue) ent.getValue()).discardIfOutdated();
+                    continue;
+                }
                 try {
                     fmCfg.setSharedVariable(ent.getKey(), ent.getValue());
                 } catch (TemplateModelException e) {
@@ -761,16 +1115,52 @@ public class Engine {
             }
             
             // Note: We recreate the TemplateConfigurationFactory, as things like registered OutputFormats could have
-            // changed.
-            fmCfg.setTemplateConfigurations(new FMPPTemplateConfigurationFactory());
+            // changed. (Setting a new one also discards the cached templates, so it's only done when they are reset.)
+            if (resetTemplateCache) {
+                fmCfg.setTemplateConfigurations(new FMPPTemplateConfigurationFactory());
+            }
             
             processedFiles.clear();
             ignoredDirCache.clear();
+            canonicalDirPaths.clear();
+            plannedFilesByTurn.clear();
+            for (int i = 0; i < maxTurn; i++) {
+                plannedFilesByTurn.add(new ArrayList<PlannedFile>());
+            }
+            
+            // With an output sink, there are no output files to compare with, so these are ignored.
+            if (skipUnchanged == SKIP_HASH && outputSink == null) {
+                sourceDigestManifest = SourceDigestManifest.load(outRoot);
+            }
+            if (dependencyTracking && outputSink == null) {
+                dependencyGraph = DependencyGraph.load(outRoot, describeOutputAffectingSettings());
+            }
+            if ((outputManifest || pruneStaleOutputs) && outputSink == null) {
+                outputManifestState = OutputManifest.load(outRoot);
+            }
+            if (!gzipOutputPatterns.isEmpty() && outputSink == null) {
+                compiledGzipOutputPatterns = new Pattern[gzipOutputPatterns.size()];
+                for (int i = 0; i < compiledGzipOutputPatterns.length; i++) {
+                    compiledGzipOutputPatterns[i] = pathPatternToRegexpPattern(gzipOutputPatterns.get(i));
+                }
+                gzipSiblingWriter = new GzipSiblingWriter(this, gzipMinSize);
+            }
+            if (!outputFilters.isEmpty()) {
+                compiledOutputFilterPatterns = new Pattern[outputFilterPatterns.size()];
+                for (int i = 0; i < compiledOutputFilterPatterns.length; i++) {
+                    compiledOutputFilterPatterns[i] = pathPatternToRegexpPattern(outputFilterPatterns.get(i));
+                }
+            }
             
             templateEnv.setupForSession();
             
             lockParameters();
             
+            if (outputSink != null) {
+                outputSink.beginSession(this);
+                outputSinkSessionOpen = true;
+            }
+            
             done = true;
         } finally {
             if (!done) {
@@ -780,39 +1170,86 @@ public class Engine {
     }
     
     private void cleanupSession() {
+        if (outputSinkSessionOpen) {
+            // The session was aborted
+            outputSinkSessionOpen = false;
+            try {
+                outputSink.endSession(false);
+            } catch (Throwable e) {
+                // Ignore, as there's an exception already
+            }
+        }
+        if (gzipSiblingWriter != null) {
+            // If the session was aborted, the siblings of the written output files are outdated
+            gzipSiblingWriter.deleteWrittenSiblings();
+            gzipSiblingWriter = null;
+            compiledGzipOutputPatterns = null;
+        }
+        compiledOutputFilterPatterns = null;
+        
         unlockParameters();
         
         templateEnv.cleanAfterSession();
 
         processedFiles.clear();
         ignoredDirCache.clear();
-        fmCfg.clearTemplateCache();
+        canonicalDirPaths.clear();
+        plannedFilesByTurn.clear();
+        templateLoadingLocks.clear();
+        sourceDigestManifest = null;
+        dependencyGraph = null;
+        globalDependencies.clear();
+        outputManifestState = null;
+        templateSourceFiles.clear();
+        unsyncedOutputFiles.clear();
+        templateCacheValidationLocks.clear();
+        memoizedDataLoaderCalls.clear();
+        if (!retainTemplateCache) {
+            fmCfg.clearTemplateCache();
+        }
         fmCfg.clearSharedVariables();
     }
     
-    private boolean processDir(File srcDir, File dstDir)
+    /**
+     * Walks the source directory (once per session), and adds the files in it to the plan of the turns.
+     * 
+     * @param parentsChecked Whether it's already known that the parent directories aren't marked to be ignored.
+     */
+    private void planDir(File srcDir, File dstDir, boolean parentsChecked)
             throws IOException, ProcessingException {
-
-        if (isDirMarkedWithIgnoreFile(srcDir)) {
-            return true;
+        
+        if (!parentsChecked && isDirMarkedWithIgnoreFile(srcDir)) {
+            return;
         }
         
         String name = srcDir.getName();
         if (ignoreCvsFiles) {
             if (name.equals("CVS")
                     || (!csPathCmp && name.equalsIgnoreCase("CVS"))) {
-                return true;
+                return;
             }
         }
         if (ignoreSvnFiles) {
             if (name.equals(".svn")
                     || (!csPathCmp && name.equalsIgnoreCase(".svn"))) {
-                return true;
+                return;
             }
         }
-
-        if (alwaysCrateDirs || new File(srcDir, CREATEDIR_FILE).isFile()) {
-            if (!dstDir.exists()) {
+        
+        // The directory listing is also used to look for the marker files, instead of probing for them one by one.
+        File[] dir = !dontTraverseDirs ? srcDir.listFiles() : null;
+        if (dir == null && !dontTraverseDirs) {
+            throw new IOException("Failed to list directory: " + srcDir.getAbsolutePath());
+        }
+        
+        if (parentsChecked && containsMarkerFile(srcDir, dir, IGNOREDIR_FILE)) {
+            return;
+        }
+        
+        if (alwaysCrateDirs || containsMarkerFile(srcDir, dir, CREATEDIR_FILE)) {
+            if (outputSink != null) {
+                outputSink.createDirectory(getOutputRootRelativePath(dstDir));
+            } else if (!dstDir.exists()) {
                 if (!dstDir.mkdirs()) {
                     throw new IOException(
                             "Failed to create directory: "
@@ -826,28 +1263,51 @@ public class Engine {
             }
         }
         
-        if (!dontTraverseDirs) {
-            File[] dir = srcDir.listFiles();
+        if (dir != null) {
             for (int i = 0; i < dir.length; i++) {
                 File sf = dir[i];
                 String fn = sf.getName();
                 File df = new File(dstDir, fn);
                 if (sf.isDirectory()) {
-                    processDir(sf, df);
+                    planDir(sf, df, true);
                 } else {
-                    processFile(sf, df, true);
+                    // The ignoredir.fmpp files of the parent directories were already checked above. 
+                    planFile(sf, df, true, false);
                 }
             }
         }
-        
-        return false;   
     }
     
-    private boolean processFile(File sf, File df, boolean allowOutFAdj)
+    /**
+     * Tells if the directory contains the marker file.
+     * 
+     * @param listing The files in the directory, or {@code null} if the directory wasn't listed.
+     */
+    private boolean containsMarkerFile(File dir, File[] listing, String markerName) {
+        if (listing == null) {
+            return new File(dir, markerName).exists();
+        }
+        for (int i = 0; i < listing.length; i++) {
+            if (listing[i].getName().equalsIgnoreCase(markerName)) {
+                // Re-check with the comparison rules of the file-system
+                return new File(dir, markerName).exists();
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Decides the turn, the processing mode and the output file of a source file, and adds it to the plan of that
+     * turn. The actual processing happens later, in {@link #processTurn()}.
+     * 
+     * @param checkIgnoredDir Whether it has to be checked if the parent directory is to be ignored; not needed if
+     *     the file was found by {@link #planDir(File, File)}.  
+     */
+    private void planFile(File sf, File df, boolean allowOutFAdj, boolean checkIgnoredDir)
             throws IOException, ProcessingException {
-        if (isDirMarkedWithIgnoreFile(
+        if (checkIgnoredDir && isDirMarkedWithIgnoreFile(
                 sf.getParentFile().getCanonicalFile())) {
-            return true;
+            return;
         }
         
         if (sf.getName().equalsIgnoreCase(CREATEDIR_FILE)) {
@@ -855,7 +1315,9 @@ public class Engine {
             // Re-check with the comparison rules of the file-system
             if (new File(srcDir, CREATEDIR_FILE).exists()) {
                 File dstDir = df.getParentFile();
-                if (!dstDir.exists()) {
+                if (outputSink != null) {
+                    outputSink.createDirectory(getOutputRootRelativePath(dstDir));
+                } else if (!dstDir.exists()) {
                     if (!dstDir.mkdirs()) {
                         throw new IOException(
                                 "Failed to create directory: "
@@ -867,21 +1329,19 @@ public class Engine {
                             srcDir,
                             PMODE_NONE, null, null);
                 }
-                return true;
+                return;
             }
         }
         
-        if (currentTurn != getTurn(sf)) {
-            return false;
-        }           
         if (!processedFiles.add(sf)) {
-            return true;
+            return;
         }
 
-        int pmode = getProcessingMode(sf);
-
-        Throwable catchedExc = null;
+        ChosenByPath chosen = getChosenByPath(sf);
+        int turn = getTurn(chosen);
+        int pmode = getProcessingMode(sf, chosen);
 
+        Throwable planningExc = null;
         try {
             if (allowOutFAdj && pmode != Engine.PMODE_IGNORE) {
                 df = adjustOutputFileName(df);
@@ -895,47 +1355,138 @@ public class Engine {
                             + "you should turn on expert mode.");
                 }
             }
-            if (pmode != Engine.PMODE_IGNORE
-                        && (skipUnchanged == SKIP_ALL
-                            || (skipUnchanged == SKIP_STATIC
-                                && pmode == Engine.PMODE_COPY))) {
-                long dfl = df.lastModified();
-                long sfl = sf.lastModified();
-                if (df.exists() && dfl > 0 && sfl > 0 && dfl == sfl) {
+        } catch (Throwable e) {
+            // delay the throwing of exc. as if it was happen while processing
+            planningExc = e;
+        }
+        
+        plannedFilesByTurn.get(turn - 1).add(new PlannedFile(sf, df, pmode, planningExc));
+    }
+    
+    /**
+     * Processes the files planned for the current turn. 
+     */
+    private void processTurn() throws ProcessingException {
+        templateLoader.forgetDirectoryStatuses();
+        for (PlannedFile pf : plannedFilesByTurn.get(currentTurn - 1)) {
+            if (fileTasksAborted) {
+                // A task has failed with stopOnError; awaitFileTasks() will throw its exception.
+                break;
+            }
+            processFile(pf);
+        }
+        // The turn is a barrier: all files of this turn must be finished before the next turn starts.
+        awaitFileTasks();
+    }
+    
+    private void processFile(PlannedFile pf) throws ProcessingException {
+        final File sf = pf.sf;
+        final File df = pf.df;
+        final int pmode = pf.pmode;
+        
+        Throwable catchedExc = pf.planningExc;
+        boolean copiedAsIs = false;
+        if (catchedExc == null) {
+            try {
+                // With an output sink, there are no output files to compare with (see setupSession).
+                if (pmode != Engine.PMODE_IGNORE && outputSink == null
+                            && (skipUnchanged == SKIP_ALL
+                                || (skipUnchanged == SKIP_STATIC
+                                    && pmode == Engine.PMODE_COPY))) {
+                    // Note: lastModified() returns 0 if the file doesn't exist, so no exists() call is needed.
+                    long dfl = df.lastModified();
+                    long sfl = dfl > 0 ? sf.lastModified() : 0;
+                    if (dfl > 0 && sfl > 0 && dfl == sfl) {
+                        outputFileSkipped(sf, df);
+                        progListeners.notifyProgressEvent(
+                                this,
+                                ProgressListener.EVENT_SOURCE_NOT_MODIFIED,
+                                sf, pmode,
+                                null, null);
+                        return; //!
+                    }
+                } else if (sourceDigestManifest != null && pmode == Engine.PMODE_COPY) {
+                    if (sourceDigestManifest.isUnchanged(
+                            getSourceRootRelativePath(sf), sf, getOutputRootRelativePath(df), df)) {
+                        outputFileSkipped(sf, df);
+                        progListeners.notifyProgressEvent(
+                                this,
+                                ProgressListener.EVENT_SOURCE_NOT_MODIFIED,
+                                sf, pmode,
+                                null, null);
+                        return; //!
+                    }
+                }
+                if (dependencyGraph != null && pmode != Engine.PMODE_IGNORE
+                        && dependencyGraph.isUpToDate(
+                                getSourceRootRelativePath(sf), getOutputRootRelativePath(df))) {
+                    outputFileSkipped(sf, df);
                     progListeners.notifyProgressEvent(
                             this,
                             ProgressListener.EVENT_SOURCE_NOT_MODIFIED,
                             sf, pmode,
                             null, null);
-                    return true; //!
+                    return; //!
                 }
+                copiedAsIs = copyWorkers != null
+                        && (pmode == PMODE_COPY || pmode == PMODE_RENDER_XML && isXmlFileCopiedAsIs(sf));
+            } catch (Throwable e) {
+                // delay the throwing of exc. as if it was happen while processing
+                catchedExc = e;
             }
-        } catch (Throwable e) {
-            // delay the throwing of exc. as if it was happen while processing
-            catchedExc = e;
         }
         
+        if (copiedAsIs && catchedExc == null) {
+            submitFileTask(copyWorkers, sf, df, pmode, null);
+        } else if (fileWorkers != null) {
+            submitFileTask(fileWorkers, sf, df, pmode, catchedExc);
+        } else {
+            processFileContent(sf, df, pmode, catchedExc);
+        }
+    }
+
+    /**
+     * Does the actual processing of a file, after it was decided that it has to be processed in this turn.
+     * When {@link #getParallelism()} is greater than 1, this runs on a worker thread, and when the file is only
+     * copied and {@link #getCopyThreads()} is greater than 0, this runs on a copier thread.
+     *
+     * @param catchedExc An exception that was thrown while preparing for the processing of the file; it will be
+     *     reported as if it was thrown during the processing. Can be {@code null}.
+     */
+    private void processFileContent(File sf, File df, int pmode, Throwable catchedExc) throws ProcessingException {
         progListeners.notifyProgressEvent(
                 this,
                 ProgressListener.EVENT_BEGIN_FILE_PROCESSING,
                 sf, pmode,
                 null, null);
+        boolean trackDependencies = dependencyGraph != null && pmode != PMODE_IGNORE;
         try {
             if (catchedExc != null) {
                 throw catchedExc;
             }
             
+            if (trackDependencies) {
+                // If the processing fails, the output can't be trusted anymore.
+                dependencyGraph.remove(getSourceRootRelativePath(sf));
+                Set<File> deps = new LinkedHashSet<File>();
+                deps.add(sf);
+                currentFileDependencies.set(deps);
+                currentFileOutputs.set(new LinkedHashSet<String>());
+            }
+            
             switch (pmode) {
             case PMODE_EXECUTE:
                 executeFile(sf, df);
                 break;
             case PMODE_COPY:
-                File dstDir;
-                dstDir = df.getParentFile();
-                if (dstDir != null) {
-                    dstDir.mkdirs();
+                if (sourceDigestManifest != null) {
+                    // If the copying fails, the output can't be trusted anymore.
+                    sourceDigestManifest.remove(getSourceRootRelativePath(sf));
+                }
+                copyStaticFile(sf, df);
+                if (sourceDigestManifest != null) {
+                    sourceDigestManifest.update(getSourceRootRelativePath(sf), sf, getOutputRootRelativePath(df));
                 }
-                FileUtil.copyFile(sf, df);
                 break;
             case PMODE_RENDER_XML:
                 renderXmlFile(sf, df);
@@ -946,6 +1497,19 @@ public class Engine {
                 throw new BugException(
                         "Bad processing mode in the procModeChoosers:" + pmode);
             }
+            
+            if (trackDependencies) {
+                Set<File> deps = currentFileDependencies.get();
+                synchronized (globalDependencies) {
+                    deps.addAll(globalDependencies);
+                }
+                dependencyGraph.put(
+                        getSourceRootRelativePath(sf), getOutputRootRelativePath(df), currentFileOutputs.get(), deps);
+            }
+            if (outputManifestState != null) {
+                // Only after success, as the earlier outputs of a failed file must be kept.
+                outputManifestState.sourceProcessed(getSourceRootRelativePath(sf));
+            }
         } catch (Throwable e) {
             catchedExc = e;
             progListeners.notifyProgressEvent(
@@ -953,6 +1517,11 @@ public class Engine {
                     ProgressListener.EVENT_END_FILE_PROCESSING,
                     sf, pmode,
                     e, null);
+        } finally {
+            if (trackDependencies) {
+                currentFileDependencies.remove();
+                currentFileOutputs.remove();
+            }
         }
         if (catchedExc == null) {
             progListeners.notifyProgressEvent(
@@ -967,25 +1536,229 @@ public class Engine {
                 throw new ProcessingException(this, sf, catchedExc);
             }
         }
-        return true;
     }
     
+    private void startFileWorkers() {
+        fileTasksAborted = false;
+        pendingFileTasks.clear();
+        if (parallelism > 1) {
+            fileWorkers = Executors.newFixedThreadPool(parallelism, new FileWorkerThreadFactory());
+        }
+        if (copyThreads > 0) {
+            copyWorkers = new ThreadPoolExecutor(
+                    copyThreads, copyThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(copyThreads * COPY_QUEUE_LENGTH_PER_THREAD),
+                    new CopyWorkerThreadFactory(),
+                    new BlockingSubmitPolicy());
+        }
+    }
+
+    private void submitFileTask(
+            ExecutorService executor, final File sf, final File df, final int pmode, final Throwable catchedExc) {
+        pendingFileTasks.add(executor.submit(new Callable<Object>() {
+            public Object call() throws ProcessingException {
+                if (fileTasksAborted) {
+                    return null;
+                }
+                try {
+                    processFileContent(sf, df, pmode, catchedExc);
+                } catch (ProcessingException e) {
+                    fileTasksAborted = true;
+                    throw e;
+                } catch (Throwable e) {
+                    fileTasksAborted = true;
+                    throw new ProcessingException(Engine.this, sf, e);
+                }
+                return null;
+            }
+        }));
+    }
+    
+    /**
+     * Waits until all submitted file processing tasks are finished. If any of them has failed, it re-throws the
+     * exception of the earliest submitted failed task (after all the other tasks has finished too).
+     */
+    private void awaitFileTasks() throws ProcessingException {
+        if (pendingFileTasks.isEmpty()) {
+            return;
+        }
+        ProcessingException firstExc = null;
+        try {
+            for (Future<Object> task : pendingFileTasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (firstExc == null) {
+                        Throwable cause = e.getCause();
+                        firstExc = cause instanceof ProcessingException
+                                ? (ProcessingException) cause
+                                : new ProcessingException(this, null, cause);
+                    }
+                } catch (InterruptedException e) {
+                    fileTasksAborted = true;
+                    Thread.currentThread().interrupt();
+                    if (firstExc == null) {
+                        firstExc = new ProcessingException(this, null, e);
+                    }
+                    break;
+                }
+            }
+        } finally {
+            pendingFileTasks.clear();
+        }
+        if (firstExc != null) {
+            throw firstExc;
+        }
+    }
+    
+    private void stopFileWorkers() {
+        // Normally there's nothing left here, except if the session was aborted.
+        fileTasksAborted = true;
+        pendingFileTasks.clear();
+        shutdownAndWait(fileWorkers);
+        fileWorkers = null;
+        shutdownAndWait(copyWorkers);
+        copyWorkers = null;
+    }
+    
+    private static void shutdownAndWait(ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Wait for the tasks that are still running.
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Tells if the XML file will be copied as-is by the matching XML rendering configuration. It only returns
+     * {@code true} if that can be decided without loading the XML document, so this must be in sync with the
+     * matching logic of {@link #renderXmlFile(File, File)}.
+     */
+    private boolean isXmlFileCopiedAsIs(File sf) throws IOException {
+        String sfPathForComparison = null;
+        for (XmlRenderingCfgContainer xrcc : xmlRendCfgCntrs) {
+            int ln = xrcc.compiledPathPatterns.length;
+            if (ln != 0) {
+                if (sfPathForComparison == null) {
+                    sfPathForComparison = normalizePathForComparison(getSourceRootRelativePath(sf));
+                }
+                int i;
+                for (i = 0; i < ln; i++) {
+                    if (xrcc.compiledPathPatterns[i].matcher(sfPathForComparison).matches()) {
+                        break;
+                    }
+                }
+                if (i == ln) {
+                    continue;
+                }
+            }
+            // If the document element has to be checked, it's not known which configuration matches.
+            return xrcc.xmlRenderingCfg.getDocumentElementLocalNames().size() == 0
+                    && xrcc.xmlRenderingCfg.getCopy();
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the {@link TemplateEnvironment} to be used in the current thread. 
+     */
+    private TemplateEnvironment getTemplateEnvironmentOfThread() {
+        TemplateEnvironment env = workerTemplateEnv.get();
+        return env != null ? env : templateEnv;
+    }
+    
+    /**
+     * Gets the template so that concurrent requests of the same template wait for each other, so that the template
+     * is only parsed once (and then it's in the template cache).
+     */
+    private Template getTemplate(String name) throws IOException {
+        if (fileWorkers == null) {
+            return fmCfg.getTemplate(name);
+        }
+        Object lock = templateLoadingLocks.get(name);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = templateLoadingLocks.putIfAbsent(name, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        synchronized (lock) {
+            return fmCfg.getTemplate(name);
+        }
+    }
+    
+    /**
+     * Copies a file as-is, or links it, depending on the {@code copyStrategy} engine parameter.
+     */
+    private void copyStaticFile(File sf, File df) throws IOException {
+        if (outputSink != null) {
+            outputSink.copyFile(sf, getOutputRootRelativePath(df));
+            return;
+        }
+        outputFileWritten(sf, df);
+        
+        File dstDir;
+        dstDir = df.getParentFile();
+        if (dstDir != null) {
+            dstDir.mkdirs();
+        }
+        if (copyStrategy == COPY_STRATEGY_HARD_LINK) {
+            // Links can't be created in place of an existing file.
+            df.delete();
+            if (FileUtil.tryCreateHardLink(df, sf)) {
+                return;
+            }
+        } else if (copyStrategy == COPY_STRATEGY_SYMBOLIC_LINK) {
+            df.delete();
+            if (FileUtil.tryCreateSymbolicLink(df, sf)) {
+                return;
+            }
+        }
+        if (atomicOutput) {
+            // The existing file is replaced by renaming, so if it's a link created earlier, it's not written through.
+            File tmpFile = File.createTempFile("." + df.getName() + ".", ".tmp", df.getAbsoluteFile().getParentFile());
+            boolean done = false;
+            try {
+                FileUtil.copyFile(sf, tmpFile);
+                if (outputSync == OUTPUT_SYNC_PER_FILE) {
+                    FileUtil.syncFile(tmpFile);
+                }
+                FileUtil.replaceFile(tmpFile, df);
+                done = true;
+            } finally {
+                if (!done) {
+                    tmpFile.delete();
+                }
+            }
+            outputFileCommitted(df);
+        } else {
+            // If the existing file is a link created earlier, writing into it would overwrite the source file.
+            df.delete();
+            FileUtil.copyFile(sf, df);
+        }
+    }
+
     private void executeFile(File sf, File df)
             throws ProcessingException, DataModelBuildingException,
             TemplateException, IOException {
-        Template template
-                = fmCfg.getTemplate(FileUtil.pathToUnixStyle(
-                        FileUtil.getRelativePath(srcRoot, sf)));
+        Template template = getTemplate(getSourceRootRelativePath(sf));
 
         String outEnc = getOutputEncoding();
         if (outputEncoding.equalsIgnoreCase(PARAMETER_VALUE_SOURCE)) {
             outEnc = template.getEncoding();
         }
 
-        FmppOutputWriter out = new FmppFileOutputWriter(this, df, outEnc);
+        FmppOutputWriter out = new FmppFileOutputWriter(this, sf, df, outEnc);
         boolean done = false;
         try {
-            templateEnv.execute(template, out, sf, null, null, null);
+            getTemplateEnvironmentOfThread().execute(template, out, sf, null, null, null);
             done = true;
         } finally {
             out.close(!done);
@@ -1015,8 +1788,7 @@ public class Engine {
                     if (ln != 0) {
                         if (sfPathForComparison == null) {
                             sfPathForComparison = normalizePathForComparison(
-                                    FileUtil.pathToUnixStyle(
-                                            FileUtil.getRelativePath(srcRoot, sf)));
+                                    getSourceRootRelativePath(sf));
                         }
                         int i;
                         for (i = 0; i < ln; i++) {
@@ -1100,12 +1872,7 @@ public class Engine {
         }
         
         if (xrc.getCopy()) {
-            File dstDir;
-            dstDir = df.getParentFile();
-            if (dstDir != null) {
-                dstDir.mkdirs();
-            }
-            FileUtil.copyFile(sf, df);
+            copyStaticFile(sf, df);
         } else {
             boolean xrcValidate = getXRCValidateOption(xrc);
             boolean xrcXIncludeAware = getXRCXIncludeAwareOption(xrc);
@@ -1135,7 +1902,7 @@ public class Engine {
     
             Template template;
             try {
-                template = fmCfg.getTemplate(xrc.getTemplatePath());
+                template = getTemplate(xrc.getTemplatePath());
             } catch (IOException e) {
                 throw new GenericProcessingException(
                         "Failed to load the template specified by the XML "
@@ -1148,10 +1915,10 @@ public class Engine {
                 outEnc = template.getEncoding();
             }
     
-            FmppOutputWriter out = new FmppFileOutputWriter(this, df, outEnc);
+            FmppOutputWriter out = new FmppFileOutputWriter(this, sf, df, outEnc);
             boolean done = false;
             try {
-                templateEnv.execute(
+                getTemplateEnvironmentOfThread().execute(
                         template, out, sf,
                         loadedDoc, wrappedDoc, xrc.getLocalDataBuilders());
                 done = true;
@@ -1235,6 +2002,7 @@ public class Engine {
      */
     public void setSourceRoot(File srcRoot) throws IOException {
         checkParameterLock();
+        templateCacheOutdated = true;
         this.srcRoot = srcRoot != null ? srcRoot.getCanonicalFile() : null;
     }
 
@@ -1298,6 +2066,7 @@ public class Engine {
      */    
     public void addFreemarkerLink(String name, File fileOrDir) throws IOException {
         checkParameterLock();
+        templateCacheOutdated = true;
         NullArgumentException.check("name", name);
         if (name.startsWith("@")) {
             throw new IllegalArgumentException("The \"name\" argument can't start "
@@ -1337,9 +2106,40 @@ public class Engine {
      */
     public void clearFreemarkerLinks() {
        checkParameterLock();
+       templateCacheOutdated = true;
        freemarkerLinks.clear(); 
     }
 
+    /**
+     * Sets if the FreeMarker link directories are indexed; defaults to
+     * {@code false}. When enabled, the template loader lists each directory
+     * under the FreeMarker link targets once (then again only when the
+     * modification time of the directory changes), and looks up the templates
+     * in those listings, instead of checking the existence of each candidate
+     * file separately. This can speed up template lookups considerably on slow
+     * (like network) file systems if the same link has multiple target
+     * directories. Note that with indexing the file names of the FreeMarker
+     * link targets are case sensitive even if the file system isn't.
+     * 
+     * @see #addFreemarkerLink(String, File)
+     * 
+     * @since 0.9.17
+     */
+    public void setIndexFreemarkerLinks(boolean indexFreemarkerLinks) {
+        checkParameterLock();
+        templateCacheOutdated = true;
+        this.indexFreemarkerLinks = indexFreemarkerLinks;
+    }
+
+    /**
+     * Getter pair of {@link #setIndexFreemarkerLinks(boolean)}.
+     * 
+     * @since 0.9.17
+     */
+    public boolean getIndexFreemarkerLinks() {
+        return indexFreemarkerLinks;
+    }
+
     /**
      * Adds a progress listener to the list of progress listeners.
      * All progress listeners of the list will be invoked on the events of the
@@ -1449,6 +2249,7 @@ public class Engine {
      */
     public void setSourceEncoding(String encoding) {
         checkParameterLock();
+        templateCacheOutdated = true;
         if (encoding == null || encoding.equals(PARAMETER_VALUE_HOST)) {
             fmCfg.setDefaultEncoding(System.getProperty("file.encoding"));
         } else {
@@ -1515,6 +2316,7 @@ public class Engine {
      */    
     public void setOldTemplateSyntax(boolean oldSyntax) {
         checkParameterLock();
+        templateCacheOutdated = true;
         fmCfg.setStrictSyntaxMode(!oldSyntax);
     }
     
@@ -1533,6 +2335,7 @@ public class Engine {
      */
     public void setTagSyntax(int tagSyntax) {
         checkParameterLock();
+        templateCacheOutdated = true;
         fmCfg.setTagSyntax(tagSyntax);
     }
 
@@ -1553,6 +2356,7 @@ public class Engine {
      */
     public void setInterpolationSyntax(int interpolationSyntax) {
         checkParameterLock();
+        templateCacheOutdated = true;
         fmCfg.setInterpolationSyntax(interpolationSyntax);
     }
 
@@ -1793,6 +2597,7 @@ public class Engine {
      */
     public void setMapCommonExtensionsToOutputFormats(boolean mapCommonExtensionsToOutputFormats) {
         checkParameterLock();
+        templateCacheOutdated = true;
         this.mapCommonExtensionsToOutputFormats = mapCommonExtensionsToOutputFormats;
     }
 
@@ -1814,6 +2619,7 @@ public class Engine {
      */
     public void setOutputFormat(OutputFormat outputFormat) {
         fmCfg.setOutputFormat(outputFormat);
+        templateCacheOutdated = true;
     }
     
     /**
@@ -1835,7 +2641,9 @@ public class Engine {
      */
     public void addOutputFormatChooser(String pathPattern, OutputFormat outputFormat) {
         checkParameterLock();
+        templateCacheOutdated = true;
         outputFormatChoosers.add(new OutputFormatChooser(pathPattern, outputFormat));
+        choosersIndex = null;
     }
     
     /**
@@ -1875,6 +2683,7 @@ public class Engine {
         }
         
         pModeChoosers.add(chooser);
+        choosersIndex = null;
     }
     
     /**
@@ -1885,7 +2694,9 @@ public class Engine {
      */
     public void addHeaderChooser(String pattern, String header) {
         checkParameterLock();
+        templateCacheOutdated = true;
         headerChoosers.addChooser(0, pattern, header);
+        choosersIndex = null;
     }
 
     /**
@@ -1895,7 +2706,9 @@ public class Engine {
      */ 
     public void addHeaderChooser(int layer, String pattern, String footer) {
         checkParameterLock();
+        templateCacheOutdated = true;
         headerChoosers.addChooser(layer, pattern, footer);
+        choosersIndex = null;
     }
 
     /**
@@ -1906,7 +2719,9 @@ public class Engine {
      */
     public void addFooterChooser(String pattern, String footer) {
         checkParameterLock();
+        templateCacheOutdated = true;
         footerChoosers.addChooser(0, pattern, footer);
+        choosersIndex = null;
     }
 
     /**
@@ -1916,7 +2731,9 @@ public class Engine {
      */ 
     public void addFooterChooser(int layer, String pattern, String footer) {
         checkParameterLock();
+        templateCacheOutdated = true;
         footerChoosers.addChooser(layer, pattern, footer);
+        choosersIndex = null;
     }
 
     /**
@@ -1927,6 +2744,7 @@ public class Engine {
         TurnChooser chooser = new TurnChooser(pattern);
         chooser.turn = turn;
         turnChoosers.add(chooser);
+        choosersIndex = null;
     }
 
     /**
@@ -1937,7 +2755,9 @@ public class Engine {
      */
     public void clearOutputFormatChoosers() {
         checkParameterLock();
+        templateCacheOutdated = true;
         outputFormatChoosers.clear();
+        choosersIndex = null;
     }
     
     /**
@@ -1948,6 +2768,7 @@ public class Engine {
     public void clearModeChoosers() {
         checkParameterLock();
         pModeChoosers.clear();
+        choosersIndex = null;
     }
 
     /**
@@ -1955,7 +2776,9 @@ public class Engine {
      */
     public void clearHeaderChoosers() {
         checkParameterLock();
+        templateCacheOutdated = true;
         headerChoosers.clear();
+        choosersIndex = null;
     }
 
     /**
@@ -1963,7 +2786,9 @@ public class Engine {
      */
     public void clearFooterChoosers() {
         checkParameterLock();
+        templateCacheOutdated = true;
         footerChoosers.clear();
+        choosersIndex = null;
     }
 
     /**
@@ -1972,6 +2797,7 @@ public class Engine {
     public void clearTurnChoosers() {
         checkParameterLock();
         turnChoosers.clear();
+        choosersIndex = null;
     }
 
     /**
@@ -1981,22 +2807,15 @@ public class Engine {
      */
     public void setCaseSensitive(boolean cs) {
         checkParameterLock();
+        templateCacheOutdated = true;
         if (csPathCmp != cs) {
             csPathCmp = cs;
             
             // Re-parse re-s in choosers.
-            for (PModeChooser chooser : pModeChoosers) {
-                chooser.recompile();
-            }
-            for (TurnChooser chooser : turnChoosers) {
-                chooser.recompile();
-            }
+            choosersIndex = null;
             for (XmlRenderingCfgContainer xmlRendCfgCntr : xmlRendCfgCntrs) {
                 xmlRendCfgCntr.recompile();
             }
-            headerChoosers.recompile();
-            footerChoosers.recompile();
-            localDataBuilders.recompile();
         }
     }
 
@@ -2158,6 +2977,16 @@ public class Engine {
      * not work for templates that rename or drop the original output file
      * during the template execution.
      * 
+     * <p>With {@link #SKIP_HASH}, only static files are skipped, and not
+     * based on the last modification times, but on a manifest file that
+     * the engine maintains in the output root directory. That stores the
+     * size, the last modification time, and the digest of the content of
+     * the source files that were copied. Thus, files are recognized as
+     * unchanged even if their last modification time has changed (as it
+     * happens after a version control checkout, or after restoring a
+     * cache). The digest is only calculated when the size and the last
+     * modification time are not enough to decide.
+     * 
      * <p>The initial value of this engine parameter is {@code SKIP_NONE}.
      * 
      * @param skipWhat a {@code SKIP_...} contant.
@@ -2335,6 +3164,634 @@ public class Engine {
         progListeners.clearXmlLdbListeners();
     }
 
+    /**
+     * Sets how the files in "copy" processing mode are put into the output
+     * directory. Defaults to {@link #COPY_STRATEGY_COPY}, which means a
+     * byte-by-byte copy (done with {@link java.nio.channels.FileChannel} to
+     * spare the buffer copying in Java). {@link #COPY_STRATEGY_HARD_LINK}
+     * and {@link #COPY_STRATEGY_SYMBOLIC_LINK} create a link to the source
+     * file instead, which is much faster for big files, but then the output
+     * shares the content with the source. Creating links needs Java 7 or
+     * later at runtime; where a link can't be created (like a hard link
+     * across file systems), the file will be copied instead.
+     *
+     * <p>Existing output files of static files are always deleted before
+     * the new copy or link is created, so FMPP never writes through a link
+     * (created by an earlier run) into the source file.
+     *
+     * @param copyStrategy One of the {@code COPY_STRATEGY_...} constants. 
+     *
+     * @since 0.9.17
+     */
+    public void setCopyStrategy(int copyStrategy) {
+        checkParameterLock();
+        if (copyStrategy != COPY_STRATEGY_COPY && copyStrategy != COPY_STRATEGY_HARD_LINK
+                && copyStrategy != COPY_STRATEGY_SYMBOLIC_LINK) {
+            throw new IllegalArgumentException("Illegal copy strategy: " + copyStrategy);
+        }
+        this.copyStrategy = copyStrategy;
+    }
+    
+    /**
+     * @since 0.9.17
+     */
+    public int getCopyStrategy() {
+        return copyStrategy;
+    }
+
+    /**
+     * Sets whether the engine records which files were used to produce each
+     * output, and skips the source files whose output is up to date. The
+     * dependencies are stored in a file in the output root directory, so
+     * they are available for the later processing sessions too (even for
+     * other {@link Engine} instances).
+     *
+     * <p>The recorded dependencies of an output are the source file itself,
+     * the templates included or imported with FreeMarker (including those
+     * reached through FreeMarker links), the files loaded with data loaders
+     * (also through {@code pp.loadData}), and the files registered with
+     * {@link #addDependency(File)} outside file processing, like the
+     * configuration files of {@link Settings}. Also the output files written
+     * by the source file (including the ones created with
+     * {@code pp.changeOutputFile} and such) are recorded. An output is up to
+     * date if all those output files still exist, none of its dependencies
+     * was changed (based on the file size and last modification time) or
+     * deleted since it was last generated, and the engine parameters, the
+     * data, and the FMPP and FreeMarker versions are the same as then.
+     * Also, at the end of the session, a warning is sent about every output
+     * whose source file doesn't exist anymore.
+     *
+     * <p>Data values that can't be compared (like custom directives), and
+     * objects in engine parameters (like local data builders), are only
+     * compared by their class. Also, source files that communicate with each
+     * other through {@code pp.s}, or otherwise depend on other source files
+     * being processed in the same session, can't be skipped safely, so don't
+     * use this feature with them.
+     *
+     * @since 0.9.17
+     */
+    public void setDependencyTracking(boolean dependencyTracking) {
+        checkParameterLock();
+        this.dependencyTracking = dependencyTracking;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public boolean getDependencyTracking() {
+        return dependencyTracking;
+    }
+
+    /**
+     * Tells the engine that the output of the source file that's currently
+     * being processed (by the current thread) depends on the given file. This
+     * is used by the data loaders that load files, and should be used by any
+     * custom code that reads files to produce the output. When called outside
+     * processing sessions (like when the data of the {@code data} setting is
+     * loaded), the file will be the dependency of all outputs of the next
+     * session.
+     * Does nothing if the {@code dependencyTracking} engine parameter is
+     * {@code false}, except that it records the files that are registered
+     * outside file processing.
+     *
+     * @see #setDependencyTracking(boolean)
+     *
+     * @since 0.9.17
+     */
+    public void addDependency(File file) {
+        DataLoaderCall dlCall = currentDataLoaderCall.get();
+        if (dlCall != null) {
+            dlCall.files.add(file);
+        }
+        Set<File> deps = currentFileDependencies.get();
+        if (deps != null) {
+            deps.add(file);
+        } else if (!parametersLocked) {
+            // Not in a processing session
+            globalDependencies.add(file);
+        }
+    }
+
+    /**
+     * Returns (a copy of) the files that were registered as the dependencies
+     * of the source file that's currently being processed (by the current
+     * thread), or {@code null} if no file is being processed, or the
+     * {@code dependencyTracking} engine parameter is {@code false}. This is
+     * for components that cache some results that were created from files
+     * (like {@link fmpp.localdatabuilders.CachingLocalDataBuilder}), so that
+     * they can register those files again for each source file that uses the
+     * cached result.
+     *
+     * @since 0.9.17
+     */
+    public Set<File> getCurrentFileDependencies() {
+        Set<File> deps = currentFileDependencies.get();
+        return deps != null ? new LinkedHashSet<File>(deps) : null;
+    }
+
+    /**
+     * Returns (a copy of) the files that were registered with
+     * {@link #addDependency(File)} outside processing sessions since the end
+     * of the last session, which are thus the dependencies of all outputs of
+     * the next session. These are typically the
+     * configuration files, and the files loaded with the {@code data}
+     * setting. Unlike the dependencies of the individual source files, these
+     * are recorded even if the {@code dependencyTracking} engine parameter is
+     * {@code false}.
+     *
+     * @since 0.9.17
+     */
+    public Set<File> getGlobalDependencies() {
+        synchronized (globalDependencies) {
+            return new LinkedHashSet<File>(globalDependencies);
+        }
+    }
+
+    /**
+     * Sets whether the output files generated by templates (including XML
+     * rendering) are only overwritten if their content has changed. If this
+     * is {@code true}, the output is collected in memory (or in a temporary
+     * file, if it's big), and then compared with the existing output file.
+     * If they are the same, the output file is left untouched (so also its
+     * last modification time is kept), and
+     * {@link ProgressListener#EVENT_OUTPUT_UNCHANGED} is sent. Otherwise the
+     * output file is replaced with the new content by renaming the temporary
+     * file, so other processes never see a partially written output file (as
+     * far as the platform supports replacing files by renaming). Output
+     * appended to existing files is always written directly.
+     *
+     * <p>This is useful when other tools work with the output of FMPP, and
+     * they check the last modification times to decide what to do, like
+     * compilers. Also, it can spare a lot of disk writes.
+     *
+     * @since 0.9.17
+     */
+    public void setWriteOnlyIfChanged(boolean writeOnlyIfChanged) {
+        checkParameterLock();
+        this.writeOnlyIfChanged = writeOnlyIfChanged;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public boolean getWriteOnlyIfChanged() {
+        return writeOnlyIfChanged;
+    }
+
+    /**
+     * Sets whether the output files are written into a temporary file first,
+     * which then replaces the output file when it was completely written.
+     * As the replacing is done by renaming the temporary file (atomically,
+     * where the platform supports that), other processes, like a web server
+     * that serves the output directory, never see a partially written output
+     * file. Also, if the processing of the source file fails, the output
+     * file is left untouched. This applies to the output files written by
+     * templates (except when appending to an existing file, like with
+     * {@code <@pp.changeOutputFile ... append=true />}), and to the copied
+     * files (but not to links created because of
+     * {@link #setCopyStrategy(int)}). Defaults to {@code false}.
+     * 
+     * <p>Note that {@link #setWriteOnlyIfChanged(boolean)} also commits the
+     * output files this way, regardless of this setting.
+     *
+     * @see #setOutputSync(int)
+     *
+     * @since 0.9.17
+     */
+    public void setAtomicOutput(boolean atomicOutput) {
+        checkParameterLock();
+        this.atomicOutput = atomicOutput;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public boolean getAtomicOutput() {
+        return atomicOutput;
+    }
+
+    /**
+     * Sets if and when the output files that are committed by renaming a
+     * temporary file (see {@link #setAtomicOutput(boolean)} and
+     * {@link #setWriteOnlyIfChanged(boolean)}) are forced to the storage
+     * device (fsync), so that they survive an operating system crash or a
+     * power loss. Defaults to {@link #OUTPUT_SYNC_NONE}. With
+     * {@link #OUTPUT_SYNC_PER_FILE} each file is synchronized before it's
+     * renamed, and then its directory is synchronized; this is the safest,
+     * but also the slowest. With {@link #OUTPUT_SYNC_SESSION_END} all the
+     * files, and then their directories (each only once), are synchronized
+     * at the end of the processing session, which is much faster when there
+     * are many output files. Synchronizing directories needs Java 7 or later
+     * at runtime, and isn't possible on some platforms (like on Windows); in
+     * that case it's silently skipped.
+     *
+     * @param outputSync One of the {@code OUTPUT_SYNC_...} constants.
+     *
+     * @since 0.9.17
+     */
+    public void setOutputSync(int outputSync) {
+        checkParameterLock();
+        if (outputSync != OUTPUT_SYNC_NONE && outputSync != OUTPUT_SYNC_PER_FILE
+                && outputSync != OUTPUT_SYNC_SESSION_END) {
+            throw new IllegalArgumentException("Illegal output synchronization policy: " + outputSync);
+        }
+        this.outputSync = outputSync;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public int getOutputSync() {
+        return outputSync;
+    }
+
+    /**
+     * Adds a path pattern to the list of patterns that select the output
+     * files that get a gzip compressed sibling. For example, with pattern
+     * {@code **}{@code /*.html}, next to {@code index.html} FMPP will also
+     * write {@code index.html.gz}, as needed for web servers that serve
+     * precompressed files (like nginx with {@code gzip_static}). The
+     * patterns are matched against the output root relative path of the
+     * output files. This corresponds to the {@code gzipOutputs} setting in the
+     * {@link Settings} API.
+     *
+     * <p>The siblings are written in a separate stage at the end of the
+     * processing session, using the worker threads of
+     * {@link #setParallelism(int)} or {@link #setCopyThreads(int)}, if there
+     * are any. Output files that were skipped as unchanged (see
+     * {@link #setSkipUnchanged(int)}) only get a new sibling if the sibling is
+     * missing, or its last modification time differs from that of the output
+     * file. The sibling of an output file that was dropped, or is smaller
+     * than {@link #setGzipMinSize(long)}, is deleted. This engine parameter
+     * has no effect when there's an {@link #setOutputSink(OutputSink) output
+     * sink}.
+     *
+     * @since 0.9.17
+     */
+    public void addGzipOutputPattern(String pathPattern) {
+        checkParameterLock();
+        gzipOutputPatterns.add(pathPattern);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void clearGzipOutputPatterns() {
+        checkParameterLock();
+        gzipOutputPatterns.clear();
+    }
+
+    /**
+     * Sets the minimum size of the output files, in bytes, that get a gzip
+     * sibling (see {@link #addGzipOutputPattern(String)}), as compressing
+     * very small files isn't worth it. Defaults to 256.
+     *
+     * @since 0.9.17
+     */
+    public void setGzipMinSize(long gzipMinSize) {
+        checkParameterLock();
+        if (gzipMinSize < 0) {
+            throw new IllegalArgumentException("gzipMinSize can't be negative: " + gzipMinSize);
+        }
+        this.gzipMinSize = gzipMinSize;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public long getGzipMinSize() {
+        return gzipMinSize;
+    }
+
+    /**
+     * Adds an output filter to the end of the list of output filters. The
+     * filter is applied on the output files written by templates whose output
+     * root relative path matches the path pattern. If multiple filters apply
+     * to an output file, the template output goes through all of them, in the
+     * order in which they were added. This corresponds to the
+     * {@code outputFilters} setting in the {@link Settings} API.
+     *
+     * <p>Output filters aren't applied on the static files (the ones
+     * processed in {@link #PMODE_COPY} mode).
+     *
+     * @param pathPattern The path pattern of the output files, like
+     *     {@code **}{@code /*.html}.
+     *
+     * @see fmpp.outputfilters
+     *
+     * @since 0.9.17
+     */
+    public void addOutputFilter(String pathPattern, OutputFilter filter) {
+        checkParameterLock();
+        if (filter == null) {
+            throw new IllegalArgumentException("filter can't be null");
+        }
+        outputFilterPatterns.add(pathPattern);
+        outputFilters.add(filter);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void clearOutputFilters() {
+        checkParameterLock();
+        outputFilterPatterns.clear();
+        outputFilters.clear();
+    }
+
+    /**
+     * Sets whether the engine maintains a manifest of the output files, that
+     * is, a list of the generated and copied output files, each with the
+     * source file it was produced from. The manifest is stored in the output
+     * root directory, in the {@code .fmpp-outputs} file, and is updated at the
+     * end of each successful processing session. This corresponds to the
+     * {@code outputManifest} setting in the {@link Settings} API. Defaults to
+     * {@code false}. This engine parameter has no effect when there's an
+     * {@link #setOutputSink(OutputSink) output sink}.
+     *
+     * @see #setPruneStaleOutputs(boolean)
+     *
+     * @since 0.9.17
+     */
+    public void setOutputManifest(boolean outputManifest) {
+        checkParameterLock();
+        this.outputManifest = outputManifest;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public boolean getOutputManifest() {
+        return outputManifest;
+    }
+
+    /**
+     * Sets whether the output files generated by earlier processing sessions
+     * that are now stale are deleted at the end of the processing session.
+     * An output file is stale if its source file was processed in this
+     * session, but hasn't produced that output file again (like because the
+     * output file name has changed, or {@code pp.dropOutputFile} was used),
+     * or if its source file doesn't exist anymore. So instead of deleting the
+     * whole output root directory before processing, the output can be
+     * updated in place, which plays well with {@link #setSkipUnchanged(int)}
+     * and {@link #setDependencyTracking(boolean)}. Directories that become
+     * empty are deleted too. Only output files that were recorded in the
+     * output manifest (see {@link #setOutputManifest(boolean)}, which is
+     * implied by this engine parameter) are ever deleted, so other files in
+     * the output root directory are left alone, and nothing is deleted in the
+     * first session that creates the manifest. This corresponds to the
+     * {@code pruneStaleOutputs} setting in the {@link Settings} API.
+     * Defaults to {@code false}.
+     *
+     * @since 0.9.17
+     */
+    public void setPruneStaleOutputs(boolean pruneStaleOutputs) {
+        checkParameterLock();
+        this.pruneStaleOutputs = pruneStaleOutputs;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public boolean getPruneStaleOutputs() {
+        return pruneStaleOutputs;
+    }
+
+    /**
+     * Sets whether the parsed templates are kept in the cache after the
+     * processing session, so the later sessions of the same {@link Engine}
+     * needn't parse them again. This is useful when an application calls
+     * {@link #process(File[])} many times, or with the {@code --watch}
+     * command-line option. Defaults to {@code false}, in which case the
+     * template cache is cleared at the beginning and at the end of each
+     * processing session. This corresponds to the
+     * {@code retainTemplateCache} setting in the {@link Settings} API.
+     *
+     * <p>When a retained template is first used in a session, it's checked
+     * if its source file is still the same file, with the same last
+     * modification time, as when it was parsed; otherwise it's loaded again.
+     * As within a session a template is checked only once, all the files
+     * processed in the session see the same version of the template, just
+     * like without this setting. The whole cache is discarded if an engine
+     * parameter that affects the parsing of templates (like the source root,
+     * the source encoding, the syntax, the output formats, or the borders)
+     * was changed since the previous session.
+     *
+     * @see #setTemplateCacheSize(int, int)
+     *
+     * @since 0.9.17
+     */
+    public void setRetainTemplateCache(boolean retainTemplateCache) {
+        checkParameterLock();
+        this.retainTemplateCache = retainTemplateCache;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public boolean getRetainTemplateCache() {
+        return retainTemplateCache;
+    }
+
+    /**
+     * Bounds the number of parsed templates kept in the template cache, which
+     * is mostly important with {@link #setRetainTemplateCache(boolean)}. The
+     * most recently used {@code strongSize} templates are always kept, and
+     * further {@code softSize} templates are kept until the JVM needs the
+     * memory. By default the number of cached templates isn't limited (but
+     * all of them can be reclaimed when the memory is low). Calling this
+     * discards the cached templates. This corresponds to the
+     * {@code templateCacheSize} setting in the {@link Settings} API.
+     *
+     * @see freemarker.cache.MruCacheStorage
+     *
+     * @since 0.9.17
+     */
+    public void setTemplateCacheSize(int strongSize, int softSize) {
+        checkParameterLock();
+        if (strongSize < 0 || softSize < 0) {
+            throw new IllegalArgumentException(
+                    "Template cache sizes can't be negative: strong " + strongSize + ", soft " + softSize);
+        }
+        fmCfg.setCacheStorage(new MruCacheStorage(strongSize, softSize));
+        templateCacheStrongSize = strongSize;
+        templateCacheSoftSize = softSize;
+        templateCacheOutdated = true;
+    }
+
+    /**
+     * Returns the number of templates that are always kept in the cache, or
+     * -1 if {@link #setTemplateCacheSize(int, int)} wasn't called.
+     *
+     * @since 0.9.17
+     */
+    public int getTemplateCacheStrongSize() {
+        return templateCacheStrongSize;
+    }
+
+    /**
+     * Returns the number of templates that are kept in the cache until the
+     * memory is needed, or -1 if {@link #setTemplateCacheSize(int, int)}
+     * wasn't called.
+     *
+     * @since 0.9.17
+     */
+    public int getTemplateCacheSoftSize() {
+        return templateCacheSoftSize;
+    }
+
+    /**
+     * Sets the cache where the results of the {@link CacheableDataLoader}
+     * invocations done with {@link #loadData(String, DataLoader, List)} are
+     * stored; defaults to {@code null}, which means that the results aren't
+     * cached. As the cache is kept across processing sessions (and can even
+     * be shared by multiple engines), data files that haven't changed
+     * needn't be loaded again by the later sessions. Note that the cached
+     * results are shared, so they must not be modified.
+     * 
+     * @see fmpp.tdd.LruDataLoaderResultCache
+     * 
+     * @since 0.9.17
+     */
+    public void setDataLoaderResultCache(DataLoaderResultCache dataLoaderResultCache) {
+        checkParameterLock();
+        this.dataLoaderResultCache = dataLoaderResultCache;
+    }
+
+    /**
+     * Getter pair of {@link #setDataLoaderResultCache(DataLoaderResultCache)}.
+     * 
+     * @since 0.9.17
+     */
+    public DataLoaderResultCache getDataLoaderResultCache() {
+        return dataLoaderResultCache;
+    }
+
+    /**
+     * Sets whether the calls of {@link CacheableDataLoader}-s with equal
+     * arguments (done with {@link #loadData(String, DataLoader, List)}) are
+     * only executed once in a processing session; defaults to
+     * {@code false}. Like, if the {@code data} setting and several templates
+     * (with {@code pp.loadData}) load the same file, it's only loaded and
+     * wrapped once, and the same object is returned for all calls. The
+     * memoized results are forgotten at the end of the session. Calls done
+     * outside a processing session (like when the {@code data} setting is
+     * evaluated) are memoized too, but then the memoized result is only
+     * used if the files it was loaded from haven't changed since.
+     * 
+     * @since 0.9.17
+     */
+    public void setMemoizeDataLoaderCalls(boolean memoizeDataLoaderCalls) {
+        checkParameterLock();
+        this.memoizeDataLoaderCalls = memoizeDataLoaderCalls;
+        if (!memoizeDataLoaderCalls) {
+            memoizedDataLoaderCalls.clear();
+        }
+    }
+
+    /**
+     * Getter pair of {@link #setMemoizeDataLoaderCalls(boolean)}.
+     * 
+     * @since 0.9.17
+     */
+    public boolean getMemoizeDataLoaderCalls() {
+        return memoizeDataLoaderCalls;
+    }
+
+    /**
+     * Sets the {@link OutputSink} that receives the output files instead of
+     * the file system, or {@code null} if the output files should be written
+     * into the output root directory (that's the default). Even with an
+     * output sink, the output root has to be set, as the paths of the output
+     * files are still resolved relatively to it (but nothing is written
+     * there, so it needn't exist). With an output sink, the
+     * {@link #setSkipUnchanged(int) skipUnchanged},
+     * {@link #setDependencyTracking(boolean) dependencyTracking},
+     * {@link #setAtomicOutput(boolean) atomicOutput},
+     * {@link #setWriteOnlyIfChanged(boolean) writeOnlyIfChanged},
+     * {@link #setOutputSync(int) outputSync} and
+     * {@link #setCopyStrategy(int) copyStrategy} engine parameters have no
+     * effect.
+     *
+     * @see ZipOutputSink
+     * @see MemoryOutputSink
+     *
+     * @since 0.9.17
+     */
+    public void setOutputSink(OutputSink outputSink) {
+        checkParameterLock();
+        this.outputSink = outputSink;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public OutputSink getOutputSink() {
+        return outputSink;
+    }
+
+    /**
+     * Sets the number of threads used for copying the files that are processed
+     * in {@link #PMODE_COPY} mode, and the XML files whose matching XML
+     * rendering configuration copies them (if that can be decided without
+     * loading the XML). Defaults to 0, which means that files are copied just
+     * like the other files are processed. If it's more than 0, the copying
+     * is handed to a separate pool of threads of this size, so copying big
+     * files doesn't hold up the execution of the templates. The copying
+     * queue is bounded; when it's full, the processing waits until there's
+     * room in it. All copying started in a turn is finished before the next
+     * turn starts (and so before the end of the processing session). Copying
+     * errors are reported for the copied file, as usual.
+     *
+     * @since 0.9.17
+     */
+    public void setCopyThreads(int copyThreads) {
+        checkParameterLock();
+        if (copyThreads < 0) {
+            throw new IllegalArgumentException(
+                    "The number of copy threads can't be negative, but was " + copyThreads + ".");
+        }
+        this.copyThreads = copyThreads;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public int getCopyThreads() {
+        return copyThreads;
+    }
+
+    /**
+     * Sets the number of threads used to process the files of the same turn.
+     * Defaults to 1, which means that all files are processed on the thread
+     * that has called {@link #process(File[])}. If it's more than 1, the files
+     * are handed to a pool of worker threads of this size, where each worker
+     * has its own {@link TemplateEnvironment}. The turns are still executed
+     * one after the other; a turn only starts after all files of the
+     * previous turn were finished. Note that templates then can't rely on the
+     * order in which the files of the same turn are processed, and that the
+     * objects plugged into the engine (local data builders, engine attributes,
+     * etc.) must be thread-safe. Progress listeners are never called
+     * concurrently, as promised in {@link ProgressListener}.
+     *
+     * @since 0.9.17
+     */
+    public void setParallelism(int parallelism) {
+        checkParameterLock();
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "The parallelism must be at least 1, but was " + parallelism + ".");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
     // -------------------------------------------------------------------------
     // Shared variables
     
@@ -2429,6 +3886,36 @@ public class Engine {
         data.putAll(map);
     }
 
+    /**
+     * Adds a variable like {@link #addData(String, Object)}, but its value is
+     * only calculated when the variable is first accessed, either by a
+     * template, or with {@link #getData(String)}. The calculated value is then
+     * reused, also in the later processing sessions, as far as the files
+     * registered with {@link #addDependency(File)} during the calculation
+     * haven't changed (based on their last modification time and length).
+     * This is what the {@code lazyData} setting uses, so that the data loaders
+     * whose result isn't used by any of the processed files aren't run at all.
+     * 
+     * <p>If the calculation fails, the failure is remembered until the end of
+     * the processing session, and a {@link LazyDataException} is thrown on
+     * each access; the next session will try the calculation again. The files
+     * registered with {@link #addDependency(File)} during the calculation will
+     * be the dependencies of all the source files that access the variable.
+     * 
+     * <p>Note that these variables aren't listed by
+     * {@link Configuration#getSharedVariableNames()}.
+     * 
+     * @param loader Calculates the value of the variable. It's called at most
+     *     once per processing session, and never concurrently.
+     * 
+     * @since 0.9.17
+     */
+    public void addLazyData(String name, Callable<?> loader) {
+        checkParameterLock();
+        NullArgumentException.check("loader", loader);
+        data.put(name, new LazyDataValue(name, loader));
+    }
+
     /**
      * Removes all data.
      * 
@@ -2451,11 +3938,17 @@ public class Engine {
      * FreeMarker's wrapping (but note that some variables initially use
      * FreeMarker {@link TemplateModel} types, such as variables created by
      * some of the data loaders).
+     * If the variable was added with {@link #addLazyData(String, Callable)},
+     * its value is calculated now, unless that was already done.
+     * 
+     * @throws LazyDataException if the value of a variable that was added
+     *     with {@link #addLazyData(String, Callable)} couldn't be calculated.
      * 
      * @see #addData(String, Object)
      */
     public Object getData(String name) {
-        return data.get(name);
+        Object value = data.get(name);
+        return value instanceof LazyDataValue ? ((LazyDataValue) value).get() : value;
     }
 
     /**
@@ -2472,6 +3965,121 @@ public class Engine {
         return data.remove(name);
     }
 
+    /**
+     * Invokes the data loader, or returns the result of an earlier invocation
+     * if that's possible (see {@link #setMemoizeDataLoaderCalls(boolean)}
+     * and {@link #setDataLoaderResultCache(DataLoaderResultCache)}). This is
+     * how the {@code data} setting and {@code pp.loadData} invoke data
+     * loaders. When an earlier result is used, the files it was loaded from
+     * are registered with {@link #addDependency(File)} again, as if the data
+     * loader was invoked.
+     * 
+     * @param dataLoaderName The name the data loader was referred with; part
+     *     of the cache key.
+     * 
+     * @since 0.9.17
+     */
+    public Object loadData(String dataLoaderName, DataLoader dl, List args) throws Exception {
+        DataLoaderCallKey key = getDataLoaderCallKey(dataLoaderName, dl, args);
+        if (key == null) {
+            DataLoaderCall outerCall = currentDataLoaderCall.get();
+            if (outerCall != null) {
+                // For example, a TDD file that calls now()
+                outerCall.cacheable = false;
+            }
+            return dl.load(this, args);
+        }
+        if (memoizeDataLoaderCalls) {
+            return getMemoizedDataLoaderCall(key).get(dl, args);
+        }
+        return invokeDataLoader(key, dl, args).value;
+    }
+
+    /**
+     * Like {@link #loadData(String, DataLoader, List)}, but returns the
+     * result wrapped into a {@link TemplateModel}. When the call is memoized,
+     * the already wrapped value is returned.
+     */
+    TemplateModel loadDataAsModel(String dataLoaderName, DataLoader dl, List args) throws Exception {
+        if (memoizeDataLoaderCalls) {
+            DataLoaderCallKey key = getDataLoaderCallKey(dataLoaderName, dl, args);
+            if (key != null) {
+                return getMemoizedDataLoaderCall(key).getModel(dl, args, fmCfg.getObjectWrapper());
+            }
+        }
+        return wrap(loadData(dataLoaderName, dl, args));
+    }
+
+    /**
+     * Returns the key with which the result of the call can be memoized or
+     * cached, or {@code null} if it mustn't be.
+     */
+    private DataLoaderCallKey getDataLoaderCallKey(String dataLoaderName, DataLoader dl, List args)
+            throws Exception {
+        if ((dataLoaderResultCache == null && !memoizeDataLoaderCalls)
+                || !(dl instanceof CacheableDataLoader)) {
+            return null;
+        }
+        List context = ((CacheableDataLoader) dl).getCacheKeyContext(this, args);
+        if (context == null) {
+            return null;
+        }
+        return DataLoaderCallKey.create(dataLoaderName, args, context);
+    }
+
+    private MemoizedDataLoaderCall getMemoizedDataLoaderCall(DataLoaderCallKey key) {
+        MemoizedDataLoaderCall memoized = memoizedDataLoaderCalls.get(key);
+        if (memoized == null) {
+            memoized = new MemoizedDataLoaderCall(key);
+            MemoizedDataLoaderCall prev = memoizedDataLoaderCalls.putIfAbsent(key, memoized);
+            if (prev != null) {
+                memoized = prev;
+            }
+        }
+        return memoized;
+    }
+
+    /**
+     * Invokes the data loader, or gets its result from the
+     * {@link #setDataLoaderResultCache(DataLoaderResultCache)
+     * dataLoaderResultCache}.
+     */
+    private DataLoaderCall invokeDataLoader(DataLoaderCallKey key, DataLoader dl, List args) throws Exception {
+        DataLoaderResultCache cache = dataLoaderResultCache;
+        if (cache != null) {
+            DataLoaderResult result = cache.get(key);
+            if (result != null) {
+                DataLoaderCall call = new DataLoaderCall();
+                for (File f : result.getFiles()) {
+                    addDependency(f);
+                    call.files.add(f);
+                }
+                call.value = result.getValue();
+                return call;
+            }
+        }
+
+        DataLoaderCall outerCall = currentDataLoaderCall.get();
+        DataLoaderCall call = new DataLoaderCall();
+        currentDataLoaderCall.set(call);
+        try {
+            call.value = dl.load(this, args);
+        } finally {
+            currentDataLoaderCall.set(outerCall);
+            if (outerCall != null) {
+                outerCall.files.addAll(call.files);
+                outerCall.cacheable &= call.cacheable;
+            }
+        }
+        if (cache != null && call.cacheable) {
+            DataLoaderResult result = new DataLoaderResult(call.value, call.files);
+            if (!result.isRecentlyModified(LAST_MODIFIED_PRECISION)) {
+                cache.put(key, result);
+            }
+        }
+        return call;
+    }
+
     /**
      * @deprecated Use {@link #clearData()} instead.
      */
@@ -2497,6 +4105,7 @@ public class Engine {
             "Argument \"builder\" to addLocalDataBuilder can't be null.");
         }
         localDataBuilders.addChooser(layer, pathPattern, builder);
+        choosersIndex = null;
         if (builder instanceof ProgressListener) {
             progListeners.addLdbListener((ProgressListener) builder);
         }
@@ -2509,6 +4118,7 @@ public class Engine {
      */
     public void clearLocalDataBuilders() {
         localDataBuilders.clear();
+        choosersIndex = null;
         progListeners.clearLdbListeners();
     }
 
@@ -2557,8 +4167,9 @@ public class Engine {
      *    available.
      */
     public TemplateEnvironment getTemplateEnvironment() {
-        if (templateEnv.isExternallyAccessible()) {
-            return templateEnv;
+        TemplateEnvironment env = getTemplateEnvironmentOfThread();
+        if (env.isExternallyAccessible()) {
+            return env;
         } else {
             throw new IllegalStateException(
                     "You can't get the TemplateEnvironment, since no "
@@ -2570,7 +4181,7 @@ public class Engine {
      * Tells if {@link #getTemplateEnvironment()} will throw exception or not.
      */
     public boolean isTemplateEnvironmentAvailable() {
-        return templateEnv.isExternallyAccessible();
+        return getTemplateEnvironmentOfThread().isExternallyAccessible();
     }
     
     /**
@@ -2763,6 +4374,158 @@ public class Engine {
         return fmCfg;
     }
 
+    /**
+     * Called after an output file was atomically replaced by renaming a temporary file; applies the
+     * {@code outputSync} policy on it. 
+     */
+    void outputFileCommitted(File outputFile) {
+        if (outputSync == OUTPUT_SYNC_PER_FILE) {
+            File dir = outputFile.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                FileUtil.trySyncDirectory(dir);
+            }
+        } else if (outputSync == OUTPUT_SYNC_SESSION_END) {
+            unsyncedOutputFiles.add(outputFile.getAbsoluteFile());
+        }
+    }
+    
+    /**
+     * Forces the output files committed in this session to the storage device, if the {@code outputSync} policy is
+     * {@link #OUTPUT_SYNC_SESSION_END}. Each directory is synchronized only once, after all the files.
+     */
+    private void syncOutputFiles() throws IOException {
+        if (unsyncedOutputFiles.isEmpty()) {
+            return;
+        }
+        Set<File> dirs = new LinkedHashSet<File>();
+        synchronized (unsyncedOutputFiles) {
+            for (File f : unsyncedOutputFiles) {
+                // The file might have been deleted or renamed by a later output directive.
+                if (f.isFile()) {
+                    FileUtil.syncFile(f);
+                }
+                File dir = f.getParentFile();
+                if (dir != null) {
+                    dirs.add(dir);
+                }
+            }
+            unsyncedOutputFiles.clear();
+        }
+        for (File dir : dirs) {
+            FileUtil.trySyncDirectory(dir);
+        }
+    }
+
+    /**
+     * Called when an output file is written (or will be written), or deleted, in this session, so that its gzip
+     * sibling can be updated at the end of the session, and it can be recorded in the output manifest.
+     *
+     * @param srcFile The source file whose processing has produced the output file.
+     */
+    void outputFileWritten(File srcFile, File outputFile) throws IOException {
+        boolean gzipOutput = isGzipOutput(outputFile);
+        if (gzipOutput) {
+            gzipSiblingWriter.outputFileWritten(outputFile);
+        }
+        recordOutputFile(srcFile, outputFile, gzipOutput);
+    }
+    
+    /**
+     * Called when an output file is skipped because it's up to date; its gzip sibling is only written if that's
+     * missing or outdated.
+     */
+    private void outputFileSkipped(File srcFile, File outputFile) throws IOException {
+        boolean gzipOutput = isGzipOutput(outputFile);
+        if (gzipOutput) {
+            gzipSiblingWriter.outputFileSkipped(outputFile);
+        }
+        recordOutputFile(srcFile, outputFile, gzipOutput);
+    }
+    
+    private void recordOutputFile(File srcFile, File outputFile, boolean gzipOutput) throws IOException {
+        Set<String> fileOutputs = currentFileOutputs.get();
+        if (fileOutputs != null) {
+            fileOutputs.add(getOutputRootRelativePath(outputFile));
+        }
+        if (outputManifestState != null) {
+            String srcPath = getSourceRootRelativePath(srcFile);
+            String outPath = getOutputRootRelativePath(outputFile);
+            outputManifestState.outputProduced(srcPath, outPath);
+            if (gzipOutput) {
+                // If the sibling won't exist at the end of the session, this is ignored.
+                outputManifestState.outputProduced(srcPath, outPath + GzipSiblingWriter.EXTENSION);
+            }
+        }
+    }
+    
+    private boolean isGzipOutput(File outputFile) throws IOException {
+        if (gzipSiblingWriter == null || outputFile.getName().endsWith(GzipSiblingWriter.EXTENSION)) {
+            return false;
+        }
+        String path = normalizePathForComparison(getOutputRootRelativePath(outputFile));
+        for (Pattern pattern : compiledGzipOutputPatterns) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Wraps the writer of an output file into the writers of the output filters that apply to it.
+     */
+    Writer applyOutputFilters(File outputFile, Writer out) throws IOException {
+        if (compiledOutputFilterPatterns == null) {
+            return out;
+        }
+        String path = normalizePathForComparison(getOutputRootRelativePath(outputFile));
+        // The filter added first gets the template output first, so it must be the outermost writer.
+        for (int i = compiledOutputFilterPatterns.length - 1; i >= 0; i--) {
+            if (compiledOutputFilterPatterns[i].matcher(path).matches()) {
+                out = outputFilters.get(i).filter(out, outputFile, this);
+            }
+        }
+        return out;
+    }
+    
+    /**
+     * Writes the gzip siblings of the output files of this session, in parallel if there are worker threads.
+     */
+    private void writeGzipSiblings() throws IOException {
+        if (gzipSiblingWriter != null) {
+            gzipSiblingWriter.writeSiblings(fileWorkers != null ? fileWorkers : copyWorkers);
+        }
+    }
+
+    /**
+     * Writes the output manifest, and deletes the stale output files if {@link #getPruneStaleOutputs()} is
+     * {@code true}.
+     */
+    private void saveOutputManifest() throws IOException {
+        if (outputManifestState != null) {
+            outputManifestState.save(srcRoot, pruneStaleOutputs);
+        }
+    }
+
+    private void endOutputSinkSession() throws IOException {
+        if (outputSinkSessionOpen) {
+            outputSinkSessionOpen = false;
+            outputSink.endSession(true);
+        }
+    }
+
+    void sendOutputUnchanged(File srcFile, File outputFile) {
+        try {
+            progListeners.notifyProgressEvent(
+                    this,
+                    ProgressListener.EVENT_OUTPUT_UNCHANGED,
+                    srcFile, PMODE_NONE,
+                    null, outputFile);
+        } catch (ProcessingException e) {
+            ; // ignore
+        }
+    }
+
     void sendWarning(File srcFile, String message) {
         try {
             progListeners.notifyProgressEvent(
@@ -2776,57 +4539,261 @@ public class Engine {
     }
 
     Reader wrapReader(Reader r, File f) throws IOException {
-        List headers = headerChoosers.choose(f);
-        List footers = footerChoosers.choose(f);
-        int hc = headers.size();
-        int fc = footers.size();
-        if (hc == 0 && fc == 0) {
+        ChosenByPath chosen = getChosenByPath(f);
+        String header = chosen.header;
+        String footer = chosen.footer;
+        if (header == null && footer == null) {
             return r;
-        } else {
-            int i;
-            String header;
-            String footer;
-            StringBuffer sb = null;
-            
-            if (hc != 0) {
-                if (hc == 1) {
-                    header = (String) headers.get(0);
-                } else {
-                    sb = new StringBuffer(40 + hc * 80);
-                    for (i = 0; i < hc; i++) {
-                        sb.append((String) headers.get(i));
-                    }
-                    header = sb.toString();
+        }
+        if (header != null) {
+            header = moveHeaderAfterTheFtlDirective(header, r);
+        }
+        return new BorderedReader(header, r, footer);
+    }
+
+    List getLocalDataBuildersForFile(File sf) throws IOException {
+        return getChosenByPath(sf).localDataBuilders;
+    }
+
+    /**
+     * Same as {@link FileUtil#getRelativePath(File, File)} with the source root as the base directory, converted to
+     * UN*X format, but it only has to find out the canonical path of the parent directory, which is cached for the
+     * session. So unlike with {@link FileUtil#getRelativePath(File, File)}, symbolic links pointing to files aren't
+     * resolved (but ones pointing to directories are). 
+     */
+    String getSourceRootRelativePath(File f) throws IOException {
+        File dir = f.getParentFile();
+        String name = f.getName();
+        if (dir != null && srcRoot != null && !name.equals(".") && !name.equals("..") && name.length() != 0) {
+            String dirPath = canonicalDirPaths.get(dir);
+            if (dirPath == null) {
+                dirPath = dir.getCanonicalPath();
+                canonicalDirPaths.put(dir, dirPath);
+            }
+            String rootPath = srcRoot.getPath();
+            if (dirPath.equals(rootPath)) {
+                return name;
+            }
+            int rootPathLn = rootPath.length();
+            if (rootPath.endsWith(File.separator)) {
+                rootPathLn--;
+            }
+            if (dirPath.startsWith(rootPath) && dirPath.length() > rootPathLn
+                    && dirPath.charAt(rootPathLn) == File.separatorChar) {
+                return FileUtil.pathToUnixStyle(dirPath.substring(rootPathLn + 1)) + "/" + name;
+            }
+        }
+        return FileUtil.pathToUnixStyle(FileUtil.getRelativePath(srcRoot, f));
+    }
+
+    private void reportStaleOutputs() {
+        Map<String, String> staleOutputs = dependencyGraph.findStaleOutputs(srcRoot);
+        for (Map.Entry<String, String> ent : staleOutputs.entrySet()) {
+            sendWarning(
+                    new File(srcRoot, ent.getValue()),
+                    "Stale output file; its source file doesn't exist anymore: " + ent.getKey());
+        }
+    }
+
+    /**
+     * Describes everything besides the input files that affects the outputs, for the dependency graph. Values whose
+     * content can't be described (like custom directives, or local data builders) are described by their class only.
+     */
+    private String describeOutputAffectingSettings() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        appendSetting(sb, "version", getVersion());
+        appendSetting(sb, "freemarkerVersion", getFreeMarkerVersion());
+        appendSetting(sb, "recommendedDefaults", recommendedDefaults);
+        appendSetting(sb, "freemarkerIncompatibleImprovements", getFreemarkerIncomplatibleImprovements());
+        appendSetting(sb, "objectWrapper", fmCfg.getObjectWrapper());
+        appendSetting(sb, "sourceRoot", srcRoot);
+        appendSetting(sb, "dataRoot", dataRoot);
+        appendSetting(sb, "freemarkerLinks", freemarkerLinks);
+        appendSetting(sb, "sourceEncoding", getSourceEncoding());
+        appendSetting(sb, "outputEncoding", outputEncoding);
+        appendSetting(sb, "urlEscapingCharset", urlEscapingCharset);
+        appendSetting(sb, "locale", getLocale());
+        appendSetting(sb, "numberFormat", getNumberFormat());
+        appendSetting(sb, "booleanFormat", fmCfg.getBooleanFormat());
+        appendSetting(sb, "dateFormat", getDateFormat());
+        appendSetting(sb, "timeFormat", getTimeFormat());
+        appendSetting(sb, "dateTimeFormat", getDateTimeFormat());
+        appendSetting(sb, "timeZone", getTimeZone().getID());
+        TimeZone sqlTimeZone = fmCfg.getSQLDateAndTimeTimeZone();
+        appendSetting(sb, "sqlDateAndTimeTimeZone", sqlTimeZone != null ? sqlTimeZone.getID() : null);
+        appendSetting(sb, "oldTemplateSyntax", getOldTemplateSyntax());
+        appendSetting(sb, "tagSyntax", getTagSyntax());
+        appendSetting(sb, "interpolationSyntax", getInterpolationSyntax());
+        appendSetting(sb, "outputFormat", getOutputFormat().getName());
+        appendSetting(sb, "mapCommonExtensionsToOutputFormats", mapCommonExtensionsToOutputFormats);
+        List<String> outputFormats = new ArrayList<String>();
+        for (OutputFormatChooser chooser : outputFormatChoosers) {
+            outputFormats.add(describeChooser(chooser, chooser.templateConfiguration.getOutputFormat().getName()));
+        }
+        appendSetting(sb, "outputFormatChoosers", outputFormats);
+        List<String> modes = new ArrayList<String>();
+        for (PModeChooser chooser : pModeChoosers) {
+            modes.add(describeChooser(chooser, chooser.pMode));
+        }
+        appendSetting(sb, "modes", modes);
+        List<String> turns = new ArrayList<String>();
+        for (TurnChooser chooser : turnChoosers) {
+            turns.add(describeChooser(chooser, chooser.turn));
+        }
+        appendSetting(sb, "turns", turns);
+        appendSetting(sb, "headers", headerChoosers.layers);
+        appendSetting(sb, "footers", footerChoosers.layers);
+        appendSetting(sb, "localDataBuilders", localDataBuilders.layers);
+        appendSetting(sb, "templateDataModelBuilder", tdmBuilder);
+        appendSetting(sb, "caseSensitive", csPathCmp);
+        appendSetting(sb, "expertMode", expertMode);
+        appendSetting(sb, "removeExtensions", removeExtensions);
+        appendSetting(sb, "removePostfixes", removePostfixes);
+        appendSetting(sb, "replaceExtensions", replaceExtensions);
+        appendSetting(sb, "removeFreemarkerExtensions", removeFreemarkerExtensions);
+        appendSetting(sb, "xpathEngine", xpathEngine);
+        appendSetting(sb, "xmlEntityResolver", xmlEntityResolver);
+        appendSetting(sb, "validateXml", validateXml);
+        List<List<Object>> xmlRenderings = new ArrayList<List<Object>>();
+        for (XmlRenderingCfgContainer xrcc : xmlRendCfgCntrs) {
+            XmlRenderingConfiguration xrc = xrcc.xmlRenderingCfg;
+            xmlRenderings.add(Arrays.asList(new Object[] {
+                    xrc.getTemplatePath(), xrc.getCopy(), xrc.getPathPatterns(),
+                    xrc.getDocumentElementLocalNames(), xrc.getDocumentElementNamespaces(),
+                    xrc.getXmlDataLoaderOptions(), xrc.getLocalDataBuilders() }));
+        }
+        appendSetting(sb, "xmlRenderings", xmlRenderings);
+        List<String> filters = new ArrayList<String>();
+        for (int i = 0; i < outputFilters.size(); i++) {
+            filters.add(outputFilterPatterns.get(i) + " " + outputFilters.get(i).getClass().getName());
+        }
+        appendSetting(sb, "outputFilters", filters);
+        appendSetting(sb, "data", data);
+        return sb.toString();
+    }
+
+    private static void appendSetting(StringBuilder sb, String name, Object value) {
+        sb.append(name).append('=');
+        appendValueDescription(sb, value, new IdentityHashMap<Object, Object>());
+        sb.append('\n');
+    }
+
+    private static void appendValueDescription(StringBuilder sb, Object value, Map<Object, Object> visited) {
+        if (value instanceof WrapperTemplateModel) {
+            value = ((WrapperTemplateModel) value).getWrappedObject();
+        }
+        
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof String) {
+            sb.append(StringUtil.jQuote((String) value));
+        } else if (value instanceof Number || value instanceof Boolean || value instanceof Character
+                || value instanceof Version || value instanceof Locale) {
+            sb.append(value.getClass().getName()).append(':').append(value);
+        } else if (value instanceof Date) {
+            sb.append(value.getClass().getName()).append(':').append(((Date) value).getTime());
+        } else if (value instanceof File) {
+            sb.append(StringUtil.jQuote(((File) value).getAbsolutePath()));
+        } else if (value instanceof Map || value instanceof Collection || value.getClass().isArray()) {
+            if (visited.put(value, value) != null) {
+                sb.append("...");
+                return;
+            }
+            List<String> items = new ArrayList<String>();
+            if (value instanceof Map) {
+                for (Map.Entry<?, ?> ent : ((Map<?, ?>) value).entrySet()) {
+                    StringBuilder item = new StringBuilder();
+                    appendValueDescription(item, ent.getKey(), visited);
+                    item.append(": ");
+                    appendValueDescription(item, ent.getValue(), visited);
+                    items.add(item.toString());
                 }
-                header = moveHeaderAfterTheFtlDirective(header, r);
             } else {
-                header = null;
+                Iterator<?> it = value instanceof Collection
+                        ? ((Collection<?>) value).iterator()
+                        : Arrays.asList(toObjectArray(value)).iterator();
+                while (it.hasNext()) {
+                    StringBuilder item = new StringBuilder();
+                    appendValueDescription(item, it.next(), visited);
+                    items.add(item.toString());
+                }
             }
-            
-            if (fc != 0) {
-                if (fc == 1) {
-                    footer = (String) footers.get(0);
+            visited.remove(value);
+            if (value instanceof Map || value instanceof Set) {
+                // The iteration order can depend on things that don't affect the output
+                Collections.sort(items);
+            }
+            sb.append(value instanceof Map ? '{' : '[');
+            for (int i = 0; i < items.size(); i++) {
+                if (i != 0) {
+                    sb.append(", ");
+                }
+                sb.append(items.get(i));
+            }
+            sb.append(value instanceof Map ? '}' : ']');
+        } else if (value instanceof TemplateScalarModel || value instanceof TemplateNumberModel
+                || value instanceof TemplateBooleanModel || value instanceof TemplateDateModel) {
+            sb.append(value.getClass().getName()).append(':');
+            try {
+                if (value instanceof TemplateScalarModel) {
+                    sb.append(StringUtil.jQuote(((TemplateScalarModel) value).getAsString()));
+                } else if (value instanceof TemplateNumberModel) {
+                    appendValueDescription(sb, ((TemplateNumberModel) value).getAsNumber(), visited);
+                } else if (value instanceof TemplateBooleanModel) {
+                    sb.append(((TemplateBooleanModel) value).getAsBoolean());
                 } else {
-                    if (sb == null) {
-                        sb = new StringBuffer(40 + fc * 80);
-                    } else {
-                        sb.setLength(0);
-                    }
-                    for (i = fc - 1; i >= 0; i--) {
-                        sb.append((String) footers.get(i));
-                    }
-                    footer = sb.toString();
+                    appendValueDescription(sb, ((TemplateDateModel) value).getAsDate(), visited);
                 }
-            } else {
-                footer = null;
+            } catch (TemplateModelException e) {
+                sb.append('?');
             }
-            
-            return new BorderedReader(header, r, footer);
+        } else if (value instanceof ObjectChooser) {
+            sb.append(describeChooser((Chooser) value, ""));
+            appendValueDescription(sb, ((ObjectChooser) value).value, visited);
+        } else {
+            sb.append(value.getClass().getName());
         }
     }
 
-    List getLocalDataBuildersForFile(File sf) throws IOException {
-        return localDataBuilders.choose(sf);
+    private static String describeChooser(Chooser chooser, Object value) {
+        return StringUtil.jQuote(chooser.pathPattern) + " " + value;
+    }
+
+    private static Object[] toObjectArray(Object array) {
+        Object[] result = new Object[Array.getLength(array)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Array.get(array, i);
+        }
+        return result;
+    }
+
+    /**
+     * Called by {@link FmppTemplateLoader} when it has found the file of a template.
+     */
+    void templateSourceFound(String name, File source) {
+        if (dependencyGraph != null) {
+            templateSourceFiles.put(name, source);
+        }
+    }
+
+    /**
+     * Returns the path of the file relative to the output root, in UN*X format.
+     */
+    String getOutputRootRelativePath(File f) throws IOException {
+        String path = f.getPath();
+        if (f.equals(outRoot)) {
+            return "";
+        }
+        String rootPath = outRoot.getPath();
+        int rootPathLn = rootPath.length();
+        if (rootPath.endsWith(File.separator)) {
+            rootPathLn--;
+        }
+        if (path.startsWith(rootPath) && path.length() > rootPathLn + 1
+                && path.charAt(rootPathLn) == File.separatorChar) {
+            return FileUtil.pathToUnixStyle(path.substring(rootPathLn + 1));
+        }
+        return FileUtil.pathToUnixStyle(FileUtil.getRelativePath(outRoot, f));
     }
 
     Pattern pathPatternToRegexpPattern (String path) {
@@ -2859,7 +4826,7 @@ public class Engine {
      */
     private String moveHeaderAfterTheFtlDirective(String header, Reader r)
             throws IOException {
-        StringBuffer sb = new StringBuffer(MAX_WBLN);
+        StringBuilder sb = new StringBuilder(MAX_WBLN);
         
         char[] wb = new char[MAX_WBLN];
         int wbln; 
@@ -2963,7 +4930,9 @@ public class Engine {
                     + FileUtil.getRelativePath(outRoot, f));
         }
         
-        return new File(f.getParent(), fn).getCanonicalFile();
+        // Only the parent is canonicalized, as the output file itself can be a symbolic link created by the
+        // "copyStrategy" engine parameter, and we don't want to resolve that.
+        return new File(f.getParentFile().getCanonicalFile(), fn);
     }
 
     private String applyRemoveExtensionSetting(String fn) {
@@ -3021,22 +4990,25 @@ public class Engine {
         return fn;
     }
 
-    private <T extends Chooser> T findChooser(List<T> choosers, File f)
-            throws IOException {
-        String fp = FileUtil.getRelativePath(srcRoot, f);
-        String unixStylePath = FileUtil.pathToUnixStyle(fp);
-        return findChooser(choosers, unixStylePath);
+    private ChosenByPath getChosenByPath(File f) throws IOException {
+        return getChosenByPath(getSourceRootRelativePath(f));
     }
-
-    private <T extends Chooser> T findChooser(List<T> choosers, String unixStylePath) {
-        String normalizedPath = normalizePathForComparison(unixStylePath);
-        
-        for (T chooser : choosers) {
-            if (chooser.regexpPattern.matcher(normalizedPath).matches()) {
-                return chooser;
-            }
+    
+    private ChosenByPath getChosenByPath(String unixStylePath) {
+        ChoosersIndex index = choosersIndex;
+        if (index == null) {
+            index = buildChoosersIndex();
+        }
+        return index.choose(normalizePathForComparison(unixStylePath));
+    }
+    
+    private synchronized ChoosersIndex buildChoosersIndex() {
+        ChoosersIndex index = choosersIndex;
+        if (index == null) {
+            index = new ChoosersIndex();
+            choosersIndex = index;
         }
-        return null;
+        return index;
     }
     
     private String normalizePathForComparison(String fp) {
@@ -3052,21 +5024,8 @@ public class Engine {
         return fp;
     }
     
-    private int getProcessingMode(File f) throws IOException {
+    private int getProcessingMode(File f, ChosenByPath chosen) {
         String fnameCs = f.getName();
-        String fpathCs = f.getAbsolutePath();
-        String fnameCisLower;
-        String fpathCisLower;
-        String fpathCisUpper;
-        if (!csPathCmp) {
-            fnameCisLower = fnameCs.toLowerCase();
-            fpathCisLower = fpathCs.toLowerCase();
-            fpathCisUpper = fpathCs.toUpperCase();
-        } else {
-            fnameCisLower = fnameCs;
-            fpathCisLower = fpathCs;
-            fpathCisUpper = fpathCs;
-        }
         
         int i = fnameCs.lastIndexOf(".");
         String extLower;
@@ -3079,22 +5038,19 @@ public class Engine {
         if (extLower.equals("fmpp")) {
             return PMODE_IGNORE;
         }
-        if (ignoreCvsFiles) {
-            if (fnameCisLower.equals(".cvsignore")  
-                    || fpathCisUpper.indexOf("/CVS/") != -1
-                    || fpathCisUpper.indexOf(
-                            File.separatorChar + "CVS" + File.separatorChar)
-                       != -1
-                    || (fnameCs.length() > 2 && fnameCs.startsWith(".#"))) {
-                return PMODE_IGNORE;
+        if (ignoreCvsFiles || ignoreSvnFiles) {
+            String fpathCs = f.getAbsolutePath();
+            if (ignoreCvsFiles) {
+                if ((csPathCmp ? fnameCs.equals(".cvsignore") : fnameCs.equalsIgnoreCase(".cvsignore"))  
+                        || containsDirectoryName(fpathCs, "CVS")
+                        || (fnameCs.length() > 2 && fnameCs.startsWith(".#"))) {
+                    return PMODE_IGNORE;
+                }
             }
-        }
-        if (ignoreSvnFiles) {
-            if (fpathCisLower.indexOf("/.svn/") != -1
-                    || fpathCisLower.indexOf(
-                            File.separatorChar + ".svn" + File.separatorChar)
-                       != -1) {
-                return PMODE_IGNORE;
+            if (ignoreSvnFiles) {
+                if (containsDirectoryName(fpathCs, ".svn")) {
+                    return PMODE_IGNORE;
+                }
             }
         }
         if (ignoreTemporaryFiles) {
@@ -3113,7 +5069,7 @@ public class Engine {
             }
         }
 
-        PModeChooser pmc = findChooser(pModeChoosers, f);
+        PModeChooser pmc = chosen.pModeChooser;
         if (pmc == null) {
             if ((recommendedDefaultsGE0916(recommendedDefaults) ? STATIC_FILE_EXTS_V2 : STATIC_FILE_EXTS_V1)
                     .contains(extLower)) {
@@ -3127,9 +5083,30 @@ public class Engine {
             return pmc.pMode;
         }
     }
+    
+    /**
+     * Tells if the path contains the given name as a directory name (i.e., surrounded by {@code /} or the platform
+     * specific separator), considering the {@code caseSensitive} engine parameter. Used instead of converting the
+     * whole path to lower or upper case for each check.
+     */
+    private boolean containsDirectoryName(String path, String dirName) {
+        int nameLn = dirName.length();
+        int lastStart = path.length() - nameLn - 1;
+        for (int i = 0; i < lastStart; i++) {
+            char c = path.charAt(i);
+            if (c == '/' || c == File.separatorChar) {
+                char c2 = path.charAt(i + nameLn + 1);
+                if ((c2 == '/' || c2 == File.separatorChar)
+                        && path.regionMatches(!csPathCmp, i + 1, dirName, 0, nameLn)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-    private int getTurn(File f) throws IOException {
-        TurnChooser tc = findChooser(turnChoosers, f);
+    private int getTurn(ChosenByPath chosen) {
+        TurnChooser tc = chosen.turnChooser;
         return tc != null ? tc.turn : 1;
     }
 
@@ -3197,15 +5174,9 @@ public class Engine {
 
     private class Chooser {
         private final String pathPattern;
-        Pattern regexpPattern;
         
         private Chooser(String pathPattern) {
             this.pathPattern = pathPattern;
-            this.regexpPattern = pathPatternToRegexpPattern(pathPattern);
-        }
-
-        void recompile() {
-            this.regexpPattern = pathPatternToRegexpPattern(pathPattern);
         }
     }
     
@@ -3237,17 +5208,18 @@ public class Engine {
     }
 
     private class ObjectChooser extends Chooser {
+        private final LayeredChooser owner;
         private final Object value;
         
-        ObjectChooser(String pathPattern, Object value) {
+        ObjectChooser(LayeredChooser owner, String pathPattern, Object value) {
             super(pathPattern);
+            this.owner = owner;
             this.value = value;
         }
     }
 
     private class LayeredChooser {
         private List<List<ObjectChooser>> layers = new ArrayList<List<ObjectChooser>>();
-        private int usedLayers;
         
         /**
          * @param layer Must be 0 or positive. 0 is the layer with the highest
@@ -3261,7 +5233,7 @@ public class Engine {
                 throw new IllegalArgumentException(
                         "Layer index can't be negative: " + layer);
             }
-            ObjectChooser chooser = new ObjectChooser(pathPattern, value);
+            ObjectChooser chooser = new ObjectChooser(this, pathPattern, value);
             int max = layers.size() - 1;
             while (max < layer) {
                 layers.add(null);
@@ -3271,39 +5243,367 @@ public class Engine {
             if (choosers == null) {
                 choosers = new ArrayList<ObjectChooser>();
                 layers.set(layer, choosers);
-                usedLayers++;
             }
             choosers.add(chooser);
         }
         
+        private void clear() {
+            layers.clear();
+        }
+    }
+    
+    /**
+     * All the path patterns of the choosers compiled into a single {@link PathPatternIndex}, so that finding all the
+     * choosers that apply to a path needs a single lookup.
+     */
+    private class ChoosersIndex {
+        private final PathPatternIndex index = new PathPatternIndex();
+        /** The choosers, indexed by the rule id in {@link #index}. */
+        private final List<Chooser> choosers = new ArrayList<Chooser>();
+        /**
+         * The group of each rule (indexed by the rule id); in each group only the first matching chooser is used.
+         */
+        private final List<Integer> ruleGroups = new ArrayList<Integer>();
+        private int groupCount;
+        /** As many paths will match the same rules, the results are shared. */
+        private final ConcurrentHashMap<BitSet, ChosenByPath> chosenByMatches
+                = new ConcurrentHashMap<BitSet, ChosenByPath>();
+        
+        ChoosersIndex() {
+            // Note: The rule ids must follow the priority order of the choosers.
+            addGroup(pModeChoosers);
+            addGroup(turnChoosers);
+            addGroup(outputFormatChoosers);
+            addLayers(headerChoosers);
+            addLayers(footerChoosers);
+            addLayers(localDataBuilders);
+        }
+        
+        private void addGroup(List<? extends Chooser> groupChoosers) {
+            int group = groupCount++;
+            for (Chooser chooser : groupChoosers) {
+                String pattern = FileUtil.pathToUnixStyle(chooser.pathPattern);
+                if (!csPathCmp) {
+                    pattern = pattern.toLowerCase();
+                }
+                index.add(pattern);
+                choosers.add(chooser);
+                ruleGroups.add(Integer.valueOf(group));
+            }
+        }
+        
+        private void addLayers(LayeredChooser layeredChooser) {
+            for (List<ObjectChooser> layer : layeredChooser.layers) {
+                if (layer != null) {
+                    addGroup(layer);
+                }
+            }
+        }
+        
+        /**
+         * @param normalizedPath The path as returned by {@link Engine#normalizePathForComparison(String)}
+         */
+        private ChosenByPath choose(String normalizedPath) {
+            BitSet matches = index.match(normalizedPath);
+            ChosenByPath chosen = chosenByMatches.get(matches);
+            if (chosen == null) {
+                chosen = new ChosenByPath();
+                List<Object> headers = new ArrayList<Object>();
+                List<Object> footers = new ArrayList<Object>();
+                List<Object> ldbs = new ArrayList<Object>();
+                boolean[] groupDone = new boolean[groupCount];
+                for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+                    int group = ruleGroups.get(id).intValue();
+                    if (groupDone[group]) {
+                        continue;
+                    }
+                    groupDone[group] = true;
+                    
+                    Chooser chooser = choosers.get(id);
+                    if (chooser instanceof PModeChooser) {
+                        chosen.pModeChooser = (PModeChooser) chooser;
+                    } else if (chooser instanceof TurnChooser) {
+                        chosen.turnChooser = (TurnChooser) chooser;
+                    } else if (chooser instanceof OutputFormatChooser) {
+                        chosen.outputFormatChooser = (OutputFormatChooser) chooser;
+                    } else {
+                        ObjectChooser objChooser = (ObjectChooser) chooser;
+                        if (objChooser.owner == headerChoosers) {
+                            headers.add(objChooser.value);
+                        } else if (objChooser.owner == footerChoosers) {
+                            footers.add(objChooser.value);
+                        } else {
+                            ldbs.add(objChooser.value);
+                        }
+                    }
+                }
+                chosen.header = composeBorder(headers, false);
+                chosen.footer = composeBorder(footers, true);
+                chosen.localDataBuilders = Collections.unmodifiableList(ldbs);
+                
+                ChosenByPath prevChosen = chosenByMatches.putIfAbsent(matches, chosen);
+                if (prevChosen != null) {
+                    chosen = prevChosen;
+                }
+            }
+            return chosen;
+        }
+        
         /**
-         * @return the list of chosen objects, ordered by ascending layer
-         *     index. Possibly an empty list, but never {@code null}.
+         * Concatenates the borders chosen from the layers; it's done here, so it happens only once per distinct
+         * combination of the matching choosers, rather than for each template.
+         * 
+         * @param reverse Tells if the layers are concatenated in reverse order, as with footers.
+         * 
+         * @return {@code null} if no border was chosen.
          */
-        private List<Object> choose(File f) throws IOException {
-            List<Object> result = new ArrayList<Object>(usedLayers);
-            for (List<ObjectChooser> choosers : layers) {
-                if (choosers != null) {
-                    ObjectChooser c = findChooser(choosers, f);
-                    if (c != null) {
-                        result.add(c.value);
+        private String composeBorder(List<Object> borders, boolean reverse) {
+            int ln = borders.size();
+            if (ln == 0) {
+                return null;
+            }
+            if (ln == 1) {
+                return (String) borders.get(0);
+            }
+            StringBuilder sb = new StringBuilder(40 + ln * 80);
+            for (int i = 0; i < ln; i++) {
+                sb.append((String) borders.get(reverse ? ln - 1 - i : i));
+            }
+            return sb.toString();
+        }
+    }
+    
+    /**
+     * The value of a variable added with {@link Engine#addLazyData(String, Callable)}.
+     */
+    private class LazyDataValue {
+        private final String name;
+        private final Callable<?> loader;
+        private boolean loaded;
+        /** The calculated value, with the files registered with addDependency during the calculation. */
+        private DataLoaderResult result;
+        private LazyDataException failure;
+        private TemplateModel model;
+        private ObjectWrapper modelWrapper;
+        
+        LazyDataValue(String name, Callable<?> loader) {
+            this.name = name;
+            this.loader = loader;
+        }
+        
+        synchronized Object get() {
+            if (loaded && !parametersLocked) {
+                // Outside processing sessions the files can change any time
+                discardIfOutdated();
+            }
+            if (!loaded) {
+                DataLoaderCall outerCall = currentDataLoaderCall.get();
+                DataLoaderCall call = new DataLoaderCall();
+                currentDataLoaderCall.set(call);
+                try {
+                    result = new DataLoaderResult(loader.call(), call.files);
+                } catch (Exception e) {
+                    failure = new LazyDataException(
+                            "Failed to load the value of data variable " + StringUtil.jQuote(name)
+                            + ", which was deferred until its first use.",
+                            e);
+                } finally {
+                    currentDataLoaderCall.set(outerCall);
+                    if (outerCall != null) {
+                        outerCall.files.addAll(call.files);
+                        outerCall.cacheable &= call.cacheable;
                     }
                 }
+                loaded = true;
+            } else if (result != null) {
+                for (File f : result.getFiles()) {
+                    addDependency(f);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return result.getValue();
+        }
+
+        /**
+         * Forgets the value if it has to be calculated again, because its calculation has failed, or because the
+         * files it was calculated from were changed since. Called at the beginning of each processing session.
+         */
+        synchronized void discardIfOutdated() {
+            if (loaded && (failure != null || !result.isCurrent())) {
+                loaded = false;
+                result = null;
+                failure = null;
+                model = null;
+                modelWrapper = null;
             }
-            return result;
         }
         
-        private void recompile()  {
-            for (List<ObjectChooser> choosers : layers) {
-                for (ObjectChooser choser : choosers) {
-                    choser.recompile();
+        synchronized TemplateModel getModel(ObjectWrapper wrapper) {
+            Object value = get();
+            if (model == null || modelWrapper != wrapper) {
+                try {
+                    model = wrapper.wrap(value);
+                } catch (TemplateModelException e) {
+                    throw new LazyDataException(
+                            "Failed to convert data " + StringUtil.jQuote(name) + " to FreeMarker variable.", e);
+                }
+                modelWrapper = wrapper;
+            }
+            return model;
+        }
+    }
+    
+    /**
+     * Collects what's known about a data loader invocation while it runs: the
+     * files it has loaded data from, and if its result may be reused.
+     */
+    private static class DataLoaderCall {
+        private final Set<File> files = new LinkedHashSet<File>();
+        private boolean cacheable = true;
+        private Object value;
+    }
+
+    /**
+     * The result of a data loader call that's reused in the processing
+     * session. The data loader is invoked when the result is first needed,
+     * and only by one thread. 
+     */
+    private class MemoizedDataLoaderCall {
+        private final DataLoaderCallKey key;
+        /** {@code null} until the data loader was successfully invoked. */
+        private DataLoaderResult result;
+        private TemplateModel model;
+        private ObjectWrapper modelWrapper;
+
+        MemoizedDataLoaderCall(DataLoaderCallKey key) {
+            this.key = key;
+        }
+
+        synchronized Object get(DataLoader dl, List args) throws Exception {
+            if (result != null && (parametersLocked || result.isCurrent())) {
+                for (File f : result.getFiles()) {
+                    addDependency(f);
                 }
+                return result.getValue();
+            }
+
+            model = null;
+            modelWrapper = null;
+            result = null;
+            DataLoaderCall call = invokeDataLoader(key, dl, args);
+            if (call.cacheable) {
+                result = new DataLoaderResult(call.value, call.files);
+            } else {
+                memoizedDataLoaderCalls.remove(key, this);
             }
+            return call.value;
         }
 
-        private void clear() {
-            layers.clear();
-            usedLayers = 0;
+        synchronized TemplateModel getModel(DataLoader dl, List args, ObjectWrapper wrapper) throws Exception {
+            Object value = get(dl, args);
+            if (result == null) {
+                // Not memoized
+                return wrapper.wrap(value);
+            }
+            if (model == null || modelWrapper != wrapper) {
+                model = wrapper.wrap(value);
+                modelWrapper = wrapper;
+            }
+            return model;
+        }
+    }
+
+    /**
+     * The choosers that apply to a path.
+     */
+    private class ChosenByPath {
+        private PModeChooser pModeChooser;
+        private TurnChooser turnChooser;
+        private OutputFormatChooser outputFormatChooser;
+        /** The headers of the layers concatenated, or {@code null} if there's no header. */
+        private String header;
+        /** The footers of the layers concatenated in reverse layer order, or {@code null} if there's no footer. */
+        private String footer;
+        /** Ordered by ascending layer index. */
+        private List<Object> localDataBuilders;
+    }
+    
+    /**
+     * A source file that was found to be processed in a turn, as decided by the planning phase of the session. 
+     */
+    private static class PlannedFile {
+        private final File sf;
+        private final File df;
+        private final int pmode;
+        /** Exception that was thrown while planning, which will be reported when the file is processed. */
+        private final Throwable planningExc;
+        
+        private PlannedFile(File sf, File df, int pmode, Throwable planningExc) {
+            this.sf = sf;
+            this.df = df;
+            this.pmode = pmode;
+            this.planningExc = planningExc;
+        }
+    }
+    
+    /**
+     * Creates the worker threads used if {@link #getParallelism()} is greater than 1. Each worker thread has its own
+     * {@link TemplateEnvironment}, which shares the session-level {@code pp} variables with the main one.
+     */
+    private class FileWorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCounter = new AtomicInteger();
+        
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(
+                    new Runnable() {
+                        public void run() {
+                            TemplateEnvironment env = new TemplateEnvironment(Engine.this);
+                            env.setupForSession(templateEnv);
+                            workerTemplateEnv.set(env);
+                            try {
+                                r.run();
+                            } finally {
+                                workerTemplateEnv.remove();
+                            }
+                        }
+                    },
+                    "FMPP worker " + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+    
+    /**
+     * Creates the threads used for copying if {@link #getCopyThreads()} is greater than 0.
+     */
+    private static class CopyWorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCounter = new AtomicInteger();
+        
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "FMPP copier " + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+    
+    /**
+     * Makes the submitting thread wait while the copying queue is full, so that the queue stays bounded, yet the
+     * copying is never done on the submitting thread.
+     */
+    private static class BlockingSubmitPolicy implements RejectedExecutionHandler {
+        
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("The copier threads were already shut down.");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for the copying queue.");
+            }
         }
     }
     
@@ -3316,25 +5616,25 @@ public class Engine {
         private boolean mergedNeedsRefresh = true;
         private List<ProgressListener> mergedListeners = new ArrayList<ProgressListener>();
 
-        void addUserListener(ProgressListener listener) {
+        synchronized void addUserListener(ProgressListener listener) {
             if (!MiscUtil.listContainsObject(userListeners, listener)) {
                 userListeners.add(listener);
             }
         }
 
-        void clearUserListeners() {
+        synchronized void clearUserListeners() {
             mergedNeedsRefresh = true;
             userListeners.clear();
         }
 
-        void addAttrListener(ProgressListener listener) {
+        synchronized void addAttrListener(ProgressListener listener) {
             if (!MiscUtil.listContainsObject(attrListeners, listener)) {
                 mergedNeedsRefresh = true;
                 attrListeners.add(listener);
             }
         }
 
-        void removeAttrListener(ProgressListener listener) {
+        synchronized void removeAttrListener(ProgressListener listener) {
             int i = MiscUtil.findObject(attrListeners, listener);
             if (i != -1) {
                 mergedNeedsRefresh = true;
@@ -3342,36 +5642,40 @@ public class Engine {
             }
         }
 
-        void clearAttrListeners() {
+        synchronized void clearAttrListeners() {
             mergedNeedsRefresh = true;
             attrListeners.clear();
         }
 
-        void addLdbListener(ProgressListener listener) {
+        synchronized void addLdbListener(ProgressListener listener) {
             if (!MiscUtil.listContainsObject(ldbListeners, listener)) {
                 mergedNeedsRefresh = true;
                 ldbListeners.add(listener);
             }
         }
 
-        void clearLdbListeners() {
+        synchronized void clearLdbListeners() {
             mergedNeedsRefresh = true;
             ldbListeners.clear();
         }
 
-        void addXmlLdbListener(ProgressListener listener) {
+        synchronized void addXmlLdbListener(ProgressListener listener) {
             if (!MiscUtil.listContainsObject(xmlLdbListeners, listener)) {
                 mergedNeedsRefresh = true;
                 xmlLdbListeners.add(listener);
             }
         }
 
-        void clearXmlLdbListeners() {
+        synchronized void clearXmlLdbListeners() {
             mergedNeedsRefresh = true;
             xmlLdbListeners.clear();
         }
 
-        public void notifyProgressEvent(
+        /**
+         * Synchronized, as with parallel processing the events are coming from multiple threads, while the
+         * {@link ProgressListener} contract promises that listeners are not called concurrently.
+         */
+        public synchronized void notifyProgressEvent(
                 Engine engine,
                 int event,
                 File src, int pMode,
@@ -3517,6 +5821,135 @@ public class Engine {
         COMMON_EXTENSIONS_TO_OUTPUT_FORMATS.put("rtf", RTFOutputFormat.INSTANCE);
     }
     
+    /**
+     * Adds the files to process to the plan of the turns.
+     */
+    private interface FilePlanner {
+        void planFiles() throws IOException, ProcessingException;
+    }
+
+    /**
+     * The FreeMarker {@link Configuration} of the engine; it records the template dependencies, and validates the
+     * templates retained from earlier sessions (see {@link #setRetainTemplateCache(boolean)}).
+     */
+    private class FMPPConfiguration extends Configuration {
+
+        FMPPConfiguration(Version incompatibleImprovements) {
+            super(incompatibleImprovements);
+        }
+
+        @Override
+        public TemplateModel getSharedVariable(String name) {
+            TemplateModel tm = super.getSharedVariable(name);
+            if (tm == null) {
+                // The data Map isn't modified during the processing session, so it can be read concurrently.
+                Object value = data.get(name);
+                if (value instanceof LazyDataValue) {
+                    tm = ((LazyDataValue) value).getModel(getObjectWrapper());
+                }
+            }
+            return tm;
+        }
+
+        // All template lookups (including #include and #import) go through this overload.
+        @Override
+        public Template getTemplate(
+                String name, Locale locale, Object customLookupCondition, String encoding,
+                boolean parseAsFTL, boolean ignoreMissing) throws IOException {
+            Template t;
+            if (retainTemplateCache) {
+                t = getValidatedTemplate(name, locale, customLookupCondition, encoding, parseAsFTL, ignoreMissing);
+            } else {
+                t = super.getTemplate(name, locale, customLookupCondition, encoding, parseAsFTL, ignoreMissing);
+            }
+            if (t != null && currentFileDependencies.get() != null) {
+                File f = templateSourceFiles.get(t.getSourceName());
+                if (f != null) {
+                    addDependency(f);
+                }
+            }
+            return t;
+        }
+
+        /**
+         * Gets the template, but on the first lookup in the session, first discards the cached template if its
+         * source has changed since it was loaded (possibly in an earlier session).
+         */
+        private Template getValidatedTemplate(
+                String name, Locale locale, Object customLookupCondition, String encoding,
+                boolean parseAsFTL, boolean ignoreMissing) throws IOException {
+            // Resolve the defaults like super.getTemplate does, as removeTemplateFromCache needs them.
+            if (locale == null) {
+                locale = getLocale();
+            }
+            if (encoding == null) {
+                encoding = getEncoding(locale);
+            }
+            String key = name + '\n' + locale + '\n' + encoding + '\n' + parseAsFTL + '\n' + customLookupCondition;
+            Object lock = templateCacheValidationLocks.get(key);
+            if (lock == Boolean.TRUE) {
+                // Already validated in this session
+                return super.getTemplate(name, locale, customLookupCondition, encoding, parseAsFTL, ignoreMissing);
+            }
+            if (lock == null) {
+                Object newLock = new Object();
+                lock = templateCacheValidationLocks.putIfAbsent(key, newLock);
+                if (lock == null) {
+                    lock = newLock;
+                }
+            }
+            synchronized (lock) {
+                if (templateCacheValidationLocks.get(key) != Boolean.TRUE) {
+                    FmppTemplateLoader loader = (FmppTemplateLoader) getTemplateLoader();
+                    TemplateSourceStamp stamp = templateSourceStamps.remove(key);
+                    if (stamp == null || !stamp.isCurrent(loader)) {
+                        // Without a stamp, the cache might still hold a failed lookup (like a parsing error).
+                        removeTemplateFromCache(name, locale, customLookupCondition, encoding, parseAsFTL);
+                        stamp = null;
+                    }
+                    Template t = super.getTemplate(
+                            name, locale, customLookupCondition, encoding, parseAsFTL, ignoreMissing);
+                    if (stamp == null) {
+                        String sourceName = t != null ? t.getSourceName() : null;
+                        Object source = sourceName != null ? loader.findTemplateSource(sourceName) : null;
+                        stamp = new TemplateSourceStamp(
+                                sourceName, (File) source, source != null ? loader.getLastModified(source) : 0);
+                    }
+                    templateSourceStamps.put(key, stamp);
+                    templateCacheValidationLocks.put(key, Boolean.TRUE);
+                    return t;
+                }
+            }
+            return super.getTemplate(name, locale, customLookupCondition, encoding, parseAsFTL, ignoreMissing);
+        }
+
+    }
+
+    /**
+     * The source file of a retained template, with its last modification time when the template was loaded.
+     */
+    private static class TemplateSourceStamp {
+        /** These are {@code null} if the template wasn't found. */
+        private final String sourceName;
+        private final File source;
+        private final long lastModified;
+
+        TemplateSourceStamp(String sourceName, File source, long lastModified) {
+            this.sourceName = sourceName;
+            this.source = source;
+            this.lastModified = lastModified;
+        }
+
+        boolean isCurrent(FmppTemplateLoader loader) throws IOException {
+            if (source == null) {
+                // It might exist now; looking it up again is cheap.
+                return false;
+            }
+            Object currentSource = loader.findTemplateSource(sourceName);
+            return source.equals(currentSource) && loader.getLastModified(currentSource) == lastModified;
+        }
+    }
+
     private class FMPPTemplateConfigurationFactory extends TemplateConfigurationFactory {
         // TC-s used for associateCommonExtensionsToOutputFormats:
         private final TemplateConfiguration htmlTC;
@@ -3551,7 +5984,7 @@ public class Engine {
         @Override
         public TemplateConfiguration get(String name, Object source)
                 throws IOException, TemplateConfigurationFactoryException {
-            OutputFormatChooser chooser = findChooser(outputFormatChoosers, name);
+            OutputFormatChooser chooser = getChosenByPath(name).outputFormatChooser;
             if (chooser != null) {
                 if (chooser.templateConfiguration == null) {
                     throw new IllegalStateException("Uninitialized OutputFormatChooser.templateConfiguration");
@@ -16,12 +16,12 @@
 
 package fmpp;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Iterator;
 
@@ -35,6 +35,7 @@ class FmppFileOutputWriter extends FmppOutputWriter {
     private static final int BUFFER_SIZE = 160; // large buffer slows down
     
     private Engine engine;
+    private File src;
     private ArrayList stateStack = new ArrayList();
     private boolean closed = false;
     private boolean ignoreFlush = false;
@@ -45,12 +46,13 @@ class FmppFileOutputWriter extends FmppOutputWriter {
     private int freeBuf = BUFFER_SIZE;
     private StringBuffer buf = new StringBuffer(BUFFER_SIZE);
     private Writer fileWriter;
+    private CommitOnCloseOutputStream commitOut;
     private boolean append;
     private SavedState sharedSavedState;
     
-    FmppFileOutputWriter(Engine engine, File dst, String enc) {
+    FmppFileOutputWriter(Engine engine, File src, File dst, String enc) {
         this.engine = engine; 
-        this.engine = engine;
+        this.src = src;
         this.dst = dst;
         this.enc = enc; 
     }
@@ -76,10 +78,9 @@ class FmppFileOutputWriter extends FmppOutputWriter {
         if (fileWriter != null) {
             fileWriter.write(data, off, len);
         } else {
-            int ln = data.length;
-            if (ln <= freeBuf) {
+            if (len <= freeBuf) {
                 buf.append(data, off, len);
-                freeBuf -= ln;
+                freeBuf -= len;
             } else {
                 createFileWriter();
                 fileWriter.write(buf.toString());
@@ -109,7 +110,10 @@ class FmppFileOutputWriter extends FmppOutputWriter {
         try {
             do {
                 try {
-                    if (!error
+                    if (error && isCommittedOnClose()) {
+                        // Keep the earlier output file instead of a partial one
+                        discardOutput();
+                    } else if (!error
                             || fileWriter != null
                             || (buf != null && buf.length() != 0)) {
                         flush();
@@ -148,17 +152,21 @@ class FmppFileOutputWriter extends FmppOutputWriter {
 
     void dropOutputFile() throws IOException {
         if (fileWriter != null) {
+            discardOutput();
             fileWriter.close();
-            if (dst.isFile()) {
+            // With an output sink, nothing was written into the output directory
+            if (!(commitOut instanceof SinkOutputStream) && dst.isFile()) {
                 dst.delete();
             }
         }
         fileWriter = NullWriter.INSTANCE;
+        commitOut = null;
         buf = null; 
     }
     
     void restartOutputFile() throws IOException {
         if (fileWriter != null) {
+            discardOutput();
             fileWriter.close();
         }
         initOutputBufferAndWriter();
@@ -169,7 +177,10 @@ class FmppFileOutputWriter extends FmppOutputWriter {
         if (dst.equals(newDst)) {
             return;
         }
-        if (fileWriter != null) {
+        if (commitOut instanceof SinkOutputStream) {
+            // Nothing was passed to the output sink yet, so it can be simply redirected
+            ((SinkOutputStream) commitOut).setDestination(newDst);
+        } else if (fileWriter != null) {
             flush();
             fileWriter.close();
             
@@ -190,6 +201,7 @@ class FmppFileOutputWriter extends FmppOutputWriter {
                 throw new IOException("Failed to rename " + dst.getPath()
                         + " to " + newDst.getPath());
             }
+            engine.outputFileWritten(src, newDst);
             append = true;
         }
         dst = newDst;
@@ -289,12 +301,54 @@ class FmppFileOutputWriter extends FmppOutputWriter {
     }
 
     private void createFileWriter() throws IOException {
+        // Fails before the file is created if the encoding is unknown
+        Charset charset = EncodingFileWriter.getCharset(enc);
+        if (engine.getOutputSink() != null) {
+            commitOut = new SinkOutputStream(engine, dst, append);
+            fileWriter = engine.applyOutputFilters(dst, new EncodingFileWriter(commitOut, charset));
+            return; //!
+        }
+        
         File p = dst.getParentFile();
         if (p != null) {
             p.mkdirs();
         }
-        fileWriter = new BufferedWriter(new OutputStreamWriter(
-                new FileOutputStream(dst.getPath(), append), enc));
+        engine.outputFileWritten(src, dst);
+        OutputStream out;
+        if (!append && engine.getWriteOnlyIfChanged()) {
+            out = commitOut = new WriteIfChangedOutputStream(engine, src, dst);
+        } else if (!append && engine.getAtomicOutput()) {
+            out = commitOut = new AtomicFileOutputStream(engine, dst);
+        } else {
+            if (!append) {
+                // If the existing file is a link created by the "copyStrategy" engine parameter, writing into it
+                // would overwrite the source file.
+                dst.delete();
+            }
+            out = new FileOutputStream(dst.getPath(), append);
+        }
+        fileWriter = engine.applyOutputFilters(dst, new EncodingFileWriter(out, charset));
+    }
+    
+    /**
+     * Tells if the current output file is only replaced when its writer is
+     * closed (see {@link CommitOnCloseOutputStream}).
+     */
+    private boolean isCommittedOnClose() {
+        return engine.getOutputSink() != null
+                || !append && (engine.getWriteOnlyIfChanged() || engine.getAtomicOutput());
+    }
+    
+    /**
+     * Drops what was written into the current output file so far, if the
+     * output file is only replaced on close. The writer still has to be closed
+     * after this.
+     */
+    private void discardOutput() throws IOException {
+        if (commitOut != null) {
+            commitOut.discard();
+        }
+        buf = null;
     }
     
     private File deduceNewDst(String newName) throws IOException {
@@ -307,6 +361,7 @@ class FmppFileOutputWriter extends FmppOutputWriter {
     
     private void initOutputBufferAndWriter() {
         fileWriter = null;
+        commitOut = null;
         if (buf == null) {
             buf = new StringBuffer(BUFFER_SIZE);
         } else {
@@ -321,6 +376,7 @@ class FmppFileOutputWriter extends FmppOutputWriter {
         private int freeBuf;
         private StringBuffer buf;
         private Writer fileWriter;
+        private CommitOnCloseOutputStream commitOut;
         private boolean append;
         private SavedState sharedSavedState;
         
@@ -330,6 +386,7 @@ class FmppFileOutputWriter extends FmppOutputWriter {
             freeBuf = FmppFileOutputWriter.this.freeBuf;
             buf = FmppFileOutputWriter.this.buf;
             fileWriter = FmppFileOutputWriter.this.fileWriter;
+            commitOut = FmppFileOutputWriter.this.commitOut;
             append = FmppFileOutputWriter.this.append;
             sharedSavedState = FmppFileOutputWriter.this.sharedSavedState;
         }
@@ -341,6 +398,7 @@ class FmppFileOutputWriter extends FmppOutputWriter {
             FmppFileOutputWriter.this.buf = buf;
             FmppFileOutputWriter.this.append = append;
             FmppFileOutputWriter.this.fileWriter = fileWriter;
+            FmppFileOutputWriter.this.commitOut = commitOut;
             FmppFileOutputWriter.this.sharedSavedState = sharedSavedState;
         }
     }
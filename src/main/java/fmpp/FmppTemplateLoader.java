@@ -21,17 +21,47 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import freemarker.cache.TemplateLoader;
 
 /**
  * A <code>TemplateLoader</code> that uses files in a specified directory as the
  * source of templates.
+ * 
+ * <p>The results of the lookups (including the failed ones) are cached until
+ * the next {@link #clearLookupCache()} call, which happens at the beginning of
+ * each processing session. A cached result is used only if the last
+ * modification time of the directories where the files were looked for hasn't
+ * changed since then, so templates created or deleted during the session are
+ * noticed (as far as the FreeMarker template cache itself allows that). The
+ * directory modification times are only queried once per processing turn; see
+ * {@link #forgetDirectoryStatuses()}.
  */
 class FmppTemplateLoader implements TemplateLoader {
     private static final boolean SEP_IS_SLASH = File.separatorChar == '/';
+    
+    /**
+     * Directory modification times that are this close to the current time
+     * aren't trusted for validating the cached results, because file systems
+     * store them with limited precision, so a file created in the same moment
+     * may not change them.
+     */
+    private static final long LAST_MODIFIED_PRECISION = 2000;
+    
     private final Engine engine;
+    private final ConcurrentHashMap<String, Lookup> lookups
+            = new ConcurrentHashMap<String, Lookup>();
+    private final ConcurrentHashMap<File, Long> dirLastModifieds
+            = new ConcurrentHashMap<File, Long>();
+    private final ConcurrentHashMap<File, DirectoryListing> linkDirListings
+            = new ConcurrentHashMap<File, DirectoryListing>();
 
     public FmppTemplateLoader(Engine engine)
             throws IOException {
@@ -47,12 +77,32 @@ class FmppTemplateLoader implements TemplateLoader {
                     + name);
         }
         
+        Lookup lookup = lookups.get(name);
+        if (lookup == null || !lookup.isValid()) {
+            lookup = lookUp(name);
+            if (lookup.isCacheable()) {
+                lookups.put(name, lookup);
+            } else {
+                lookups.remove(name);
+            }
+        }
+        
+        File source = lookup.source;
+        if (source != null) {
+            engine.templateSourceFound(name, source);
+        }
+        return source;
+    }
+    
+    private Lookup lookUp(String name) {
+        Lookup lookup = new Lookup();
+        
         String nativeName
                 = SEP_IS_SLASH ? name : name.replace('/', File.separatorChar);
         
         File source = new File(engine.getSourceRoot(), nativeName);
-        if (source.isFile()) {
-            return source; 
+        if (lookup.probe(source, false)) {
+            return lookup;
         }
         
         if (name.startsWith("@")) {
@@ -67,6 +117,7 @@ class FmppTemplateLoader implements TemplateLoader {
             }
             List links = engine.getFreemarkerLink(linkName);
             if (links != null) {
+                boolean indexed = engine.getIndexFreemarkerLinks();
                 int ln = links.size();
                 for (i = 0; i < ln; i++) {
                     if (nativeName != null) {
@@ -74,14 +125,65 @@ class FmppTemplateLoader implements TemplateLoader {
                     } else {
                         source = (File) links.get(i);
                     }
-                    if (source.isFile()) {
-                        return source;  //!!
+                    if (lookup.probe(source, indexed)) {
+                        return lookup;  //!!
                     }
                 }
             }
         }
         
-        return null;
+        return lookup;
+    }
+    
+    /**
+     * Discards the cached lookup results. Called at the beginning of each
+     * processing session, as the loader may be reused across sessions.
+     */
+    void clearLookupCache() {
+        lookups.clear();
+        linkDirListings.clear();
+        dirLastModifieds.clear();
+    }
+    
+    /**
+     * Makes the loader query the modification times of the directories again
+     * when it validates the cached lookup results. Called at the beginning of
+     * each processing turn, so the files created by the earlier turns are
+     * found.
+     */
+    void forgetDirectoryStatuses() {
+        dirLastModifieds.clear();
+    }
+    
+    private long getDirLastModified(File dir) {
+        Long lastModified = dirLastModifieds.get(dir);
+        if (lastModified == null) {
+            lastModified = Long.valueOf(dir.lastModified());
+            dirLastModifieds.put(dir, lastModified);
+        }
+        return lastModified.longValue();
+    }
+    
+    /**
+     * Returns the names of the files in the directory, using the directory
+     * listing index of the FreeMarker link directories.
+     */
+    private Set<String> getFileNames(File dir, long dirLastModified, long now) {
+        DirectoryListing listing = linkDirListings.get(dir);
+        if (listing == null || listing.lastModified != dirLastModified) {
+            String[] names = dir.list();
+            listing = new DirectoryListing(
+                    dirLastModified,
+                    names != null
+                            ? new HashSet<String>(Arrays.asList(names))
+                            : Collections.<String>emptySet());
+            if (now - dirLastModified >= LAST_MODIFIED_PRECISION) {
+                linkDirListings.put(dir, listing);
+            } else {
+                linkDirListings.remove(dir);
+            }
+        }
+        return listing.names;
     }
 
     public long getLastModified(Object templateSource) {
@@ -100,4 +202,73 @@ class FmppTemplateLoader implements TemplateLoader {
     public void closeTemplateSource(Object templateSource) {
         // Do nothing.
     }
+    
+    /**
+     * The result of a lookup, with the last modification times of the
+     * directories where the file was looked for.
+     */
+    private class Lookup {
+        private final long time = System.currentTimeMillis();
+        private final List<File> dirs = new ArrayList<File>(2);
+        private final List<Long> dirLastModifieds = new ArrayList<Long>(2);
+        private boolean cacheable = true;
+        private File source;
+        
+        /**
+         * Checks if the file exists, and if it does, stores it as the found
+         * source.
+         * 
+         * @param indexed Tells if the directory listing index should be used
+         *     instead of checking the file directly.
+         */
+        boolean probe(File f, boolean indexed) {
+            File dir = f.getAbsoluteFile().getParentFile();
+            if (dir == null) {
+                cacheable = false;
+                return setSource(f.isFile() ? f : null);
+            }
+            long dirLastModified = getDirLastModified(dir);
+            if (time - dirLastModified < LAST_MODIFIED_PRECISION) {
+                cacheable = false;
+            }
+            dirs.add(dir);
+            dirLastModifieds.add(Long.valueOf(dirLastModified));
+            if (indexed
+                    && !getFileNames(dir, dirLastModified, time)
+                            .contains(f.getName())) {
+                return false;
+            }
+            return setSource(f.isFile() ? f : null);
+        }
+        
+        private boolean setSource(File source) {
+            this.source = source;
+            return source != null;
+        }
+        
+        boolean isCacheable() {
+            return cacheable;
+        }
+        
+        boolean isValid() {
+            int ln = dirs.size();
+            for (int i = 0; i < ln; i++) {
+                if (getDirLastModified(dirs.get(i))
+                        != dirLastModifieds.get(i).longValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    private static class DirectoryListing {
+        private final long lastModified;
+        private final Set<String> names;
+        
+        DirectoryListing(long lastModified, Set<String> names) {
+            this.lastModified = lastModified;
+            this.names = names;
+        }
+    }
 }
\ No newline at end of file
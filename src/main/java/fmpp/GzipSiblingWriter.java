@@ -0,0 +1,214 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import fmpp.util.BugException;
+import fmpp.util.FileUtil;
+
+/**
+ * Writes the gzip compressed siblings ({@code .gz} files) of the output
+ * files, as used by web servers that serve precompressed files (like nginx
+ * with {@code gzip_static}). The output files are collected during the
+ * processing session, and then compressed in a separate stage at the end of
+ * the session, as an output file can be appended to, renamed or deleted
+ * until then. Used when {@link Engine#addGzipOutputPattern(String)} was
+ * called.
+ */
+class GzipSiblingWriter {
+
+    static final String EXTENSION = ".gz";
+
+    private final Engine engine;
+    private final long minSize;
+    /**
+     * The output files whose sibling has to be updated; the value tells if the
+     * output file was written in this session (otherwise it was skipped as
+     * unchanged, so its sibling is only written if it's missing or outdated).
+     */
+    private final Map<File, Boolean> outputFiles = new LinkedHashMap<File, Boolean>();
+
+    /**
+     * @param engine The engine whose output synchronization policy is applied.
+     * @param minSize The minimum size of output files that get a sibling.
+     */
+    GzipSiblingWriter(Engine engine, long minSize) {
+        this.engine = engine;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Registers an output file that is (or was) written in this session.
+     */
+    synchronized void outputFileWritten(File outputFile) {
+        outputFiles.put(outputFile, Boolean.TRUE);
+    }
+
+    /**
+     * Registers an output file that wasn't written in this session, because
+     * it was up to date.
+     */
+    synchronized void outputFileSkipped(File outputFile) {
+        if (!outputFiles.containsKey(outputFile)) {
+            outputFiles.put(outputFile, Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Updates the siblings of the registered output files.
+     *
+     * @param executor Used to compress the files in parallel; if
+     *     {@code null}, the files are compressed in the calling thread.
+     */
+    void writeSiblings(ExecutorService executor) throws IOException {
+        Map<File, Boolean> outputFiles = takeOutputFiles();
+        if (executor == null || outputFiles.size() < 2) {
+            for (Map.Entry<File, Boolean> ent : outputFiles.entrySet()) {
+                writeSibling(ent.getKey(), ent.getValue().booleanValue());
+            }
+            return;
+        }
+
+        List<Future<Object>> tasks = new ArrayList<Future<Object>>(outputFiles.size());
+        for (Map.Entry<File, Boolean> ent : outputFiles.entrySet()) {
+            final File outputFile = ent.getKey();
+            final boolean written = ent.getValue().booleanValue();
+            tasks.add(executor.submit(new Callable<Object>() {
+                public Object call() throws IOException {
+                    writeSibling(outputFile, written);
+                    return null;
+                }
+            }));
+        }
+        IOException firstExc = null;
+        for (Future<Object> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (firstExc == null) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        firstExc = (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new BugException("Unexpected exception", cause);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing the output files.");
+            }
+        }
+        if (firstExc != null) {
+            throw firstExc;
+        }
+    }
+
+    /**
+     * Deletes the siblings of the output files that were written in this
+     * session, as they might be outdated. Used when the session is aborted.
+     */
+    void deleteWrittenSiblings() {
+        for (Map.Entry<File, Boolean> ent : takeOutputFiles().entrySet()) {
+            if (ent.getValue().booleanValue()) {
+                getSibling(ent.getKey()).delete();
+            }
+        }
+    }
+
+    private synchronized Map<File, Boolean> takeOutputFiles() {
+        Map<File, Boolean> taken = new LinkedHashMap<File, Boolean>(outputFiles);
+        outputFiles.clear();
+        return taken;
+    }
+
+    private void writeSibling(File outputFile, boolean written) throws IOException {
+        File sibling = getSibling(outputFile);
+        if (!outputFile.isFile() || outputFile.length() < minSize) {
+            // The output file was dropped or renamed, or it's too small; an earlier sibling would be outdated.
+            if (sibling.exists()) {
+                sibling.delete();
+            }
+            return;
+        }
+        long lastModified = outputFile.lastModified();
+        if (!written && sibling.lastModified() == lastModified) {
+            return;
+        }
+
+        File tmpFile = File.createTempFile(
+                "." + sibling.getName() + ".", ".tmp", sibling.getAbsoluteFile().getParentFile());
+        boolean done = false;
+        try {
+            InputStream in = new FileInputStream(outputFile);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(tmpFile), 1024 * 64) {
+                    {
+                        def.setLevel(Deflater.BEST_COMPRESSION);
+                    }
+                };
+                try {
+                    byte[] buf = new byte[1024 * 64];
+                    int ln;
+                    while ((ln = in.read(buf)) != -1) {
+                        out.write(buf, 0, ln);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (engine.getOutputSync() == Engine.OUTPUT_SYNC_PER_FILE) {
+                FileUtil.syncFile(tmpFile);
+            }
+            // The same modification time marks that the sibling is up to date.
+            tmpFile.setLastModified(lastModified);
+            FileUtil.replaceFile(tmpFile, sibling);
+            done = true;
+        } finally {
+            if (!done) {
+                tmpFile.delete();
+            }
+        }
+        engine.outputFileCommitted(sibling);
+    }
+
+    static File getSibling(File outputFile) {
+        return new File(outputFile.getPath() + EXTENSION);
+    }
+
+}
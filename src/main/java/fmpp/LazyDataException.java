@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import fmpp.util.RuntimeExceptionCC;
+
+/**
+ * Thrown when the value of a variable that was added with
+ * {@link Engine#addLazyData(String, java.util.concurrent.Callable)} couldn't
+ * be calculated. As the value is only calculated when the variable is first
+ * accessed (like from a template), this is an unchecked exception. Usually
+ * you meet this exception as the cause of a {@link ProcessingException}.
+ *
+ * @since 0.9.17
+ */
+public class LazyDataException extends RuntimeExceptionCC {
+
+    public LazyDataException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link OutputSink} that keeps the output files in memory, so an application
+ * that embeds the {@link Engine} can get the output without writing it to
+ * the disk and then reading it back. For example:
+ *
+ * <pre>
+ * MemoryOutputSink sink = new MemoryOutputSink();
+ * engine.setOutputSink(sink);
+ * engine.process(...);
+ * byte[] index = sink.getOutput("index.html");</pre>
+ *
+ * <p>The output files written in a processing session are added to the
+ * output files collected earlier, replacing those with the same path, just
+ * like when writing into an output directory. Use {@link #clear()} or a new
+ * sink to start from scratch.
+ *
+ * <p>To stream the output files to other destinations instead of collecting
+ * them, extend {@link OutputSink} directly, and return the destination stream
+ * from {@link OutputSink#openOutputFile(String, boolean)}.
+ *
+ * @since 0.9.17
+ */
+public class MemoryOutputSink extends OutputSink {
+
+    private final Map<String, byte[]> outputs = new TreeMap<String, byte[]>();
+
+    public OutputStream openOutputFile(final String path, final boolean append) {
+        return new ByteArrayOutputStream() {
+            private boolean closed;
+
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                putOutput(path, toByteArray(), append);
+            }
+        };
+    }
+
+    private synchronized void putOutput(String path, byte[] content, boolean append) {
+        if (append) {
+            byte[] prevContent = outputs.get(path);
+            if (prevContent != null) {
+                byte[] joined = new byte[prevContent.length + content.length];
+                System.arraycopy(prevContent, 0, joined, 0, prevContent.length);
+                System.arraycopy(content, 0, joined, prevContent.length, content.length);
+                content = joined;
+            }
+        }
+        outputs.put(path, content);
+    }
+
+    /**
+     * Returns the content of the output file, or {@code null} if there's no
+     * output file with the given path.
+     *
+     * @param path The path of the output file relative to the output root,
+     *     in UN*X format (like {@code "sub/index.html"}).
+     */
+    public synchronized byte[] getOutput(String path) {
+        return outputs.get(path);
+    }
+
+    /**
+     * Returns the output files collected so far, as a map from the output
+     * root relative UN*X paths to the file contents, ordered by path. The
+     * returned map is a snapshot, so it's not affected by the output files
+     * written later.
+     */
+    public synchronized Map<String, byte[]> getOutputs() {
+        return new TreeMap<String, byte[]>(outputs);
+    }
+
+    /**
+     * Forgets all output files collected so far.
+     */
+    public synchronized void clear() {
+        outputs.clear();
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Transforms the text output of templates while it's being written, like a
+ * minifier does. Output filters are attached to output files by path pattern
+ * with {@link Engine#addOutputFilter(String, OutputFilter)}, which is used to
+ * implement the "outputFilters" setting.
+ *
+ * <p>The filter gets the text before it's encoded and written to the output
+ * file, so the filtering needn't read the output file again. For this to
+ * work with very large output files too, the filter writers should only
+ * buffer a limited amount of text.
+ *
+ * <p><b>Life-cycle:</b> These are long-lived objects, plugged into the
+ * {@link Engine}, and they may be in use during several processing sessions.
+ * When the engine processes files in parallel, {@link #filter} is called
+ * from multiple threads concurrently, so implementations must be
+ * thread-safe (the returned writers needn't be).
+ *
+ * @see fmpp.outputfilters
+ *
+ * @since 0.9.17
+ */
+public interface OutputFilter {
+
+    /**
+     * Returns the writer into which the template output will be written, and
+     * which writes the filtered text into {@code out}. This is called for
+     * each output file separately (including the ones started with
+     * {@code pp.changeOutputFile} and {@code pp.nestOutputFile}).
+     *
+     * @param out The writer that writes the output file (or into the next
+     *     output filter). Closing the returned writer must close this too,
+     *     after writing the remaining filtered text into it. Flushing the
+     *     returned writer should flush this, but it needn't write text into it
+     *     that the filtering can't decide about yet.
+     * @param outputFile The output file, inside the output root directory.
+     */
+    Writer filter(Writer out, File outputFile, Engine engine) throws IOException;
+
+}
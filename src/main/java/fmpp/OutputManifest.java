@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The persistent list of the output files generated by the earlier
+ * processing sessions, used by the {@code outputManifest} and
+ * {@code pruneStaleOutputs} engine parameters. It maps the output root
+ * relative path of each output file (including the ones created with
+ * {@code pp.changeOutputFile} and such, and the gzip siblings) to the source
+ * root relative path of the source file it was generated from.
+ *
+ * <p>An output file of the earlier sessions is stale if its source file was
+ * processed successfully in the current session, but it wasn't produced
+ * again, or if its source file doesn't exist anymore. The outputs of source
+ * files that weren't processed in the current session (because they were
+ * skipped as unchanged, their processing has failed, or they were outside
+ * the processed files) are kept.
+ *
+ * <p>The manifest is stored in the output root directory, in the
+ * {@value #FILE_NAME} file. A missing or unreadable manifest is treated as
+ * empty, which only means that no output file will be pruned.
+ *
+ * <p>The methods that record the outputs and the sources can be called from
+ * multiple threads concurrently.
+ */
+final class OutputManifest {
+
+    /** The name of the manifest file in the output root directory. */
+    static final String FILE_NAME = ".fmpp-outputs";
+
+    private static final String HEADER = "# FMPP outputs 1";
+    private static final String ENCODING = "UTF-8";
+
+    /** Files in the output root directory that are never recorded or pruned. */
+    private static final String[] RESERVED_FILE_NAMES = new String[] {
+            FILE_NAME, SourceDigestManifest.FILE_NAME, DependencyGraph.FILE_NAME };
+
+    private final File outRoot;
+    private final File file;
+    private final Map<String, String> previousOutputs = new TreeMap<String, String>();
+    private final Map<String, String> currentOutputs = new TreeMap<String, String>();
+    private final Set<String> processedSources = new HashSet<String>();
+
+    private OutputManifest(File outRoot) {
+        this.outRoot = outRoot;
+        this.file = new File(outRoot, FILE_NAME);
+    }
+
+    /**
+     * Loads the manifest of the output root directory; if there's no usable
+     * manifest there, returns an empty one.
+     */
+    static OutputManifest load(File outRoot) {
+        OutputManifest manifest = new OutputManifest(outRoot);
+        if (manifest.file.isFile()) {
+            try {
+                manifest.read();
+            } catch (IOException e) {
+                // Starting from scratch only means that the earlier outputs will not be pruned.
+                manifest.previousOutputs.clear();
+            }
+        }
+        return manifest;
+    }
+
+    private void read() throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line = r.readLine();
+            if (line == null || !line.equals(HEADER)) {
+                return;
+            }
+            while ((line = r.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 2 || !isStorable(fields[0])) {
+                    throw new IOException("Malformed line in " + file + ": " + line);
+                }
+                previousOutputs.put(fields[0], fields[1]);
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Records that the output file was written (or was found to be up to
+     * date) in this session. Output files that don't exist at the end of the
+     * session (like because they were dropped or renamed) are ignored.
+     *
+     * @param srcPath The source root relative path of the source file.
+     * @param outPath The output root relative path of the output file.
+     */
+    synchronized void outputProduced(String srcPath, String outPath) {
+        if (isStorable(srcPath) && isStorable(outPath)) {
+            currentOutputs.put(outPath, srcPath);
+        }
+    }
+
+    /**
+     * Records that the source file was successfully processed in this
+     * session, so its earlier outputs that weren't produced again are stale.
+     */
+    synchronized void sourceProcessed(String srcPath) {
+        processedSources.add(srcPath);
+    }
+
+    /**
+     * Finds the stale output files, deletes them if {@code prune} is
+     * {@code true}, and then writes the manifest into the output root
+     * directory (if it has changed). Stale output files that weren't deleted
+     * remain in the manifest, so they can be pruned later.
+     *
+     * @param srcRoot The source root directory, used to check if the source
+     *     files still exist.
+     */
+    synchronized void save(File srcRoot, boolean prune) throws IOException {
+        Map<String, String> outputs = new TreeMap<String, String>();
+        for (Map.Entry<String, String> ent : currentOutputs.entrySet()) {
+            if (new File(outRoot, ent.getKey()).isFile()) {
+                outputs.put(ent.getKey(), ent.getValue());
+            }
+        }
+
+        for (Map.Entry<String, String> ent : previousOutputs.entrySet()) {
+            String outPath = ent.getKey();
+            String srcPath = ent.getValue();
+            File outFile = new File(outRoot, outPath);
+            if (outputs.containsKey(outPath) || !outFile.isFile()) {
+                continue;
+            }
+            boolean stale = processedSources.contains(srcPath) || !new File(srcRoot, srcPath).exists();
+            if (stale && prune) {
+                if (!outFile.delete()) {
+                    throw new IOException("Failed to delete stale output file: " + outFile.getPath());
+                }
+                deleteEmptyParentDirectories(outFile);
+            } else {
+                outputs.put(outPath, srcPath);
+            }
+        }
+
+        if (!outputs.equals(previousOutputs) || !file.isFile()) {
+            write(outputs);
+            previousOutputs.clear();
+            previousOutputs.putAll(outputs);
+        }
+        currentOutputs.clear();
+        processedSources.clear();
+    }
+
+    private void write(Map<String, String> outputs) throws IOException {
+        AtomicTextFileWriter w = new AtomicTextFileWriter(file, ENCODING);
+        try {
+            w.write(HEADER);
+            w.write('\n');
+            for (Map.Entry<String, String> ent : outputs.entrySet()) {
+                w.write(ent.getKey());
+                w.write('\t');
+                w.write(ent.getValue());
+                w.write('\n');
+            }
+            w.commit();
+        } finally {
+            w.close();
+        }
+    }
+
+    private void deleteEmptyParentDirectories(File f) {
+        File dir = f.getParentFile();
+        while (dir != null && !dir.equals(outRoot)) {
+            String[] content = dir.list();
+            if (content == null || content.length != 0 || !dir.delete()) {
+                return;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+
+    /**
+     * Tells if the path can be stored, and is safe to be deleted later; the
+     * paths outside the output root, and the files FMPP stores its own data
+     * in, are rejected.
+     */
+    private static boolean isStorable(String path) {
+        if (path.length() == 0 || path.indexOf('\t') != -1 || path.indexOf('\n') != -1
+                || path.indexOf('\r') != -1) {
+            return false;
+        }
+        if (path.startsWith("/") || path.indexOf(':') != -1) {
+            return false;
+        }
+        String[] steps = path.split("/");
+        for (int i = 0; i < steps.length; i++) {
+            if (steps[i].equals("..") || steps[i].equals(".")) {
+                return false;
+            }
+        }
+        for (int i = 0; i < RESERVED_FILE_NAMES.length; i++) {
+            String reserved = RESERVED_FILE_NAMES[i];
+            if (path.equals(reserved) || path.startsWith(reserved + ".")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
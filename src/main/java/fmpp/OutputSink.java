@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Receives the output files instead of the file system, if it was set with
+ * {@link Engine#setOutputSink(OutputSink)}. The output files are identified
+ * with their path relative to the output root directory, in UN*X format
+ * (like {@code "sub/index.html"}).
+ *
+ * <p>The engine passes each output file to the sink only when it's complete,
+ * so, for example, if the processing of a template fails, or the template
+ * drops its output file, the sink will not see that output file at all.
+ *
+ * <p>When the engine processes files in parallel (see
+ * {@link Engine#setParallelism(int)} and {@link Engine#setCopyThreads(int)}),
+ * the methods of the sink are called from multiple threads concurrently, so
+ * implementations must be thread-safe.
+ *
+ * @since 0.9.17
+ */
+public abstract class OutputSink {
+
+    /**
+     * Called at the beginning of each processing session, before any output
+     * file is passed to the sink. Does nothing by default.
+     *
+     * @param engine The engine that runs the processing session.
+     */
+    public void beginSession(Engine engine) throws IOException {
+        // Do nothing
+    }
+
+    /**
+     * Called at the end of each processing session, after all output files
+     * were passed to the sink. Does nothing by default.
+     *
+     * @param successful {@code false} if the processing session was aborted
+     *     because of an error. (Note that if the {@code stopOnError} engine
+     *     parameter is {@code false}, the session can be successful even if
+     *     some source files have failed.)
+     */
+    public void endSession(boolean successful) throws IOException {
+        // Do nothing
+    }
+
+    /**
+     * Returns the stream to which the whole content of an output file will be
+     * written. The content is written right after this call, and then the
+     * stream is closed.
+     *
+     * @param path The path of the output file relative to the output root,
+     *     in UN*X format.
+     * @param append If {@code true}, the content has to be appended to the
+     *     output file with the same path written earlier, if there's any.
+     *     Implementations that can't do that should throw an
+     *     {@link IOException}.
+     */
+    public abstract OutputStream openOutputFile(String path, boolean append) throws IOException;
+
+    /**
+     * Puts an output file whose whole content is already in the memory into
+     * the sink; this is how the engine passes the output files written by
+     * templates. By default this writes the content with
+     * {@link #openOutputFile(String, boolean)}. Sinks that would collect the
+     * content in the memory anyway should override this, so that the
+     * content isn't copied again.
+     *
+     * @param path See {@link #openOutputFile(String, boolean)}.
+     * @param append See {@link #openOutputFile(String, boolean)}.
+     * @param content The array that stores the content. The sink must not
+     *     keep a reference to the array after this method has returned.
+     * @param length The length of the content, which starts at index 0.
+     */
+    public void writeOutputFile(String path, boolean append, byte[] content, int length) throws IOException {
+        OutputStream out = openOutputFile(path, append);
+        try {
+            out.write(content, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Puts a static file (a file processed in {@link Engine#PMODE_COPY} mode)
+     * into the sink. By default this copies the content of the file with
+     * {@link #openOutputFile(String, boolean)}.
+     *
+     * @param srcFile The source file, which is to be copied as-is.
+     * @param path The path of the output file relative to the output root,
+     *     in UN*X format.
+     */
+    public void copyFile(File srcFile, String path) throws IOException {
+        InputStream in = new FileInputStream(srcFile);
+        try {
+            OutputStream out = openOutputFile(path, false);
+            try {
+                byte[] buf = new byte[1024 * 64];
+                int ln;
+                while ((ln = in.read(buf)) != -1) {
+                    out.write(buf, 0, ln);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Creates an empty directory (as requested by a {@code createdir.fmpp}
+     * file, or by the {@code alwaysCreateDirs} engine parameter). Does nothing
+     * by default.
+     *
+     * @param path The path of the directory relative to the output root, in
+     *     UN*X format. The empty string stands for the output root itself.
+     */
+    public void createDirectory(String path) throws IOException {
+        // Do nothing
+    }
+
+}
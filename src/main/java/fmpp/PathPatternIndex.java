@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import fmpp.util.FileUtil;
+
+/**
+ * Matches a path with many path patterns at once. The patterns are stored in a
+ * tree of path segments, where literal segments are looked up with a hash
+ * lookup, and segments with {@code *} or {@code ?} are matched one by one with
+ * a small regular expression that only has to match a single segment. Thus,
+ * the cost of matching depends on the depth of the path and on the number of
+ * wildcard patterns that are possible at the same position, but not on the
+ * total number of patterns. Patterns that can't be represented as segments
+ * (like {@code foo**bar}) fall back to regular expression matching of the
+ * whole path.
+ *
+ * <p>The semantic is the same as of
+ * {@link FileUtil#pathPatternToPerl5Regex(String)}. Both the patterns and the
+ * matched paths must be in UN*X format, and already lower-cased if the
+ * matching is case insensitive. The matched paths must start with slash and
+ * must not end with slash.
+ *
+ * <p>The index can't be modified after it was started to be used for
+ * matching; after that it can be used by multiple threads concurrently.
+ */
+final class PathPatternIndex {
+
+    private final Node root = new Node();
+    private final List<FallbackRule> fallbackRules = new ArrayList<FallbackRule>();
+    private int ruleCount;
+
+    /**
+     * Adds a pattern to the index.
+     *
+     * @return the id of the rule, which is the number of rules added earlier.
+     *     Thus, the order of the ids is the same as the order in which the
+     *     patterns were added.
+     */
+    int add(String pathPattern) {
+        int id = ruleCount++;
+
+        String normalized = pathPattern;
+        if (!normalized.startsWith("/")) {
+            normalized = "/" + normalized;
+        }
+        if (normalized.endsWith("/")) {
+            normalized += "**";
+        }
+        String[] segments = split(normalized);
+
+        boolean representable = true;
+        for (int i = 0; i < segments.length; i++) {
+            String seg = segments[i];
+            if (seg.length() == 0 || (!seg.equals("**") && seg.indexOf("**") != -1)) {
+                representable = false;
+                break;
+            }
+        }
+        if (!representable) {
+            fallbackRules.add(new FallbackRule(
+                    id, Pattern.compile(FileUtil.pathPatternToPerl5Regex(pathPattern))));
+            return id;
+        }
+
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String seg = segments[i];
+            if (seg.equals("**")) {
+                if (i == segments.length - 1) {
+                    node.trailingAnySegmentsRules.add(new Integer(id));
+                    return id;
+                }
+                if (node.anySegmentsChild == null) {
+                    node.anySegmentsChild = new Node();
+                }
+                node = node.anySegmentsChild;
+            } else if (seg.indexOf('*') != -1 || seg.indexOf('?') != -1) {
+                WildcardEdge edge = null;
+                for (WildcardEdge e : node.wildcardEdges) {
+                    if (e.segmentPattern.equals(seg)) {
+                        edge = e;
+                        break;
+                    }
+                }
+                if (edge == null) {
+                    edge = new WildcardEdge(seg);
+                    node.wildcardEdges.add(edge);
+                }
+                node = edge.child;
+            } else {
+                Node child = node.literalChildren.get(seg);
+                if (child == null) {
+                    child = new Node();
+                    node.literalChildren.put(seg, child);
+                }
+                node = child;
+            }
+        }
+        node.terminalRules.add(new Integer(id));
+        return id;
+    }
+
+    /**
+     * Returns the number of rules added so far.
+     */
+    int size() {
+        return ruleCount;
+    }
+
+    /**
+     * Returns the ids of the matching rules.
+     *
+     * @param path Starts with slash, doesn't end with slash.
+     */
+    BitSet match(String path) {
+        BitSet result = new BitSet(ruleCount);
+        match(root, split(path), 0, result);
+        for (FallbackRule rule : fallbackRules) {
+            if (rule.pattern.matcher(path).matches()) {
+                result.set(rule.id);
+            }
+        }
+        return result;
+    }
+
+    private static void match(Node node, String[] segments, int segIdx, BitSet result) {
+        int segCnt = segments.length;
+        if (segIdx == segCnt) {
+            addAll(node.terminalRules, result);
+        } else {
+            // "/**" at the end of the pattern matches 1 or more segments
+            addAll(node.trailingAnySegmentsRules, result);
+
+            String seg = segments[segIdx];
+            Node child = node.literalChildren.get(seg);
+            if (child != null) {
+                match(child, segments, segIdx + 1, result);
+            }
+            for (WildcardEdge edge : node.wildcardEdges) {
+                if (edge.regexp.matcher(seg).matches()) {
+                    match(edge.child, segments, segIdx + 1, result);
+                }
+            }
+        }
+        // "/**/" in the middle of the pattern matches 0 or more segments
+        if (node.anySegmentsChild != null) {
+            for (int i = segIdx; i <= segCnt; i++) {
+                match(node.anySegmentsChild, segments, i, result);
+            }
+        }
+    }
+
+    private static void addAll(List<Integer> ids, BitSet result) {
+        for (int i = 0; i < ids.size(); i++) {
+            result.set(ids.get(i).intValue());
+        }
+    }
+
+    /**
+     * Splits a path that starts with slash into segments.
+     */
+    private static String[] split(String path) {
+        List<String> segments = new ArrayList<String>();
+        int start = 1;
+        int ln = path.length();
+        for (int i = 1; i < ln; i++) {
+            if (path.charAt(i) == '/') {
+                segments.add(path.substring(start, i));
+                start = i + 1;
+            }
+        }
+        segments.add(path.substring(start));
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private static class Node {
+        private final Map<String, Node> literalChildren = new HashMap<String, Node>();
+        private final List<WildcardEdge> wildcardEdges = new ArrayList<WildcardEdge>();
+        private Node anySegmentsChild;
+        private final List<Integer> terminalRules = new ArrayList<Integer>();
+        private final List<Integer> trailingAnySegmentsRules = new ArrayList<Integer>();
+    }
+
+    private static class WildcardEdge {
+        private final String segmentPattern;
+        private final Pattern regexp;
+        private final Node child = new Node();
+
+        WildcardEdge(String segmentPattern) {
+            this.segmentPattern = segmentPattern;
+
+            StringBuffer sb = new StringBuffer();
+            StringBuffer literal = new StringBuffer();
+            int ln = segmentPattern.length();
+            for (int i = 0; i < ln; i++) {
+                char c = segmentPattern.charAt(i);
+                if (c == '*' || c == '?') {
+                    if (literal.length() != 0) {
+                        sb.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    sb.append(c == '*' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() != 0) {
+                sb.append(Pattern.quote(literal.toString()));
+            }
+            this.regexp = Pattern.compile(sb.toString(), Pattern.DOTALL);
+        }
+    }
+
+    private static class FallbackRule {
+        private final int id;
+        private final Pattern pattern;
+
+        FallbackRule(int id, Pattern pattern) {
+            this.id = id;
+            this.pattern = pattern;
+        }
+    }
+
+}
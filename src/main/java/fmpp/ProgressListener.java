@@ -70,6 +70,18 @@ public interface ProgressListener {
      */
     int EVENT_SOURCE_NOT_MODIFIED = 7;
     
+    /**
+     * An output file was not overwritten, because its content would be the
+     * same as before. This is only sent if the {@code writeOnlyIfChanged}
+     * engine parameter is {@code true}. It's sent during the processing of
+     * the source file, that is, between the
+     * {@link #EVENT_BEGIN_FILE_PROCESSING} and
+     * {@link #EVENT_END_FILE_PROCESSING} events of the source file.
+     * 
+     * @since 0.9.17
+     */
+    int EVENT_OUTPUT_UNCHANGED = 9;
+    
     /**
      * Method called be the engine to notify events.
      *
@@ -95,6 +107,8 @@ public interface ProgressListener {
      *     <ul>
      *       <li>For <code>EVENT_WARNING</code> it is a <code>String</code> that
      *           describles the reason of warning.
+     *       <li>For <code>EVENT_OUTPUT_UNCHANGED</code> it is the
+     *           <code>File</code> of the output file.
      *     </ul>
      */
     void notifyProgressEvent(
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Collects the content of an output file in memory, and passes it to the
+ * {@link OutputSink} of the engine when the stream is closed. Until then,
+ * the destination can be changed (as with {@code pp.renameOutputFile}), or the
+ * content can be discarded.
+ */
+class SinkOutputStream extends CommitOnCloseOutputStream {
+
+    private final boolean append;
+    private Buffer buf = new Buffer();
+    private boolean closed;
+
+    /**
+     * @param engine The engine whose output sink receives the content.
+     * @param dst The output file, inside the output root.
+     * @param append Whether to append to the output file written earlier.
+     */
+    SinkOutputStream(Engine engine, File dst, boolean append) {
+        super(engine, dst);
+        this.append = append;
+    }
+
+    /**
+     * Changes the output file that will receive the content.
+     */
+    void setDestination(File dst) {
+        this.dst = dst;
+    }
+
+    public void write(int b) throws IOException {
+        if (buf != null) {
+            buf.write(b);
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (buf != null) {
+            buf.write(b, off, len);
+        }
+    }
+
+    public void flush() throws IOException {
+        // Nothing is passed to the sink before close()
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            engine.getOutputSink().writeOutputFile(
+                    engine.getOutputRootRelativePath(dst), append, buf.getArray(), buf.size());
+        } finally {
+            buf = null;
+        }
+    }
+
+    void discard() throws IOException {
+        closed = true;
+        buf = null;
+    }
+
+    /**
+     * Gives access to the internal array, so the content needn't be copied.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(1024 * 8);
+        }
+
+        byte[] getArray() {
+            return buf;
+        }
+
+    }
+
+}
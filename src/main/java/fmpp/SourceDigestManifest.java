@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fmpp.util.BugException;
+
+/**
+ * The persistent manifest used by the {@link Engine#SKIP_HASH} mode of the
+ * {@code skipUnchanged} engine parameter. It stores the size, the last
+ * modification time and the content digest of each source file that was
+ * successfully copied into the output, so unchanged files can be recognized
+ * even if their last modification time was changed (like by a version
+ * control checkout). The digest is only calculated if the size and the last
+ * modification time don't settle the question.
+ *
+ * <p>The manifest is stored in the output root directory, in the
+ * {@value #FILE_NAME} file. A missing or unreadable manifest is treated as
+ * empty, which only means that the files will be processed again.
+ *
+ * <p>The methods that query or modify the entries can be called from
+ * multiple threads concurrently.
+ */
+final class SourceDigestManifest {
+
+    /** The name of the manifest file in the output root directory. */
+    static final String FILE_NAME = ".fmpp-digests";
+
+    private static final String HEADER = "# FMPP source digests 1";
+    private static final String ENCODING = "UTF-8";
+    private static final String DIGEST_ALGORITHM = "MD5";
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private volatile boolean modified;
+
+    private SourceDigestManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the manifest of the output root directory; if there's no usable
+     * manifest there, returns an empty one.
+     */
+    static SourceDigestManifest load(File outRoot) {
+        SourceDigestManifest manifest = new SourceDigestManifest(new File(outRoot, FILE_NAME));
+        if (manifest.file.isFile()) {
+            try {
+                manifest.read();
+            } catch (IOException e) {
+                // Starting from scratch only means that files will be copied again.
+                manifest.entries.clear();
+            }
+        }
+        return manifest;
+    }
+
+    private void read() throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line = r.readLine();
+            if (line == null || !line.equals(HEADER)) {
+                return;
+            }
+            while ((line = r.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 5) {
+                    throw new IOException("Malformed line in " + file + ": " + line);
+                }
+                try {
+                    entries.put(fields[3], new Entry(
+                            Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[4]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed line in " + file + ": " + line);
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Writes the manifest back into the output root directory, if it was
+     * modified since it was loaded.
+     */
+    void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        AtomicTextFileWriter w = new AtomicTextFileWriter(file, ENCODING);
+        try {
+            w.write(HEADER);
+            w.write('\n');
+            for (Map.Entry<String, Entry> mapEnt : entries.entrySet()) {
+                Entry ent = mapEnt.getValue();
+                w.write(String.valueOf(ent.size));
+                w.write('\t');
+                w.write(String.valueOf(ent.lastModified));
+                w.write('\t');
+                w.write(ent.digest);
+                w.write('\t');
+                w.write(mapEnt.getKey());
+                w.write('\t');
+                w.write(ent.outputPath);
+                w.write('\n');
+            }
+            w.commit();
+        } finally {
+            w.close();
+        }
+        modified = false;
+    }
+
+    /**
+     * Tells if the source file is known to have the same content as when it
+     * was last copied to the given output path.
+     *
+     * @param srcPath The source root relative path of the source file.
+     * @param outPath The output root relative path of the output file.
+     */
+    boolean isUnchanged(String srcPath, File sf, String outPath, File df) throws IOException {
+        Entry ent = entries.get(srcPath);
+        if (ent == null || !ent.outputPath.equals(outPath)) {
+            return false;
+        }
+        long size = sf.length();
+        if (size != ent.size || df.length() != size || (size == 0 && !df.isFile())) {
+            return false;
+        }
+        long lastModified = sf.lastModified();
+        if (lastModified == ent.lastModified) {
+            return true;
+        }
+        if (!digest(sf).equals(ent.digest)) {
+            return false;
+        }
+        // Spare the digest calculation next time:
+        entries.put(srcPath, new Entry(size, lastModified, ent.digest, outPath));
+        modified = true;
+        return true;
+    }
+
+    /**
+     * Records that the source file was successfully copied to the given
+     * output path.
+     */
+    void update(String srcPath, File sf, String outPath) throws IOException {
+        if (!isStorable(srcPath) || !isStorable(outPath)) {
+            return;
+        }
+        long size = sf.length();
+        long lastModified = sf.lastModified();
+        Entry ent = entries.get(srcPath);
+        String digest = ent != null && ent.size == size && ent.lastModified == lastModified
+                ? ent.digest : digest(sf);
+        entries.put(srcPath, new Entry(size, lastModified, digest, outPath));
+        modified = true;
+    }
+
+    /**
+     * Forgets the source file, like after its processing has failed.
+     */
+    void remove(String srcPath) {
+        if (entries.remove(srcPath) != null) {
+            modified = true;
+        }
+    }
+
+    private static boolean isStorable(String path) {
+        return path.indexOf('\t') == -1 && path.indexOf('\n') == -1 && path.indexOf('\r') == -1;
+    }
+
+    /**
+     * Calculates the digest of the file content, as hexadecimal string.
+     */
+    static String digest(File f) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new BugException(DIGEST_ALGORITHM + " is always supported by Java");
+        }
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel ch = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 64);
+            while (ch.read(buffer) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        byte[] d = md.digest();
+        StringBuffer sb = new StringBuffer(d.length * 2);
+        for (int i = 0; i < d.length; i++) {
+            int b = d[i] & 0xFF;
+            sb.append(Character.forDigit(b >> 4, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+        private final String outputPath;
+
+        Entry(long size, long lastModified, String digest, String outputPath) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.outputPath = outputPath;
+        }
+    }
+
+}
@@ -513,11 +513,23 @@ public class TemplateEnvironment {
     }
     
     void setupForSession() {
-        ppHash.put("s", new WritableHash());
+        ppHash.put("s", eng.getParallelism() > 1
+                ? new WritableHash(Collections.synchronizedMap(new HashMap()))
+                : new WritableHash());
         ppHash.put("sessionStart",
                 new SimpleDate(new Date(), TemplateDateModel.DATETIME));
     }
 
+    /**
+     * Used for the additional environments of parallel processing; the
+     * session-level variables are shared with the main environment.
+     */
+    void setupForSession(TemplateEnvironment mainEnv) {
+        ppHash.put("s", (TemplateModel) mainEnv.ppHash.map.get("s"));
+        ppHash.put("sessionStart",
+                (TemplateModel) mainEnv.ppHash.map.get("sessionStart"));
+    }
+
     void cleanAfterSession() {
         ppHash.remove("s");
     }
@@ -540,9 +552,7 @@ public class TemplateEnvironment {
             ppHash.put("sourceRoot", fixedDirPath(eng.getSourceRoot()));
             ppHash.put("outputRoot", fixedDirPath(eng.getOutputRoot()));
             ppHash.put("realSource", fixedFilePath(srcFile));
-            ppHash.put("sourceFile", FileUtil.pathToUnixStyle(
-                    FileUtil.getRelativePath(
-                            eng.getSourceRoot(), srcFile)));
+            ppHash.put("sourceFile", eng.getSourceRootRelativePath(srcFile));
             ppHash.put("sourceFileName", srcFile.getName());
             ppHash.put("realSourceDirectory",
                     fixedDirPath(srcFile.getParentFile()));
@@ -1461,7 +1471,7 @@ public class TemplateEnvironment {
                         "Failed to get data loader.", e);
             }
             try {
-                return eng.wrap(dl.load(eng, args2));
+                return eng.loadDataAsModel(dlName, dl, args2);
             } catch (Exception exc) {
                 throw new TemplateModelException(
                         "Error runing data loader " + StringUtil.jQuote(dlName)
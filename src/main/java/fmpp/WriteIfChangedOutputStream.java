@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Output stream that only overwrites the destination file if the new content
+ * differs from its current content. The written bytes are collected in memory,
+ * or when there are too many of them, in a temporary file next to the
+ * destination file. When the stream is closed, the new content is compared
+ * with the current content of the destination file (first the sizes, and then
+ * the content chunk by chunk, stopping at the first difference). If they
+ * differ, the temporary file is renamed to the destination file, so the
+ * destination file is replaced atomically (where the platform supports that).
+ */
+class WriteIfChangedOutputStream extends CommitOnCloseOutputStream {
+
+    private static final int MAX_MEMORY_BUFFER_SIZE = 1024 * 1024;
+    private static final int COMPARE_CHUNK_SIZE = 1024 * 64;
+
+    private final File src;
+
+    private byte[] memBuf = new byte[1024 * 8];
+    private int memBufLen;
+    private File tmpFile;
+    private FileOutputStream tmpOut;
+    private long size;
+    private boolean closed;
+    private boolean discarded;
+
+    /**
+     * @param engine The engine that will be notified about the output file
+     *     being unchanged, and whose output synchronization policy is applied.
+     * @param src The source file whose output is written.
+     * @param dst The output file.
+     */
+    WriteIfChangedOutputStream(Engine engine, File src, File dst) {
+        super(engine, dst);
+        this.src = src;
+    }
+
+    public void write(int b) throws IOException {
+        if (discarded) {
+            return;
+        }
+        if (tmpOut != null) {
+            tmpOut.write(b);
+        } else {
+            ensureMemBufCapacity(1);
+            if (tmpOut != null) {
+                tmpOut.write(b);
+            } else {
+                memBuf[memBufLen++] = (byte) b;
+            }
+        }
+        size++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (discarded) {
+            return;
+        }
+        if (tmpOut == null) {
+            ensureMemBufCapacity(len);
+        }
+        if (tmpOut != null) {
+            tmpOut.write(b, off, len);
+        } else {
+            System.arraycopy(b, off, memBuf, memBufLen, len);
+            memBufLen += len;
+        }
+        size += len;
+    }
+
+    public void flush() throws IOException {
+        // Nothing is written to the destination file before close()
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        boolean tmpFileUsed = false;
+        try {
+            // The temporary file is only closed on commit, as it may have to be synchronized before that.
+            if (isSameAsDestination()) {
+                memBuf = null;
+                engine.sendOutputUnchanged(src, dst);
+                return; //!
+            }
+
+            if (tmpOut == null) {
+                openTemporaryFile();
+                tmpOut.write(memBuf, 0, memBufLen);
+            }
+            memBuf = null;
+
+            tmpFileUsed = true;
+            commit(tmpFile, tmpOut);
+        } finally {
+            if (tmpFile != null && !tmpFileUsed) {
+                try {
+                    if (tmpOut != null) {
+                        tmpOut.close();
+                    }
+                } finally {
+                    tmpFile.delete();
+                }
+            }
+        }
+    }
+
+    void discard() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        discarded = true;
+        memBuf = null;
+        if (tmpFile != null) {
+            try {
+                if (tmpOut != null) {
+                    tmpOut.close();
+                }
+            } finally {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private void ensureMemBufCapacity(int extraLen) throws IOException {
+        int minCapacity = memBufLen + extraLen;
+        if (minCapacity <= memBuf.length) {
+            return;
+        }
+        if (minCapacity > MAX_MEMORY_BUFFER_SIZE) {
+            // Spill to disk
+            openTemporaryFile();
+            tmpOut.write(memBuf, 0, memBufLen);
+            memBuf = null;
+            memBufLen = 0;
+        } else {
+            byte[] newMemBuf = new byte[Math.min(
+                    Math.max(memBuf.length * 2, minCapacity), MAX_MEMORY_BUFFER_SIZE)];
+            System.arraycopy(memBuf, 0, newMemBuf, 0, memBufLen);
+            memBuf = newMemBuf;
+        }
+    }
+
+    private void openTemporaryFile() throws IOException {
+        tmpFile = createTemporaryFile();
+        tmpOut = new FileOutputStream(tmpFile);
+    }
+
+    private boolean isSameAsDestination() throws IOException {
+        // Note: length() returns 0 if the file doesn't exist
+        if (dst.length() != size || size == 0 && !dst.isFile()) {
+            return false;
+        }
+
+        InputStream dstIn = new FileInputStream(dst);
+        try {
+            byte[] dstChunk = new byte[COMPARE_CHUNK_SIZE];
+            if (tmpFile == null) {
+                int pos = 0;
+                int ln;
+                while ((ln = dstIn.read(dstChunk)) != -1) {
+                    if (pos + ln > memBufLen) {
+                        return false;
+                    }
+                    for (int i = 0; i < ln; i++) {
+                        if (dstChunk[i] != memBuf[pos + i]) {
+                            return false;
+                        }
+                    }
+                    pos += ln;
+                }
+                return pos == memBufLen;
+            } else {
+                InputStream tmpIn = new FileInputStream(tmpFile);
+                try {
+                    byte[] tmpChunk = new byte[COMPARE_CHUNK_SIZE];
+                    while (true) {
+                        int dstLn = readFully(dstIn, dstChunk);
+                        int tmpLn = readFully(tmpIn, tmpChunk);
+                        if (dstLn != tmpLn) {
+                            return false;
+                        }
+                        for (int i = 0; i < dstLn; i++) {
+                            if (dstChunk[i] != tmpChunk[i]) {
+                                return false;
+                            }
+                        }
+                        if (dstLn < COMPARE_CHUNK_SIZE) {
+                            return true;
+                        }
+                    }
+                } finally {
+                    tmpIn.close();
+                }
+            }
+        } finally {
+            dstIn.close();
+        }
+    }
+
+    /**
+     * Reads until the buffer is full or the end of the stream was reached.
+     */
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int pos = 0;
+        int ln;
+        while (pos < buf.length && (ln = in.read(buf, pos, buf.length - pos)) != -1) {
+            pos += ln;
+        }
+        return pos;
+    }
+
+}
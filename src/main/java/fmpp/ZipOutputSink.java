@@ -0,0 +1,340 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import fmpp.util.FileUtil;
+import fmpp.util.StringUtil;
+
+/**
+ * {@link OutputSink} that writes the output files into a ZIP (or JAR)
+ * archive, instead of into a directory. The archive is written into a
+ * temporary file during the processing session, which replaces the archive
+ * file at the end of the session, if the session was successful. The entries
+ * of the earlier archive file that weren't written in the session are kept
+ * (similarly as the files in an output directory that weren't overwritten
+ * are kept).
+ *
+ * <p>The files written by templates are compressed. Static files are
+ * compressed too, except if their file extension indicates an already
+ * compressed format (like {@code png} or {@code zip}); those are stored
+ * without compression, which is faster, and doesn't make the archive bigger.
+ *
+ * <p>Appending to an entry that was already written in the same session is
+ * not supported. Appending to an entry of the earlier archive file keeps its
+ * earlier content.
+ *
+ * @since 0.9.17
+ */
+public class ZipOutputSink extends OutputSink {
+
+    private static final Set<String> COMPRESSED_FILE_EXTS = new HashSet<String>();
+    static {
+        String[] exts = new String[] {
+                "png", "jpg", "jpeg", "gif", "webp", "avif",
+                "zip", "jar", "war", "ear", "gz", "tgz", "bz2", "xz", "7z", "rar",
+                "mp3", "ogg", "oga", "m4a", "aac", "flac",
+                "mp4", "m4v", "mov", "webm", "ogv", "avi", "mkv",
+                "woff", "woff2" };
+        for (int i = 0; i < exts.length; i++) {
+            COMPRESSED_FILE_EXTS.add(exts[i]);
+        }
+    }
+
+    private final File archiveFile;
+
+    // Session state
+    private File tmpFile;
+    private ZipOutputStream zipOut;
+    private final Set<String> writtenEntries = new HashSet<String>();
+
+    /**
+     * @param archiveFile The archive file to create, or to replace.
+     */
+    public ZipOutputSink(File archiveFile) {
+        this.archiveFile = archiveFile.getAbsoluteFile();
+    }
+
+    /**
+     * Returns the archive file this sink writes.
+     */
+    public File getArchiveFile() {
+        return archiveFile;
+    }
+
+    public synchronized void beginSession(Engine engine) throws IOException {
+        if (zipOut != null) {
+            throw new IllegalStateException("The archive is already being written by another session.");
+        }
+        File dir = archiveFile.getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        tmpFile = File.createTempFile("." + archiveFile.getName() + ".", ".tmp", dir);
+        boolean done = false;
+        try {
+            zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1024 * 64));
+            done = true;
+        } finally {
+            if (!done) {
+                tmpFile.delete();
+                tmpFile = null;
+            }
+        }
+        writtenEntries.clear();
+    }
+
+    public synchronized void endSession(boolean successful) throws IOException {
+        if (zipOut == null) {
+            return;
+        }
+        boolean done = false;
+        try {
+            if (successful) {
+                copyRemainingEntries();
+            }
+            zipOut.close();
+            if (successful) {
+                FileUtil.replaceFile(tmpFile, archiveFile);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                try {
+                    zipOut.close();
+                } catch (IOException e) {
+                    // Ignore, as there's an exception already
+                }
+            }
+            if (!done || !successful) {
+                tmpFile.delete();
+            }
+            zipOut = null;
+            tmpFile = null;
+            writtenEntries.clear();
+        }
+    }
+
+    public OutputStream openOutputFile(final String path, final boolean append) throws IOException {
+        checkAppendable(path, append);
+        // Only one entry can be written at a time, so the content is collected first.
+        return new ByteArrayOutputStream() {
+            private boolean closed;
+
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                writeOutputFile(path, append, buf, count);
+            }
+        };
+    }
+
+    public void writeOutputFile(String path, boolean append, byte[] content, int length) throws IOException {
+        checkAppendable(path, append);
+        byte[] oldContent = append ? readOldEntry(path) : null;
+        synchronized (this) {
+            putNextEntry(new ZipEntry(path));
+            if (oldContent != null) {
+                zipOut.write(oldContent);
+            }
+            zipOut.write(content, 0, length);
+            zipOut.closeEntry();
+        }
+    }
+
+    private synchronized void checkAppendable(String path, boolean append) throws IOException {
+        if (append && writtenEntries.contains(path)) {
+            throw new IOException(
+                    "Can't append to archive entry " + StringUtil.jQuote(path)
+                    + ", because it was already written.");
+        }
+    }
+
+    /**
+     * Returns the content of the entry in the earlier archive file, or {@code null} if there's no such entry.
+     */
+    private byte[] readOldEntry(String path) throws IOException {
+        if (!archiveFile.isFile()) {
+            return null;
+        }
+        ZipFile oldArchive = new ZipFile(archiveFile);
+        try {
+            ZipEntry oldEntry = oldArchive.getEntry(path);
+            if (oldEntry == null || oldEntry.isDirectory()) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream in = oldArchive.getInputStream(oldEntry);
+            try {
+                byte[] buf = new byte[1024 * 64];
+                int ln;
+                while ((ln = in.read(buf)) != -1) {
+                    out.write(buf, 0, ln);
+                }
+            } finally {
+                in.close();
+            }
+            return out.toByteArray();
+        } finally {
+            oldArchive.close();
+        }
+    }
+
+    public void copyFile(File srcFile, String path) throws IOException {
+        String name = srcFile.getName();
+        int dotIdx = name.lastIndexOf('.');
+        boolean store = dotIdx != -1
+                && COMPRESSED_FILE_EXTS.contains(name.substring(dotIdx + 1).toLowerCase());
+        ZipEntry entry = new ZipEntry(path);
+        entry.setTime(srcFile.lastModified());
+        if (store) {
+            // For stored entries the CRC must be known in advance, so the file is read twice.
+            entry.setMethod(ZipEntry.STORED);
+            CRC32 crc = new CRC32();
+            long size = 0;
+            InputStream in = new FileInputStream(srcFile);
+            try {
+                byte[] buf = new byte[1024 * 64];
+                int ln;
+                while ((ln = in.read(buf)) != -1) {
+                    crc.update(buf, 0, ln);
+                    size += ln;
+                }
+            } finally {
+                in.close();
+            }
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc.getValue());
+        }
+        InputStream in = new FileInputStream(srcFile);
+        try {
+            synchronized (this) {
+                putNextEntry(entry);
+                byte[] buf = new byte[1024 * 64];
+                int ln;
+                while ((ln = in.read(buf)) != -1) {
+                    zipOut.write(buf, 0, ln);
+                }
+                zipOut.closeEntry();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized void createDirectory(String path) throws IOException {
+        if (path.length() != 0) {
+            addDirectoryEntries(path + "/");
+        }
+    }
+
+    /**
+     * Starts a new entry, after adding the missing entries of its parent directories.
+     */
+    private void putNextEntry(ZipEntry entry) throws IOException {
+        if (zipOut == null) {
+            throw new IllegalStateException("There's no processing session in progress.");
+        }
+        String name = entry.getName();
+        if (writtenEntries.contains(name)) {
+            throw new IOException(
+                    "Archive entry " + StringUtil.jQuote(name) + " was already written in this session.");
+        }
+        int parentEnd = name.lastIndexOf('/', name.length() - 2) + 1;
+        if (parentEnd != 0) {
+            addDirectoryEntries(name.substring(0, parentEnd));
+        }
+        zipOut.putNextEntry(entry);
+        writtenEntries.add(name);
+    }
+
+    /**
+     * Adds the entries of the parent directories of the given entry name, and if the name ends with "/", of the
+     * directory itself, where they weren't added yet.
+     */
+    private void addDirectoryEntries(String name) throws IOException {
+        int slashIdx = 0;
+        while ((slashIdx = name.indexOf('/', slashIdx) + 1) != 0) {
+            String dirName = name.substring(0, slashIdx);
+            if (!writtenEntries.contains(dirName)) {
+                ZipEntry entry = new ZipEntry(dirName);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(0);
+                entry.setCrc(0);
+                zipOut.putNextEntry(entry);
+                zipOut.closeEntry();
+                writtenEntries.add(dirName);
+            }
+        }
+    }
+
+    /**
+     * Copies the entries of the earlier archive file that weren't overwritten in this session.
+     */
+    private void copyRemainingEntries() throws IOException {
+        if (!archiveFile.isFile()) {
+            return;
+        }
+        ZipFile oldArchive = new ZipFile(archiveFile);
+        try {
+            byte[] buf = new byte[1024 * 64];
+            for (Enumeration<? extends ZipEntry> en = oldArchive.entries(); en.hasMoreElements();) {
+                ZipEntry oldEntry = en.nextElement();
+                if (writtenEntries.contains(oldEntry.getName())) {
+                    continue;
+                }
+                ZipEntry entry = new ZipEntry(oldEntry);
+                if (entry.getMethod() != ZipEntry.STORED) {
+                    // Will be compressed again, maybe to a different size
+                    entry.setCompressedSize(-1);
+                }
+                InputStream in = oldArchive.getInputStream(oldEntry);
+                try {
+                    putNextEntry(entry);
+                    int ln;
+                    while ((ln = in.read(buf)) != -1) {
+                        zipOut.write(buf, 0, ln);
+                    }
+                    zipOut.closeEntry();
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            oldArchive.close();
+        }
+    }
+
+}
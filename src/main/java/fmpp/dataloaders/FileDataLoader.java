@@ -19,10 +19,11 @@ package fmpp.dataloaders;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
 
 import fmpp.Engine;
-import fmpp.tdd.DataLoader;
+import fmpp.tdd.CacheableDataLoader;
 
 /**
  * Ancestor of data loaders that create the result based on a file.
@@ -32,7 +33,7 @@ import fmpp.tdd.DataLoader;
  * to the working directory (OS facility). The path can use slash (/) instead
  * of the OS specific separator char.
  */
-public abstract class FileDataLoader implements DataLoader {
+public abstract class FileDataLoader implements CacheableDataLoader {
 
     protected Engine engine;
     protected List args;
@@ -51,13 +52,8 @@ public abstract class FileDataLoader implements DataLoader {
             throw new IllegalArgumentException(
                     "The 1st argument (file name) must be a string.");
         }
-        String path = (String) obj;
-        path = path.replace('/', File.separatorChar);
-
-        dataFile = new File(path);
-        if (!dataFile.isAbsolute()) {
-            dataFile = new File(engine.getDataRoot(), path);
-        }
+        dataFile = getDataFile(engine, (String) obj);
+        engine.addDependency(dataFile);
         
         InputStream in = new FileInputStream(dataFile);
         try {
@@ -68,6 +64,33 @@ public abstract class FileDataLoader implements DataLoader {
     }
 
     /**
+     * Returns the canonical path of the file, and the engine settings that the
+     * data loaders of FMPP use as defaults (the source encoding and the time
+     * zone). Subclasses whose result depends on anything else than these and
+     * the arguments must override this method.
+     * 
+     * @since 0.9.17
+     */
+    public List getCacheKeyContext(Engine engine, List args) throws Exception {
+        if (args.size() < 1 || !(args.get(0) instanceof String)) {
+            return null;
+        }
+        return Arrays.asList(new Object[] {
+                getDataFile(engine, (String) args.get(0)).getCanonicalPath(),
+                engine.getSourceEncoding(),
+                engine.getTimeZone() });
+    }
+
+    private static File getDataFile(Engine engine, String path) {
+        path = path.replace('/', File.separatorChar);
+        File f = new File(path);
+        if (!f.isAbsolute()) {
+            f = new File(engine.getDataRoot(), path);
+        }
+        return f;
+    }
+
+    /**
      * <code>FileDataLoader</code> subclasess override this method to parse
      * the file. 
      */
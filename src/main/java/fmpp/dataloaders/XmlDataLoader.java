@@ -19,6 +19,7 @@ package fmpp.dataloaders;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -42,7 +43,7 @@ import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
 import fmpp.Engine;
-import fmpp.tdd.DataLoader;
+import fmpp.tdd.CacheableDataLoader;
 import fmpp.util.MiscUtil;
 import fmpp.util.StringUtil;
 import freemarker.ext.dom.NodeModel;
@@ -51,7 +52,7 @@ import freemarker.template.TemplateNodeModel;
 /**
  * Returns a variable that exposes the content of an XML file.
  */
-public class XmlDataLoader implements DataLoader {
+public class XmlDataLoader implements CacheableDataLoader {
     public static final String OPTION_REMOVE_COMMENTS = "removeComments";
     public static final String OPTION_REMOVE_PIS = "removePIs";
     public static final String OPTION_NAMESPACE_AWARE = "namespaceAware";
@@ -74,6 +75,29 @@ public class XmlDataLoader implements DataLoader {
     public Object load(Engine engine, List args) throws Exception {
         return load(engine, args, null);
     }
+
+    /**
+     * Returns the canonical path of the file and the XML related engine
+     * settings. With the <code>xincludeAware</code> option the result also
+     * depends on the included files, so then it returns <code>null</code>.
+     * 
+     * @since 0.9.17
+     */
+    public List getCacheKeyContext(Engine engine, List args) throws Exception {
+        if (args.size() < 1 || !(args.get(0) instanceof String)) {
+            return null;
+        }
+        if (args.size() > 1 && args.get(1) instanceof Map
+                && Boolean.TRUE.equals(
+                        ((Map) args.get(1)).get(OPTION_XINCLUDE_AWARE))) {
+            return null;
+        }
+        File xmlFile = getXmlFile(engine, (String) args.get(0));
+        return Arrays.asList(new Object[] {
+                xmlFile.getCanonicalPath(),
+                Boolean.valueOf(engine.getValidateXml()),
+                engine.getXmlEntiryResolver() });
+    }
     
     public TemplateNodeModel
             load(Engine engine, List args, Document preLoadedDoc)
@@ -100,7 +124,7 @@ public class XmlDataLoader implements DataLoader {
                 throw new IllegalArgumentException(
                         "The 1st argument (fileName) must be a string.");
             }
-            path = ((String) obj).replace('/', File.separatorChar);
+            path = (String) obj;
         } else {
             path = null;
         }
@@ -197,10 +221,8 @@ public class XmlDataLoader implements DataLoader {
         Document  doc;
         if (preLoadedDoc == null) {
             // Load and parse XML file:
-            File xmlFile = new File(path);
-            if (!xmlFile.isAbsolute()) {
-                xmlFile = new File(engine.getDataRoot(), path);
-            }
+            File xmlFile = getXmlFile(engine, path);
+            engine.addDependency(xmlFile);
             doc = XmlDataLoader.loadXmlFile(
                     engine, xmlFile, namespaceAware, xincludeAware, validate);
         } else {
@@ -265,6 +287,15 @@ public class XmlDataLoader implements DataLoader {
     public static boolean isOptionName(String optionName) {
         return OPTION_NAMES.contains(optionName);
     }
+
+    private static File getXmlFile(Engine engine, String path) {
+        path = path.replace('/', File.separatorChar);
+        File f = new File(path);
+        if (!f.isAbsolute()) {
+            f = new File(engine.getDataRoot(), path);
+        }
+        return f;
+    }
 
     /**
      * Same as {@link #loadXmlFile(Engine, File, boolean, boolean, boolean)}, but {@code xincludeAware} will be
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.localdatabuilders;
+
+import bsh.EvalError;
+import fmpp.DataModelBuildingException;
+import fmpp.Engine;
+import fmpp.TemplateEnvironment;
+import fmpp.util.StringUtil;
+
+/**
+ * The BeanShell cache key expression of a
+ * {@link ScopedCachingLocalDataBuilder}. It's in a separate class, so that
+ * BeanShell need not be available unless a key expression is used.
+ */
+class BshCacheKeyExpression {
+
+    private final String expression;
+    private bsh.Interpreter bship;
+
+    BshCacheKeyExpression(String expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * Evaluates the expression. The same interpreter is reused for all
+     * source files, so calls are serialized.
+     */
+    synchronized Object eval(Engine eng, TemplateEnvironment env)
+            throws DataModelBuildingException {
+        if (bship == null) {
+            bship = new bsh.Interpreter();
+        }
+        try {
+            bship.set("engine", eng);
+            bship.set("templateEnvironment", env);
+            return bship.eval(expression);
+        } catch (EvalError e) {
+            throw new DataModelBuildingException(
+                    "Failed to evaluate the cache key expression: "
+                    + StringUtil.jQuote(expression), e);
+        } finally {
+            try {
+                bship.unset("templateEnvironment");
+            } catch (EvalError e) {
+                // Only matters for garbage collection
+            }
+        }
+    }
+
+}
@@ -19,6 +19,7 @@ package fmpp.localdatabuilders;
 import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import fmpp.Engine;
 import fmpp.LocalDataBuilder;
@@ -37,6 +38,7 @@ import fmpp.TemplateEnvironment;
 public abstract class CachingLocalDataBuilder
         implements LocalDataBuilder, ProgressListener {
     private Map cachedResult;
+    private Set<File> cachedResultDependencies;
 
     /**
      * Takes care of caching, and calls {@link #build(Engine)} if no cached
@@ -45,7 +47,13 @@ public abstract class CachingLocalDataBuilder
     public final Map build(Engine eng, TemplateEnvironment env)
             throws Exception {
         if (cachedResult == null) {
+            Set<File> depsBefore = eng.getCurrentFileDependencies();
             Map res = build(eng);
+            if (depsBefore != null) {
+                // The files the result was built from are dependencies of all files that will use the result. 
+                cachedResultDependencies = eng.getCurrentFileDependencies();
+                cachedResultDependencies.removeAll(depsBefore);
+            }
             if (res == null) {
                 cachedResult = new HashMap();
             } else {
@@ -72,6 +80,10 @@ public abstract class CachingLocalDataBuilder
                 cachedResult = wrappedData;
                 */
             }
+        } else if (cachedResultDependencies != null) {
+            for (File f : cachedResultDependencies) {
+                eng.addDependency(f);
+            }
         }
         return cachedResult;
     }
@@ -90,6 +102,7 @@ public abstract class CachingLocalDataBuilder
             throws Exception {
         if (event == EVENT_END_PROCESSING_SESSION) {
             cachedResult = null;
+            cachedResultDependencies = null;
         }
     }
 
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.localdatabuilders;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import fmpp.Engine;
+import fmpp.LocalDataBuilder;
+import fmpp.ProgressListener;
+import fmpp.TemplateEnvironment;
+import fmpp.util.FileUtil;
+
+/**
+ * Like {@link CachingLocalDataBuilder}, but stores a separate result for each
+ * scope (like for each source directory), so it can be used when the local
+ * data depends on where the source file is, but not on the source file
+ * itself. For example, if the local data is built from the
+ * <tt>index.json</tt> of the directory of the source file, it's built once
+ * per directory, instead of once per source file.
+ *
+ * <p>The scope of the source file is identified by the cache key, which is:
+ * <ul>
+ *   <li>By default, the directory of the source file (a
+ *       <code>java.io.File</code>).
+ *   <li>If {@link #setPathPatternGroups(List)} was called, the first of
+ *       those path patterns that matches the source file (a
+ *       <code>String</code>). So the source files matched by the same path
+ *       pattern share the result.
+ *   <li>If {@link #setKeyExpression(String)} was called, the value of that
+ *       BeanShell expression.
+ * </ul>
+ * Subclasses can also override {@link #getCacheKey(Engine,
+ * TemplateEnvironment)}. If the cache key would be <code>null</code>, the
+ * source file is used as the cache key, so then the result is not shared
+ * with other source files.
+ *
+ * <p>At most {@link #getMaxEntries()} results are stored; when there would
+ * be more, the least recently used result is discarded. The stored results
+ * are deleted at the end of the processing session.
+ *
+ * @since 0.9.17
+ */
+public abstract class ScopedCachingLocalDataBuilder
+        implements LocalDataBuilder, ProgressListener {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+
+    private final int maxEntries;
+    private List<String> pathPatternGroups;
+    private Pattern[] compiledPathPatternGroups;
+    private boolean compiledCaseSensitive;
+    private String keyExpression;
+    private volatile BshCacheKeyExpression bshKeyExpression;
+    private final Map<Object, CachedResult> cache;
+
+    /**
+     * Creates an instance that stores at most {@value #DEFAULT_MAX_ENTRIES}
+     * results.
+     */
+    protected ScopedCachingLocalDataBuilder() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries The maximum number of stored results; at least 1.
+     */
+    protected ScopedCachingLocalDataBuilder(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException(
+                    "Argument \"maxEntries\" must be at least 1, but it was "
+                    + maxEntries + ".");
+        }
+        this.maxEntries = maxEntries;
+        cache = new LinkedHashMap<Object, CachedResult>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                    Map.Entry<Object, CachedResult> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Takes care of caching, and calls {@link #build(Engine, Object)} if no
+     * result is stored for the cache key of the source file.
+     */
+    public final Map build(Engine eng, TemplateEnvironment env)
+            throws Exception {
+        Object key = getCacheKey(eng, env);
+        if (key == null) {
+            key = env.getSourceFile();
+        }
+        CachedResult cachedResult;
+        synchronized (cache) {
+            cachedResult = cache.get(key);
+            if (cachedResult == null) {
+                cachedResult = new CachedResult();
+                cache.put(key, cachedResult);
+            }
+        }
+        return cachedResult.get(eng, key);
+    }
+
+    /**
+     * Returns the key that identifies the scope of the source file; the
+     * source files with equal keys share the local data. See the
+     * {@linkplain ScopedCachingLocalDataBuilder class documentation} for the
+     * default behavior.
+     */
+    protected Object getCacheKey(Engine eng, TemplateEnvironment env)
+            throws Exception {
+        BshCacheKeyExpression bshKeyExpression = this.bshKeyExpression;
+        if (bshKeyExpression != null) {
+            return bshKeyExpression.eval(eng, env);
+        }
+        if (pathPatternGroups != null) {
+            return getPathPatternGroup(eng, env);
+        }
+        return env.getSourceFile().getAbsoluteFile().getParentFile();
+    }
+
+    private String getPathPatternGroup(Engine eng, TemplateEnvironment env)
+            throws Exception {
+        Pattern[] patterns;
+        boolean cs = eng.getCaseSensitive();
+        synchronized (this) {
+            if (compiledPathPatternGroups == null
+                    || compiledCaseSensitive != cs) {
+                compiledPathPatternGroups
+                        = new Pattern[pathPatternGroups.size()];
+                for (int i = 0; i < compiledPathPatternGroups.length; i++) {
+                    String pattern = FileUtil.pathToUnixStyle(
+                            pathPatternGroups.get(i));
+                    compiledPathPatternGroups[i] = Pattern.compile(
+                            FileUtil.pathPatternToPerl5Regex(
+                                    cs ? pattern : pattern.toLowerCase()));
+                }
+                compiledCaseSensitive = cs;
+            }
+            patterns = compiledPathPatternGroups;
+        }
+        String path = "/" + env.toSourceRootRelativePath(env.getSourceFile());
+        if (!cs) {
+            path = path.toLowerCase();
+        }
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].matcher(path).matches()) {
+                return pathPatternGroups.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Discards the stored results on
+     * {@link ProgressListener#EVENT_END_PROCESSING_SESSION}.
+     */
+    public void notifyProgressEvent(
+            Engine engine, int event, File src, int pMode, Throwable error,
+            Object param)
+            throws Exception {
+        if (event == EVENT_END_PROCESSING_SESSION) {
+            synchronized (cache) {
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * Override this method in your local data builder class.
+     *
+     * <p>The {@link TemplateEnvironment} is not passed, to ensure that the
+     * returned <code>Map</code> doesn't depend on the source file the builder
+     * is used for, so reusing the result for the other source files of the
+     * same scope is safe.
+     *
+     * @param cacheKey The cache key that identifies the scope, as returned
+     *     by {@link #getCacheKey(Engine, TemplateEnvironment)} (like the
+     *     directory of the source files).
+     */
+    protected abstract Map build(Engine eng, Object cacheKey) throws Exception;
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Returns the number of currently stored results.
+     */
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public List<String> getPathPatternGroups() {
+        return pathPatternGroups;
+    }
+
+    /**
+     * Sets the path patterns that define the scopes: the source files that
+     * are matched by the same path pattern share the result. When multiple
+     * patterns match a source file, the first is used. The source files that
+     * aren't matched by any of the patterns don't share their result. The
+     * patterns are interpreted as in the path patterns of the
+     * <tt>localData</tt> setting. Defaults to <code>null</code>, which means
+     * that the result is shared by the source files of the same directory.
+     */
+    public void setPathPatternGroups(List<String> pathPatternGroups) {
+        synchronized (this) {
+            this.pathPatternGroups = pathPatternGroups;
+            compiledPathPatternGroups = null;
+        }
+    }
+
+    public String getKeyExpression() {
+        return keyExpression;
+    }
+
+    /**
+     * Sets the BeanShell expression that calculates the cache key; the
+     * source files for which it evaluates to equal values share the result.
+     * The expression can use the <code>engine</code> and
+     * <code>templateEnvironment</code> variables, like
+     * {@link BshLocalDataBuilder} scripts. If this is set, the
+     * <code>pathPatternGroups</code> property is ignored.
+     */
+    public void setKeyExpression(String keyExpression) {
+        this.keyExpression = keyExpression;
+        bshKeyExpression = keyExpression != null
+                ? new BshCacheKeyExpression(keyExpression) : null;
+    }
+
+    private class CachedResult {
+        private Map result;
+        private Set<File> dependencies;
+
+        synchronized Map get(Engine eng, Object key) throws Exception {
+            if (result == null) {
+                Set<File> depsBefore = eng.getCurrentFileDependencies();
+                Map res = build(eng, key);
+                if (depsBefore != null) {
+                    // The files the result was built from are dependencies of all files that will use the result.
+                    dependencies = eng.getCurrentFileDependencies();
+                    dependencies.removeAll(depsBefore);
+                }
+                result = res != null ? res : new HashMap();
+            } else if (dependencies != null) {
+                for (File f : dependencies) {
+                    eng.addDependency(f);
+                }
+            }
+            return result;
+        }
+    }
+
+}
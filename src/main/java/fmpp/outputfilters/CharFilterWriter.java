@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.outputfilters;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Base of the filter writers that process the text character by character,
+ * with a fixed size state. The filtered characters are collected into a
+ * small buffer, so the wrapped writer isn't called for each character.
+ */
+abstract class CharFilterWriter extends Writer {
+
+    private final Writer out;
+    private final char[] outBuf = new char[2048];
+    private int outLen;
+    private boolean closed;
+
+    CharFilterWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Processes the next character of the unfiltered text.
+     */
+    protected abstract void filter(char c) throws IOException;
+
+    /**
+     * Called when the writer is closed, to write out the characters that
+     * were held back while waiting for more text. Does nothing by default.
+     */
+    protected void finish() throws IOException {
+        // Do nothing
+    }
+
+    /**
+     * Writes a character of the filtered text.
+     */
+    protected final void emit(char c) throws IOException {
+        if (outLen == outBuf.length) {
+            flushBuffer();
+        }
+        outBuf[outLen++] = c;
+    }
+
+    /**
+     * Writes characters of the filtered text.
+     */
+    protected final void emit(String s) throws IOException {
+        int ln = s.length();
+        for (int i = 0; i < ln; i++) {
+            emit(s.charAt(i));
+        }
+    }
+
+    public void write(int c) throws IOException {
+        filter((char) c);
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            filter(cbuf[i]);
+        }
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            filter(str.charAt(i));
+        }
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (outLen != 0) {
+            out.write(outBuf, 0, outLen);
+            outLen = 0;
+        }
+    }
+
+}
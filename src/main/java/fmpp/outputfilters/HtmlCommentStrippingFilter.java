@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.outputfilters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import fmpp.Engine;
+import fmpp.OutputFilter;
+
+/**
+ * Removes the HTML (and XML) comments, that is, the
+ * <code>&lt;!-- <i>...</i> --&gt;</code>-s from the output. Conditional
+ * comments (the ones starting with <code>&lt;!--[</code>) are kept. The
+ * filter doesn't parse HTML, so it also removes comment-like text that's
+ * not a comment, like inside a {@code script} element. This implements the
+ * {@code stripHtmlComments} filter of the "outputFilters" setting.
+ *
+ * @since 0.9.17
+ */
+public class HtmlCommentStrippingFilter implements OutputFilter {
+
+    private static final String COMMENT_START = "<!--";
+
+    public Writer filter(Writer out, File outputFile, Engine engine) {
+        return new HtmlCommentStrippingWriter(out);
+    }
+
+    private static class HtmlCommentStrippingWriter extends CharFilterWriter {
+
+        /** The number of characters matched from {@link #COMMENT_START}, or -1 inside a comment. */
+        private int startMatched;
+        /** Tells if the comment start was just matched, so it can still turn out to be a conditional comment. */
+        private boolean afterStart;
+        /** The number of '-'-s right before the current character inside a comment. */
+        private int dashes;
+
+        HtmlCommentStrippingWriter(Writer out) {
+            super(out);
+        }
+
+        protected void filter(char c) throws IOException {
+            if (startMatched == -1) {
+                if (afterStart) {
+                    afterStart = false;
+                    if (c == '[') {
+                        emit(COMMENT_START);
+                        emit(c);
+                        startMatched = 0;
+                        return;
+                    }
+                }
+                if (c == '-') {
+                    dashes++;
+                } else {
+                    if (c == '>' && dashes >= 2) {
+                        startMatched = 0;
+                    }
+                    dashes = 0;
+                }
+            } else if (c == COMMENT_START.charAt(startMatched)) {
+                startMatched++;
+                if (startMatched == COMMENT_START.length()) {
+                    startMatched = -1;
+                    afterStart = true;
+                    dashes = 0;
+                }
+            } else {
+                if (startMatched != 0) {
+                    emit(COMMENT_START.substring(0, startMatched));
+                    if (c == '<') {
+                        startMatched = 1;
+                        return;
+                    }
+                    startMatched = 0;
+                }
+                emit(c);
+            }
+        }
+
+        protected void finish() throws IOException {
+            if (startMatched > 0) {
+                emit(COMMENT_START.substring(0, startMatched));
+            }
+        }
+
+    }
+
+}
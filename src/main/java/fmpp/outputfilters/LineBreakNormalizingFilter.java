@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.outputfilters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import fmpp.Engine;
+import fmpp.OutputFilter;
+
+/**
+ * Replaces all line breaks (CR-LF, LF and CR) with the same line break. This
+ * implements the {@code normalizeLineBreaks} filter of the "outputFilters"
+ * setting.
+ *
+ * @since 0.9.17
+ */
+public class LineBreakNormalizingFilter implements OutputFilter {
+
+    private final String lineBreak;
+
+    /**
+     * @param lineBreak The line break to use, like {@code "\n"} or
+     *     {@code "\r\n"}.
+     */
+    public LineBreakNormalizingFilter(String lineBreak) {
+        if (lineBreak == null) {
+            throw new IllegalArgumentException("lineBreak can't be null");
+        }
+        this.lineBreak = lineBreak;
+    }
+
+    public String getLineBreak() {
+        return lineBreak;
+    }
+
+    public Writer filter(Writer out, File outputFile, Engine engine) {
+        return new LineBreakNormalizingWriter(out, lineBreak);
+    }
+
+    private static class LineBreakNormalizingWriter extends CharFilterWriter {
+
+        private final String lineBreak;
+        private boolean lastWasCr;
+
+        LineBreakNormalizingWriter(Writer out, String lineBreak) {
+            super(out);
+            this.lineBreak = lineBreak;
+        }
+
+        protected void filter(char c) throws IOException {
+            if (c == '\r') {
+                emit(lineBreak);
+                lastWasCr = true;
+            } else {
+                if (c == '\n') {
+                    if (!lastWasCr) {
+                        emit(lineBreak);
+                    }
+                } else {
+                    emit(c);
+                }
+                lastWasCr = false;
+            }
+        }
+
+    }
+
+}
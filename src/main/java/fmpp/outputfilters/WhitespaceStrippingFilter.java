@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.outputfilters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import fmpp.Engine;
+import fmpp.OutputFilter;
+
+/**
+ * Removes the whitespace at the beginning and at the end of the lines, the
+ * empty lines, and replaces the other whitespace runs with a single space.
+ * The line breaks themselves are kept as they were. The filter doesn't parse
+ * HTML, so it shouldn't be used where whitespace is significant (like in a
+ * {@code pre} element). This implements the {@code stripWhitespace} filter
+ * of the "outputFilters" setting.
+ *
+ * @since 0.9.17
+ */
+public class WhitespaceStrippingFilter implements OutputFilter {
+
+    public Writer filter(Writer out, File outputFile, Engine engine) {
+        return new WhitespaceStrippingWriter(out);
+    }
+
+    private static class WhitespaceStrippingWriter extends CharFilterWriter {
+
+        private boolean lineHasContent;
+        private boolean pendingSpace;
+        private boolean lastWasCr;
+        private boolean lastCrEmitted;
+
+        WhitespaceStrippingWriter(Writer out) {
+            super(out);
+        }
+
+        protected void filter(char c) throws IOException {
+            if (c == '\n' || c == '\r') {
+                if (c == '\n' && lastWasCr) {
+                    // The 2nd half of a CR-LF
+                    if (lastCrEmitted) {
+                        emit(c);
+                    }
+                    lastWasCr = false;
+                    return;
+                }
+                pendingSpace = false;
+                lastCrEmitted = lineHasContent;
+                if (lineHasContent) {
+                    emit(c);
+                    lineHasContent = false;
+                }
+                lastWasCr = c == '\r';
+                return;
+            }
+            lastWasCr = false;
+            if (Character.isWhitespace(c)) {
+                if (lineHasContent) {
+                    pendingSpace = true;
+                }
+                return;
+            }
+            if (pendingSpace) {
+                emit(' ');
+                pendingSpace = false;
+            }
+            emit(c);
+            lineHasContent = true;
+        }
+
+    }
+
+}
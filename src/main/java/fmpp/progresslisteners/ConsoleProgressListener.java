@@ -133,6 +133,20 @@ public class ConsoleProgressListener implements ProgressListener {
                 out.println(": " + (String) param);
             }
             break;
+        case EVENT_OUTPUT_UNCHANGED:
+            if (!quiet) {
+                out.print("  - Output unchanged: ");
+                try {
+                    out.println(
+                            FileUtil.compressPath(
+                                    FileUtil.getRelativePath(
+                                            engine.getOutputRoot(), (File) param),
+                                    maxPathLength));
+                } catch (IOException exc) {
+                    out.println("???");
+                }
+            }
+            break;
         case EVENT_IGNORING_DIR:
             if (!quiet) {
                 out.print("- Ignoring directory: ");
@@ -27,7 +27,7 @@ import fmpp.ProgressListener;
  * state of counters can be read while the engine is working. 
  */
 public class StatisticsProgressListener implements ProgressListener {
-    private int failed, executed, copied, rendered, warnings;
+    private int failed, executed, copied, rendered, warnings, outputsUnchanged;
     private long endTime, beginTime;    
     
     public void notifyProgressEvent(
@@ -58,6 +58,9 @@ public class StatisticsProgressListener implements ProgressListener {
                 failed++;
             }
             break;
+        case EVENT_OUTPUT_UNCHANGED:
+            outputsUnchanged++;
+            break;
         case EVENT_WARNING:
             warnings++;
         default:
@@ -74,6 +77,7 @@ public class StatisticsProgressListener implements ProgressListener {
         rendered = 0;
         copied = 0;
         warnings = 0;
+        outputsUnchanged = 0;
         beginTime = -1;
         endTime = -1; 
     }
@@ -133,6 +137,16 @@ public class StatisticsProgressListener implements ProgressListener {
         return executed + copied + rendered + failed;
     }
 
+    /**
+     * Number of output files that weren't overwritten, because their content
+     * haven't changed.
+     * 
+     * @since 0.9.17
+     */
+    public synchronized int getOutputsUnchanged() {
+        return outputsUnchanged;
+    }
+
     /**
      * Total number of warnings.
      */
@@ -31,23 +31,30 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 
 import bsh.EvalError;
 import fmpp.DataModelBuildingException;
 import fmpp.Engine;
 import fmpp.LocalDataBuilder;
+import fmpp.OutputFilter;
 import fmpp.ProcessingException;
 import fmpp.ProgressListener;
 import fmpp.XmlRenderingConfiguration;
+import fmpp.ZipOutputSink;
 import fmpp.localdatabuilders.BshLocalDataBuilder;
 import fmpp.localdatabuilders.MapLocalDataBuilder;
 import fmpp.localdatabuilders.TddHashLocalDataBuilder;
+import fmpp.outputfilters.HtmlCommentStrippingFilter;
+import fmpp.outputfilters.LineBreakNormalizingFilter;
+import fmpp.outputfilters.WhitespaceStrippingFilter;
 import fmpp.tdd.DataLoaderEvaluationEnvironment;
 import fmpp.tdd.EvalException;
 import fmpp.tdd.EvaluationEnvironment;
 import fmpp.tdd.Fragment;
 import fmpp.tdd.FunctionCall;
 import fmpp.tdd.Interpreter;
+import fmpp.tdd.LruDataLoaderResultCache;
 import fmpp.tdd.TddUtil;
 import fmpp.tdd.TypeNotConvertableToMapException;
 import fmpp.util.BugException;
@@ -166,6 +173,42 @@ public class Settings {
     //        = "xmlCatalogAllowPi"; [I don't know how to use those PI-s...]
     public static final String NAME_VALIDATE_XML = "validateXml";
     public static final String NAME_XML_RENDERINGS = "xmlRenderings";
+    /* @since 0.9.17 */
+    public static final String NAME_PARALLELISM = "parallelism";
+    /* @since 0.9.17 */
+    public static final String NAME_COPY_THREADS = "copyThreads";
+    /* @since 0.9.17 */
+    public static final String NAME_COPY_STRATEGY = "copyStrategy";
+    /* @since 0.9.17 */
+    public static final String NAME_DEPENDENCY_TRACKING = "dependencyTracking";
+    /* @since 0.9.17 */
+    public static final String NAME_WRITE_ONLY_IF_CHANGED = "writeOnlyIfChanged";
+    /* @since 0.9.17 */
+    public static final String NAME_ATOMIC_OUTPUT = "atomicOutput";
+    /* @since 0.9.17 */
+    public static final String NAME_OUTPUT_SYNC = "outputSync";
+    /* @since 0.9.17 */
+    public static final String NAME_GZIP_OUTPUTS = "gzipOutputs";
+    /* @since 0.9.17 */
+    public static final String NAME_GZIP_MIN_SIZE = "gzipMinSize";
+    /* @since 0.9.17 */
+    public static final String NAME_OUTPUT_FILTERS = "outputFilters";
+    /* @since 0.9.17 */
+    public static final String NAME_OUTPUT_MANIFEST = "outputManifest";
+    /* @since 0.9.17 */
+    public static final String NAME_PRUNE_STALE_OUTPUTS = "pruneStaleOutputs";
+    /* @since 0.9.17 */
+    public static final String NAME_RETAIN_TEMPLATE_CACHE = "retainTemplateCache";
+    /* @since 0.9.17 */
+    public static final String NAME_TEMPLATE_CACHE_SIZE = "templateCacheSize";
+    /* @since 0.9.17 */
+    public static final String NAME_INDEX_FREEMARKER_LINKS = "indexFreemarkerLinks";
+    /* @since 0.9.17 */
+    public static final String NAME_LAZY_DATA = "lazyData";
+    /* @since 0.9.17 */
+    public static final String NAME_DATA_LOADER_CACHE_SIZE = "dataLoaderCacheSize";
+    /* @since 0.9.17 */
+    public static final String NAME_MEMOIZE_DATA_LOADER_CALLS = "memoizeDataLoaderCalls";
 
     // Values of standard settings:
     
@@ -850,6 +893,24 @@ public class Settings {
         //        NAME_XML_CATALOG_ALLOW_PI, TYPE_STRING, false, false));
         stdDef(NAME_VALIDATE_XML, TYPE_BOOLEAN, false, false);
         stdDef(NAME_XML_RENDERINGS, TYPE_SEQUENCE, true, false);
+        stdDef(NAME_PARALLELISM, TYPE_INTEGER, false, false);
+        stdDef(NAME_COPY_THREADS, TYPE_INTEGER, false, false);
+        stdDef(NAME_COPY_STRATEGY, TYPE_STRING, false, false);
+        stdDef(NAME_DEPENDENCY_TRACKING, TYPE_BOOLEAN, false, false);
+        stdDef(NAME_WRITE_ONLY_IF_CHANGED, TYPE_BOOLEAN, false, false);
+        stdDef(NAME_ATOMIC_OUTPUT, TYPE_BOOLEAN, false, false);
+        stdDef(NAME_OUTPUT_SYNC, TYPE_STRING, false, false);
+        stdDef(NAME_GZIP_OUTPUTS, TYPE_SEQUENCE, true, true);
+        stdDef(NAME_GZIP_MIN_SIZE, TYPE_INTEGER, false, false);
+        stdDef(NAME_OUTPUT_FILTERS, TYPE_SEQUENCE, true, false);
+        stdDef(NAME_OUTPUT_MANIFEST, TYPE_BOOLEAN, false, false);
+        stdDef(NAME_PRUNE_STALE_OUTPUTS, TYPE_BOOLEAN, false, false);
+        stdDef(NAME_RETAIN_TEMPLATE_CACHE, TYPE_BOOLEAN, false, false);
+        stdDef(NAME_TEMPLATE_CACHE_SIZE, TYPE_STRING, false, true);
+        stdDef(NAME_INDEX_FREEMARKER_LINKS, TYPE_BOOLEAN, false, false);
+        stdDef(NAME_LAZY_DATA, TYPE_BOOLEAN, false, false);
+        stdDef(NAME_DATA_LOADER_CACHE_SIZE, TYPE_STRING, false, true);
+        stdDef(NAME_MEMOIZE_DATA_LOADER_CALLS, TYPE_BOOLEAN, false, false);
     }
 
     // -------------------------------------------------------------------------
@@ -858,6 +919,8 @@ public class Settings {
     private static final String FUNCTION_LAYER = "layer";
     private static final String FUNCTION_CASE = "case";
     private static final String LOCAL_DATA_BUILDER_BSH = "bsh";
+    private static final String OUTPUT_ARCHIVE_PREFIX_ZIP = "zip:";
+    private static final String OUTPUT_ARCHIVE_PREFIX_JAR = "jar:";
 
     // -------------------------------------------------------------------------
     // State
@@ -870,6 +933,9 @@ public class Settings {
     private List progressListeners = new ArrayList();
     private Map engineAttributes = new HashMap();
     private boolean dontTraverseDirs;
+    private List<File> loadedCfgFiles = new ArrayList<File>();
+    /** Reused by the later {@link #execute()} calls, as far as its size limits don't change. */
+    private LruDataLoaderResultCache dataLoaderResultCache;
     
     // -------------------------------------------------------------------------
     // Public menthods
@@ -1313,6 +1379,10 @@ public class Settings {
         }
         
         final Engine eng = new Engine(recommendedDefaults, fmIcI, ow);
+        for (File cfgFile : loadedCfgFiles) {
+            // Changing the configuration can change any output 
+            eng.addDependency(cfgFile);
+        }
         
         String s;
         Boolean b;
@@ -1630,14 +1700,213 @@ public class Settings {
                 eng.setSkipUnchanged(Engine.SKIP_ALL);
             } else if (s.equalsIgnoreCase("static")) {
                 eng.setSkipUnchanged(Engine.SKIP_STATIC);
+            } else if (s.equalsIgnoreCase("hash")) {
+                eng.setSkipUnchanged(Engine.SKIP_HASH);
             } else {
                 throw new SettingException(
                         "The value of the \"" + NAME_SKIP_UNCHANGED
                         + "\" setting can't be " + StringUtil.jQuote(s) + ". "
-                        + "It should be one of: none, all, static");
+                        + "It should be one of: none, all, static, hash");
+            }
+        }
+
+        Integer parallelismObj = (Integer) get(NAME_PARALLELISM);
+        if (parallelismObj != null) {
+            int parallelism = parallelismObj.intValue();
+            if (parallelism < 0) {
+                throw new SettingException(
+                        "The value of the \"" + NAME_PARALLELISM
+                        + "\" setting can't be negative.");
+            }
+            eng.setParallelism(parallelism != 0
+                    ? parallelism : Runtime.getRuntime().availableProcessors());
+        }
+
+        Integer copyThreadsObj = (Integer) get(NAME_COPY_THREADS);
+        if (copyThreadsObj != null) {
+            int copyThreads = copyThreadsObj.intValue();
+            if (copyThreads < 0) {
+                throw new SettingException(
+                        "The value of the \"" + NAME_COPY_THREADS
+                        + "\" setting can't be negative.");
+            }
+            eng.setCopyThreads(copyThreads);
+        }
+
+        s = (String) get(NAME_COPY_STRATEGY);
+        if (s != null) {
+            if (s.equals("copy")) {
+                eng.setCopyStrategy(Engine.COPY_STRATEGY_COPY);
+            } else if (s.equals("hardLink")) {
+                eng.setCopyStrategy(Engine.COPY_STRATEGY_HARD_LINK);
+            } else if (s.equals("symbolicLink")) {
+                eng.setCopyStrategy(Engine.COPY_STRATEGY_SYMBOLIC_LINK);
+            } else {
+                throw new SettingException(
+                        "The value of the \"" + NAME_COPY_STRATEGY
+                        + "\" setting can't be " + StringUtil.jQuote(s) + ". "
+                        + "It should be one of: copy, hardLink, symbolicLink");
             }
         }
 
+        b = (Boolean) get(NAME_DEPENDENCY_TRACKING);
+        if (b != null) {
+            eng.setDependencyTracking(b.booleanValue());
+        }
+
+        b = (Boolean) get(NAME_WRITE_ONLY_IF_CHANGED);
+        if (b != null) {
+            eng.setWriteOnlyIfChanged(b.booleanValue());
+        }
+
+        b = (Boolean) get(NAME_ATOMIC_OUTPUT);
+        if (b != null) {
+            eng.setAtomicOutput(b.booleanValue());
+        }
+
+        s = (String) get(NAME_OUTPUT_SYNC);
+        if (s != null) {
+            if (s.equals("none")) {
+                eng.setOutputSync(Engine.OUTPUT_SYNC_NONE);
+            } else if (s.equals("perFile")) {
+                eng.setOutputSync(Engine.OUTPUT_SYNC_PER_FILE);
+            } else if (s.equals("sessionEnd")) {
+                eng.setOutputSync(Engine.OUTPUT_SYNC_SESSION_END);
+            } else {
+                throw new SettingException(
+                        "The value of the \"" + NAME_OUTPUT_SYNC
+                        + "\" setting can't be " + StringUtil.jQuote(s) + ". "
+                        + "It should be one of: none, perFile, sessionEnd");
+            }
+        }
+
+        ls = (List) get(NAME_GZIP_OUTPUTS);
+        if (ls != null) {
+            eng.clearGzipOutputPatterns();
+            Iterator it = ls.iterator();
+            while (it.hasNext()) {
+                Object obj = it.next();
+                if (!(obj instanceof String)) {
+                    throw new SettingException(
+                            "All items of the \"" + NAME_GZIP_OUTPUTS
+                            + "\" setting must be strings (path patterns), "
+                            + "but one of the items is a(n) "
+                            + typeName(obj) + ".");
+                }
+                eng.addGzipOutputPattern((String) obj);
+            }
+        }
+
+        Integer gzipMinSizeObj = (Integer) get(NAME_GZIP_MIN_SIZE);
+        if (gzipMinSizeObj != null) {
+            int gzipMinSize = gzipMinSizeObj.intValue();
+            if (gzipMinSize < 0) {
+                throw new SettingException(
+                        "The value of the \"" + NAME_GZIP_MIN_SIZE
+                        + "\" setting can't be negative.");
+            }
+            eng.setGzipMinSize(gzipMinSize);
+        }
+
+        ls = (List) get(NAME_OUTPUT_FILTERS);
+        if (ls != null) {
+            try {
+                loadOutputFilters(eng, ls);
+            } catch (SettingException e) {
+                throw new SettingException(
+                        "Failed to apply the value of the \"" + NAME_OUTPUT_FILTERS + "\" setting.",
+                        e);
+            }
+        }
+
+        b = (Boolean) get(NAME_OUTPUT_MANIFEST);
+        if (b != null) {
+            eng.setOutputManifest(b.booleanValue());
+        }
+
+        b = (Boolean) get(NAME_PRUNE_STALE_OUTPUTS);
+        if (b != null) {
+            eng.setPruneStaleOutputs(b.booleanValue());
+        }
+
+        b = (Boolean) get(NAME_RETAIN_TEMPLATE_CACHE);
+        if (b != null) {
+            eng.setRetainTemplateCache(b.booleanValue());
+        }
+
+        s = (String) get(NAME_TEMPLATE_CACHE_SIZE);
+        if (s != null) {
+            int strongSize = 0;
+            int softSize = 0;
+            String[] parts = StringUtil.split(s, ',');
+            for (int partIdx = 0; partIdx < parts.length; partIdx++) {
+                String part = parts[partIdx].trim();
+                int colonIdx = part.indexOf(':');
+                String sizeName = colonIdx != -1 ? part.substring(0, colonIdx).trim() : null;
+                int size;
+                try {
+                    size = colonIdx != -1 ? Integer.parseInt(part.substring(colonIdx + 1).trim()) : -1;
+                } catch (NumberFormatException e) {
+                    size = -1;
+                }
+                if (size < 0 || !("strong".equals(sizeName) || "soft".equals(sizeName))) {
+                    throw new SettingException(
+                            "The value of the \"" + NAME_TEMPLATE_CACHE_SIZE
+                            + "\" setting must be like \"strong: 20, soft: 250\", but it was "
+                            + StringUtil.jQuote(s) + ".");
+                }
+                if (sizeName.equals("strong")) {
+                    strongSize = size;
+                } else {
+                    softSize = size;
+                }
+            }
+            eng.setTemplateCacheSize(strongSize, softSize);
+        }
+
+        s = (String) get(NAME_DATA_LOADER_CACHE_SIZE);
+        if (s != null) {
+            int maxEntries = 0;
+            long maxWeight = 0;
+            String[] parts = StringUtil.split(s, ',');
+            for (int partIdx = 0; partIdx < parts.length; partIdx++) {
+                String part = parts[partIdx].trim();
+                int colonIdx = part.indexOf(':');
+                String sizeName = colonIdx != -1 ? part.substring(0, colonIdx).trim() : null;
+                long size;
+                try {
+                    size = colonIdx != -1 ? Long.parseLong(part.substring(colonIdx + 1).trim()) : -1;
+                } catch (NumberFormatException e) {
+                    size = -1;
+                }
+                if (size < 0 || !("entries".equals(sizeName) && size <= Integer.MAX_VALUE
+                        || "bytes".equals(sizeName))) {
+                    throw new SettingException(
+                            "The value of the \"" + NAME_DATA_LOADER_CACHE_SIZE
+                            + "\" setting must be like \"entries: 100, bytes: 50000000\", but it was "
+                            + StringUtil.jQuote(s) + ".");
+                }
+                if (sizeName.equals("entries")) {
+                    maxEntries = (int) size;
+                } else {
+                    maxWeight = size;
+                }
+            }
+            if (dataLoaderResultCache == null
+                    || dataLoaderResultCache.getMaxEntries() != maxEntries
+                    || dataLoaderResultCache.getMaxWeight() != maxWeight) {
+                dataLoaderResultCache = new LruDataLoaderResultCache(maxEntries, maxWeight);
+            }
+            eng.setDataLoaderResultCache(dataLoaderResultCache);
+        } else {
+            dataLoaderResultCache = null;
+        }
+
+        b = (Boolean) get(NAME_MEMOIZE_DATA_LOADER_CALLS);
+        if (b != null) {
+            eng.setMemoizeDataLoaderCalls(b.booleanValue());
+        }
+
         // Root directories and source/output files:
 
         // - single-file mode:
@@ -1780,7 +2049,16 @@ public class Settings {
                         + "FMPP can't start working without that.");
             } 
         } else {
-            if (f.exists() && !f.isDirectory()) {
+            File archive = getOutputArchive(f);
+            if (archive != null) {
+                if (archive.isDirectory()) {
+                    throw new SettingException(
+                            "This output archive file is a directory: "
+                            + archive.getPath());
+                }
+                f = archive;
+                eng.setOutputSink(new ZipOutputSink(archive));
+            } else if (f.exists() && !f.isDirectory()) {
                 throw new SettingException(
                         "This output root directory is not a directoy: "
                         + f.getPath());
@@ -1851,6 +2129,11 @@ public class Settings {
             }
         }
         
+        b = (Boolean) get(NAME_INDEX_FREEMARKER_LINKS);
+        if (b != null) {
+            eng.setIndexFreemarkerLinks(b.booleanValue());
+        }
+
         // Adding FreeMarker links
         
         m = (Map) get(NAME_FREEMARKER_LINKS);
@@ -1902,6 +2185,8 @@ public class Settings {
         
         ls = (List) get(NAME_DATA);
         if (ls != null) {
+            b = (Boolean) get(NAME_LAZY_DATA);
+            boolean lazyData = b != null && b.booleanValue();
             eng.clearData();
             Map dataModel = new HashMap();
             for (i = 0; i < ls.size(); i++) {
@@ -1910,7 +2195,9 @@ public class Settings {
                     try {
                         dataModel.putAll(Interpreter.evalAsHash(
                                 (String) o,
-                                new DataLoaderEvaluationEnvironment(eng),
+                                lazyData
+                                        ? new LazyDataEvaluationEnvironment(eng)
+                                        : new DataLoaderEvaluationEnvironment(eng),
                                 false,
                                 null));
                     } catch (EvalException e) {
@@ -1923,7 +2210,9 @@ public class Settings {
                     try {
                         o = Interpreter.eval(
                                     fr,
-                                    new DataLoaderEvaluationEnvironment(eng),
+                                    lazyData
+                                            ? new LazyDataEvaluationEnvironment(eng)
+                                            : new DataLoaderEvaluationEnvironment(eng),
                                     false);
                         try {
                             dataModel.putAll(TddUtil.convertToDataMap(o));
@@ -1950,7 +2239,11 @@ public class Settings {
                     }
                 }
             }
-            eng.addData(dataModel);
+            if (lazyData) {
+                addLazyData(eng, dataModel);
+            } else {
+                eng.addData(dataModel);
+            }
         }
 
         // - Template data (deprecated)
@@ -2686,6 +2979,7 @@ public class Settings {
                 }
             }
             cfgFile = cfgFile.getCanonicalFile();
+            loadedCfgFiles.add(cfgFile);
             s = cfgFile.getName().toLowerCase();
             tddMode = !(s.endsWith(".cfg") || s.endsWith(".properties"));
             File inherit;
@@ -2863,6 +3157,144 @@ public class Settings {
         }
     }
 
+    private static void loadOutputFilters(Engine eng, List ls)
+            throws SettingException {
+        eng.clearOutputFilters();
+        for (Object it : ls) {
+            if (!(it instanceof FunctionCall)) {
+                throw new SettingException(
+                        "All sequence items must be filter(...) function calls, but "
+                        + "one of them is a(n) " + typeName(it) + ".");
+            }
+            FunctionCall filterCall = (FunctionCall) it;
+            if (!filterCall.getName().equals("filter")) {
+                throw new SettingException(
+                        "Only \"filter\" function is allowed here, not "
+                        + StringUtil.jQuote(filterCall.getName()));
+            }
+
+            List filterParams = filterCall.getParams();
+            if (filterParams.size() < 2) {
+                throw new SettingException(
+                        "\"filter\" function call needs at least "
+                        + "two parameters (path pattern(s) and output filter), but it has " + filterParams.size()
+                        + " parameter(s).");
+            }
+
+            List pathPatterns;
+            Object pathPatternsParam = filterParams.get(0);
+            if (pathPatternsParam instanceof String) {
+                pathPatterns = Collections.singletonList(pathPatternsParam);
+            } else if (pathPatternsParam instanceof List) {
+                pathPatterns = (List) pathPatternsParam;
+            } else {
+                throw new SettingException(
+                        "The 1st argument to the \"filter\" function call must be a string or a sequence of "
+                        + "strings (path patterns), but it's a(n) " + typeName(pathPatternsParam) + ".");
+            }
+            for (Object pathPattern : pathPatterns) {
+                if (!(pathPattern instanceof String)) {
+                    throw new SettingException(
+                            "The path patterns in the \"filter\" function call must be strings, but one of them "
+                            + "is a(n) " + typeName(pathPattern) + ".");
+                }
+            }
+
+            for (int i = 1; i < filterParams.size(); i++) {
+                OutputFilter filter = createOutputFilter(filterParams.get(i));
+                for (Object pathPattern : pathPatterns) {
+                    try {
+                        eng.addOutputFilter((String) pathPattern, filter);
+                    } catch (Exception e) {
+                        throw new SettingException("FMPP Engine has rejected the value.", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an output filter from its name (which is a built-in filter name or a class name), or from a function
+     * call for built-in filters that have parameters.
+     */
+    private static OutputFilter createOutputFilter(Object value)
+            throws SettingException {
+        String name;
+        List params;
+        if (value instanceof String) {
+            name = (String) value;
+            params = Collections.EMPTY_LIST;
+        } else if (value instanceof FunctionCall) {
+            name = ((FunctionCall) value).getName();
+            params = ((FunctionCall) value).getParams();
+        } else {
+            throw new SettingException(
+                    "Output filters must be specified with their name or with a function call, but one of them "
+                    + "is a(n) " + typeName(value) + ".");
+        }
+
+        if (name.equals("stripHtmlComments")) {
+            checkNoOutputFilterParams(name, params);
+            return new HtmlCommentStrippingFilter();
+        } else if (name.equals("stripWhitespace")) {
+            checkNoOutputFilterParams(name, params);
+            return new WhitespaceStrippingFilter();
+        } else if (name.equals("normalizeLineBreaks")) {
+            if (params.size() > 1) {
+                throw new SettingException(
+                        "The \"normalizeLineBreaks\" output filter has at most 1 parameter, but it has "
+                        + params.size() + ".");
+            }
+            String lineBreak = "\n";
+            if (params.size() == 1) {
+                Object param = params.get(0);
+                if ("LF".equals(param)) {
+                    lineBreak = "\n";
+                } else if ("CRLF".equals(param)) {
+                    lineBreak = "\r\n";
+                } else if ("CR".equals(param)) {
+                    lineBreak = "\r";
+                } else {
+                    throw new SettingException(
+                            "The parameter of the \"normalizeLineBreaks\" output filter must be "
+                            + "LF, CRLF or CR, but it was " + (param instanceof String
+                                    ? StringUtil.jQuote((String) param) : "a(n) " + typeName(param)) + ".");
+                }
+            }
+            return new LineBreakNormalizingFilter(lineBreak);
+        }
+
+        if (Character.isLowerCase(name.charAt(0)) && name.indexOf('.') == -1) {
+            throw new SettingException(
+                    "Unknown output filter: " + StringUtil.jQuote(name)
+                    + ". The built-in ones are: stripHtmlComments, stripWhitespace, normalizeLineBreaks");
+        }
+        checkNoOutputFilterParams(name, params);
+        Class cl;
+        try {
+            cl = MiscUtil.classForName(name);
+        } catch (ClassNotFoundException e) {
+            throw new SettingException("Output filter class not found: " + name, e);
+        }
+        if (!OutputFilter.class.isAssignableFrom(cl)) {
+            throw new SettingException(
+                    "Output filter class must implement fmpp.OutputFilter, but this class doesn't implement "
+                    + "that: " + cl.getName());
+        }
+        try {
+            return (OutputFilter) cl.newInstance();
+        } catch (Exception e) {
+            throw new SettingException("Failed to create an instance of " + cl.getName(), e);
+        }
+    }
+
+    private static void checkNoOutputFilterParams(String name, List params) throws SettingException {
+        if (params.size() != 0) {
+            throw new SettingException(
+                    "The " + StringUtil.jQuote(name) + " output filter has no parameters.");
+        }
+    }
+
     private static void loadBorderChoosers(Engine eng, List ls)
             throws SettingException {
         eng.clearFooterChoosers();
@@ -3015,6 +3447,31 @@ public class Settings {
         }
     }
 
+    /**
+     * If the value of the "outputRoot" setting has a {@code zip:} or
+     * {@code jar:} prefix, returns the archive file it points to.
+     */
+    private static File getOutputArchive(File outputRoot) {
+        if (!(outputRoot instanceof FileWithSettingValue)) {
+            return null;
+        }
+        String value = ((FileWithSettingValue) outputRoot).getSettingValue();
+        if (!value.startsWith(OUTPUT_ARCHIVE_PREFIX_ZIP) && !value.startsWith(OUTPUT_ARCHIVE_PREFIX_JAR)) {
+            return null;
+        }
+        File archive = new File(value.substring(OUTPUT_ARCHIVE_PREFIX_ZIP.length()));
+        if (archive.isAbsolute()) {
+            return archive;
+        }
+        // The setting value was resolved relatively to the configuration base, so find that directory by walking
+        // upwards as many steps as many names the setting value has.
+        File base = outputRoot;
+        for (File f = new File(value); f != null; f = f.getParentFile()) {
+            base = base.getParentFile();
+        }
+        return new File(base, archive.getPath());
+    }
+
     private static void loadRemoveExtensions(Engine eng, List ls)
             throws SettingException {
         eng.clearRemoveExtensions();
@@ -3133,6 +3590,33 @@ public class Settings {
         }
     }
     
+    /**
+     * Adds the data to the engine, where the values that were left
+     * unevaluated by {@link LazyDataEvaluationEnvironment} will be evaluated
+     * on their first access.
+     */
+    private static void addLazyData(final Engine eng, Map dataModel) {
+        Iterator it = dataModel.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry ent = (Map.Entry) it.next();
+            String name = (String) ent.getKey();
+            Object value = ent.getValue();
+            if (value instanceof Fragment) {
+                final Fragment fr = (Fragment) value;
+                eng.addLazyData(name, new Callable<Object>() {
+                    public Object call() throws EvalException {
+                        return Interpreter.eval(
+                                fr,
+                                new DataLoaderEvaluationEnvironment(eng),
+                                false);
+                    }
+                });
+            } else {
+                eng.addData(name, value);
+            }
+        }
+    }
+    
     private static void loadFreemarkerLinks(Engine eng, Map m)
             throws IOException, SettingException {
         Iterator it = m.entrySet().iterator();
@@ -3572,6 +4056,41 @@ public class Settings {
         }
     }
 
+    /**
+     * Doesn't evaluate the values of the top-level hash entries, but stores
+     * them as {@link Fragment}-s, which {@link Settings#addLazyData} turns
+     * into lazily evaluated variables.
+     */
+    private static class LazyDataEvaluationEnvironment
+            extends DataLoaderEvaluationEnvironment {
+        private int hashKeyLevel;
+        private int nonHashLevel;
+
+        private LazyDataEvaluationEnvironment(Engine eng) {
+            super(eng);
+        }
+
+        public Object notify(
+                int event, Interpreter ip, String name, Object extra) {
+            super.notify(event, ip, name, extra);
+            if (event == EVENT_ENTER_HASH_KEY) {
+                hashKeyLevel++;
+                if (hashKeyLevel == 1 && nonHashLevel == 0) {
+                    return RETURN_FRAGMENT;
+                }
+            } else if (event == EVENT_LEAVE_HASH_KEY) {
+                hashKeyLevel--;
+            } else if (event == EVENT_ENTER_SEQUENCE
+                    || event == EVENT_ENTER_FUNCTION_PARAMS) {
+                nonHashLevel++;
+            } else if (event == EVENT_LEAVE_SEQUENCE
+                    || event == EVENT_LEAVE_FUNCTION_PARAMS) {
+                nonHashLevel--;
+            }
+            return null;
+        }
+    }
+
     private static class SequenceSettingType extends SettingType {
 
         protected Object convert(Settings settings, Object value)
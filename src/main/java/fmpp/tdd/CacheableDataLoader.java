@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.tdd;
+
+import java.util.List;
+
+import fmpp.Engine;
+
+/**
+ * A {@link DataLoader} whose results can be stored in the
+ * {@link DataLoaderResultCache} of the engine (see
+ * {@link Engine#setDataLoaderResultCache(DataLoaderResultCache)}), and thus
+ * reused in later processing sessions. Data loaders that don't implement this
+ * interface (like {@code now}) are always invoked.
+ * 
+ * <p>A cached result is reused if the data loader name, the arguments, and the
+ * context returned by {@link #getCacheKeyContext(Engine, List)} are equal, and
+ * none of the files registered with {@link Engine#addDependency(java.io.File)}
+ * during the {@link #load(Engine, List)} call has changed since then (based on
+ * their size and last modification time). Hence, the implementation must
+ * register all files it reads.
+ * 
+ * @since 0.9.17
+ */
+public interface CacheableDataLoader extends DataLoader {
+
+    /**
+     * Returns the values, other than the arguments, the result of the
+     * {@link #load(Engine, List)} call depends on, like the canonical path of
+     * the loaded file, and the engine settings used as defaults. The items must
+     * implement {@link Object#equals(Object)} and {@link Object#hashCode()}
+     * properly.
+     * 
+     * @return The context, or {@code null} if the result of this call can't be
+     *     cached.
+     */
+    List getCacheKeyContext(Engine e, List args) throws Exception;
+
+}
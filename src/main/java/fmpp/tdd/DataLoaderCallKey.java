@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.tdd;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Identifies a data loader invocation for {@link DataLoaderResultCache}. It
+ * consists of the data loader name, the arguments, and the context returned by
+ * {@link CacheableDataLoader#getCacheKeyContext(fmpp.Engine, List)}.
+ * The arguments are normalized, so for example numbers that only differ in
+ * their type or precision (like {@code 1} and {@code 1.0}) are equal.
+ * 
+ * @since 0.9.17
+ */
+public final class DataLoaderCallKey {
+
+    /** Returned by {@link #normalize(Object)} for values that can't be compared reliably. */
+    private static final Object NOT_NORMALIZABLE = new Object();
+
+    private final String dataLoaderName;
+    private final List arguments;
+    private final List context;
+    private final int hashCode;
+
+    private DataLoaderCallKey(String dataLoaderName, List arguments, List context) {
+        this.dataLoaderName = dataLoaderName;
+        this.arguments = arguments;
+        this.context = context;
+        int h = dataLoaderName.hashCode();
+        h = h * 31 + arguments.hashCode();
+        h = h * 31 + (context != null ? context.hashCode() : 0);
+        this.hashCode = h;
+    }
+
+    /**
+     * Creates a new key.
+     * 
+     * @param context The context; can be {@code null}.
+     * 
+     * @return The key, or {@code null} if the arguments contain values that
+     *     can't be compared reliably, like Java objects of unknown type (which
+     *     can come from {@code pp.loadData}).
+     */
+    public static DataLoaderCallKey create(String dataLoaderName, List args, List context) {
+        Object normalizedArgs = normalize(args);
+        if (normalizedArgs == NOT_NORMALIZABLE) {
+            return null;
+        }
+        return new DataLoaderCallKey(dataLoaderName, (List) normalizedArgs, context);
+    }
+
+    private static Object normalize(Object o) {
+        if (o == null || o instanceof String || o instanceof Boolean || o instanceof Character) {
+            return o;
+        } else if (o instanceof Number) {
+            if (o instanceof Double || o instanceof Float) {
+                double d = ((Number) o).doubleValue();
+                if (Double.isNaN(d) || Double.isInfinite(d)) {
+                    return Double.valueOf(d);
+                }
+            }
+            try {
+                BigDecimal bd = o instanceof BigDecimal ? (BigDecimal) o : new BigDecimal(o.toString());
+                return bd.signum() == 0 ? BigDecimal.ZERO : bd.stripTrailingZeros();
+            } catch (NumberFormatException e) {
+                return NOT_NORMALIZABLE;
+            }
+        } else if (o instanceof List) {
+            List ls = (List) o;
+            List res = new ArrayList(ls.size());
+            for (Iterator it = ls.iterator(); it.hasNext(); ) {
+                Object item = normalize(it.next());
+                if (item == NOT_NORMALIZABLE) {
+                    return NOT_NORMALIZABLE;
+                }
+                res.add(item);
+            }
+            return Collections.unmodifiableList(res);
+        } else if (o instanceof Map) {
+            Map m = (Map) o;
+            Map res = new HashMap(m.size() * 4 / 3 + 1);
+            for (Iterator it = m.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry ent = (Map.Entry) it.next();
+                Object key = normalize(ent.getKey());
+                Object value = normalize(ent.getValue());
+                if (key == NOT_NORMALIZABLE || value == NOT_NORMALIZABLE) {
+                    return NOT_NORMALIZABLE;
+                }
+                res.put(key, value);
+            }
+            return Collections.unmodifiableMap(res);
+        } else {
+            return NOT_NORMALIZABLE;
+        }
+    }
+
+    public String getDataLoaderName() {
+        return dataLoaderName;
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof DataLoaderCallKey)) {
+            return false;
+        }
+        DataLoaderCallKey other = (DataLoaderCallKey) o;
+        return hashCode == other.hashCode
+                && dataLoaderName.equals(other.dataLoaderName)
+                && arguments.equals(other.arguments)
+                && (context == null ? other.context == null : context.equals(other.context));
+    }
+
+    public int hashCode() {
+        return hashCode;
+    }
+
+    public String toString() {
+        return dataLoaderName + arguments + (context != null ? " " + context : "");
+    }
+
+}
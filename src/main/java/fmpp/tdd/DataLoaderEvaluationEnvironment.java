@@ -84,9 +84,10 @@ public class DataLoaderEvaluationEnvironment implements EvaluationEnvironment {
                     "Function \"get\" needs at least 1 arguments. "
                     + "get(name, subName, subSubName, ...)");
         } else {
-            return TddUtil.getDataLoaderInstance(
-                    eng,
-                    fc.getName()).load(eng, fc.getParams());
+            return eng.loadData(
+                    fc.getName(),
+                    TddUtil.getDataLoaderInstance(eng, fc.getName()),
+                    fc.getParams());
         }
     }
 
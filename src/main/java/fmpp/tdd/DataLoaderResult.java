@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.tdd;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a data loader invocation, as stored in
+ * {@link DataLoaderResultCache}, together with the size and last modification
+ * time of the files it was loaded from.
+ * 
+ * @since 0.9.17
+ */
+public final class DataLoaderResult {
+
+    private final Object value;
+    private final File[] files;
+    private final long[] lengths;
+    private final long[] lastModifieds;
+    private final long weight;
+
+    /**
+     * Creates a new result, and records the current size and last
+     * modification time of the files.
+     * 
+     * @param files The files the value was loaded from.
+     */
+    public DataLoaderResult(Object value, Collection<File> files) {
+        this.value = value;
+        this.files = files.toArray(new File[files.size()]);
+        lengths = new long[this.files.length];
+        lastModifieds = new long[this.files.length];
+        long weight = 0;
+        for (int i = 0; i < this.files.length; i++) {
+            File f = this.files[i];
+            lengths[i] = f.length();
+            lastModifieds[i] = f.lastModified();
+            weight += lengths[i];
+        }
+        this.weight = weight;
+    }
+
+    /**
+     * The result of the data loader.
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * The files the value was loaded from.
+     */
+    public List<File> getFiles() {
+        return Collections.unmodifiableList(Arrays.asList(files));
+    }
+
+    /**
+     * Tells if none of the files has changed since this object was created.
+     */
+    public boolean isCurrent() {
+        for (int i = 0; i < files.length; i++) {
+            File f = files[i];
+            if (f.lastModified() != lastModifieds[i] || f.length() != lengths[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells if any of the files were modified so recently that a further
+     * modification might not change its last modification time (as file
+     * systems store it with limited precision), so the result shouldn't be
+     * cached.
+     * 
+     * @param precision The precision of the last modification times in
+     *     milliseconds.
+     */
+    public boolean isRecentlyModified(long precision) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < files.length; i++) {
+            if (now - lastModifieds[i] < precision) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The total size of the files, which is used as an estimation of the
+     * memory used by the value.
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.tdd;
+
+/**
+ * Stores the results of {@link CacheableDataLoader} invocations, so that they
+ * can be reused in later processing sessions.
+ * Set it with {@link fmpp.Engine#setDataLoaderResultCache(DataLoaderResultCache)}.
+ * The implementations must be thread-safe.
+ * 
+ * @see LruDataLoaderResultCache
+ * 
+ * @since 0.9.17
+ */
+public interface DataLoaderResultCache {
+
+    /**
+     * Returns the result stored for the key, or {@code null} if there's no
+     * such result, or it's not current anymore (see
+     * {@link DataLoaderResult#isCurrent()}).
+     */
+    DataLoaderResult get(DataLoaderCallKey key);
+
+    /**
+     * Stores the result for the key, replacing the earlier result if there was
+     * any.
+     */
+    void put(DataLoaderCallKey key, DataLoaderResult result);
+
+    /**
+     * Removes all the stored results.
+     */
+    void clear();
+
+}
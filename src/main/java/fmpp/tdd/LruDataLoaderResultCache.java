@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.tdd;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * {@link DataLoaderResultCache} that discards the least recently used results
+ * when the number of stored results, or their total weight (see
+ * {@link DataLoaderResult#getWeight()}) would exceed the limit. It also counts
+ * the hits and misses.
+ * 
+ * @since 0.9.17
+ */
+public class LruDataLoaderResultCache implements DataLoaderResultCache {
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final LinkedHashMap<DataLoaderCallKey, DataLoaderResult> results
+            = new LinkedHashMap<DataLoaderCallKey, DataLoaderResult>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries The maximum number of stored results, or 0 if there's
+     *     no such limit.
+     * @param maxWeight The maximum of the total weight of the stored results
+     *     (roughly, the total size of the files they were loaded from, in
+     *     bytes), or 0 if there's no such limit. Results that are heavier than
+     *     this alone aren't stored.
+     */
+    public LruDataLoaderResultCache(int maxEntries, long maxWeight) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries can't be negative: " + maxEntries);
+        }
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("maxWeight can't be negative: " + maxWeight);
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    public synchronized DataLoaderResult get(DataLoaderCallKey key) {
+        DataLoaderResult result = results.get(key);
+        if (result != null && !result.isCurrent()) {
+            remove(key);
+            result = null;
+        }
+        if (result != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return result;
+    }
+
+    public synchronized void put(DataLoaderCallKey key, DataLoaderResult result) {
+        remove(key);
+        if (maxWeight != 0 && result.getWeight() > maxWeight) {
+            return;
+        }
+        results.put(key, result);
+        weight += result.getWeight();
+        Iterator<DataLoaderResult> it = results.values().iterator();
+        while ((maxEntries != 0 && results.size() > maxEntries)
+                || (maxWeight != 0 && weight > maxWeight)) {
+            weight -= it.next().getWeight();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(DataLoaderCallKey key) {
+        DataLoaderResult removed = results.remove(key);
+        if (removed != null) {
+            weight -= removed.getWeight();
+        }
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        weight = 0;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized int getSize() {
+        return results.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * The number of {@link #get(DataLoaderCallKey)} calls that have returned
+     * a stored result.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * The number of {@link #get(DataLoaderCallKey)} calls that haven't found a
+     * (current) result.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * The number of results that were discarded because a limit was reached.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized String toString() {
+        return "LruDataLoaderResultCache(size=" + results.size() + ", weight=" + weight
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ")";
+    }
+
+}
@@ -390,6 +390,139 @@ public class AntTask extends org.apache.tools.ant.taskdefs.MatchingTask {
         initialOps.setProperty(Settings.NAME_SKIP_UNCHANGED, skipUnchanged);
     }
 
+    /**
+     * @since 0.9.17
+     */
+    public void setParallelism(String value) {
+        initialOps.setProperty(Settings.NAME_PARALLELISM, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setCopyThreads(String value) {
+        initialOps.setProperty(Settings.NAME_COPY_THREADS, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setCopyStrategy(String value) {
+        initialOps.setProperty(Settings.NAME_COPY_STRATEGY, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setDependencyTracking(String value) {
+        initialOps.setProperty(Settings.NAME_DEPENDENCY_TRACKING, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setWriteOnlyIfChanged(String value) {
+        initialOps.setProperty(Settings.NAME_WRITE_ONLY_IF_CHANGED, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setAtomicOutput(String value) {
+        initialOps.setProperty(Settings.NAME_ATOMIC_OUTPUT, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setOutputSync(String value) {
+        initialOps.setProperty(Settings.NAME_OUTPUT_SYNC, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setGzipOutputs(String value) {
+        initialOps.setProperty(Settings.NAME_GZIP_OUTPUTS, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setGzipMinSize(String value) {
+        initialOps.setProperty(Settings.NAME_GZIP_MIN_SIZE, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setOutputFilters(String value) {
+        initialOps.setProperty(Settings.NAME_OUTPUT_FILTERS, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void addConfiguredOutputFilters(AntAttributeSubstitution ats) {
+        doAttributeSubstitution(Settings.NAME_OUTPUT_FILTERS, ats);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setOutputManifest(String value) {
+        initialOps.setProperty(Settings.NAME_OUTPUT_MANIFEST, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setPruneStaleOutputs(String value) {
+        initialOps.setProperty(Settings.NAME_PRUNE_STALE_OUTPUTS, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setRetainTemplateCache(String value) {
+        initialOps.setProperty(Settings.NAME_RETAIN_TEMPLATE_CACHE, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setTemplateCacheSize(String value) {
+        initialOps.setProperty(Settings.NAME_TEMPLATE_CACHE_SIZE, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setIndexFreemarkerLinks(String value) {
+        initialOps.setProperty(Settings.NAME_INDEX_FREEMARKER_LINKS, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setLazyData(String value) {
+        initialOps.setProperty(Settings.NAME_LAZY_DATA, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setDataLoaderCacheSize(String value) {
+        initialOps.setProperty(Settings.NAME_DATA_LOADER_CACHE_SIZE, value);
+    }
+
+    /**
+     * @since 0.9.17
+     */
+    public void setMemoizeDataLoaderCalls(String value) {
+        initialOps.setProperty(Settings.NAME_MEMOIZE_DATA_LOADER_CALLS, value);
+    }
+
     public void setTemplateData(String templateData) {
         initialOps.setProperty(Settings.NAME_TEMPLATE_DATA, templateData);
     }
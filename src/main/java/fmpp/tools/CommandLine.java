@@ -25,6 +25,7 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Properties;
+import java.util.Set;
 
 import fmpp.Engine;
 import fmpp.ProcessingException;
@@ -70,12 +71,15 @@ public class CommandLine {
     private static final String OPTION_VERSION = "version";
     private static final String OPTION_HELP = "help";
     private static final String OPTION_LONG_HELP = "long-help";
+    private static final String OPTION_WATCH = "watch";
     
     // Misc. static:
     private static final String RC_FILE_NAME = ".fmpprc";
     private static final int EF_NORMAL = 0;
     private static final int EF_TERSE = 1;
     private static final int EF_QUIET = 2;
+    private static final long WATCH_POLL_INTERVAL = 500;
+    private static final long WATCH_QUIET_PERIOD = 300;
 
     // Option variables:
     private boolean quiet;
@@ -291,7 +295,9 @@ public class CommandLine {
                     .desc("Sets the root directory of source files. "
                             + "In bulk-mode it defaults to the current "                            + "working directory.");
             ap.addOption("O DIR", cln(Settings.NAME_OUTPUT_ROOT))
-                    .desc("Sets the root directory of output files.");
+                    .desc("Sets the root directory of output files. With \"zip:\" "
+                            + "or \"jar:\" prefix (like zip:out/site.zip), the "
+                            + "output files are written into that archive.");
             ap.addOption("o FILE", cln(Settings.NAME_OUTPUT_FILE))
                     .desc("The output file. This switches FMPP to single-file "
                             + "mode.");
@@ -300,7 +306,87 @@ public class CommandLine {
             ap.addOption("U WHAT", cln(Settings.NAME_SKIP_UNCHANGED))
                     .desc("Skip <WHAT> files if the source was not modified "
                             + "after the output file was last modified. "
-                            + "<WHAT> can be \"all\", \"none\" or \"static\"");
+                            + "<WHAT> can be \"all\", \"none\", \"static\" "
+                            + "or \"hash\" (like \"static\", but compares "
+                            + "the file content recorded earlier).");
+            ap.addOption(null, cln(Settings.NAME_PARALLELISM) + "=N")
+                    .desc("The number of threads used to process the files "
+                            + "of a turn. 0 means the number of available "
+                            + "processors. The default is 1.");
+            ap.addOption(null, cln(Settings.NAME_COPY_THREADS) + "=N")
+                    .desc("The number of threads used to copy the static "
+                            + "files in the background, while the templates "
+                            + "are executed. The default is 0, which means "
+                            + "no background copying.");
+            ap.addOption(null, cln(Settings.NAME_COPY_STRATEGY) + "=WHAT")
+                    .desc("How static files are put into the output "
+                            + "directory. <WHAT> can be \"copy\" (the "
+                            + "default), \"hardLink\" or \"symbolicLink\". "
+                            + "Falls back to copying where linking fails.");
+            ap.addOption(null, cln(Settings.NAME_DEPENDENCY_TRACKING))
+                    .propertyValue("true")
+                    .desc("Record the files each output was generated from, "
+                            + "and skip the files whose output is up to "
+                            + "date.");
+            ap.addOption(null, cln(Settings.NAME_WRITE_ONLY_IF_CHANGED))
+                    .propertyValue("true")
+                    .desc("Don't overwrite the output files whose content "
+                            + "haven't changed.");
+            ap.addOption(null, cln(Settings.NAME_ATOMIC_OUTPUT))
+                    .propertyValue("true")
+                    .desc("Write the output files into temporary files, and "
+                            + "rename them to the final name when they are "
+                            + "complete.");
+            ap.addOption(null, cln(Settings.NAME_OUTPUT_SYNC) + "=WHEN")
+                    .desc("When to force the atomically replaced output files "
+                            + "to the disk. <WHEN> can be \"none\" (the "
+                            + "default), \"perFile\" or \"sessionEnd\".");
+            ap.addOption(null, cln(Settings.NAME_GZIP_OUTPUTS) + "=SEQ")
+                    .desc("Write a gzip compressed .gz file next to the "
+                            + "output files matching these path patterns, "
+                            + "like **/*.html, **/*.css.");
+            ap.addOption(null, cln(Settings.NAME_GZIP_MIN_SIZE) + "=N")
+                    .desc("Output files smaller than this many bytes don't "
+                            + "get a .gz file. The default is 256.");
+            ap.addOption(null, cln(Settings.NAME_OUTPUT_MANIFEST))
+                    .propertyValue("true")
+                    .desc("Record the output files with their source files "
+                            + "in the output root directory.");
+            ap.addOption(null, cln(Settings.NAME_PRUNE_STALE_OUTPUTS))
+                    .propertyValue("true")
+                    .desc("Delete the output files of earlier runs that "
+                            + "weren't produced again. Implies "
+                            + "--output-manifest.");
+            ap.addOption(null, cln(Settings.NAME_RETAIN_TEMPLATE_CACHE))
+                    .propertyValue("true")
+                    .desc("Keep the parsed templates between processing "
+                            + "sessions; useful with --watch.");
+            ap.addOption(null, cln(Settings.NAME_TEMPLATE_CACHE_SIZE) + "=SIZES")
+                    .desc("Limits the number of cached templates, "
+                            + "e.g. \"strong: 20, soft: 250\".");
+            ap.addOption(null, cln(Settings.NAME_INDEX_FREEMARKER_LINKS))
+                    .propertyValue("true")
+                    .desc("Index the directories of the FreeMarker links "
+                            + "to speed up template lookups.");
+            ap.addOption(null, cln(Settings.NAME_LAZY_DATA))
+                    .propertyValue("true")
+                    .desc("Load the top-level \"data\" variables only "
+                            + "when a template first uses them.");
+            ap.addOption(null, cln(Settings.NAME_DATA_LOADER_CACHE_SIZE) + "=SIZES")
+                    .desc("Cache the results of the file based data loaders "
+                            + "across sessions, e.g. \"entries: 100, "
+                            + "bytes: 50000000\"; useful with --watch.");
+            ap.addOption(null, cln(Settings.NAME_MEMOIZE_DATA_LOADER_CALLS))
+                    .propertyValue("true")
+                    .desc("Run data loader calls with the same arguments "
+                            + "only once per session.");
+            ap.addOption(null, OPTION_WATCH)
+                    .desc("After processing, keep running, and process the "
+                            + "files again whenever some of them are changed. "
+                            + "Only the outputs affected by the changes are "
+                            + "generated again, as this forces the "
+                            + cln(Settings.NAME_DEPENDENCY_TRACKING)
+                            + " option. Stop it with Ctrl+C.");
             ap.addOption(null, cln(Settings.NAME_DATA_ROOT) + "=DIR")
                     .desc("Sets the root directory of data files. "
                             + "The reserved value \"source\" means that the "
@@ -335,6 +421,11 @@ public class CommandLine {
                     .desc("List of case(...)-s that choose the "
                             + "template output format (auto-escaping), e.g.:\n"
                             + "--output-formats=\"case(**/*.xsl, **/*.wsdl, XML), case(**/*.htm*, HTML)\"\n"
+                            + "By default empty.");
+            ap.addOption(null, cln(Settings.NAME_OUTPUT_FILTERS) + "=SEQ")
+                    .desc("List of filter(...)-s that choose the filters "
+                            + "applied on the template output, e.g.:\n"
+                            + "--output-filters=\"filter(**/*.html, stripHtmlComments, stripWhitespace)\"\n"
                             + "By default empty.");
             ap.addOption("M SEQ", cln(Settings.NAME_MODES))
                     .desc("The list of TDD function calls that choose the file "
@@ -757,8 +848,12 @@ public class CommandLine {
             
             final String opCfg = ops.getProperty(OPTION_CONFIGURATION);
             ops.remove(OPTION_CONFIGURATION); // remove non-setting
+            final boolean watch = ops.containsKey(OPTION_WATCH);
+            ops.remove(OPTION_WATCH); // remove non-setting
             
-            Settings settings = new Settings(new File("."));
+            Settings settings = watch
+                    ? new WatchModeSettings(new File("."))
+                    : new Settings(new File("."));
             settings.undashNames(ops);
             settings.addWithStrings(ops);
             ops = null;
@@ -862,58 +957,20 @@ public class CommandLine {
             // -----------------------------------------------------------------
             // Processing
             
-            Throwable abortingExc = null;
-            try {
-                settings.execute();
-            } catch (ProcessingException e) {
-                abortingExc = e;
-            }
-
-            if (!singleFileMode) {
-                p();
-            }
-            if (abortingExc != null) {
-                pe(">>> ABORTED! <<<");
+            if (watch) {
+                exitCode = watch(
+                        (WatchModeSettings) settings, stats, singleFileMode,
+                        cfgToLoad,
+                        !logFile.getSettingValue().equals("none")
+                                ? logFile : null);
             } else {
-                if (stats.getFailed() == 0) {
-                    p("*** DONE ***");
-                } else {
-                    p(">>> DONE WITH ERRORS <<<");
+                Throwable abortingExc = null;
+                try {
+                    settings.execute();
+                } catch (ProcessingException e) {
+                    abortingExc = e;
                 }
-            }
-            if (!singleFileMode) {
-                p();
-                p(stats.getExecuted() + " executed + "
-                        + stats.getXmlRendered() + " rendered + "
-                        + stats.getCopied() + " copied = "
-                        + stats.getSuccesful() + " successfully processed\n"
-                        + stats.getFailed() + " failed, "
-                        + stats.getWarnings() + " warning(s) ");
-                p("Time elapsed: "
-                        + (stats.getProcessingTime()) / 1000.0
-                        + " seconds");
-            }
-            if (abortingExc != null) {
-                pe("");
-                pe("The cause of aborting was: ");
-                if (abortingExc instanceof ProcessingException) {
-                    ProcessingException procExc = (ProcessingException) abortingExc;
-                    if (!singleFileMode && procExc.getSourceFile() != null) {
-                        pe("Error when processing this file: "
-                                + FileUtil.getRelativePath(procExc.getSourceRoot(), procExc.getSourceFile()));
-                    }
-                    abortingExc = procExc.getCause();
-                }
-                if (printStackTrace) {
-                    StringWriter sw = new StringWriter();
-                    PrintWriter pw = new PrintWriter(sw);
-                    abortingExc.printStackTrace(pw);
-                    pw.flush();
-                    pe(sw.toString());
-                } else {
-                    pe(MiscUtil.causeMessages(abortingExc));
-                }
-                exitCode = -2;
+                exitCode = printResult(abortingExc, stats, singleFileMode);
             }
         } catch (IOException e) {
             pe("I/O error:");
@@ -963,6 +1020,167 @@ public class CommandLine {
         return exitCode;
     }
 
+    /**
+     * Prints the result of a processing session.
+     * 
+     * @return the exit code
+     */
+    private int printResult(
+            Throwable abortingExc, StatisticsProgressListener stats,
+            boolean singleFileMode)
+            throws IOException {
+        if (!singleFileMode) {
+            p();
+        }
+        if (abortingExc != null) {
+            pe(">>> ABORTED! <<<");
+        } else {
+            if (stats.getFailed() == 0) {
+                p("*** DONE ***");
+            } else {
+                p(">>> DONE WITH ERRORS <<<");
+            }
+        }
+        if (!singleFileMode) {
+            p();
+            p(stats.getExecuted() + " executed + "
+                    + stats.getXmlRendered() + " rendered + "
+                    + stats.getCopied() + " copied = "
+                    + stats.getSuccesful() + " successfully processed\n"
+                    + stats.getFailed() + " failed, "
+                    + stats.getWarnings() + " warning(s) "
+                    + (stats.getOutputsUnchanged() != 0
+                            ? "\n" + stats.getOutputsUnchanged()
+                                    + " output(s) unchanged"
+                            : ""));
+            p("Time elapsed: "
+                    + (stats.getProcessingTime()) / 1000.0
+                    + " seconds");
+        }
+        if (abortingExc != null) {
+            pe("");
+            pe("The cause of aborting was: ");
+            if (abortingExc instanceof ProcessingException) {
+                ProcessingException procExc = (ProcessingException) abortingExc;
+                if (!singleFileMode && procExc.getSourceFile() != null) {
+                    pe("Error when processing this file: "
+                            + FileUtil.getRelativePath(procExc.getSourceRoot(), procExc.getSourceFile()));
+                }
+                abortingExc = procExc.getCause();
+            }
+            if (printStackTrace) {
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                abortingExc.printStackTrace(pw);
+                pw.flush();
+                pe(sw.toString());
+            } else {
+                pe(MiscUtil.causeMessages(abortingExc));
+            }
+            return -2;
+        }
+        return 0;
+    }
+
+    /**
+     * Processes the files, then processes them again whenever they are
+     * changed, until the thread is interrupted. The same {@link Engine} is
+     * used for all rounds, so the data loaded with the {@code data} setting
+     * doesn't have to be loaded again. If some of the files the {@code data}
+     * setting was loaded from was changed, the settings are executed again.
+     * The source root, the data root, and the files the {@code data} setting
+     * was loaded from are watched.
+     * 
+     * @return the exit code
+     */
+    private int watch(
+            WatchModeSettings settings, StatisticsProgressListener stats,
+            boolean singleFileMode, File cfgFile, File logFile)
+            throws SettingException, IOException {
+        if (cfgFile != null && cfgFile.isDirectory()) {
+            cfgFile = Settings.getDefaultConfigurationFile(cfgFile);
+        }
+        if (cfgFile != null) {
+            cfgFile = cfgFile.getCanonicalFile();
+        }
+        FileChangeWatcher watcher = new FileChangeWatcher(
+                WATCH_POLL_INTERVAL, WATCH_QUIET_PERIOD);
+        if (logFile != null) {
+            watcher.exclude(logFile.getCanonicalFile());
+        }
+
+        int exitCode;
+        boolean executeSettings = true;
+        while (true) {
+            Throwable abortingExc = null;
+            stats.reset();
+            if (executeSettings) {
+                try {
+                    settings.execute();
+                } catch (ProcessingException e) {
+                    abortingExc = e;
+                } catch (SettingException e) {
+                    if (settings.getEngine() == null) {
+                        // Nothing to watch yet
+                        throw e;
+                    }
+                    pe("Failed to apply the settings:");
+                    pe(MiscUtil.causeMessages(e));
+                }
+            } else {
+                try {
+                    settings.processAgain();
+                } catch (ProcessingException e) {
+                    abortingExc = e;
+                }
+            }
+            exitCode = printResult(abortingExc, stats, singleFileMode);
+
+            Engine eng = settings.getEngine();
+            Set<File> globalDeps = settings.getGlobalDependencies();
+            watcher.clear();
+            if (!singleFileMode) {
+                watcher.addDirectory(eng.getSourceRoot());
+                File dataRoot = eng.getDataRoot();
+                if (!FileUtil.isInsideOrEquals(dataRoot, eng.getSourceRoot())) {
+                    watcher.addDirectory(dataRoot);
+                }
+                watcher.exclude(eng.getOutputRoot());
+            } else {
+                watcher.addDirectory(
+                        settings.getSourceFile().getParentFile());
+                watcher.exclude(settings.getOutputFile());
+            }
+            watcher.addFiles(globalDeps);
+            watcher.takeSnapshot();
+
+            p();
+            p("Watching for changes... (Press Ctrl+C to stop.)");
+            tOut.flush();
+            eOut.flush();
+
+            Set<File> changes;
+            try {
+                changes = watcher.awaitChanges();
+            } catch (InterruptedException e) {
+                return exitCode;
+            }
+
+            executeSettings = false;
+            for (File f : changes) {
+                if (globalDeps.contains(f)) {
+                    executeSettings = true;
+                    if (f.equals(cfgFile)) {
+                        pe("Warning: The configuration file was changed. "
+                                + "Restart fmpp to apply the new settings.");
+                    }
+                }
+            }
+            p();
+            p(changes.size() + " changed file(s); processing again...");
+        }
+    }
+
     private void printHelp(ArgsParser ap) {
         p("Typical usages:");
         p("fmpp -C configfile", 3);
@@ -1114,6 +1332,59 @@ public class CommandLine {
         return Settings.getDashedName(name);
     }
 
+    /**
+     * {@link Settings} that leaks out the {@link Engine} and the arguments of
+     * the processing, so that the processing can be repeated with the same
+     * {@link Engine} in watch mode.
+     */
+    private static class WatchModeSettings extends Settings {
+        private Engine engine;
+        private Set<File> globalDependencies;
+        private File[] sources;
+        private File sourceFile;
+        private File outputFile;
+
+        WatchModeSettings(File baseDir) throws SettingException {
+            super(baseDir);
+        }
+
+        protected void doProcessing(
+                Engine eng, File[] sources, File sourceFile, File outputFile)
+                throws SettingException, ProcessingException {
+            // So that only the affected outputs are generated again, and the
+            // unchanged templates aren't parsed again
+            eng.setDependencyTracking(true);
+            eng.setRetainTemplateCache(true);
+            this.engine = eng;
+            // The engine forgets these at the end of the session
+            this.globalDependencies = eng.getGlobalDependencies();
+            this.sources = sources;
+            this.sourceFile = sourceFile;
+            this.outputFile = outputFile;
+            super.doProcessing(eng, sources, sourceFile, outputFile);
+        }
+
+        void processAgain() throws SettingException, ProcessingException {
+            super.doProcessing(engine, sources, sourceFile, outputFile);
+        }
+
+        Engine getEngine() {
+            return engine;
+        }
+
+        Set<File> getGlobalDependencies() {
+            return globalDependencies;
+        }
+
+        File getSourceFile() {
+            return sourceFile;
+        }
+
+        File getOutputFile() {
+            return outputFile;
+        }
+    }
+
     private static class FinishedException extends Exception {
         private static final long serialVersionUID = 1L;
         private static final FinishedException INSTANCE = new FinishedException(); 
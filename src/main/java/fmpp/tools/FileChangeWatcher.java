@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Attila Szegedi, Daniel Dekany, Jonathan Revusky
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fmpp.tools;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects the changes of files by periodically comparing the size and the
+ * last modification time of them with an earlier snapshot. Used by the
+ * {@code --watch} mode of the command-line tool. (Polling is used as the
+ * tool must run on Java 5, where there's no file system event API.)
+ */
+final class FileChangeWatcher {
+
+    private final long pollInterval;
+    private final long quietPeriod;
+    private final Set<File> dirs = new LinkedHashSet<File>();
+    private final Set<File> files = new LinkedHashSet<File>();
+    private final Set<File> excluded = new HashSet<File>();
+    private Map<File, Stamp> snapshot;
+
+    /**
+     * @param pollInterval The number of milliseconds between checking the
+     *     files for changes.
+     * @param quietPeriod The number of milliseconds for which the files must
+     *     remain unchanged after a change was detected, before the change is
+     *     reported. This is so that a burst of changes (like saving several
+     *     files, or a version control update) is reported together.
+     */
+    FileChangeWatcher(long pollInterval, long quietPeriod) {
+        this.pollInterval = pollInterval;
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Watches the files in the directory, recursively.
+     */
+    void addDirectory(File dir) {
+        dirs.add(dir.getAbsoluteFile());
+    }
+
+    /**
+     * Watches individual files, which needn't be inside the watched
+     * directories.
+     */
+    void addFiles(Collection<File> files) {
+        for (File f : files) {
+            this.files.add(f.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Excludes a file or directory (like the output root directory) that
+     * would otherwise be watched as it's inside a watched directory.
+     */
+    void exclude(File f) {
+        excluded.add(f.getAbsoluteFile());
+    }
+
+    /**
+     * Forgets the watched directories and files, but not the excluded ones.
+     */
+    void clear() {
+        dirs.clear();
+        files.clear();
+        snapshot = null;
+    }
+
+    /**
+     * Remembers the current state of the watched files; the changes will be
+     * detected relatively to this.
+     */
+    void takeSnapshot() {
+        snapshot = createSnapshot();
+    }
+
+    /**
+     * Blocks until some of the watched files were changed, added or deleted
+     * since the last snapshot, and then the files were quiet for the quiet
+     * period. Then it takes a new snapshot.
+     *
+     * @return The changed, added and deleted files; not empty.
+     */
+    Set<File> awaitChanges() throws InterruptedException {
+        if (snapshot == null) {
+            takeSnapshot();
+        }
+
+        Map<File, Stamp> newSnapshot;
+        do {
+            Thread.sleep(pollInterval);
+            newSnapshot = createSnapshot();
+        } while (newSnapshot.equals(snapshot));
+
+        Map<File, Stamp> quietSnapshot = newSnapshot;
+        do {
+            newSnapshot = quietSnapshot;
+            Thread.sleep(quietPeriod);
+            quietSnapshot = createSnapshot();
+        } while (!quietSnapshot.equals(newSnapshot));
+
+        Set<File> changes = new LinkedHashSet<File>();
+        for (Map.Entry<File, Stamp> ent : newSnapshot.entrySet()) {
+            if (!ent.getValue().equals(snapshot.get(ent.getKey()))) {
+                changes.add(ent.getKey());
+            }
+        }
+        for (File f : snapshot.keySet()) {
+            if (!newSnapshot.containsKey(f)) {
+                changes.add(f);
+            }
+        }
+        snapshot = newSnapshot;
+        return changes;
+    }
+
+    private Map<File, Stamp> createSnapshot() {
+        Map<File, Stamp> result = new HashMap<File, Stamp>();
+        for (File dir : dirs) {
+            addDirectoryToSnapshot(dir, result);
+        }
+        for (File f : files) {
+            if (!excluded.contains(f)) {
+                // A missing file gets a stamp too, so its creation is noticed.
+                result.put(f, new Stamp(f.length(), f.lastModified()));
+            }
+        }
+        return result;
+    }
+
+    private void addDirectoryToSnapshot(File dir, Map<File, Stamp> result) {
+        File[] dirFiles = dir.listFiles();
+        if (dirFiles == null) {
+            return;
+        }
+        for (int i = 0; i < dirFiles.length; i++) {
+            File f = dirFiles[i];
+            if (excluded.contains(f)) {
+                continue;
+            }
+            if (f.isDirectory()) {
+                addDirectoryToSnapshot(f, result);
+            } else {
+                result.put(f, new Stamp(f.length(), f.lastModified()));
+            }
+        }
+    }
+
+    private static final class Stamp {
+        private final long size;
+        private final long lastModified;
+
+        Stamp(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) o;
+            return size == other.size && lastModified == other.lastModified;
+        }
+
+        public int hashCode() {
+            return (int) (lastModified ^ (lastModified >>> 32)) ^ (int) size;
+        }
+    }
+
+}
@@ -99,9 +99,9 @@ public class BorderedReader extends Reader {
             clen = headerLength - index;
             if (clen > 0) {
                 clen = clen > len ? len : clen;
-                for (i = 0; i < clen; i++) {
-                    cbuf[off++] = header.charAt(index++);
-                }
+                header.getChars(index, index + clen, cbuf, off);
+                index += clen;
+                off += clen;
                 len -= clen;
                 total = clen;
             }
@@ -123,9 +123,8 @@ public class BorderedReader extends Reader {
             clen = footerLength - index;
             if (clen > 0) {
                 clen = clen > len ? len : clen;
-                for (i = 0; i < clen; i++) {
-                    cbuf[off++] = footer.charAt(index++);
-                }
+                footer.getChars(index, index + clen, cbuf, off);
+                index += clen;
                 total += clen;
             } else {
                 if (total == 0) {
@@ -22,13 +22,24 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Collection of file and path related functions.
  */
 public class FileUtil {
+    
+    /**
+     * The maximum number of bytes transferred in one {@link FileChannel#transferTo} call; some platforms
+     * refuse to transfer more at once.
+     */
+    private static final long MAX_TRANSFER_SIZE = 8L * 1024 * 1024;
+    
     /**
      * Reaturns the path of a file or directory relative to a directory,
      * in native format.
@@ -100,8 +111,7 @@ public class FileUtil {
      */
     public static void copyFile(File src, File dst, boolean copyLMD)
             throws IOException {
-        byte[] buffer = new byte[1024 * 64];
-        InputStream in = new FileInputStream(src);
+        FileInputStream in = new FileInputStream(src);
         try {
             long srcLMD = 0L;
             if (copyLMD) {
@@ -111,11 +121,24 @@ public class FileUtil {
                             + "time of " + src.getAbsolutePath());
                 }
             }
-            OutputStream out = new FileOutputStream(dst);
+            FileOutputStream out = new FileOutputStream(dst);
             try {
-                int ln;
-                while ((ln = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, ln);
+                // Let the OS copy the content directly where it can (like with sendfile), instead of copying it
+                // through Java byte arrays.
+                FileChannel inCh = in.getChannel();
+                FileChannel outCh = out.getChannel();
+                long size = inCh.size();
+                long pos = 0;
+                while (pos < size) {
+                    long n = inCh.transferTo(pos, Math.min(size - pos, MAX_TRANSFER_SIZE), outCh);
+                    if (n <= 0) {
+                        // The file was truncated meanwhile, or the channel doesn't support transferTo well. 
+                        break;
+                    }
+                    pos += n;
+                }
+                if (pos < size || inCh.size() != size) {
+                    copyRemaining(inCh, outCh, pos);
                 }
             } finally {
                 out.close();
@@ -127,6 +150,172 @@ public class FileUtil {
             in.close();
         }
     }
+    
+    private static void copyRemaining(FileChannel inCh, FileChannel outCh, long pos) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 64);
+        inCh.position(pos);
+        outCh.position(pos);
+        while (inCh.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                outCh.write(buffer);
+            }
+            buffer.clear();
+        }
+        outCh.truncate(outCh.position());
+    }
+
+    /**
+     * Tries to create a hard link to an existing file. This needs Java 7 or
+     * later at runtime; on earlier Java versions it always returns
+     * {@code false}.
+     * 
+     * @return {@code true} if the link was created, {@code false} if it
+     *     couldn't be created for any reason (like the file system doesn't
+     *     support hard links, or the two files are on different file
+     *     systems). In the last case the caller should fall back to copying.
+     * 
+     * @since 0.9.17
+     */
+    public static boolean tryCreateHardLink(File link, File existing) {
+        Method createLink = getNioFilesMethod("createLink", false);
+        if (createLink == null) {
+            return false;
+        }
+        try {
+            createLink.invoke(null, new Object[] { toPath(link), toPath(existing) });
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tries to create a symbolic link that points to the absolute path of
+     * the target file. This needs Java 7 or later at runtime; on earlier
+     * Java versions it always returns {@code false}.
+     * 
+     * @return {@code true} if the link was created, {@code false} if it
+     *     couldn't be created for any reason. In the last case the caller
+     *     should fall back to copying.
+     * 
+     * @since 0.9.17
+     */
+    public static boolean tryCreateSymbolicLink(File link, File target) {
+        Method createSymbolicLink = getNioFilesMethod("createSymbolicLink", true);
+        if (createSymbolicLink == null) {
+            return false;
+        }
+        try {
+            Object fileAttrs = Array.newInstance(createSymbolicLink.getParameterTypes()[2].getComponentType(), 0);
+            createSymbolicLink.invoke(
+                    null, new Object[] { toPath(link), toPath(target.getAbsoluteFile()), fileAttrs });
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Replaces the destination file with the source file by renaming the
+     * source file. Where possible (on Java 7 or later) this is an atomic
+     * move, so other processes either see the old or the new destination
+     * file, never a missing or a partially written one. Otherwise it falls
+     * back to {@link File#renameTo(File)}, which is also atomic on most
+     * platforms, except where it can't overwrite an existing file (like on
+     * Windows), in which case the destination file is deleted first.
+     * 
+     * @throws IOException if the source file couldn't be renamed.
+     * 
+     * @since 0.9.17
+     */
+    public static void replaceFile(File src, File dst) throws IOException {
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> optionClass = Class.forName("java.nio.file.CopyOption");
+            Method move = Class.forName("java.nio.file.Files").getMethod(
+                    "move", new Class[] { pathClass, pathClass, Array.newInstance(optionClass, 0).getClass() });
+            Object options = Array.newInstance(optionClass, 1);
+            Array.set(options, 0, Class.forName("java.nio.file.StandardCopyOption")
+                    .getField("ATOMIC_MOVE").get(null));
+            move.invoke(null, new Object[] { toPath(src), toPath(dst), options });
+            return;
+        } catch (Exception e) {
+            // Before Java 7, or atomic moves aren't supported here; fall back to renameTo
+        }
+        if (!src.renameTo(dst)) {
+            dst.delete();
+            if (!src.renameTo(dst)) {
+                throw new IOException("Failed to rename " + src.getPath() + " to " + dst.getPath());
+            }
+        }
+    }
+
+    /**
+     * Forces the content of the file to the storage device (fsync).
+     * 
+     * @since 0.9.17
+     */
+    public static void syncFile(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Tries to force the directory entries of a directory (like the result
+     * of a rename) to the storage device (fsync). This needs Java 7 or later
+     * at runtime, and an operating system where directories can be opened
+     * (not Windows); otherwise it always returns {@code false}.
+     * 
+     * @return {@code true} if the directory was synchronized, {@code false}
+     *     if it couldn't be done for any reason.
+     * 
+     * @since 0.9.17
+     */
+    public static boolean trySyncDirectory(File dir) {
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+            Method open = FileChannel.class.getMethod(
+                    "open", new Class[] { pathClass, Array.newInstance(optionClass, 0).getClass() });
+            Object options = Array.newInstance(optionClass, 1);
+            Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null));
+            FileChannel ch = (FileChannel) open.invoke(null, new Object[] { toPath(dir), options });
+            try {
+                ch.force(true);
+            } finally {
+                ch.close();
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+    
+    private static Method getNioFilesMethod(String name, boolean hasFileAttributes) {
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> filesClass = Class.forName("java.nio.file.Files");
+            if (hasFileAttributes) {
+                Class<?> fileAttrArrayClass = Array.newInstance(
+                        Class.forName("java.nio.file.attribute.FileAttribute"), 0).getClass();
+                return filesClass.getMethod(name, new Class[] { pathClass, pathClass, fileAttrArrayClass });
+            } else {
+                return filesClass.getMethod(name, new Class[] { pathClass, pathClass });
+            }
+        } catch (Exception e) {
+            // Before Java 7
+            return null;
+        }
+    }
+    
+    private static Object toPath(File f) throws Exception {
+        return File.class.getMethod("toPath", new Class[0]).invoke(f, new Object[0]);
+    }
 
     /**
      * Same as {@link #copyFile(File, File, boolean) copyFile(src, dst, true))}.
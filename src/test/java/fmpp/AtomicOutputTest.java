@@ -0,0 +1,82 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AtomicOutputTest extends FileProcessingTestBase {
+
+    @Before
+    public void createFiles() throws IOException {
+        outRoot.mkdirs();
+    }
+
+    @Test
+    public void streamReplacesFileOnClose() throws IOException {
+        File dst = new File(outRoot, "a.txt");
+        write(dst, "old");
+        AtomicFileOutputStream out = new AtomicFileOutputStream(createEngine(Engine.OUTPUT_SYNC_PER_FILE), dst);
+        out.write("new".getBytes("UTF-8"));
+        assertEquals("old", read(dst));
+        out.close();
+        assertEquals("new", read(dst));
+        assertEquals(1, outRoot.list().length);
+    }
+
+    @Test
+    public void discardedStreamKeepsFile() throws IOException {
+        File dst = new File(outRoot, "a.txt");
+        write(dst, "old");
+        AtomicFileOutputStream out = new AtomicFileOutputStream(createEngine(Engine.OUTPUT_SYNC_NONE), dst);
+        out.write("new".getBytes("UTF-8"));
+        out.discard();
+        out.write('x');
+        out.close();
+        assertEquals("old", read(dst));
+        assertEquals(1, outRoot.list().length);
+    }
+
+    @Test
+    public void failedTemplateKeepsEarlierOutput() throws IOException, ProcessingException {
+        write(new File(srcRoot, "good.txt"), "good ${1 + 1}");
+        write(new File(srcRoot, "bad.txt"), "bad ${noSuchVariable}");
+        write(new File(outRoot, "bad.txt"), "earlier");
+
+        Engine eng = createEngine(Engine.OUTPUT_SYNC_SESSION_END);
+        eng.setStopOnError(false);
+        eng.process(new File[] { srcRoot });
+
+        assertEquals("good 2", read(new File(outRoot, "good.txt")));
+        assertEquals("earlier", read(new File(outRoot, "bad.txt")));
+        assertEquals(2, outRoot.list().length);
+    }
+
+    @Test
+    public void copiedFile() throws IOException, ProcessingException {
+        write(new File(srcRoot, "image.png"), "png");
+        write(new File(outRoot, "image.png"), "earlier");
+
+        Engine eng = createEngine(Engine.OUTPUT_SYNC_PER_FILE);
+        eng.process(new File[] { srcRoot });
+
+        assertEquals("png", read(new File(outRoot, "image.png")));
+        assertEquals(1, outRoot.list().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalOutputSync() {
+        new Engine(Engine.VERSION_0_9_16).setOutputSync(3);
+    }
+
+    private Engine createEngine(int outputSync) throws IOException {
+        Engine eng = createEngine();
+        eng.setAtomicOutput(true);
+        eng.setOutputSync(outputSync);
+        return eng;
+    }
+
+}
@@ -0,0 +1,156 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fmpp.dataloaders.NowDataLoader;
+import fmpp.dataloaders.TddDataLoader;
+import fmpp.setting.SettingException;
+import fmpp.setting.Settings;
+import fmpp.tdd.LruDataLoaderResultCache;
+
+public class DataLoaderCacheTest extends FileProcessingTestBase {
+
+    private long past;
+
+    @Before
+    public void createFiles() throws IOException {
+        // Recently modified files aren't trusted for validating the cached results
+        past = System.currentTimeMillis() - 60000;
+    }
+
+    @Test
+    public void resultIsReusedUntilFileChanges() throws Exception {
+        File data = new File(dir, "data/d.tdd");
+        writeOld(data, "x: 1", 0);
+        write(new File(srcRoot, "a.txt"), "${d.x} ${pp.loadData('tdd', 'data/d.tdd').x}");
+        LruDataLoaderResultCache cache = new LruDataLoaderResultCache(0, 0);
+
+        Engine eng = createEngine(cache);
+        eng.addData("d", eng.loadData("tdd", new TddDataLoader(), list("data/d.tdd")));
+        eng.process(new File[] { srcRoot });
+        assertEquals("1 1", read(new File(outRoot, "a.txt")));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getSize());
+
+        // Same content length, but different modification time:
+        writeOld(data, "x: 2", 10000);
+        eng = createEngine(cache);
+        Object d = eng.loadData("tdd", new TddDataLoader(), list("data/d.tdd"));
+        assertEquals(2, cache.getMissCount());
+        assertSame(d, eng.loadData("tdd", new TddDataLoader(), list("data/d.tdd")));
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void dependenciesAreRegisteredOnHit() throws Exception {
+        writeOld(new File(dir, "data/d.tdd"), "x: 1", 0);
+        write(new File(srcRoot, "a.txt"), "${pp.loadData('tdd', 'data/d.tdd').x}");
+        LruDataLoaderResultCache cache = new LruDataLoaderResultCache(0, 0);
+        createEngine(cache).process(new File[] { srcRoot });
+
+        Engine eng = createEngine(cache);
+        eng.setDependencyTracking(true);
+        eng.process(new File[] { srcRoot });
+        assertEquals(1, cache.getHitCount());
+        String graph = read(new File(outRoot, DependencyGraph.FILE_NAME));
+        assertTrue(graph, graph.indexOf("d.tdd") != -1);
+    }
+
+    @Test
+    public void uncacheableCallsAreNotCached() throws Exception {
+        writeOld(new File(dir, "data/t.tdd"), "t: now()", 0);
+        LruDataLoaderResultCache cache = new LruDataLoaderResultCache(0, 0);
+        Engine eng = createEngine(cache);
+        eng.loadData("now", new NowDataLoader(), list());
+        eng.loadData("tdd", new TddDataLoader(), list("data/t.tdd"));
+        eng.loadData("tdd", new TddDataLoader(), list("data/t.tdd"));
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void recentlyModifiedFilesAreNotCached() throws Exception {
+        write(new File(dir, "data/d.tdd"), "x: 1");
+        LruDataLoaderResultCache cache = new LruDataLoaderResultCache(0, 0);
+        createEngine(cache).loadData("tdd", new TddDataLoader(), list("data/d.tdd"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        writeOld(new File(dir, "data/a.tdd"), "x: 1", 0);
+        writeOld(new File(dir, "data/b.tdd"), "x: 2", 0);
+        writeOld(new File(dir, "data/c.tdd"), "x: 3", 0);
+        LruDataLoaderResultCache cache = new LruDataLoaderResultCache(2, 0);
+        Engine eng = createEngine(cache);
+        eng.loadData("tdd", new TddDataLoader(), list("data/a.tdd"));
+        eng.loadData("tdd", new TddDataLoader(), list("data/b.tdd"));
+        eng.loadData("tdd", new TddDataLoader(), list("data/a.tdd"));
+        eng.loadData("tdd", new TddDataLoader(), list("data/c.tdd"));
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        eng.loadData("tdd", new TddDataLoader(), list("data/a.tdd"));
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void dataLoaderCacheSizeSetting() throws Exception {
+        writeOld(new File(dir, "data/d.tdd"), "x: 1", 0);
+        write(new File(srcRoot, "a.txt"), "${d.x}");
+        Settings settings = new Settings(dir);
+        settings.set(Settings.NAME_SOURCE_ROOT, srcRoot.getAbsolutePath());
+        settings.set(Settings.NAME_OUTPUT_ROOT, outRoot.getAbsolutePath());
+        settings.set(Settings.NAME_DATA_ROOT, dir.getAbsolutePath());
+        settings.set(Settings.NAME_QUIET, "true");
+        settings.set(Settings.NAME_DATA, "d: tdd(data/d.tdd)");
+        settings.set(Settings.NAME_DATA_LOADER_CACHE_SIZE, "entries: 10, bytes: 1000");
+        final Engine[] engine = new Engine[1];
+        settings.addProgressListener(new ProgressListener() {
+            public void notifyProgressEvent(
+                    Engine eng, int event, File src, int pMode, Throwable error, Object param) {
+                engine[0] = eng;
+            }
+        });
+        settings.execute();
+        LruDataLoaderResultCache cache = (LruDataLoaderResultCache) engine[0].getDataLoaderResultCache();
+        assertEquals(10, cache.getMaxEntries());
+        assertEquals(1000, cache.getMaxWeight());
+        settings.execute();
+        assertSame(cache, engine[0].getDataLoaderResultCache());
+        assertEquals(1, cache.getHitCount());
+
+        settings.set(Settings.NAME_DATA_LOADER_CACHE_SIZE, "entries: x");
+        try {
+            settings.execute();
+            fail();
+        } catch (SettingException e) {
+            assertTrue(e.getMessage().indexOf(Settings.NAME_DATA_LOADER_CACHE_SIZE) != -1);
+        }
+    }
+
+    private Engine createEngine(LruDataLoaderResultCache cache) throws IOException {
+        Engine eng = createEngine();
+        eng.setDataRoot(dir);
+        eng.setDataLoaderResultCache(cache);
+        return eng;
+    }
+
+    private static List list(Object... items) {
+        return Arrays.asList(items);
+    }
+
+    private void writeOld(File f, String content, long age) throws IOException {
+        write(f, content);
+        f.setLastModified(past + age);
+    }
+
+}
@@ -0,0 +1,127 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fmpp.dataloaders.TddDataLoader;
+import fmpp.setting.Settings;
+import fmpp.tdd.CacheableDataLoader;
+import fmpp.tdd.DataLoader;
+
+public class DataLoaderMemoizationTest extends FileProcessingTestBase {
+
+    private static final AtomicInteger COUNTING_LOADS = new AtomicInteger();
+    private static final AtomicInteger NON_DETERMINISTIC_LOADS = new AtomicInteger();
+
+    @Before
+    public void createFiles() throws IOException {
+        COUNTING_LOADS.set(0);
+        NON_DETERMINISTIC_LOADS.set(0);
+    }
+
+    @Test
+    public void equalCallsAreRunOnce() throws Exception {
+        Engine eng = createEngine();
+        DataLoader dl = new CountingDataLoader();
+        Object v = eng.loadData("c", dl, list("a", Integer.valueOf(1)));
+        // 1 and 1.0 are equal arguments:
+        assertSame(v, eng.loadData("c", dl, list("a", Double.valueOf(1))));
+        assertNotSame(v, eng.loadData("c", dl, list("b", Integer.valueOf(1))));
+        assertSame(
+                eng.loadDataAsModel("c", dl, list("a", Integer.valueOf(1))),
+                eng.loadDataAsModel("c", dl, list("a", Integer.valueOf(1))));
+        assertEquals(2, COUNTING_LOADS.get());
+
+        dl = new NonDeterministicDataLoader();
+        eng.loadData("n", dl, list());
+        eng.loadData("n", dl, list());
+        assertEquals(2, NON_DETERMINISTIC_LOADS.get());
+
+        eng.setMemoizeDataLoaderCalls(false);
+        eng.loadData("c", new CountingDataLoader(), list("a", Integer.valueOf(1)));
+        assertEquals(3, COUNTING_LOADS.get());
+    }
+
+    @Test
+    public void callsAreMemoizedForTheSession() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            write(new File(srcRoot, "f" + i + ".txt"),
+                    "<#assign c = pp.loadData('" + CountingDataLoader.class.getName() + "', 'x')>"
+                    + "${c?size} ${pp.loadData('tdd', 'data/d.tdd').x}");
+        }
+        write(new File(dir, "data/d.tdd"), "x: 1");
+        Settings settings = new Settings(dir);
+        settings.set(Settings.NAME_SOURCE_ROOT, srcRoot.getAbsolutePath());
+        settings.set(Settings.NAME_OUTPUT_ROOT, outRoot.getAbsolutePath());
+        settings.set(Settings.NAME_DATA_ROOT, dir.getAbsolutePath());
+        settings.set(Settings.NAME_QUIET, "true");
+        settings.set(Settings.NAME_PARALLELISM, Integer.valueOf(2));
+        settings.set(Settings.NAME_DATA,
+                "c: " + CountingDataLoader.class.getName() + "(x), d: tdd(data/d.tdd)");
+        settings.set(Settings.NAME_MEMOIZE_DATA_LOADER_CALLS, Boolean.TRUE);
+        settings.execute();
+        assertEquals("1 1", read(new File(outRoot, "f3.txt")));
+        assertEquals(1, COUNTING_LOADS.get());
+
+        settings.execute();
+        assertEquals(2, COUNTING_LOADS.get());
+    }
+
+    @Test
+    public void changedFileIsReloadedOutsideSession() throws Exception {
+        File data = new File(dir, "data/d.tdd");
+        write(data, "x: 1");
+        Engine eng = createEngine();
+        Object v = eng.loadData("tdd", new TddDataLoader(), list("data/d.tdd"));
+        assertSame(v, eng.loadData("tdd", new TddDataLoader(), list("data/d.tdd")));
+
+        long lastModified = data.lastModified();
+        write(data, "x: 2");
+        data.setLastModified(lastModified + 10000);
+        assertNotSame(v, eng.loadData("tdd", new TddDataLoader(), list("data/d.tdd")));
+    }
+
+    @Override
+    protected Engine createEngine() throws IOException {
+        Engine eng = super.createEngine();
+        eng.setDataRoot(dir);
+        eng.setMemoizeDataLoaderCalls(true);
+        return eng;
+    }
+
+    private static List list(Object... items) {
+        return Arrays.asList(items);
+    }
+
+    public static class CountingDataLoader implements CacheableDataLoader {
+
+        public Object load(Engine e, List args) {
+            COUNTING_LOADS.incrementAndGet();
+            return new ArrayList(args);
+        }
+
+        public List getCacheKeyContext(Engine e, List args) {
+            return Collections.EMPTY_LIST;
+        }
+
+    }
+
+    public static class NonDeterministicDataLoader implements DataLoader {
+
+        public Object load(Engine e, List args) {
+            return Integer.valueOf(NON_DETERMINISTIC_LOADS.incrementAndGet());
+        }
+
+    }
+
+}
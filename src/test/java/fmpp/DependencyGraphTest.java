@@ -0,0 +1,122 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DependencyGraphTest extends FileProcessingTestBase {
+
+    private static final String SETTINGS = "locale=en_US\n";
+    private static final List<String> OUTPUTS = Collections.singletonList("page.html");
+
+    private File src;
+    private File inc;
+    private File out;
+
+    @Before
+    public void createFiles() throws IOException {
+        src = new File(dir, "page.ftl");
+        inc = new File(dir, "inc.ftl");
+        out = new File(dir, "page.html");
+        write(src, "<#include 'inc.ftl'>");
+        write(inc, "foo");
+        write(out, "foo");
+    }
+
+    @Test
+    public void outputIsOutdatedWhenAnInputChanges() throws IOException {
+        DependencyGraph graph = DependencyGraph.load(dir, SETTINGS);
+        assertFalse(graph.isUpToDate("page.ftl", "page.html"));
+        graph.put("page.ftl", "page.html", OUTPUTS, Arrays.asList(new File[] { src, inc }));
+        assertTrue(graph.isUpToDate("page.ftl", "page.html"));
+        assertFalse(graph.isUpToDate("page.ftl", "page.htm"));
+        graph.save();
+
+        assertTrue(DependencyGraph.load(dir, SETTINGS).isUpToDate("page.ftl", "page.html"));
+
+        write(inc, "foo bar");
+        assertFalse(DependencyGraph.load(dir, SETTINGS).isUpToDate("page.ftl", "page.html"));
+
+        graph = DependencyGraph.load(dir, SETTINGS);
+        graph.put("page.ftl", "page.html", OUTPUTS, Arrays.asList(new File[] { src, inc }));
+        graph.save();
+        inc.delete();
+        assertFalse(DependencyGraph.load(dir, SETTINGS).isUpToDate("page.ftl", "page.html"));
+    }
+
+    @Test
+    public void outputIsOutdatedWhenTheSettingsChange() throws IOException {
+        DependencyGraph graph = DependencyGraph.load(dir, SETTINGS);
+        graph.put("page.ftl", "page.html", OUTPUTS, Arrays.asList(new File[] { src }));
+        graph.save();
+
+        assertFalse(DependencyGraph.load(dir, "locale=de_DE\n").isUpToDate("page.ftl", "page.html"));
+        // The outputs generated with the other settings are kept, and are up to date with those
+        assertTrue(DependencyGraph.load(dir, SETTINGS).isUpToDate("page.ftl", "page.html"));
+    }
+
+    @Test
+    public void outputIsOutdatedWhenMissing() throws IOException {
+        DependencyGraph graph = DependencyGraph.load(dir, SETTINGS);
+        graph.put("page.ftl", "page.html", OUTPUTS, Arrays.asList(new File[] { src }));
+        out.delete();
+        assertFalse(graph.isUpToDate("page.ftl", "page.html"));
+    }
+
+    @Test
+    public void allWrittenOutputsAreRecorded() throws IOException {
+        File other = new File(dir, "sub/other.html");
+        write(other, "bar");
+        DependencyGraph graph = DependencyGraph.load(dir, SETTINGS);
+        graph.put(
+                "page.ftl", "page.html", Arrays.asList(new String[] { "page.html", "sub/other.html" }),
+                Arrays.asList(new File[] { src }));
+        graph.save();
+
+        assertTrue(DependencyGraph.load(dir, SETTINGS).isUpToDate("page.ftl", "page.html"));
+        other.delete();
+        assertFalse(DependencyGraph.load(dir, SETTINGS).isUpToDate("page.ftl", "page.html"));
+    }
+
+    @Test
+    public void droppedOutputIsUpToDate() throws IOException {
+        DependencyGraph graph = DependencyGraph.load(dir, SETTINGS);
+        graph.put("dropped.ftl", "dropped.html", Collections.<String>emptyList(), Arrays.asList(new File[] { src }));
+        graph.save();
+
+        assertTrue(DependencyGraph.load(dir, SETTINGS).isUpToDate("dropped.ftl", "dropped.html"));
+    }
+
+    @Test
+    public void staleOutputs() throws IOException {
+        write(new File(dir, "gone.html"), "x");
+        DependencyGraph graph = DependencyGraph.load(dir, SETTINGS);
+        graph.put("page.ftl", "page.html", OUTPUTS, Arrays.asList(new File[] { src }));
+        graph.put(
+                "gone.ftl", "page.html", Arrays.asList(new String[] { "page.html", "gone.html", "gone-too.html" }),
+                Arrays.asList(new File[] { src }));
+        graph.put(
+                "gone2.ftl", "gone2.html", Collections.singletonList("gone2.html"),
+                Arrays.asList(new File[] { src }));
+        Map<String, String> stale = graph.findStaleOutputs(dir);
+        assertEquals(2, stale.size());
+        assertEquals("gone.ftl", stale.get("page.html"));
+        assertEquals("gone.ftl", stale.get("gone.html"));
+    }
+
+    @Test
+    public void corruptFileIsIgnored() throws IOException {
+        write(new File(dir, DependencyGraph.FILE_NAME), "# FMPP dependencies 2\n2\n1\t2\tfoo\n");
+        DependencyGraph graph = DependencyGraph.load(dir, SETTINGS);
+        assertFalse(graph.isUpToDate("page.ftl", "page.html"));
+    }
+
+}
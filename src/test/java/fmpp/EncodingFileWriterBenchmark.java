@@ -0,0 +1,74 @@
+package fmpp;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Compares the time of writing multi-megabyte outputs with
+ * {@link EncodingFileWriter} and with the {@code BufferedWriter} +
+ * {@code OutputStreamWriter} pair (as {@link FmppFileOutputWriter} did
+ * earlier), for the typical output charsets. The output is written in short
+ * pieces, like templates do. Not a JUnit test; run it with {@code main}.
+ */
+public class EncodingFileWriterBenchmark {
+
+    private static final String[] CHARSETS = new String[] { "UTF-8", "ISO-8859-1", "windows-1250" };
+    private static final int OUTPUT_SIZE = 16 * 1024 * 1024;
+    private static final int ROUNDS = 7;
+
+    public static void main(String[] args) throws IOException {
+        String[] asciiPieces = new String[] {
+                "<tr><td>", "Lorem ipsum dolor sit amet", "</td><td class=\"num\">", "12345", "</td></tr>\n" };
+        String[] accentedPieces = new String[] {
+                "<tr><td>", "\u00C1rv\u00EDzt\u0171r\u0151 t\u00FCk\u00F6rf\u00FAr\u00F3g\u00E9p",
+                "</td><td class=\"num\">", "12345", "</td></tr>\n" };
+
+        File f = File.createTempFile("fmpp-benchmark", ".txt");
+        try {
+            System.out.println("charset\t\tcontent\t\told ms\tnew ms");
+            for (String charsetName : CHARSETS) {
+                for (int contentIdx = 0; contentIdx < 2; contentIdx++) {
+                    String[] pieces = contentIdx == 0 ? asciiPieces : accentedPieces;
+                    long oldTime = Long.MAX_VALUE;
+                    long newTime = Long.MAX_VALUE;
+                    for (int round = 0; round < ROUNDS; round++) {
+                        long start = System.nanoTime();
+                        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), charsetName));
+                        write(w, pieces);
+                        w.close();
+                        oldTime = Math.min(oldTime, System.nanoTime() - start);
+
+                        start = System.nanoTime();
+                        w = new EncodingFileWriter(
+                                new FileOutputStream(f), EncodingFileWriter.getCharset(charsetName));
+                        write(w, pieces);
+                        w.close();
+                        newTime = Math.min(newTime, System.nanoTime() - start);
+                    }
+                    System.out.println(
+                            charsetName + (charsetName.length() < 8 ? "\t\t" : "\t")
+                            + (contentIdx == 0 ? "ASCII" : "accented") + "\t\t"
+                            + oldTime / 1000000 + "\t" + newTime / 1000000);
+                }
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    private static void write(Writer w, String[] pieces) throws IOException {
+        int written = 0;
+        while (written < OUTPUT_SIZE) {
+            for (int i = 0; i < pieces.length; i++) {
+                String piece = pieces[i];
+                w.write(piece);
+                written += piece.length();
+            }
+        }
+    }
+
+}
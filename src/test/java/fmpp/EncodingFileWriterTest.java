@@ -0,0 +1,127 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+import org.junit.Test;
+
+import fmpp.util.FileUtil;
+
+public class EncodingFileWriterTest {
+
+    private static final String[] CHARSETS = new String[] {
+            "UTF-8", "ISO-8859-1", "US-ASCII", "windows-1250", "UTF-16", "Shift_JIS" };
+
+    private static final int[] CHUNK_SIZES = new int[] { 1, 2, 3, 7, 100, 100000 };
+
+    @Test
+    public void sameOutputAsOutputStreamWriter() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append("Hello w\u00F6rld \u0151\u0171 \u20AC \u65E5\u672C ");
+            sb.append("\uD83D\uDE00"); // Surrogate pair
+            if (i % 100 == 0) {
+                sb.append("\uD800x\uDC00"); // Lone surrogates
+            }
+            sb.append('\n');
+        }
+        sb.append('\uD83D'); // High surrogate at the end
+        String content = sb.toString();
+
+        for (String charsetName : CHARSETS) {
+            byte[] expected = encodeWithOutputStreamWriter(content, charsetName);
+            for (int chunkSize : CHUNK_SIZES) {
+                for (int method = 0; method < 3; method++) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    Writer w = new EncodingFileWriter(out, EncodingFileWriter.getCharset(charsetName));
+                    write(w, content, chunkSize, method);
+                    w.close();
+                    assertArrayEquals(
+                            charsetName + ", chunk size " + chunkSize + ", method " + method,
+                            expected, out.toByteArray());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fileChannelOutput() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append("line ").append(i).append(" \u00E1rv\u00EDzt\u0171r\u0151\n");
+        }
+        String content = sb.toString();
+        File f = File.createTempFile("fmpp-test", ".txt");
+        try {
+            for (String charsetName : CHARSETS) {
+                Writer w = new EncodingFileWriter(
+                        new FileOutputStream(f), EncodingFileWriter.getCharset(charsetName));
+                write(w, content, 1000, 0);
+                w.flush();
+                write(w, "end", 1000, 0);
+                w.close();
+                assertArrayEquals(
+                        charsetName,
+                        encodeWithOutputStreamWriter(content + "end", charsetName),
+                        read(f));
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test(expected = UnsupportedEncodingException.class)
+    public void unknownCharset() throws IOException {
+        EncodingFileWriter.getCharset("no-such-charset");
+    }
+
+    @Test(expected = IOException.class)
+    public void writeAfterClose() throws IOException {
+        Writer w = new EncodingFileWriter(new ByteArrayOutputStream(), EncodingFileWriter.getCharset("UTF-8"));
+        w.close();
+        w.write("x");
+    }
+
+    private static void write(Writer w, String content, int chunkSize, int method) throws IOException {
+        char[] chars = content.toCharArray();
+        for (int off = 0; off < content.length(); off += chunkSize) {
+            int len = Math.min(chunkSize, content.length() - off);
+            if (method == 0) {
+                w.write(content, off, len);
+            } else if (method == 1) {
+                w.write(chars, off, len);
+            } else {
+                for (int i = off; i < off + len; i++) {
+                    w.write(chars[i]);
+                }
+            }
+        }
+    }
+
+    private static byte[] encodeWithOutputStreamWriter(String content, String charsetName) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer w = new OutputStreamWriter(out, charsetName);
+        w.write(content);
+        w.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] read(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            return FileUtil.loadByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+}
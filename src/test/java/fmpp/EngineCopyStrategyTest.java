@@ -0,0 +1,142 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EngineCopyStrategyTest extends FileProcessingTestBase {
+
+    private File src;
+    private File out;
+
+    @Before
+    public void createFiles() throws IOException {
+        src = new File(srcRoot, "sub/a.txt");
+        write(src, "${1 + 1}");
+        out = new File(outRoot, "sub/a.txt");
+    }
+
+    @Test
+    public void copy() throws IOException, ProcessingException {
+        copyAll(Engine.COPY_STRATEGY_COPY);
+
+        assertEquals("${1 + 1}", read(out));
+        assertFalse(isSymbolicLinkToSource());
+        write(src, "changed");
+        assertEquals("${1 + 1}", read(out));
+    }
+
+    @Test
+    public void hardLink() throws IOException, ProcessingException {
+        copyAll(Engine.COPY_STRATEGY_HARD_LINK);
+
+        assertEquals("${1 + 1}", read(out));
+        assertFalse(isSymbolicLinkToSource());
+        // Writing into the source file in place is visible through the link
+        write(src, "changed");
+        assertEquals("changed", read(out));
+    }
+
+    @Test
+    public void symbolicLink() throws IOException, ProcessingException {
+        copyAll(Engine.COPY_STRATEGY_SYMBOLIC_LINK);
+
+        assertEquals("${1 + 1}", read(out));
+        assertTrue(isSymbolicLinkToSource());
+    }
+
+    @Test
+    public void linkStrategiesFallBackToCopyingWithOutputSink() throws IOException, ProcessingException {
+        for (int strategy : new int[] { Engine.COPY_STRATEGY_HARD_LINK, Engine.COPY_STRATEGY_SYMBOLIC_LINK }) {
+            Engine eng = createEngine();
+            MemoryOutputSink sink = new MemoryOutputSink();
+            eng.setOutputSink(sink);
+            eng.setCopyStrategy(strategy);
+            eng.addModeChooser("**", Engine.PMODE_COPY);
+            eng.process(new File[] { srcRoot });
+
+            assertEquals("${1 + 1}", new String(sink.getOutput("sub/a.txt"), "UTF-8"));
+            assertFalse(out.exists());
+        }
+    }
+
+    @Test
+    public void linkingOverExistingFile() throws IOException, ProcessingException {
+        write(out, "old");
+
+        copyAll(Engine.COPY_STRATEGY_SYMBOLIC_LINK);
+        assertTrue(isSymbolicLinkToSource());
+
+        copyAll(Engine.COPY_STRATEGY_HARD_LINK);
+        assertFalse(isSymbolicLinkToSource());
+        write(src, "changed");
+        assertEquals("changed", read(out));
+    }
+
+    @Test
+    public void copyingOverExistingLink() throws IOException, ProcessingException {
+        for (int linkStrategy : new int[] { Engine.COPY_STRATEGY_HARD_LINK, Engine.COPY_STRATEGY_SYMBOLIC_LINK }) {
+            for (boolean atomicOutput : new boolean[] { false, true }) {
+                write(src, "${1 + 1}");
+                copyAll(linkStrategy);
+
+                Engine eng = createEngine();
+                eng.setAtomicOutput(atomicOutput);
+                eng.addModeChooser("**", Engine.PMODE_COPY);
+                eng.process(new File[] { srcRoot });
+
+                assertFalse(isSymbolicLinkToSource());
+                write(src, "changed");
+                assertEquals("${1 + 1}", read(out));
+            }
+        }
+    }
+
+    @Test
+    public void renderingOverExistingLink() throws IOException, ProcessingException {
+        for (int linkStrategy : new int[] { Engine.COPY_STRATEGY_HARD_LINK, Engine.COPY_STRATEGY_SYMBOLIC_LINK }) {
+            for (boolean atomicOutput : new boolean[] { false, true }) {
+                copyAll(linkStrategy);
+
+                Engine eng = createEngine();
+                eng.setAtomicOutput(atomicOutput);
+                eng.process(new File[] { srcRoot });
+
+                assertEquals("2", read(out));
+                assertEquals("${1 + 1}", read(src));
+            }
+        }
+    }
+
+    @Test
+    public void appendingToExistingFile() throws IOException, ProcessingException {
+        write(new File(srcRoot, "b.txt"), "b<@pp.changeOutputFile name='sub/a.txt' append=true />+");
+        copyAll(Engine.COPY_STRATEGY_COPY);
+
+        createEngine().process(new File[] { new File(srcRoot, "b.txt") });
+
+        assertEquals("${1 + 1}+", read(out));
+        assertEquals("${1 + 1}", read(src));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalCopyStrategy() {
+        new Engine(Engine.VERSION_0_9_16).setCopyStrategy(3);
+    }
+
+    private void copyAll(int copyStrategy) throws IOException, ProcessingException {
+        Engine eng = createEngine();
+        eng.setCopyStrategy(copyStrategy);
+        eng.addModeChooser("**", Engine.PMODE_COPY);
+        eng.process(new File[] { srcRoot });
+    }
+
+    private boolean isSymbolicLinkToSource() throws IOException {
+        return out.getCanonicalFile().equals(src.getCanonicalFile());
+    }
+
+}
@@ -0,0 +1,99 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EngineCopyThreadsTest extends FileProcessingTestBase {
+
+    @Before
+    public void createFiles() throws IOException {
+        outRoot.mkdirs();
+        for (int i = 0; i < 20; i++) {
+            write(new File(srcRoot, "image" + i + ".png"), "png " + i);
+            write(new File(srcRoot, "page" + i + ".txt"), "${1 + " + i + "}");
+        }
+    }
+
+    @Test
+    public void copiesInTheBackground() throws IOException, ProcessingException {
+        Engine eng = createEngine(2);
+        RecordingListener listener = new RecordingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { srcRoot });
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals("png " + i, read(new File(outRoot, "image" + i + ".png")));
+            assertEquals(String.valueOf(1 + i), read(new File(outRoot, "page" + i + ".txt")));
+        }
+        assertEquals(40, listener.ended.size());
+        assertTrue(listener.failed.isEmpty());
+        assertEquals(
+                ProgressListener.EVENT_END_PROCESSING_SESSION,
+                listener.events.get(listener.events.size() - 1).intValue());
+    }
+
+    @Test
+    public void copyingErrorIsReportedForTheCopiedFile() throws IOException, ProcessingException {
+        // The copying fails, as the output is a non-empty directory.
+        new File(outRoot, "image3.png/x").mkdirs();
+
+        Engine eng = createEngine(2);
+        eng.setStopOnError(false);
+        RecordingListener listener = new RecordingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { srcRoot });
+
+        assertEquals(Collections.singletonList(new File(srcRoot, "image3.png")), listener.failed);
+        assertEquals(40, listener.ended.size());
+    }
+
+    @Test
+    public void copyingErrorStopsTheSession() throws IOException {
+        new File(outRoot, "image3.png/x").mkdirs();
+
+        Engine eng = createEngine(2);
+        try {
+            eng.process(new File[] { srcRoot });
+            fail();
+        } catch (ProcessingException e) {
+            assertEquals(new File(srcRoot, "image3.png"), e.getSourceFile());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeCopyThreads() {
+        new Engine(Engine.VERSION_0_9_16).setCopyThreads(-1);
+    }
+
+    private Engine createEngine(int copyThreads) throws IOException {
+        Engine eng = createEngine();
+        eng.setCopyThreads(copyThreads);
+        return eng;
+    }
+
+    private static class RecordingListener implements ProgressListener {
+        private final List<Integer> events = new ArrayList<Integer>();
+        private final List<File> ended = new ArrayList<File>();
+        private final List<File> failed = new ArrayList<File>();
+
+        public void notifyProgressEvent(
+                Engine engine, int event, File src, int pMode, Throwable error, Object param) {
+            events.add(Integer.valueOf(event));
+            if (event == EVENT_END_FILE_PROCESSING) {
+                ended.add(src);
+                if (error != null) {
+                    failed.add(src);
+                }
+            }
+        }
+    }
+
+}
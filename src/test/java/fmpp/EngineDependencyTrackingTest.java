@@ -0,0 +1,157 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EngineDependencyTrackingTest extends FileProcessingTestBase {
+
+    private RecordingListener listener;
+
+    @Before
+    public void createFiles() throws IOException {
+        write(new File(srcRoot, "index.txt"), "<#include 'inc.ftl'>");
+        write(new File(srcRoot, "inc.ftl"), "inc");
+        write(new File(srcRoot, "other.txt"), "other ${x}");
+    }
+
+    @Test
+    public void unchangedTreeIsSkipped() throws IOException, ProcessingException {
+        process(1);
+        assertEquals(set("index.txt", "other.txt"), listener.processed);
+        assertEquals("inc", read(new File(outRoot, "index.txt")));
+
+        process(1);
+        assertTrue(listener.processed.isEmpty());
+        assertEquals(set("index.txt", "other.txt"), listener.skipped);
+    }
+
+    @Test
+    public void changedIncludedFileReprocessesTheDependentFile() throws IOException, ProcessingException {
+        process(1);
+
+        write(new File(srcRoot, "inc.ftl"), "inc changed");
+        process(1);
+        assertEquals(set("index.txt"), listener.processed);
+        assertEquals(set("other.txt"), listener.skipped);
+        assertEquals("inc changed", read(new File(outRoot, "index.txt")));
+    }
+
+    @Test
+    public void changedDataReprocessesAllFiles() throws IOException, ProcessingException {
+        process(1);
+
+        process(2);
+        assertEquals(set("index.txt", "other.txt"), listener.processed);
+        assertEquals("other 2", read(new File(outRoot, "other.txt")));
+
+        process(2);
+        assertTrue(listener.processed.isEmpty());
+    }
+
+    @Test
+    public void changedEngineParameterReprocessesAllFiles() throws IOException, ProcessingException {
+        process(1);
+
+        Engine eng = createEngine(1);
+        eng.addHeaderChooser(0, "**", "H ");
+        eng.process(new File[] { srcRoot });
+        assertEquals(set("index.txt", "other.txt"), listener.processed);
+        assertEquals("H other 1", read(new File(outRoot, "other.txt")));
+    }
+
+    @Test
+    public void allOutputFilesAreTracked() throws IOException, ProcessingException {
+        write(new File(srcRoot, "other.txt"),
+                "main<@pp.nestOutputFile name='sub/nested.txt'>nested</@pp.nestOutputFile>");
+        process(1);
+        File nested = new File(outRoot, "sub/nested.txt");
+        assertEquals("nested", read(nested));
+
+        process(1);
+        assertTrue(listener.processed.isEmpty());
+
+        nested.delete();
+        process(1);
+        assertEquals(set("other.txt"), listener.processed);
+        assertEquals("nested", read(nested));
+    }
+
+    @Test
+    public void droppedOutputIsSkipped() throws IOException, ProcessingException {
+        write(new File(srcRoot, "other.txt"), "x<@pp.dropOutputFile />");
+        process(1);
+        assertFalse(new File(outRoot, "other.txt").exists());
+
+        process(1);
+        assertEquals(set("index.txt", "other.txt"), listener.skipped);
+    }
+
+    @Test
+    public void globalDependenciesAreResetPerSession() throws IOException, ProcessingException {
+        File cfg = new File(dir, "config.fmpp");
+        write(cfg, "cfg");
+
+        Engine eng = createEngine(1);
+        eng.addDependency(cfg);
+        assertEquals(Collections.singleton(cfg), eng.getGlobalDependencies());
+        eng.process(new File[] { srcRoot });
+        assertTrue(eng.getGlobalDependencies().isEmpty());
+
+        // The outputs of the first session still depend on it
+        write(cfg, "cfg changed");
+        eng.process(new File[] { srcRoot });
+        assertEquals(set("index.txt", "other.txt"), listener.processed);
+
+        // But the outputs of the second session don't
+        write(cfg, "cfg changed again");
+        eng.process(new File[] { srcRoot });
+        assertTrue(listener.processed.isEmpty());
+    }
+
+    private void process(int x) throws IOException, ProcessingException {
+        createEngine(x).process(new File[] { srcRoot });
+    }
+
+    private Engine createEngine(int x) throws IOException {
+        Engine eng = createEngine();
+        eng.setDependencyTracking(true);
+        eng.addModeChooser("*.ftl", Engine.PMODE_IGNORE);
+        eng.addData("x", x);
+        listener = new RecordingListener();
+        eng.addProgressListener(listener);
+        return eng;
+    }
+
+    private static Set<String> set(String... items) {
+        return new HashSet<String>(Arrays.asList(items));
+    }
+
+    private static class RecordingListener implements ProgressListener {
+        private final Set<String> processed = new HashSet<String>();
+        private final Set<String> skipped = new HashSet<String>();
+
+        public void notifyProgressEvent(
+                Engine engine, int event, File src, int pMode, Throwable error, Object param) {
+            if (event == EVENT_BEGIN_PROCESSING_SESSION) {
+                processed.clear();
+                skipped.clear();
+            } else if (pMode == Engine.PMODE_IGNORE) {
+                return;
+            } else if (event == EVENT_BEGIN_FILE_PROCESSING) {
+                processed.add(src.getName());
+            } else if (event == EVENT_SOURCE_NOT_MODIFIED) {
+                skipped.add(src.getName());
+            }
+        }
+    }
+
+}
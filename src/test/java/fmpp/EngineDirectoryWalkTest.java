@@ -0,0 +1,127 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EngineDirectoryWalkTest extends FileProcessingTestBase {
+
+    @Test
+    public void ignoreDirMarkerSkipsTheWholeSubtree() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.txt"), "a");
+        write(new File(srcRoot, "ign/ignoredir.fmpp"), "");
+        write(new File(srcRoot, "ign/b.txt"), "b");
+        write(new File(srcRoot, "ign/sub/c.txt"), "c");
+        // The createdir.fmpp marker of an ignored subtree has no effect either
+        write(new File(srcRoot, "ign/empty/createdir.fmpp"), "");
+        write(new File(srcRoot, "sub/d.txt"), "d");
+
+        Engine eng = createEngine();
+        RecordingListener listener = new RecordingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { srcRoot });
+
+        assertEquals("a", read(new File(outRoot, "a.txt")));
+        assertEquals("d", read(new File(outRoot, "sub/d.txt")));
+        assertFalse(new File(outRoot, "ign").exists());
+        assertEquals(2, listener.processed.size());
+        assertTrue(listener.createdDirs.isEmpty());
+    }
+
+    @Test
+    public void ignoreDirMarkerInSourceRoot() throws IOException, ProcessingException {
+        write(new File(srcRoot, "ignoredir.fmpp"), "");
+        write(new File(srcRoot, "sub/a.txt"), "a");
+
+        Engine eng = createEngine();
+        RecordingListener listener = new RecordingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { srcRoot });
+
+        assertTrue(listener.processed.isEmpty());
+        assertFalse(new File(outRoot, "sub").exists());
+    }
+
+    @Test
+    public void processingIgnoredSubdirectoryDirectly() throws IOException, ProcessingException {
+        write(new File(srcRoot, "ign/ignoredir.fmpp"), "");
+        File sub = new File(srcRoot, "ign/sub");
+        write(new File(sub, "a.txt"), "a");
+
+        createEngine().process(new File[] { sub });
+
+        assertFalse(new File(outRoot, "ign").exists());
+    }
+
+    @Test
+    public void createDirMarkerCreatesEmptyDirectories() throws IOException, ProcessingException {
+        write(new File(srcRoot, "empty/createdir.fmpp"), "");
+        write(new File(srcRoot, "empty/deeper/createdir.fmpp"), "");
+        new File(srcRoot, "unmarked").mkdirs();
+        write(new File(srcRoot, "full/createdir.fmpp"), "");
+        write(new File(srcRoot, "full/a.txt"), "a");
+
+        Engine eng = createEngine();
+        RecordingListener listener = new RecordingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { srcRoot });
+
+        assertTrue(new File(outRoot, "empty/deeper").isDirectory());
+        assertEquals(1, new File(outRoot, "empty").list().length);
+        assertEquals(0, new File(outRoot, "empty/deeper").list().length);
+        assertFalse(new File(outRoot, "unmarked").exists());
+        // The markers themselves aren't output files
+        assertEquals(1, listener.processed.size());
+        assertFalse(new File(outRoot, "full/createdir.fmpp").exists());
+        assertEquals(3, listener.createdDirs.size());
+    }
+
+    @Test
+    public void alwaysCreateDirectories() throws IOException, ProcessingException {
+        new File(srcRoot, "a/b").mkdirs();
+        write(new File(srcRoot, "ign/ignoredir.fmpp"), "");
+
+        Engine eng = createEngine();
+        eng.setAlwaysCreateDirectories(true);
+        eng.process(new File[] { srcRoot });
+
+        assertTrue(new File(outRoot, "a/b").isDirectory());
+        assertFalse(new File(outRoot, "ign").exists());
+    }
+
+    @Test
+    public void cvsAndSvnDirectoriesAreSkipped() throws IOException, ProcessingException {
+        write(new File(srcRoot, "CVS/Entries"), "x");
+        write(new File(srcRoot, "sub/.svn/entries"), "x");
+        write(new File(srcRoot, "sub/a.txt"), "a");
+
+        Engine eng = createEngine();
+        RecordingListener listener = new RecordingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { srcRoot });
+
+        assertEquals(1, listener.processed.size());
+        assertFalse(new File(outRoot, "CVS").exists());
+        assertFalse(new File(outRoot, "sub/.svn").exists());
+    }
+
+    private static class RecordingListener implements ProgressListener {
+        private final List<File> processed = new ArrayList<File>();
+        private final List<File> createdDirs = new ArrayList<File>();
+
+        public void notifyProgressEvent(
+                Engine engine, int event, File src, int pMode, Throwable error, Object param) {
+            if (event == EVENT_BEGIN_FILE_PROCESSING) {
+                processed.add(src);
+            } else if (event == EVENT_CREATED_EMPTY_DIR) {
+                createdDirs.add(src);
+            }
+        }
+    }
+
+}
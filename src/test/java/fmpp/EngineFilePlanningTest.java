@@ -0,0 +1,131 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class EngineFilePlanningTest extends FileProcessingTestBase {
+
+    @Test
+    public void filesAreProcessedInTheOrderOfTheirTurns() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.txt"), "a");
+        write(new File(srcRoot, "b.txt"), "b");
+        write(new File(srcRoot, "sub/c.txt"), "c");
+        write(new File(srcRoot, "sub/d.txt"), "d");
+
+        Engine eng = createEngine();
+        eng.addTurnChooser("a.txt", 3);
+        eng.addTurnChooser("sub/c.txt", 2);
+        RecordingListener listener = new RecordingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { srcRoot });
+
+        assertEquals(4, listener.processed.size());
+        // The order inside a turn depends on the directory listing
+        assertEquals(
+                set("b.txt", "d.txt"),
+                set(listener.processed.get(0), listener.processed.get(1)));
+        assertEquals(Arrays.asList(new String[] { "c.txt", "a.txt" }), listener.processed.subList(2, 4));
+    }
+
+    @Test
+    public void laterTurnSeesTheOutputOfEarlierTurn() throws IOException, ProcessingException {
+        write(new File(srcRoot, "data.txt"), "${1 + 1}");
+        write(new File(srcRoot, "index.txt"), "<#include '@out/data.txt'>");
+
+        Engine eng = createEngine();
+        eng.addFreemarkerLink("out", outRoot);
+        eng.addTurnChooser("index.txt", 2);
+        eng.process(new File[] { srcRoot });
+
+        assertEquals("2", read(new File(outRoot, "index.txt")));
+    }
+
+    @Test
+    public void fileIsProcessedOnlyOnce() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        write(a, "a");
+        write(new File(srcRoot, "b.txt"), "b");
+
+        Engine eng = createEngine();
+        RecordingListener listener = new RecordingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { a, srcRoot, a });
+
+        assertEquals(2, listener.processed.size());
+        assertEquals("a.txt", listener.processed.get(0));
+    }
+
+    @Test
+    public void firstMatchingChooserWins() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.txt"), "${1 + 1}");
+        write(new File(srcRoot, "b.txt"), "${1 + 1}");
+        write(new File(srcRoot, "sub/c.txt"), "${1 + 1}");
+
+        Engine eng = createEngine();
+        eng.addModeChooser("a.txt", Engine.PMODE_COPY);
+        eng.addModeChooser("sub/**", Engine.PMODE_IGNORE);
+        eng.addModeChooser("*.txt", Engine.PMODE_EXECUTE);
+        eng.addModeChooser("**", Engine.PMODE_IGNORE);
+        eng.addTurnChooser("b.txt", 2);
+        eng.addTurnChooser("*.txt", 3);
+        RecordingListener listener = new RecordingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { srcRoot });
+
+        assertEquals("${1 + 1}", read(new File(outRoot, "a.txt")));
+        assertEquals("2", read(new File(outRoot, "b.txt")));
+        assertFalse(new File(outRoot, "sub/c.txt").exists());
+        // sub/c.txt is ignored, but still goes through its turn, which is 1 as "*.txt" doesn't match it
+        assertEquals(Arrays.asList(new String[] { "c.txt", "b.txt", "a.txt" }), listener.processed);
+    }
+
+    @Test
+    public void explicitlyListedFileInIgnoredDirectoryIsSkipped() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "ign/sub/a.txt");
+        write(a, "a");
+        write(new File(srcRoot, "ign/ignoredir.fmpp"), "");
+        File b = new File(srcRoot, "b.txt");
+        write(b, "b");
+
+        createEngine().process(new File[] { a, b });
+
+        assertFalse(new File(outRoot, "ign").exists());
+        assertEquals("b", read(new File(outRoot, "b.txt")));
+    }
+
+    @Test
+    public void explicitlyListedCreateDirMarkerCreatesDirectory() throws IOException, ProcessingException {
+        File marker = new File(srcRoot, "empty/createdir.fmpp");
+        write(marker, "");
+
+        createEngine().process(new File[] { marker });
+
+        assertTrue(new File(outRoot, "empty").isDirectory());
+        assertEquals(0, new File(outRoot, "empty").list().length);
+    }
+
+    private static Set<String> set(String... items) {
+        return new HashSet<String>(Arrays.asList(items));
+    }
+
+    private static class RecordingListener implements ProgressListener {
+        private final List<String> processed = new ArrayList<String>();
+
+        public void notifyProgressEvent(
+                Engine engine, int event, File src, int pMode, Throwable error, Object param) {
+            if (event == EVENT_BEGIN_FILE_PROCESSING) {
+                processed.add(src.getName());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freemarker.core.Environment;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateModel;
+
+public class EngineParallelismTest extends FileProcessingTestBase {
+
+    private static final int FILE_COUNT = 60;
+
+    private final List<File> sources = new ArrayList<File>();
+
+    @Before
+    public void createFiles() throws IOException {
+        for (int i = 0; i < FILE_COUNT; i++) {
+            File f = new File(srcRoot, "page" + i + ".txt");
+            write(f, "<@slow />${" + i + " + 1}");
+            sources.add(f);
+        }
+    }
+
+    @Test
+    public void allFilesAreProcessed() throws IOException, ProcessingException {
+        Engine eng = createEngine();
+        eng.process(sources.toArray(new File[sources.size()]));
+        for (int i = 0; i < FILE_COUNT; i++) {
+            assertEquals(String.valueOf(i + 1), read(new File(outRoot, "page" + i + ".txt")));
+        }
+    }
+
+    @Test
+    public void stopOnErrorCancelsPendingFiles() throws IOException {
+        File bad = new File(srcRoot, "bad.txt");
+        write(bad, "${noSuchVariable}");
+        sources.add(0, bad);
+
+        Engine eng = createEngine();
+        CountingListener listener = new CountingListener();
+        eng.addProgressListener(listener);
+        try {
+            eng.process(sources.toArray(new File[sources.size()]));
+            fail();
+        } catch (ProcessingException e) {
+            assertEquals(bad, e.getSourceFile());
+        }
+        // Only the files that were already started when the error occurred are finished
+        int started = listener.started.get();
+        assertTrue(String.valueOf(started), started < FILE_COUNT / 2);
+        assertEquals(started, listener.ended.get());
+        String[] outputs = outRoot.list();
+        assertTrue(outputs == null || outputs.length < FILE_COUNT / 2);
+    }
+
+    @Test
+    public void stopOnErrorFalseProcessesAllFiles() throws IOException, ProcessingException {
+        write(new File(srcRoot, "bad.txt"), "${noSuchVariable}");
+        Engine eng = createEngine();
+        eng.setStopOnError(false);
+        CountingListener listener = new CountingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { srcRoot });
+        assertEquals(FILE_COUNT + 1, listener.ended.get());
+        assertEquals(1, listener.failed.get());
+    }
+
+    @Test
+    public void listenerCallsDontOverlap() throws IOException, ProcessingException {
+        Engine eng = createEngine();
+        CountingListener listener = new CountingListener();
+        eng.addProgressListener(listener);
+        eng.process(new File[] { srcRoot });
+        assertEquals(FILE_COUNT, listener.ended.get());
+        assertEquals(1, listener.maxConcurrentCalls.get());
+    }
+
+    @Override
+    protected Engine createEngine() throws IOException {
+        Engine eng = super.createEngine();
+        eng.setParallelism(4);
+        eng.addData("slow", new SlowDirective());
+        return eng;
+    }
+
+    /**
+     * Makes the processing of the files take a while, so they overlap.
+     */
+    private static class SlowDirective implements TemplateDirectiveModel {
+
+        public void execute(Environment env, Map params, TemplateModel[] loopVars, TemplateDirectiveBody body) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    private static class CountingListener implements ProgressListener {
+        private final AtomicInteger started = new AtomicInteger();
+        private final AtomicInteger ended = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger concurrentCalls = new AtomicInteger();
+        private final AtomicInteger maxConcurrentCalls = new AtomicInteger();
+
+        public void notifyProgressEvent(
+                Engine engine, int event, File src, int pMode, Throwable error, Object param) {
+            int calls = concurrentCalls.incrementAndGet();
+            try {
+                if (calls > maxConcurrentCalls.get()) {
+                    maxConcurrentCalls.set(calls);
+                }
+                if (event == EVENT_BEGIN_FILE_PROCESSING) {
+                    started.incrementAndGet();
+                } else if (event == EVENT_END_FILE_PROCESSING) {
+                    ended.incrementAndGet();
+                    if (error != null) {
+                        failed.incrementAndGet();
+                    }
+                }
+                // Gives the other threads a chance to call the listener meanwhile
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrentCalls.decrementAndGet();
+            }
+        }
+    }
+
+}
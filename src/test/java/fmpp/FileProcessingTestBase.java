@@ -0,0 +1,84 @@
+package fmpp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+
+import fmpp.util.FileUtil;
+
+/**
+ * Base of the tests that process files in a temporary directory. The
+ * directory, with the {@link #srcRoot} in it, is created before each test,
+ * and deleted after it. The {@link #outRoot} is not created in advance.
+ */
+public abstract class FileProcessingTestBase {
+
+    protected File dir;
+    protected File srcRoot;
+    protected File outRoot;
+
+    @Before
+    public void createTemporaryDirectory() throws IOException {
+        dir = File.createTempFile("fmpp-test", "");
+        dir.delete();
+        srcRoot = new File(dir, "src");
+        outRoot = new File(dir, "out");
+        srcRoot.mkdirs();
+    }
+
+    @After
+    public void deleteTemporaryDirectory() {
+        delete(dir);
+    }
+
+    /**
+     * Creates an engine that processes {@link #srcRoot} into
+     * {@link #outRoot}.
+     */
+    protected Engine createEngine() throws IOException {
+        Engine eng = new Engine(Engine.VERSION_0_9_16);
+        eng.setSourceRoot(srcRoot);
+        eng.setOutputRoot(outRoot);
+        return eng;
+    }
+
+    /**
+     * Writes the file with UTF-8 encoding, creating its parent directories
+     * if needed.
+     */
+    protected static void write(File f, String content) throws IOException {
+        f.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(f);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    protected static String read(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            return FileUtil.loadString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    protected static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                delete(files[i]);
+            }
+        }
+        f.delete();
+    }
+
+}
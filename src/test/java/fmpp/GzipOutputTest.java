@@ -0,0 +1,129 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fmpp.util.FileUtil;
+
+public class GzipOutputTest extends FileProcessingTestBase {
+
+    private static final String LONG_TEXT;
+    static {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < 100; i++) {
+            sb.append("Line ").append(i).append('\n');
+        }
+        LONG_TEXT = sb.toString();
+    }
+
+    @Before
+    public void createFiles() throws IOException {
+        outRoot.mkdirs();
+    }
+
+    @Test
+    public void siblingsOfMatchingOutputs() throws IOException, ProcessingException {
+        write(new File(srcRoot, "index.html"), "<#list 0..99 as i>Line ${i}\n</#list>");
+        write(new File(srcRoot, "sub/style.css"), LONG_TEXT);
+        write(new File(srcRoot, "small.html"), "small");
+        write(new File(srcRoot, "other.txt"), LONG_TEXT);
+
+        Engine eng = createEngine();
+        eng.setParallelism(3);
+        eng.process(new File[] { srcRoot });
+
+        assertEquals(LONG_TEXT, readGzipped(new File(outRoot, "index.html.gz")));
+        assertEquals(LONG_TEXT, readGzipped(new File(outRoot, "sub/style.css.gz")));
+        assertFalse(new File(outRoot, "small.html.gz").exists());
+        assertFalse(new File(outRoot, "other.txt.gz").exists());
+        assertEquals(
+                new File(outRoot, "index.html").lastModified(),
+                new File(outRoot, "index.html.gz").lastModified());
+    }
+
+    @Test
+    public void skippedOutputsOnlyGetMissingSiblings() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.css"), LONG_TEXT);
+        write(new File(srcRoot, "b.css"), LONG_TEXT);
+
+        Engine eng = createEngine();
+        eng.addModeChooser("**/*.css", Engine.PMODE_COPY);
+        eng.setSkipUnchanged(Engine.SKIP_STATIC);
+        eng.process(new File[] { srcRoot });
+        File aGz = new File(outRoot, "a.css.gz");
+        File bGz = new File(outRoot, "b.css.gz");
+        assertTrue(aGz.isFile());
+        assertTrue(bGz.isFile());
+
+        aGz.delete();
+        write(bGz, "marker");
+        bGz.setLastModified(new File(outRoot, "b.css").lastModified());
+        eng.process(new File[] { srcRoot });
+        assertEquals(LONG_TEXT, readGzipped(aGz));
+        assertEquals("marker", read(bGz));
+    }
+
+    @Test
+    public void outdatedSiblingsAreDeleted() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.html");
+        write(a, LONG_TEXT);
+        createEngine().process(new File[] { srcRoot });
+        assertTrue(new File(outRoot, "a.html.gz").isFile());
+
+        write(a, "short");
+        createEngine().process(new File[] { srcRoot });
+        assertFalse(new File(outRoot, "a.html.gz").exists());
+    }
+
+    @Test
+    public void renamedOutput() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.html"), LONG_TEXT + "<@pp.renameOutputFile name='b.html' />");
+        createEngine().process(new File[] { srcRoot });
+        assertFalse(new File(outRoot, "a.html.gz").exists());
+        assertEquals(LONG_TEXT, readGzipped(new File(outRoot, "b.html.gz")));
+    }
+
+    @Test
+    public void failedSessionDeletesWrittenSiblings() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.html");
+        write(a, LONG_TEXT);
+        createEngine().process(new File[] { srcRoot });
+        assertTrue(new File(outRoot, "a.html.gz").isFile());
+
+        write(a, LONG_TEXT + "${noSuchVariable}");
+        try {
+            createEngine().process(new File[] { srcRoot });
+            fail();
+        } catch (ProcessingException e) {
+            // Expected
+        }
+        assertFalse(new File(outRoot, "a.html.gz").exists());
+    }
+
+    @Override
+    protected Engine createEngine() throws IOException {
+        Engine eng = super.createEngine();
+        eng.addGzipOutputPattern("**/*.html");
+        eng.addGzipOutputPattern("**/*.css");
+        eng.setGzipMinSize(100);
+        return eng;
+    }
+
+    private static String readGzipped(File f) throws IOException {
+        InputStream in = new GZIPInputStream(new FileInputStream(f));
+        try {
+            return FileUtil.loadString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fmpp.dataloaders.TddDataLoader;
+import fmpp.setting.SettingException;
+import fmpp.setting.Settings;
+
+public class LazyDataTest extends FileProcessingTestBase {
+
+    private static final String DATA = "ok: tdd(data/ok.tdd), ref: get(ok, x), broken: csv(data/missing.csv)";
+
+    @Before
+    public void createFiles() throws IOException {
+        write(new File(dir, "data/ok.tdd"), "x: 1");
+    }
+
+    @Test
+    public void unusedDataIsNotLoaded() throws Exception {
+        write(new File(srcRoot, "a.txt"), "${ok.x} ${ref}");
+        Settings settings = createSettings();
+        settings.set(Settings.NAME_LAZY_DATA, Boolean.TRUE);
+        settings.execute();
+        assertEquals("1 1", read(new File(outRoot, "a.txt")));
+    }
+
+    @Test
+    public void eagerDataFailsEvenIfUnused() throws Exception {
+        write(new File(srcRoot, "a.txt"), "${ok.x}");
+        try {
+            createSettings().execute();
+            fail();
+        } catch (SettingException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void failureIsReportedWhenUsed() throws Exception {
+        write(new File(srcRoot, "a.txt"), "${broken?size}");
+        Settings settings = createSettings();
+        settings.set(Settings.NAME_LAZY_DATA, Boolean.TRUE);
+        try {
+            settings.execute();
+            fail();
+        } catch (ProcessingException e) {
+            Throwable cause = e;
+            while (cause != null && !(cause instanceof LazyDataException)) {
+                cause = cause.getCause();
+            }
+            assertNotNull(cause);
+            assertTrue(cause.getMessage().indexOf("\"broken\"") != -1);
+        }
+    }
+
+    @Test
+    public void valueIsCalculatedOnce() throws Exception {
+        final int[] calls = new int[1];
+        Engine eng = createEngine();
+        eng.setParallelism(2);
+        eng.addLazyData("v", new Callable<Object>() {
+            public Object call() {
+                calls[0]++;
+                return "v";
+            }
+        });
+        assertEquals(0, calls[0]);
+        for (int i = 0; i < 5; i++) {
+            write(new File(srcRoot, "f" + i + ".txt"), "${v}");
+        }
+        eng.process(new File[] { srcRoot });
+        eng.process(new File[] { srcRoot });
+        assertEquals("v", read(new File(outRoot, "f4.txt")));
+        assertEquals("v", eng.getData("v"));
+        assertEquals(1, calls[0]);
+    }
+
+    @Test
+    public void valueIsCalculatedAgainIfFileChanged() throws Exception {
+        final int[] calls = new int[1];
+        File data = new File(dir, "data/ok.tdd");
+        write(new File(srcRoot, "a.txt"), "${v.x}");
+        final Engine eng = createEngine();
+        eng.addLazyData("v", new Callable<Object>() {
+            public Object call() throws Exception {
+                calls[0]++;
+                return eng.loadData("tdd", new TddDataLoader(), Collections.singletonList("data/ok.tdd"));
+            }
+        });
+        eng.process(new File[] { srcRoot });
+        assertEquals("1", read(new File(outRoot, "a.txt")));
+
+        long lastModified = data.lastModified();
+        write(data, "x: 2");
+        data.setLastModified(lastModified + 10000);
+        eng.process(new File[] { srcRoot });
+        assertEquals("2", read(new File(outRoot, "a.txt")));
+        eng.process(new File[] { srcRoot });
+        assertEquals(2, calls[0]);
+    }
+
+    @Test
+    public void failureIsNotKeptForTheNextSession() throws Exception {
+        final int[] calls = new int[1];
+        write(new File(srcRoot, "a.txt"), "${v}");
+        Engine eng = createEngine();
+        eng.addLazyData("v", new Callable<Object>() {
+            public Object call() throws IOException {
+                if (++calls[0] == 1) {
+                    throw new IOException("Transient failure");
+                }
+                return "v";
+            }
+        });
+        try {
+            eng.process(new File[] { srcRoot });
+            fail();
+        } catch (ProcessingException e) {
+            // Expected
+        }
+        eng.process(new File[] { srcRoot });
+        assertEquals("v", read(new File(outRoot, "a.txt")));
+        assertEquals(2, calls[0]);
+    }
+
+    @Override
+    protected Engine createEngine() throws IOException {
+        Engine eng = super.createEngine();
+        eng.setDataRoot(dir);
+        return eng;
+    }
+
+    private Settings createSettings() throws Exception {
+        Settings settings = new Settings(dir);
+        settings.set(Settings.NAME_SOURCE_ROOT, srcRoot.getAbsolutePath());
+        settings.set(Settings.NAME_OUTPUT_ROOT, outRoot.getAbsolutePath());
+        settings.set(Settings.NAME_DATA_ROOT, dir.getAbsolutePath());
+        settings.set(Settings.NAME_QUIET, "true");
+        settings.set(Settings.NAME_DATA, DATA);
+        return settings;
+    }
+
+}
@@ -0,0 +1,86 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MemoryOutputSinkTest extends FileProcessingTestBase {
+
+    @Test
+    public void outputFileDirectives() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.txt"), "a ${1 + 1}");
+        write(new File(srcRoot, "sub/image.png"), "png");
+        write(new File(srcRoot, "dropped.txt"), "x<@pp.dropOutputFile />");
+        write(new File(srcRoot, "restarted.txt"), "x<@pp.restartOutputFile />y");
+        write(new File(srcRoot, "changed.txt"),
+                "1<@pp.changeOutputFile name='sub/c1.txt' />2"
+                + "<@pp.nestOutputFile name='c2.txt'>3</@pp.nestOutputFile>4"
+                + "<@pp.changeOutputFile name='/changed.txt' append=true />5");
+
+        MemoryOutputSink sink = new MemoryOutputSink();
+        process(sink);
+
+        Map<String, byte[]> outputs = sink.getOutputs();
+        assertEquals(6, outputs.size());
+        assertEquals("a 2", getOutput(sink, "a.txt"));
+        assertEquals("png", getOutput(sink, "sub/image.png"));
+        assertEquals("y", getOutput(sink, "restarted.txt"));
+        assertEquals("15", getOutput(sink, "changed.txt"));
+        assertEquals("24", getOutput(sink, "sub/c1.txt"));
+        assertEquals("3", getOutput(sink, "sub/c2.txt"));
+        assertNull(sink.getOutput("dropped.txt"));
+        assertFalse(outRoot.exists());
+    }
+
+    @Test
+    public void laterSessionsReplaceOutputs() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        write(a, "a1");
+        write(new File(srcRoot, "b.txt"), "b1");
+        MemoryOutputSink sink = new MemoryOutputSink();
+        process(sink);
+
+        write(a, "a2");
+        process(sink);
+        assertEquals("a2", getOutput(sink, "a.txt"));
+        assertEquals("b1", getOutput(sink, "b.txt"));
+
+        sink.clear();
+        assertTrue(sink.getOutputs().isEmpty());
+    }
+
+    @Test
+    public void streamingSink() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.txt"), "a<@pp.restartOutputFile />b");
+        final Map<String, ByteArrayOutputStream> streams = new HashMap<String, ByteArrayOutputStream>();
+        process(new OutputSink() {
+            public synchronized OutputStream openOutputFile(String path, boolean append) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                streams.put(path, out);
+                return out;
+            }
+        });
+        assertEquals(1, streams.size());
+        assertEquals("b", streams.get("a.txt").toString("UTF-8"));
+    }
+
+    private void process(OutputSink sink) throws IOException, ProcessingException {
+        Engine eng = createEngine();
+        eng.setOutputSink(sink);
+        eng.process(new File[] { srcRoot });
+    }
+
+    private static String getOutput(MemoryOutputSink sink, String path) throws IOException {
+        byte[] content = sink.getOutput(path);
+        assertNotNull(path, content);
+        return new String(content, "UTF-8");
+    }
+
+}
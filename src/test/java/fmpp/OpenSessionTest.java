@@ -0,0 +1,120 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class OpenSessionTest extends FileProcessingTestBase {
+
+    private int sessionBegins;
+    private int sessionEnds;
+
+    @Test
+    public void batchOfSourceOutputPairs() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        File b = new File(srcRoot, "sub/b.txt");
+        write(a, "a${1 + 1}");
+        write(b, "b");
+        Engine eng = createEngine();
+        eng.process(
+                new File[] { a, b, a },
+                new File[] { new File(outRoot, "x/a.html"), new File(outRoot, "b.html"), new File(outRoot, "a2") });
+        assertEquals("a2", read(new File(outRoot, "x/a.html")));
+        assertEquals("b", read(new File(outRoot, "b.html")));
+        // The same source is processed only once in a session:
+        assertFalse(new File(outRoot, "a2").exists());
+        assertEquals(1, sessionBegins);
+        assertEquals(1, sessionEnds);
+        assertFalse(eng.isSessionOpen());
+    }
+
+    @Test
+    public void batchOutputOutsideOutputRoot() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        write(a, "a");
+        try {
+            createEngine().process(new File[] { a }, new File[] { new File(dir, "a.txt") });
+            fail();
+        } catch (ProcessingException e) {
+            assertTrue(e.getCause().getMessage().indexOf("output root") != -1);
+        }
+        assertEquals(1, sessionEnds);
+    }
+
+    @Test
+    public void sessionKeptOpen() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        File b = new File(srcRoot, "b.txt");
+        write(a, "a1");
+        write(b, "b");
+        Engine eng = createEngine();
+        eng.setDependencyTracking(true);
+        eng.openSession();
+        assertTrue(eng.isSessionOpen());
+        try {
+            eng.setParallelism(2);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        eng.process(a, new File(outRoot, "a.txt"));
+        eng.process(new File[] { b });
+        assertEquals("a1", read(new File(outRoot, "a.txt")));
+        assertEquals("b", read(new File(outRoot, "b.txt")));
+        // The same file can be processed again by a later call:
+        eng.process(a, new File(outRoot, "a2.txt"));
+        assertEquals("a1", read(new File(outRoot, "a2.txt")));
+        assertFalse(new File(outRoot, DependencyGraph.FILE_NAME).exists());
+        assertEquals(1, sessionBegins);
+        assertEquals(0, sessionEnds);
+
+        eng.closeSession();
+        assertFalse(eng.isSessionOpen());
+        assertEquals(1, sessionEnds);
+        assertTrue(new File(outRoot, DependencyGraph.FILE_NAME).isFile());
+        eng.setParallelism(2);
+    }
+
+    @Test
+    public void failureKeepsSessionOpen() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        File b = new File(srcRoot, "b.txt");
+        write(a, "${noSuchVariable}");
+        write(b, "b");
+        Engine eng = createEngine();
+        eng.setParallelism(2);
+        eng.openSession();
+        try {
+            eng.process(new File[] { a });
+            fail();
+        } catch (ProcessingException e) {
+            // Expected
+        }
+        assertTrue(eng.isSessionOpen());
+        eng.process(new File[] { b });
+        eng.closeSession();
+        assertEquals("b", read(new File(outRoot, "b.txt")));
+        assertEquals(1, sessionEnds);
+    }
+
+    @Override
+    protected Engine createEngine() throws IOException {
+        Engine eng = super.createEngine();
+        eng.addProgressListener(new ProgressListener() {
+            public void notifyProgressEvent(
+                    Engine engine, int event, File src, int pMode, Throwable error, Object param) {
+                if (event == EVENT_BEGIN_PROCESSING_SESSION) {
+                    sessionBegins++;
+                } else if (event == EVENT_END_PROCESSING_SESSION) {
+                    sessionEnds++;
+                }
+            }
+        });
+        return eng;
+    }
+
+}
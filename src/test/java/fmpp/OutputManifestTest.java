@@ -0,0 +1,111 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutputManifestTest extends FileProcessingTestBase {
+
+    @Before
+    public void createFiles() throws IOException {
+        outRoot.mkdirs();
+    }
+
+    @Test
+    public void manifestContent() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.txt"), "a<@pp.nestOutputFile name='sub/b.txt'>b</@>");
+        write(new File(srcRoot, "dropped.txt"), "<@pp.dropOutputFile />");
+        Engine eng = createEngine(false);
+        eng.setOutputManifest(true);
+        eng.process(new File[] { srcRoot });
+
+        assertEquals(
+                "# FMPP outputs 1\na.txt\ta.txt\nsub/b.txt\ta.txt\n",
+                read(new File(outRoot, OutputManifest.FILE_NAME)));
+    }
+
+    @Test
+    public void pruneOutputsNotProducedAgain() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        File b = new File(srcRoot, "sub/b.txt");
+        write(a, "a<@pp.nestOutputFile name='a2.txt'>a2</@>");
+        write(b, "b");
+        write(new File(outRoot, "foreign.txt"), "foreign");
+        write(new File(outRoot, SourceDigestManifest.FILE_NAME), "digests");
+        createEngine(true).process(new File[] { srcRoot });
+        assertTrue(new File(outRoot, "a2.txt").isFile());
+        assertTrue(new File(outRoot, "sub/b.txt").isFile());
+
+        write(a, "a<@pp.nestOutputFile name='a3.txt'>a3</@>");
+        b.delete();
+        createEngine(true).process(new File[] { srcRoot });
+        assertEquals("a", read(new File(outRoot, "a.txt")));
+        assertEquals("a3", read(new File(outRoot, "a3.txt")));
+        assertFalse(new File(outRoot, "a2.txt").exists());
+        assertFalse(new File(outRoot, "sub").exists());
+        assertEquals("foreign", read(new File(outRoot, "foreign.txt")));
+        assertEquals("digests", read(new File(outRoot, SourceDigestManifest.FILE_NAME)));
+    }
+
+    @Test
+    public void staleOutputsAreKeptUntilPruningIsEnabled() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        write(a, "a");
+        Engine eng = createEngine(false);
+        eng.setOutputManifest(true);
+        eng.process(new File[] { srcRoot });
+
+        a.delete();
+        write(new File(srcRoot, "b.txt"), "b");
+        eng.process(new File[] { srcRoot });
+        assertTrue(new File(outRoot, "a.txt").isFile());
+
+        createEngine(true).process(new File[] { srcRoot });
+        assertFalse(new File(outRoot, "a.txt").exists());
+        assertTrue(new File(outRoot, "b.txt").isFile());
+    }
+
+    @Test
+    public void outputsOfNotProcessedSourcesAreKept() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        File b = new File(srcRoot, "b.txt");
+        write(a, "a<@pp.nestOutputFile name='a2.txt'>a2</@>");
+        write(b, "b<@pp.nestOutputFile name='b2.txt'>b2</@>");
+        createEngine(true).process(new File[] { srcRoot });
+
+        // Failed processing:
+        write(a, "${noSuchVariable}");
+        Engine eng = createEngine(true);
+        eng.setStopOnError(false);
+        eng.process(new File[] { srcRoot });
+        assertTrue(new File(outRoot, "a2.txt").isFile());
+
+        // Source outside the processed files:
+        write(a, "a<@pp.nestOutputFile name='a2.txt'>a2</@>");
+        write(b, "b");
+        createEngine(true).process(new File[] { a });
+        assertTrue(new File(outRoot, "b2.txt").isFile());
+
+        // Skipped as up to date:
+        eng = createEngine(true);
+        eng.setDependencyTracking(true);
+        eng.process(new File[] { a });
+        eng.process(new File[] { a });
+        assertTrue(new File(outRoot, "a2.txt").isFile());
+
+        createEngine(true).process(new File[] { srcRoot });
+        assertTrue(new File(outRoot, "a2.txt").isFile());
+        assertFalse(new File(outRoot, "b2.txt").exists());
+    }
+
+    private Engine createEngine(boolean prune) throws IOException {
+        Engine eng = createEngine();
+        eng.setPruneStaleOutputs(prune);
+        return eng;
+    }
+
+}
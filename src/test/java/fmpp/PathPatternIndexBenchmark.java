@@ -0,0 +1,83 @@
+package fmpp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import fmpp.util.FileUtil;
+
+/**
+ * Compares the per-path cost of matching with {@link PathPatternIndex} with
+ * trying the regular expressions one by one (as the choosers did earlier), as
+ * the number of rules grows. Not a JUnit test; run it with {@code main}.
+ */
+public class PathPatternIndexBenchmark {
+
+    private static final int[] RULE_COUNTS = new int[] { 10, 50, 100, 200, 400, 800 };
+    private static final int PATH_COUNT = 20000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < PATH_COUNT; i++) {
+            paths.add("/section" + (i % 1000) + "/sub" + (i % 7) + "/page" + i + (i % 3 == 0 ? ".html" : ".txt"));
+        }
+        
+        System.out.println("rules\tregexp ns/path\tindex ns/path");
+        for (int ruleCount : RULE_COUNTS) {
+            List<String> patterns = createPatterns(ruleCount);
+            
+            Pattern[] regexps = new Pattern[patterns.size()];
+            PathPatternIndex index = new PathPatternIndex();
+            for (int i = 0; i < regexps.length; i++) {
+                regexps[i] = Pattern.compile(FileUtil.pathPatternToPerl5Regex(patterns.get(i)));
+                index.add(patterns.get(i));
+            }
+            
+            long regexpTime = Long.MAX_VALUE;
+            long indexTime = Long.MAX_VALUE;
+            int sink = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                for (String path : paths) {
+                    for (int i = 0; i < regexps.length; i++) {
+                        if (regexps[i].matcher(path).matches()) {
+                            sink++;
+                        }
+                    }
+                }
+                regexpTime = Math.min(regexpTime, System.nanoTime() - start);
+                
+                start = System.nanoTime();
+                for (String path : paths) {
+                    sink += index.match(path).cardinality();
+                }
+                indexTime = Math.min(indexTime, System.nanoTime() - start);
+            }
+            System.out.println(
+                    ruleCount + "\t" + regexpTime / PATH_COUNT + "\t\t" + indexTime / PATH_COUNT
+                    + (sink == 42 ? " " : ""));
+        }
+    }
+
+    private static List<String> createPatterns(int ruleCount) {
+        List<String> patterns = new ArrayList<String>();
+        for (int i = 0; patterns.size() < ruleCount; i++) {
+            switch (i % 4) {
+            case 0:
+                patterns.add("section" + i + "/**/*.html");
+                break;
+            case 1:
+                patterns.add("section" + i + "/sub?/");
+                break;
+            case 2:
+                patterns.add("**/page" + i + ".txt");
+                break;
+            default:
+                patterns.add("section" + i + "/sub" + (i % 7) + "/*.txt");
+            }
+        }
+        return patterns;
+    }
+
+}
@@ -0,0 +1,46 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import fmpp.util.FileUtil;
+
+public class PathPatternIndexTest {
+
+    private static final String[] PATTERNS = new String[] {
+            "", "/", "**", "**/", "*", "*.txt", "/*.txt", "**/*.txt", "a/", "a/**", "a/*", "a/**/b",
+            "a/**/b/**", "a/**/*.html", "/a/b/c.txt", "a/b/c.txt", "?.txt", "a/?/c.txt", "a/b?/*",
+            "a**b", "**x", "x**/y", "a//b", "a/b/", "*/b/*", "*.*", "a.b/c", "a(b)/[c]+.txt", "a$/^b",
+            "**/b", "b/**/", "a/**/**/c.txt" };
+
+    private static final String[] PATHS = new String[] {
+            "/", "/a", "/a.txt", "/b.txt", "/x", "/ab", "/axb", "/a/b", "/a/b/c.txt", "/a/x/b", "/a/x/y/b",
+            "/a/b/x", "/a/b/x/y", "/a/index.html", "/a/x/index.html", "/a/b/c", "/a/bx/c.txt", "/a/bxy/c",
+            "/x/y", "/xx/y", "/x/x/y", "/a.b/c", "/a(b)/[c]+.txt", "/a$/^b", "/q/b", "/q/r/b", "/b/x", "/b",
+            "/a/q/c.txt", "/a/b/c/c.txt" };
+
+    @Test
+    public void matchesLikeRegularExpressions() {
+        PathPatternIndex index = new PathPatternIndex();
+        Pattern[] regexps = new Pattern[PATTERNS.length];
+        for (int i = 0; i < PATTERNS.length; i++) {
+            assertEquals(i, index.add(PATTERNS[i]));
+            regexps[i] = Pattern.compile(FileUtil.pathPatternToPerl5Regex(PATTERNS[i]));
+        }
+        assertEquals(PATTERNS.length, index.size());
+        
+        for (String path : PATHS) {
+            BitSet matches = index.match(path);
+            for (int i = 0; i < PATTERNS.length; i++) {
+                assertEquals(
+                        "Pattern " + PATTERNS[i] + ", path " + path,
+                        regexps[i].matcher(path).matches(), matches.get(i));
+            }
+        }
+    }
+
+}
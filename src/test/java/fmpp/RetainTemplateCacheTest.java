@@ -0,0 +1,103 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import fmpp.setting.Settings;
+import freemarker.cache.MruCacheStorage;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+public class RetainTemplateCacheTest extends FileProcessingTestBase {
+
+    @Test
+    public void templatesAreReusedUntilChanged() throws IOException, ProcessingException {
+        File lib = new File(srcRoot, "lib.ftl");
+        write(lib, "1");
+        write(new File(srcRoot, "a.txt"), "<#include 'lib.ftl'>");
+        Engine eng = createEngine();
+        eng.setRetainTemplateCache(true);
+
+        eng.process(new File[] { srcRoot });
+        Template t1 = getTemplate(eng, "lib.ftl");
+        eng.process(new File[] { srcRoot });
+        assertSame(t1, getTemplate(eng, "lib.ftl"));
+        assertEquals("1", read(new File(outRoot, "a.txt")));
+
+        long lastModified = lib.lastModified();
+        write(lib, "2");
+        lib.setLastModified(lastModified + 10000);
+        eng.process(new File[] { srcRoot });
+        assertEquals("2", read(new File(outRoot, "a.txt")));
+        assertNotSame(t1, getTemplate(eng, "lib.ftl"));
+    }
+
+    @Test
+    public void parsingSettingChangeDiscardsCache() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.txt"), "[#if true]x[/#if]<#if true>y</#if>");
+        Engine eng = createEngine();
+        eng.setRetainTemplateCache(true);
+        eng.process(new File[] { srcRoot });
+        assertEquals("[#if true]x[/#if]y", read(new File(outRoot, "a.txt")));
+
+        eng.setTagSyntax(Configuration.SQUARE_BRACKET_TAG_SYNTAX);
+        eng.process(new File[] { srcRoot });
+        assertEquals("x<#if true>y</#if>", read(new File(outRoot, "a.txt")));
+    }
+
+    @Test
+    public void failedTemplateIsLoadedAgain() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        write(a, "<#if>");
+        Engine eng = createEngine();
+        eng.setRetainTemplateCache(true);
+        try {
+            eng.process(new File[] { srcRoot });
+            fail();
+        } catch (ProcessingException e) {
+            // Expected
+        }
+
+        long lastModified = a.lastModified();
+        write(a, "ok");
+        a.setLastModified(lastModified + 10000);
+        eng.process(new File[] { srcRoot });
+        assertEquals("ok", read(new File(outRoot, "a.txt")));
+    }
+
+    @Test
+    public void templateCacheSizeSetting() throws Exception {
+        assertEquals(-1, createEngine().getTemplateCacheStrongSize());
+
+        Settings settings = new Settings(dir);
+        settings.set(Settings.NAME_SOURCE_ROOT, srcRoot.getAbsolutePath());
+        settings.set(Settings.NAME_OUTPUT_ROOT, outRoot.getAbsolutePath());
+        settings.set(Settings.NAME_QUIET, "true");
+        settings.set(Settings.NAME_RETAIN_TEMPLATE_CACHE, Boolean.TRUE);
+        settings.set(Settings.NAME_TEMPLATE_CACHE_SIZE, "strong: 20, soft: 250");
+        final Engine[] engine = new Engine[1];
+        settings.addProgressListener(new ProgressListener() {
+            public void notifyProgressEvent(
+                    Engine eng, int event, File src, int pMode, Throwable error, Object param) {
+                engine[0] = eng;
+            }
+        });
+        settings.execute();
+        Engine eng = engine[0];
+        assertTrue(eng.getRetainTemplateCache());
+        assertEquals(20, eng.getTemplateCacheStrongSize());
+        assertEquals(250, eng.getTemplateCacheSoftSize());
+        MruCacheStorage storage = (MruCacheStorage) eng.getFreemarkerConfiguration().getCacheStorage();
+        assertEquals(20, storage.getStrongSizeLimit());
+        assertEquals(250, storage.getSoftSizeLimit());
+    }
+
+    private static Template getTemplate(Engine eng, String name) throws IOException {
+        return eng.getFreemarkerConfiguration().getTemplate(name);
+    }
+
+}
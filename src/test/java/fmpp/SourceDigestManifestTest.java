@@ -0,0 +1,60 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SourceDigestManifestTest extends FileProcessingTestBase {
+
+    private File sf;
+    private File df;
+
+    @Before
+    public void createFiles() throws IOException {
+        sf = new File(dir, "src.bin");
+        df = new File(dir, "out.bin");
+        write(sf, "content");
+        write(df, "content");
+    }
+
+    @Test
+    public void survivesLastModifiedChangeButNotContentChange() throws IOException {
+        SourceDigestManifest manifest = SourceDigestManifest.load(dir);
+        assertFalse(manifest.isUnchanged("src.bin", sf, "out.bin", df));
+        manifest.update("src.bin", sf, "out.bin");
+        assertTrue(manifest.isUnchanged("src.bin", sf, "out.bin", df));
+        assertFalse(manifest.isUnchanged("src.bin", sf, "other.bin", df));
+        manifest.save();
+
+        manifest = SourceDigestManifest.load(dir);
+        sf.setLastModified(sf.lastModified() - 100000L);
+        assertTrue(manifest.isUnchanged("src.bin", sf, "out.bin", df));
+
+        write(sf, "CONTENT");
+        assertFalse(manifest.isUnchanged("src.bin", sf, "out.bin", df));
+
+        manifest.remove("src.bin");
+        write(sf, "content");
+        assertFalse(manifest.isUnchanged("src.bin", sf, "out.bin", df));
+    }
+
+    @Test
+    public void missingOutputIsNotUnchanged() throws IOException {
+        SourceDigestManifest manifest = SourceDigestManifest.load(dir);
+        manifest.update("src.bin", sf, "out.bin");
+        df.delete();
+        assertFalse(manifest.isUnchanged("src.bin", sf, "out.bin", df));
+    }
+
+    @Test
+    public void corruptManifestIsIgnored() throws IOException {
+        write(new File(dir, SourceDigestManifest.FILE_NAME), "# FMPP source digests 1\nfoo\n");
+        SourceDigestManifest manifest = SourceDigestManifest.load(dir);
+        assertFalse(manifest.isUnchanged("src.bin", sf, "out.bin", df));
+    }
+
+}
@@ -0,0 +1,121 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TemplateLookupCacheTest extends FileProcessingTestBase {
+
+    private File link1;
+    private File link2;
+    private long past;
+
+    @Before
+    public void createFiles() {
+        link1 = new File(dir, "link1");
+        link2 = new File(dir, "link2");
+        link1.mkdirs();
+        link2.mkdirs();
+        // Recently modified directories aren't trusted for validating the cached lookups
+        past = System.currentTimeMillis() - 60000;
+    }
+
+    @Test
+    public void negativeLookupIsValidatedByDirectory() throws IOException {
+        ageDirectories();
+        FmppTemplateLoader loader = new FmppTemplateLoader(createEngine());
+        assertNull(loader.findTemplateSource("a.ftl"));
+
+        // Changes that don't change the directory modification time aren't noticed:
+        write(new File(srcRoot, "a.ftl"), "a");
+        ageDirectories();
+        loader.forgetDirectoryStatuses();
+        assertNull(loader.findTemplateSource("a.ftl"));
+
+        // The directory modification time is only checked again in the next turn:
+        srcRoot.setLastModified(past + 10000);
+        assertNull(loader.findTemplateSource("a.ftl"));
+        loader.forgetDirectoryStatuses();
+        assertEquals(new File(srcRoot, "a.ftl"), loader.findTemplateSource("a.ftl"));
+
+        loader.clearLookupCache();
+        new File(srcRoot, "a.ftl").delete();
+        srcRoot.setLastModified(past + 10000);
+        assertNull(loader.findTemplateSource("a.ftl"));
+    }
+
+    @Test
+    public void recentlyModifiedDirectoriesAreNotTrusted() throws IOException {
+        FmppTemplateLoader loader = new FmppTemplateLoader(createEngine());
+        assertNull(loader.findTemplateSource("a.ftl"));
+        write(new File(srcRoot, "a.ftl"), "a");
+        assertEquals(new File(srcRoot, "a.ftl"), loader.findTemplateSource("a.ftl"));
+    }
+
+    @Test
+    public void linkIndex() throws IOException {
+        write(new File(link2, "lib/l.ftl"), "2");
+        new File(link1, "lib").mkdir();
+        ageDirectories();
+        Engine eng = createEngine();
+        eng.setIndexFreemarkerLinks(true);
+        FmppTemplateLoader loader = new FmppTemplateLoader(eng);
+        assertEquals(new File(link2, "lib/l.ftl"), loader.findTemplateSource("@inc/lib/l.ftl"));
+        assertNull(loader.findTemplateSource("@inc/lib/missing.ftl"));
+        assertNull(loader.findTemplateSource("@inc/lib"));
+
+        // Reused while the directory modification time doesn't change:
+        write(new File(link1, "lib/l.ftl"), "1");
+        ageDirectories();
+        loader.forgetDirectoryStatuses();
+        assertEquals(new File(link2, "lib/l.ftl"), loader.findTemplateSource("@inc/lib/l.ftl"));
+
+        new File(link1, "lib").setLastModified(past + 10000);
+        loader.forgetDirectoryStatuses();
+        assertEquals(new File(link1, "lib/l.ftl"), loader.findTemplateSource("@inc/lib/l.ftl"));
+    }
+
+    @Test
+    public void templatesCreatedBetweenSessionsAreFound() throws IOException, ProcessingException {
+        write(new File(link2, "l.ftl"), "2");
+        write(new File(srcRoot, "a.txt"), "<#include '/@inc/l.ftl'>");
+        ageDirectories();
+        Engine eng = createEngine();
+        eng.setIndexFreemarkerLinks(true);
+        eng.setRetainTemplateCache(true);
+        eng.process(new File[] { srcRoot });
+        assertEquals("2", read(new File(outRoot, "a.txt")));
+
+        write(new File(link1, "l.ftl"), "1");
+        link1.setLastModified(past + 10000);
+        eng.process(new File[] { srcRoot });
+        assertEquals("1", read(new File(outRoot, "a.txt")));
+    }
+
+    @Override
+    protected Engine createEngine() throws IOException {
+        Engine eng = super.createEngine();
+        eng.addFreemarkerLink("inc", link1);
+        eng.addFreemarkerLink("inc", link2);
+        return eng;
+    }
+
+    private void ageDirectories() {
+        age(dir);
+    }
+
+    private void age(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                age(files[i]);
+            }
+            f.setLastModified(past);
+        }
+    }
+
+}
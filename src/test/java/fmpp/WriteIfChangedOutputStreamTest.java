@@ -0,0 +1,100 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fmpp.util.FileUtil;
+import freemarker.template.Version;
+
+public class WriteIfChangedOutputStreamTest extends FileProcessingTestBase {
+
+    private File dst;
+    private Engine engine;
+    private final List<File> unchangedOutputs = new ArrayList<File>();
+
+    @Before
+    public void setUp() {
+        outRoot.mkdirs();
+        dst = new File(outRoot, "out.txt");
+        engine = new Engine((Version) null);
+        engine.addProgressListener(new ProgressListener() {
+            public void notifyProgressEvent(
+                    Engine engine, int event, File src, int pMode, Throwable error, Object param) {
+                if (event == EVENT_OUTPUT_UNCHANGED) {
+                    unchangedOutputs.add((File) param);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void smallOutput() throws IOException {
+        testWithContent(new byte[] { 1, 2, 3 }, new byte[] { 1, 2, 4 });
+    }
+
+    @Test
+    public void emptyOutput() throws IOException {
+        testWithContent(new byte[0], new byte[] { 1 });
+    }
+
+    @Test
+    public void spilledOutput() throws IOException {
+        byte[] content = new byte[3 * 1024 * 1024 + 123];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        byte[] content2 = (byte[]) content.clone();
+        content2[content2.length - 1]++;
+        testWithContent(content, content2);
+    }
+
+    private void testWithContent(byte[] content, byte[] differentContent) throws IOException {
+        write(content);
+        assertArrayEquals(content, readBytes(dst));
+        assertEquals(0, unchangedOutputs.size());
+
+        dst.setLastModified(1000000L);
+        write(content);
+        assertEquals(1000000L, dst.lastModified());
+        assertEquals(1, unchangedOutputs.size());
+        assertEquals(dst, unchangedOutputs.get(0));
+
+        write(differentContent);
+        assertArrayEquals(differentContent, readBytes(dst));
+        assertEquals(1, unchangedOutputs.size());
+
+        assertEquals("Temporary files should have been deleted", 1, outRoot.listFiles().length);
+    }
+
+    private static byte[] readBytes(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            return FileUtil.loadByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(byte[] content) throws IOException {
+        OutputStream out = new WriteIfChangedOutputStream(engine, null, dst);
+        try {
+            // Write in pieces, like a Writer would do
+            for (int off = 0; off < content.length; off += 8000) {
+                out.write(content, off, Math.min(8000, content.length - off));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package fmpp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fmpp.util.FileUtil;
+
+public class ZipOutputSinkTest extends FileProcessingTestBase {
+
+    private File archive;
+
+    @Before
+    public void createFiles() {
+        archive = new File(outRoot, "site.zip");
+    }
+
+    @Test
+    public void outputFilesAndStaticFiles() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.txt"), "a ${1 + 1}");
+        write(new File(srcRoot, "sub/b.txt"), "b");
+        write(new File(srcRoot, "sub/image.png"), "png");
+        write(new File(srcRoot, "empty/createdir.fmpp"), "");
+
+        process();
+
+        assertEquals("a 2", readEntry("a.txt"));
+        assertEquals("b", readEntry("sub/b.txt"));
+        assertEquals("png", readEntry("sub/image.png"));
+        assertEquals(ZipEntry.STORED, getEntry("sub/image.png").getMethod());
+        assertEquals(ZipEntry.DEFLATED, getEntry("sub/b.txt").getMethod());
+        assertTrue(getEntry("sub/").isDirectory());
+        assertTrue(getEntry("empty/").isDirectory());
+        assertEquals(1, outRoot.list().length);
+    }
+
+    @Test
+    public void outputFileDirectives() throws IOException, ProcessingException {
+        write(new File(srcRoot, "dropped.txt"), "x<@pp.dropOutputFile />");
+        write(new File(srcRoot, "restarted.txt"), "x<@pp.restartOutputFile />y");
+        write(new File(srcRoot, "renamed.txt"), "r<@pp.renameOutputFile name='other.txt' />");
+        write(new File(srcRoot, "changed.txt"),
+                "1<@pp.changeOutputFile name='c1.txt' />2"
+                + "<@pp.nestOutputFile name='c2.txt'>3</@pp.nestOutputFile>4");
+
+        process();
+
+        assertEquals(
+                set(new String[] { "restarted.txt", "other.txt", "changed.txt", "c1.txt", "c2.txt" }),
+                getEntryNames());
+        assertEquals("y", readEntry("restarted.txt"));
+        assertEquals("r", readEntry("other.txt"));
+        assertEquals("1", readEntry("changed.txt"));
+        assertEquals("24", readEntry("c1.txt"));
+        assertEquals("3", readEntry("c2.txt"));
+    }
+
+    @Test
+    public void earlierEntriesAreKept() throws IOException, ProcessingException {
+        File a = new File(srcRoot, "a.txt");
+        File b = new File(srcRoot, "sub/b.txt");
+        write(a, "a1");
+        write(b, "b1");
+        process();
+
+        write(a, "a2");
+        Engine eng = createEngine();
+        eng.process(new File[] { a });
+
+        assertEquals("a2", readEntry("a.txt"));
+        assertEquals("b1", readEntry("sub/b.txt"));
+    }
+
+    @Test
+    public void appendingToEarlierEntry() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.txt"), "a1");
+        process();
+
+        File b = new File(srcRoot, "b.txt");
+        write(b, "b<@pp.changeOutputFile name='a.txt' append=true />+"
+                + "<@pp.nestOutputFile name='b.txt' append=true>x</@pp.nestOutputFile>");
+        try {
+            createEngine().process(new File[] { b });
+            fail();
+        } catch (ProcessingException e) {
+            // Expected: b.txt was already written in this session
+        }
+        assertEquals("a1", readEntry("a.txt"));
+
+        write(b, "b<@pp.changeOutputFile name='a.txt' append=true />+");
+        createEngine().process(new File[] { b });
+        assertEquals("a1+", readEntry("a.txt"));
+        assertEquals("b", readEntry("b.txt"));
+    }
+
+    @Test
+    public void failedSessionKeepsArchive() throws IOException, ProcessingException {
+        write(new File(srcRoot, "a.txt"), "a1");
+        process();
+
+        write(new File(srcRoot, "a.txt"), "a2");
+        write(new File(srcRoot, "bad.txt"), "${noSuchVariable}");
+        try {
+            process();
+            fail();
+        } catch (ProcessingException e) {
+            // Expected
+        }
+
+        assertEquals("a1", readEntry("a.txt"));
+        assertEquals(1, outRoot.list().length);
+    }
+
+    private void process() throws IOException, ProcessingException {
+        createEngine().process(new File[] { srcRoot });
+    }
+
+    @Override
+    protected Engine createEngine() throws IOException {
+        Engine eng = super.createEngine();
+        eng.setOutputRoot(archive);
+        eng.setOutputSink(new ZipOutputSink(archive));
+        return eng;
+    }
+
+    private ZipEntry getEntry(String name) throws IOException {
+        ZipFile zip = new ZipFile(archive);
+        try {
+            ZipEntry entry = zip.getEntry(name);
+            assertNotNull(name, entry);
+            return entry;
+        } finally {
+            zip.close();
+        }
+    }
+
+    private String readEntry(String name) throws IOException {
+        ZipFile zip = new ZipFile(archive);
+        try {
+            ZipEntry entry = zip.getEntry(name);
+            assertNotNull(name, entry);
+            InputStream in = zip.getInputStream(entry);
+            try {
+                return FileUtil.loadString(in, "UTF-8");
+            } finally {
+                in.close();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private Set<String> getEntryNames() throws IOException {
+        Set<String> names = new HashSet<String>();
+        ZipFile zip = new ZipFile(archive);
+        try {
+            for (Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements();) {
+                names.add(en.nextElement().getName());
+            }
+        } finally {
+            zip.close();
+        }
+        return names;
+    }
+
+    private static Set<String> set(String[] items) {
+        Set<String> s = new HashSet<String>();
+        for (int i = 0; i < items.length; i++) {
+            s.add(items[i]);
+        }
+        return s;
+    }
+
+}
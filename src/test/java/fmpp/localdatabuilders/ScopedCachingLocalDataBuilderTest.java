@@ -0,0 +1,102 @@
+package fmpp.localdatabuilders;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fmpp.Engine;
+import fmpp.FileProcessingTestBase;
+import fmpp.ProcessingException;
+
+public class ScopedCachingLocalDataBuilderTest extends FileProcessingTestBase {
+
+    @Before
+    public void createFiles() throws IOException {
+        for (String path : new String[] { "a/1.txt", "a/2.txt", "b/1.txt", "b/c/1.txt", "d/1.txt" }) {
+            write(new File(srcRoot, path), "${key}");
+        }
+    }
+
+    @Test
+    public void perDirectory() throws Exception {
+        KeyRecordingBuilder builder = new KeyRecordingBuilder(100);
+        Engine eng = createEngine(builder);
+        eng.setParallelism(2);
+        eng.process(new File[] { srcRoot });
+        assertEquals(4, builder.keys.size());
+        assertEquals(new File(srcRoot, "a").getAbsoluteFile().getPath(), read("a/2.txt"));
+        assertEquals(new File(srcRoot, "b/c").getAbsoluteFile().getPath(), read("b/c/1.txt"));
+        // Discarded at the end of the session
+        assertEquals(0, builder.getSize());
+    }
+
+    @Test
+    public void perPathPatternGroup() throws Exception {
+        KeyRecordingBuilder builder = new KeyRecordingBuilder(100);
+        builder.setPathPatternGroups(Arrays.asList(new String[] { "b/c/**", "A/**", "b/**" }));
+        process(builder);
+        assertEquals("A/**", read("a/1.txt"));
+        assertEquals("b/**", read("b/1.txt"));
+        assertEquals("b/c/**", read("b/c/1.txt"));
+        // Not matched by any patterns, so it's not shared:
+        assertEquals(new File(srcRoot, "d/1.txt").getPath(), read("d/1.txt"));
+        assertEquals(4, builder.keys.size());
+    }
+
+    @Test
+    public void perKeyExpression() throws Exception {
+        KeyRecordingBuilder builder = new KeyRecordingBuilder(100);
+        builder.setKeyExpression("templateEnvironment.getSourceFile().getName()");
+        process(builder);
+        assertEquals("1.txt", read("b/c/1.txt"));
+        assertEquals(2, builder.keys.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        KeyRecordingBuilder builder = new KeyRecordingBuilder(1);
+        builder.setKeyExpression("templateEnvironment.getSourceFile().getName()");
+        Engine eng = createEngine(builder);
+        eng.process(new File[] {
+                new File(srcRoot, "a/1.txt"), new File(srcRoot, "a/2.txt"), new File(srcRoot, "b/1.txt") });
+        assertEquals(Arrays.asList(new Object[] { "1.txt", "2.txt", "1.txt" }), builder.keys);
+    }
+
+    private void process(ScopedCachingLocalDataBuilder builder) throws IOException, ProcessingException {
+        createEngine(builder).process(new File[] { srcRoot });
+    }
+
+    private Engine createEngine(ScopedCachingLocalDataBuilder builder) throws IOException {
+        Engine eng = createEngine();
+        eng.addLocalDataBuilder(0, "**", builder);
+        return eng;
+    }
+
+    private static class KeyRecordingBuilder extends ScopedCachingLocalDataBuilder {
+        private final List<Object> keys = Collections.synchronizedList(new ArrayList<Object>());
+
+        KeyRecordingBuilder(int maxEntries) {
+            super(maxEntries);
+        }
+
+        @Override
+        protected Map build(Engine eng, Object cacheKey) {
+            keys.add(cacheKey);
+            return Collections.singletonMap("key", cacheKey.toString());
+        }
+    }
+
+    private String read(String path) throws IOException {
+        return read(new File(outRoot, path));
+    }
+
+}
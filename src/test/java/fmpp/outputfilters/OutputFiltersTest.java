@@ -0,0 +1,93 @@
+package fmpp.outputfilters;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.junit.Test;
+
+import fmpp.FileProcessingTestBase;
+import fmpp.OutputFilter;
+import fmpp.ProcessingException;
+import fmpp.setting.SettingException;
+import fmpp.setting.Settings;
+
+public class OutputFiltersTest extends FileProcessingTestBase {
+
+    @Test
+    public void stripHtmlComments() throws IOException {
+        OutputFilter f = new HtmlCommentStrippingFilter();
+        assertEquals("ab", filter(f, "a<!-- x -->b"));
+        assertEquals("ab", filter(f, "a<!-- x - -- --->b"));
+        assertEquals("ab", filter(f, "a<!---->b"));
+        assertEquals("a<!-b <!b <b<<", filter(f, "a<!-b <!b <b<<"));
+        assertEquals("a<!--[if IE]>x<![endif]-->b", filter(f, "a<!--[if IE]>x<![endif]-->b"));
+        assertEquals("a<<b", filter(f, "a<<<!-- x -->b"));
+        assertEquals("a<!-", filter(f, "a<!-"));
+        assertEquals("a", filter(f, "a<!-- unclosed"));
+    }
+
+    @Test
+    public void stripWhitespace() throws IOException {
+        OutputFilter f = new WhitespaceStrippingFilter();
+        assertEquals("a b\nc", filter(f, "  a \t  b  \n\n \t \n  c  "));
+        assertEquals("a\r\nb\r\n", filter(f, "a \r\n \r\n b\r\n"));
+        assertEquals("a\rb", filter(f, "a\r\rb"));
+        assertEquals("", filter(f, " \n \n "));
+    }
+
+    @Test
+    public void normalizeLineBreaks() throws IOException {
+        assertEquals("a\nb\nc\n\nd", filter(new LineBreakNormalizingFilter("\n"), "a\r\nb\rc\n\rd"));
+        assertEquals("a\r\nb\r\n\r\n", filter(new LineBreakNormalizingFilter("\r\n"), "a\nb\r\n\r"));
+    }
+
+    @Test
+    public void settingAndChaining() throws IOException, SettingException, ProcessingException {
+        write(new File(srcRoot, "a.html"),
+                "<!-- c -->\n  <p>\r\n    x  y\n  </p>\n"
+                + "<@pp.nestOutputFile name='b.txt'> 1 \n 2 </@pp.nestOutputFile>");
+
+        Settings settings = new Settings(dir);
+        settings.set(Settings.NAME_SOURCE_ROOT, srcRoot.getAbsolutePath());
+        settings.set(Settings.NAME_OUTPUT_ROOT, outRoot.getAbsolutePath());
+        settings.set(Settings.NAME_QUIET, "true");
+        settings.addWithString(Settings.NAME_OUTPUT_FILTERS,
+                "filter(**/*.html, stripHtmlComments, stripWhitespace), "
+                + "filter([**/*.html, **/*.txt], normalizeLineBreaks(CRLF))");
+        settings.execute();
+
+        assertEquals("<p>\r\nx y\r\n</p>\r\n", read(new File(outRoot, "a.html")));
+        assertEquals(" 1 \r\n 2 ", read(new File(outRoot, "b.txt")));
+    }
+
+    @Test
+    public void unknownFilter() throws SettingException, ProcessingException {
+        Settings settings = new Settings(new File("."));
+        settings.addWithString(Settings.NAME_OUTPUT_FILTERS, "filter(**, noSuchFilter)");
+        try {
+            settings.execute();
+            fail();
+        } catch (SettingException e) {
+            assertTrue(e.getMessage().indexOf(Settings.NAME_OUTPUT_FILTERS) != -1);
+        }
+    }
+
+    /**
+     * Filters the text, with writing it in small chunks, so that the filters can't see all of it at once.
+     */
+    private static String filter(OutputFilter f, String s) throws IOException {
+        StringWriter sw = new StringWriter();
+        Writer w = f.filter(sw, null, null);
+        for (int i = 0; i < s.length(); i += 3) {
+            w.write(s, i, Math.min(3, s.length() - i));
+            w.flush();
+        }
+        w.close();
+        return sw.toString();
+    }
+
+}
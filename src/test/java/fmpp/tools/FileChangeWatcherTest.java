@@ -0,0 +1,63 @@
+package fmpp.tools;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fmpp.FileProcessingTestBase;
+
+public class FileChangeWatcherTest extends FileProcessingTestBase {
+
+    private File subDir;
+    private File excludedDir;
+    private File outsideFile;
+
+    @Before
+    public void createFiles() throws IOException {
+        subDir = new File(dir, "sub");
+        subDir.mkdirs();
+        excludedDir = new File(dir, "out");
+        excludedDir.mkdirs();
+        outsideFile = File.createTempFile("fmpp-test", ".txt");
+        write(new File(subDir, "a.txt"), "a");
+    }
+
+    @After
+    public void deleteOutsideFile() {
+        outsideFile.delete();
+    }
+
+    @Test
+    public void detectsChanges() throws IOException, InterruptedException {
+        FileChangeWatcher watcher = new FileChangeWatcher(10, 10);
+        watcher.addDirectory(dir);
+        watcher.addFiles(Collections.singleton(outsideFile));
+        watcher.exclude(excludedDir);
+        watcher.takeSnapshot();
+
+        File a = new File(subDir, "a.txt");
+        write(a, "aa");
+        File b = new File(subDir, "b.txt");
+        write(b, "b");
+        write(new File(excludedDir, "ignored.txt"), "x");
+        Set<File> changes = watcher.awaitChanges();
+        assertEquals(2, changes.size());
+        assertTrue(changes.contains(a.getAbsoluteFile()));
+        assertTrue(changes.contains(b.getAbsoluteFile()));
+
+        b.delete();
+        write(outsideFile, "changed");
+        changes = watcher.awaitChanges();
+        assertEquals(2, changes.size());
+        assertTrue(changes.contains(b.getAbsoluteFile()));
+        assertTrue(changes.contains(outsideFile.getAbsoluteFile()));
+    }
+
+}
@@ -0,0 +1,50 @@
+package fmpp.util;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class BorderedReaderTest {
+
+    @Test
+    public void readInChunks() throws IOException {
+        for (int bufLen = 1; bufLen <= 12; bufLen++) {
+            assertEquals("<h>body</f>", readAll(new BorderedReader("<h>", new StringReader("body"), "</f>"), bufLen));
+            assertEquals("body</f>", readAll(new BorderedReader(null, new StringReader("body"), "</f>"), bufLen));
+            assertEquals("<h>", readAll(new BorderedReader("<h>", new StringReader(""), null), bufLen));
+        }
+    }
+
+    @Test
+    public void readCharByChar() throws IOException {
+        Reader r = new BorderedReader("<h>", new StringReader("b"), "</f>");
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = r.read()) != -1) {
+            sb.append((char) c);
+        }
+        assertEquals("<h>b</f>", sb.toString());
+    }
+
+    @Test
+    public void skip() throws IOException {
+        Reader r = new BorderedReader("<h>", new StringReader("body"), "</f>");
+        assertEquals(5, r.skip(5));
+        assertEquals("dy</f>", readAll(r, 4));
+    }
+
+    private static String readAll(Reader r, int bufLen) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[bufLen + 2];
+        int ln;
+        while ((ln = r.read(buf, 1, bufLen)) != -1) {
+            sb.append(buf, 1, ln);
+        }
+        return sb.toString();
+    }
+
+}
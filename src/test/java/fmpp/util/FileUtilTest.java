@@ -0,0 +1,104 @@
+package fmpp.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+import fmpp.FileProcessingTestBase;
+
+public class FileUtilTest extends FileProcessingTestBase {
+
+    @Test
+    public void copyFileInChunks() throws IOException {
+        // Bigger than two transferTo chunks
+        int size = 2 * 8 * 1024 * 1024 + 12345;
+        File src = new File(dir, "src.bin");
+        OutputStream out = new FileOutputStream(src);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            for (int written = 0; written < size; written += buf.length) {
+                int len = Math.min(buf.length, size - written);
+                for (int i = 0; i < len; i++) {
+                    buf[i] = patternByte(written + i);
+                }
+                out.write(buf, 0, len);
+            }
+        } finally {
+            out.close();
+        }
+
+        File dst = new File(dir, "dst.bin");
+        write(dst, "an existing file that is overwritten");
+        FileUtil.copyFile(src, dst);
+
+        assertEquals(size, dst.length());
+        InputStream in = new FileInputStream(dst);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int pos = 0;
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                for (int i = 0; i < len; i++) {
+                    if (buf[i] != patternByte(pos + i)) {
+                        fail("Difference at " + (pos + i));
+                    }
+                }
+                pos += len;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void copyFileToLongerFile() throws IOException {
+        File src = new File(dir, "src.txt");
+        write(src, "short");
+        File dst = new File(dir, "dst.txt");
+        write(dst, "a much longer existing file");
+
+        FileUtil.copyFile(src, dst);
+
+        assertEquals("short", read(dst));
+    }
+
+    @Test
+    public void copyFileWithLastModified() throws IOException {
+        File src = new File(dir, "src.txt");
+        write(src, "x");
+        long lmd = 1000000000000L;
+        src.setLastModified(lmd);
+        File dst = new File(dir, "dst.txt");
+
+        FileUtil.copyFile(src, dst, true);
+
+        assertEquals("x", read(dst));
+        assertEquals(lmd, dst.lastModified());
+    }
+
+    @Test
+    public void tryCreateLinksFailures() throws IOException {
+        File target = new File(dir, "target.txt");
+        write(target, "t");
+        File linkInMissingDir = new File(dir, "missing/link.txt");
+
+        assertFalse(FileUtil.tryCreateHardLink(linkInMissingDir, target));
+        assertFalse(FileUtil.tryCreateSymbolicLink(linkInMissingDir, target));
+        assertFalse(FileUtil.tryCreateHardLink(new File(dir, "link.txt"), new File(dir, "missing.txt")));
+        // Links aren't created in place of an existing file
+        assertFalse(FileUtil.tryCreateSymbolicLink(target, new File(dir, "other.txt")));
+        assertEquals("t", read(target));
+    }
+
+    private static byte patternByte(int pos) {
+        return (byte) (pos * 31 + (pos >> 16));
+    }
+
+}